@@ -0,0 +1,42 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+/**
+ * This is a ClassCache that stores the bytecode that Rhino generates for each script, rather than the compiled
+ * Script object itself. That lets an implementation keep compiled code outside the heap, for instance in a
+ * directory on disk so that it survives a restart of the JVM. When the environment's class cache implements
+ * this interface, scripts are compiled to class files and passed to "putCachedClasses" instead of
+ * "putCachedScript."
+ */
+
+public interface BytecodeClassCache
+    extends ClassCache
+{
+    /**
+     * Store the class files generated for a script. "classFiles" is in the format returned by Rhino's
+     * "ClassCompiler.compileToClassFiles" -- an array of alternating class names and byte arrays, in which the
+     * first class is the one that implements Script. The implementation will be invoked simultaneously from
+     * multiple threads, possibly with the same key.
+     */
+    void putCachedClasses(String key, Object[] classFiles);
+}
@@ -21,10 +21,20 @@
  */
 package io.apigee.trireme.core;
 
+import io.apigee.trireme.core.internal.EventLoopScheduler;
+import io.apigee.trireme.core.internal.GlobalScopeTemplate;
+import io.apigee.trireme.core.internal.JavaVersion;
+import io.apigee.trireme.core.internal.LruClassCache;
 import io.apigee.trireme.core.internal.RootModuleRegistry;
 import io.apigee.trireme.core.internal.RhinoContextFactory;
+import io.apigee.trireme.core.internal.ScriptCompiler;
 import io.apigee.trireme.core.internal.SoftClassCache;
+import io.apigee.trireme.core.internal.SSLContextCache;
+import io.apigee.trireme.core.internal.DiskClassCache;
 import io.apigee.trireme.kernel.VersionMatcher;
+import io.apigee.trireme.kernel.dns.DNSCache;
+import io.apigee.trireme.kernel.fs.MappedFileCache;
+import io.apigee.trireme.kernel.util.DirectBufferPool;
 import io.apigee.trireme.core.spi.NodeImplementation;
 import io.apigee.trireme.kernel.NodeVersion;
 import io.apigee.trireme.net.spi.HttpServerContainer;
@@ -36,6 +46,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ServiceLoader;
@@ -66,6 +79,10 @@ public class
     public static final int POOL_QUEUE_SIZE   = 32;
     public static final long POOL_TIMEOUT_SECS = 60L;
 
+    public static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_CRYPTO_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_CRYPTO_QUEUE_SIZE = 1000;
+
     public static final int DEFAULT_JS_VERSION = Context.VERSION_1_8;
     // Level 1 and up compiles to byte code -- we always want that.
     // Level 9 adds additional integer optimizations.
@@ -80,8 +97,26 @@ public class
     private RhinoContextFactory contextFactory;
     private long                scriptTimeLimit;
     private ClassCache          classCache;
+    private final ScriptCompiler scriptCompiler = new ScriptCompiler(this);
+    private LruClassCache       registeredClassCache;
+    private volatile boolean    backgroundCompilation;
     private String              defaultNodeVersion;
     private int                 maxAsyncPoolSize = MAX_POOL_SIZE;
+    private boolean             sharedEventLoop;
+    private int                 eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+    private EventLoopScheduler  eventLoopScheduler;
+    private boolean             virtualThreads;
+    private boolean             globalScopeTemplate;
+    private GlobalScopeTemplate scopeTemplate;
+    private final List<ScriptPool> scriptPools = new ArrayList<ScriptPool>();
+    private volatile SSLContextCache sslContextCache = new SSLContextCache();
+    private volatile DNSCache   dnsCache = new DNSCache();
+    private boolean             nonBlockingLookup;
+    private int                 cryptoPoolSize = DEFAULT_CRYPTO_POOL_SIZE;
+    private int                 cryptoQueueSize = DEFAULT_CRYPTO_QUEUE_SIZE;
+    private volatile ThreadPoolExecutor cryptoPool;
+    private volatile DirectBufferPool directBufferPool;
+    private volatile MappedFileCache mappedFileCache;
 
     private int                 optLevel = DEFAULT_OPT_LEVEL;
 
@@ -122,6 +157,27 @@ public class
      */
     public void close()
     {
+        synchronized (initializationLock) {
+            if (eventLoopScheduler != null) {
+                eventLoopScheduler.close();
+                eventLoopScheduler = null;
+            }
+        }
+        unregisterClassCache();
+        scriptCompiler.close();
+        SSLContextCache sslCache = sslContextCache;
+        if (sslCache != null) {
+            sslCache.clear();
+        }
+
+        ArrayList<ScriptPool> pools;
+        synchronized (scriptPools) {
+            pools = new ArrayList<ScriptPool>(scriptPools);
+            scriptPools.clear();
+        }
+        for (ScriptPool pool : pools) {
+            pool.close();
+        }
     }
 
     /**
@@ -249,6 +305,21 @@ public class
         return new NodeScript(this, args, forceRepl);
     }
 
+    /**
+     * Create a pool that keeps up to "size" script runtimes started and ready to run a script, so that
+     * scripts created by the pool start much more quickly. Configure the pool and then call "start" to
+     * fill it. The pool is closed when this environment is closed.
+     */
+    public ScriptPool createScriptPool(int size)
+    {
+        initialize();
+        ScriptPool pool = new ScriptPool(this, size);
+        synchronized (scriptPools) {
+            scriptPools.add(pool);
+        }
+        return pool;
+    }
+
     /**
      * Replace the default HTTP implementation with a custom implementation. Must be set before
      * any calls to "createScript" in order to have any effect.
@@ -314,6 +385,7 @@ public class
      * in PermGen space for large environments. The user must implement the interface.
      */
     public void setClassCache(ClassCache cache) {
+        unregisterClassCache();
         this.classCache = cache;
     }
 
@@ -322,13 +394,133 @@ public class
      * uses a hash map of SoftReference objects.
      */
     public void setDefaultClassCache() {
+        unregisterClassCache();
         this.classCache = new SoftClassCache();
     }
 
+    /**
+     * Create a class cache that stores the bytecode for compiled scripts in the specified directory,
+     * so that it is not necessary to compile them again when the JVM restarts. Only "maxSize" bytes of
+     * class files will be kept on disk, and the least recently used ones will be removed first.
+     * The directory should only be shared by environments that use the same optimization level and
+     * script time limit.
+     */
+    public void setDiskClassCache(File directory, long maxSize)
+        throws IOException
+    {
+        DiskClassCache cache = new DiskClassCache(directory, maxSize);
+        unregisterClassCache();
+        this.classCache = cache;
+    }
+
+    /**
+     * Create a class cache that keeps at most "maxEntries" compiled scripts and "maxSize" bytes of bytecode
+     * in memory, and removes the least recently used scripts first. Its hit, miss, eviction and compilation
+     * statistics are published via JMX until this environment is closed.
+     */
+    public void setBoundedClassCache(int maxEntries, long maxSize)
+    {
+        unregisterClassCache();
+        LruClassCache cache = new LruClassCache(maxEntries, maxSize);
+        cache.registerMBean();
+        this.classCache = cache;
+        this.registeredClassCache = cache;
+    }
+
     public ClassCache getClassCache() {
         return classCache;
     }
 
+    /**
+     * Stop publishing the statistics of the bounded class cache, if there is one, so that the MBean server
+     * does not hold on to it after it is replaced.
+     */
+    private void unregisterClassCache()
+    {
+        if (registeredClassCache != null) {
+            registeredClassCache.unregisterMBean();
+            registeredClassCache = null;
+        }
+    }
+
+    /**
+     * Set the cache of SSLContext objects that is shared by every script in this environment. Scripts that
+     * create secure contexts with the same keys, certificates, CAs, CRLs, and ciphers -- such as scripts that
+     * make lots of HTTPS requests -- get the same context back from the cache, which saves the work of building
+     * a new one and lets them re-use TLS sessions. By default there is a cache of
+     * SSLContextCache.DEFAULT_MAX_ENTRIES contexts that expire after an hour. Set it to null to build
+     * a new context every time.
+     */
+    public NodeEnvironment setSSLContextCache(SSLContextCache cache)
+    {
+        this.sslContextCache = cache;
+        return this;
+    }
+
+    public SSLContextCache getSSLContextCache()
+    {
+        return sslContextCache;
+    }
+
+    /**
+     * Set the cache of DNS answers that is shared by every script in this environment. It is used by the
+     * "dns.resolve" family of functions, and by "dns.lookup" when "setNonBlockingLookup" is enabled.
+     * Answers are kept for as long as their TTL allows, and names that do not exist are remembered for
+     * a short time too. When several scripts ask the same question at once, only one query is sent.
+     * By default there is a cache of DNSCache.DEFAULT_MAX_ENTRIES answers. Set it to null to send
+     * a query every time.
+     */
+    public NodeEnvironment setDNSCache(DNSCache cache)
+    {
+        this.dnsCache = cache;
+        return this;
+    }
+
+    public DNSCache getDNSCache()
+    {
+        return dnsCache;
+    }
+
+    /**
+     * Have "dns.lookup," which is used by "net.connect" and "http.request," look up addresses using
+     * Trireme's own DNS client and the DNS cache, rather than the JVM's built-in resolver, which blocks a
+     * thread from the async pool for every lookup. /etc/hosts is still consulted first. Names without
+     * a dot are still handed to the JVM, since they may need the search domains from resolv.conf,
+     * as are all names when no DNS servers are configured. Other sources of names that the operating
+     * system may know about, such as NIS or mDNS, are not used. The default is false.
+     */
+    public NodeEnvironment setNonBlockingLookup(boolean nonBlocking)
+    {
+        this.nonBlockingLookup = nonBlocking;
+        return this;
+    }
+
+    public boolean isNonBlockingLookup()
+    {
+        return nonBlockingLookup;
+    }
+
+    /**
+     * Compile large scripts on a separate thread pool rather than on the script thread. The first time
+     * a large script runs, it runs in interpreted mode, and after that it runs in compiled mode. This also
+     * allows scripts that are too large to compile as a whole to be compiled in pieces. The default is false.
+     */
+    public void setBackgroundCompilation(boolean background) {
+        this.backgroundCompilation = background;
+    }
+
+    public boolean isBackgroundCompilation() {
+        return backgroundCompilation;
+    }
+
+    /**
+     * Return the object that compiles all the scripts that are loaded at runtime using the class cache.
+     * It also reports how often the cache was used.
+     */
+    public ScriptCompiler getScriptCompiler() {
+        return scriptCompiler;
+    }
+
     /**
      * Set the maximum thread pool size of the "async pool," which will be used for running
      * short-duration blocking tasks like file I/O, DNS lookups, and some TLS operations. The default is 100.
@@ -343,6 +535,216 @@ public class
         return maxAsyncPoolSize;
     }
 
+    /**
+     * Run all scripts on a small set of shared event loop threads, rather than giving each script a
+     * thread of its own. This saves a great deal of memory and context switching when there are many
+     * scripts that are mostly idle. Each script still runs on only one thread at a time, but a script that
+     * blocks will hold up the other scripts on the same loop. Scripts that are started as child processes
+     * of other scripts always get their own thread. The default is false, and it must be set before
+     * any calls to "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setSharedEventLoop(boolean shared)
+    {
+        this.sharedEventLoop = shared;
+        return this;
+    }
+
+    public boolean isSharedEventLoop()
+    {
+        return sharedEventLoop;
+    }
+
+    /**
+     * Set the number of threads that will run scripts when "setSharedEventLoop" is enabled. The default
+     * is the number of processors. Must be set before any calls to "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setEventLoopThreads(int threads)
+    {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least one");
+        }
+        this.eventLoopThreads = threads;
+        return this;
+    }
+
+    public int getEventLoopThreads()
+    {
+        return eventLoopThreads;
+    }
+
+    /**
+     * Internal: Get the scheduler for the shared event loops, or null if scripts get their own threads.
+     */
+    public EventLoopScheduler getEventLoopScheduler()
+    {
+        return eventLoopScheduler;
+    }
+
+    /**
+     * Use virtual threads, rather than regular threads, for the script threads and for the "async pool"
+     * that runs file I/O, DNS lookups, and other blocking tasks. Since virtual threads are cheap, the async pool
+     * is no longer bounded by "setMaxAsyncPoolSize," and a burst of blocking tasks no longer ends up
+     * running in the script thread when the pool is full. This requires a JDK that supports virtual
+     * threads -- on older JDKs the setting is ignored and the regular thread pools are used. An async pool
+     * set on the Sandbox still takes precedence. Must be set before any calls to "createScript" in order
+     * to have any effect.
+     */
+    public NodeEnvironment setVirtualThreads(boolean virtual)
+    {
+        this.virtualThreads = virtual;
+        return this;
+    }
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * Create the JavaScript standard objects ("Object," "String," "Array," and so on) once for the whole
+     * environment, seal them, and have every script's global scope inherit them, rather than creating a new
+     * set for every script. This makes each script start faster and use less memory. Scripts are still
+     * isolated from each other because nobody can modify the shared objects -- but that also means that
+     * scripts that add to the prototypes of built-in objects, such as "String.prototype," will fail.
+     * The default is false, and it must be set before the first script is run.
+     */
+    public NodeEnvironment setGlobalScopeTemplate(boolean template)
+    {
+        this.globalScopeTemplate = template;
+        return this;
+    }
+
+    public boolean isGlobalScopeTemplate()
+    {
+        return globalScopeTemplate;
+    }
+
+    /**
+     * Internal: Get the template for the global scope of each script, or null if every script gets its own
+     * standard objects.
+     */
+    public GlobalScopeTemplate getGlobalScopeTemplate()
+    {
+        return scopeTemplate;
+    }
+
+    /**
+     * Set the number of threads that run CPU-intensive crypto operations, such as "pbkdf2" and "randomBytes"
+     * when they are called with a callback, so that they do not hold up the script thread. The default
+     * is the number of processors. Must be set before any calls to "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setCryptoPoolSize(int size)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least one");
+        }
+        this.cryptoPoolSize = size;
+        return this;
+    }
+
+    public int getCryptoPoolSize()
+    {
+        return cryptoPoolSize;
+    }
+
+    /**
+     * Set the number of crypto operations that may wait for a thread in the crypto pool. Once the queue is full,
+     * new operations run on the script thread that asked for them, just like they would without the pool.
+     * The default is 1000. Must be set before any calls to "createScript" in order to have any effect.
+     */
+    public NodeEnvironment setCryptoQueueSize(int size)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least one");
+        }
+        this.cryptoQueueSize = size;
+        return this;
+    }
+
+    public int getCryptoQueueSize()
+    {
+        return cryptoQueueSize;
+    }
+
+    /**
+     * Return the number of crypto operations that are waiting for a thread in the crypto pool.
+     */
+    public int getCryptoQueueDepth()
+    {
+        ThreadPoolExecutor pool = cryptoPool;
+        return (pool == null ? 0 : pool.getQueue().size());
+    }
+
+    /**
+     * Return the number of crypto operations that are running right now in the crypto pool.
+     */
+    public int getCryptoActiveCount()
+    {
+        ThreadPoolExecutor pool = cryptoPool;
+        return (pool == null ? 0 : pool.getActiveCount());
+    }
+
+    /**
+     * Return the number of crypto operations that the crypto pool has finished.
+     */
+    public long getCryptoCompletedCount()
+    {
+        ThreadPoolExecutor pool = cryptoPool;
+        return (pool == null ? 0L : pool.getCompletedTaskCount());
+    }
+
+    /**
+     * Keep the contents of Buffers that scripts create with "new Buffer(size)" in direct memory from this pool,
+     * rather than in a byte array on the Java heap. Socket and file writes then go straight from the Buffer to
+     * the channel, without the JDK copying them into a temporary direct buffer first. The pool caps the
+     * amount of direct memory that it uses, and once that is reached, new Buffers use the heap again.
+     * Its statistics show how much direct memory is in use. The default is null, which turns this off.
+     */
+    public NodeEnvironment setDirectBufferPool(DirectBufferPool pool)
+    {
+        this.directBufferPool = pool;
+        return this;
+    }
+
+    public DirectBufferPool getDirectBufferPool()
+    {
+        return directBufferPool;
+    }
+
+    /**
+     * Let scripts read large files through a cache of memory-mapped files, which is shared by every script
+     * in this environment. This is a Trireme extension that scripts must ask for: when "fs.readFile" or
+     * "fs.createReadStream" is passed the option "mapped: true" and the file is opened for reading only,
+     * the script gets read-only Buffers that point straight at the cached mapping, rather than new Buffers
+     * with a copy of the file. Writing to one of those Buffers, or to a slice of one, throws an error.
+     * Without that option, those functions behave as usual. The default is null, which turns this off.
+     * <p>
+     * A file is mapped again when its file key (the device and inode on Unix), modification time, or size
+     * changes, so files that are replaced by renaming a new file over them are handled correctly. However,
+     * a mapping is a view of the file itself. A file that is modified in place while it is mapped changes
+     * the contents of Buffers that scripts already have, and if it is truncated, then reading those Buffers
+     * fails with an InternalError or may even crash the JVM. Only use this for files that are never modified
+     * in place while the process is running.
+     * </p>
+     */
+    public NodeEnvironment setMappedFileCache(MappedFileCache cache)
+    {
+        this.mappedFileCache = cache;
+        return this;
+    }
+
+    public MappedFileCache getMappedFileCache()
+    {
+        return mappedFileCache;
+    }
+
+    /**
+     * Internal: Get the thread pool for CPU-intensive crypto operations.
+     */
+    public ExecutorService getCryptoPool() {
+        return cryptoPool;
+    }
+
     /**
      * Internal: Get the thread pool for async tasks.
      */
@@ -388,6 +790,17 @@ public class
                 }
             }
 
+            if (virtualThreads) {
+                if (JavaVersion.get().hasVirtualThreads()) {
+                    scriptPool = makeVirtualThreadPool("Trireme Script Thread ");
+                    if (asyncPool == null) {
+                        asyncPool = makeVirtualThreadPool("Trireme Async Pool ");
+                    }
+                } else {
+                    log.debug("Virtual threads are not supported by this JVM. Using regular thread pools.");
+                }
+            }
+
             if (asyncPool == null) {
                 // This pool is used for operations that must appear async to JavaScript but are synchronous
                 // in Java. Right now this means file I/O, at least in Java 6, plus DNS queries and certain
@@ -402,10 +815,22 @@ public class
                 asyncPool = pool;
             }
 
+            // This pool is used for crypto operations that would otherwise keep the script thread busy for a long
+            // time. It is sized for the CPUs rather than for blocking, so it never uses virtual threads.
+            ThreadPoolExecutor cp =
+                new ThreadPoolExecutor(cryptoPoolSize, cryptoPoolSize, POOL_TIMEOUT_SECS, TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(cryptoQueueSize),
+                                       new PoolNameFactory("Trireme Crypto Pool"),
+                                       new ThreadPoolExecutor.CallerRunsPolicy());
+            cp.allowCoreThreadTimeOut(true);
+            cryptoPool = cp;
+
             // This pool is used to run scripts. As a cached thread pool it will grow as necessary and shrink
             // down to zero when idle. This is a separate thread pool because these threads persist for the life
             // of the script.
-            scriptPool = Executors.newCachedThreadPool(new PoolNameFactory("Trireme Script Thread"));
+            if (scriptPool == null) {
+                scriptPool = Executors.newCachedThreadPool(new PoolNameFactory("Trireme Script Thread"));
+            }
 
             contextFactory = new RhinoContextFactory();
             contextFactory.setJsVersion(DEFAULT_JS_VERSION);
@@ -413,6 +838,13 @@ public class
             contextFactory.setCountOperations(scriptTimeLimit > 0L);
             contextFactory.setExtraClassShutter(getSandbox() == null ? null : getSandbox().getExtraClassShutter());
 
+            if (sharedEventLoop) {
+                eventLoopScheduler = new EventLoopScheduler(contextFactory, eventLoopThreads);
+            }
+            if (globalScopeTemplate) {
+                scopeTemplate = new GlobalScopeTemplate(contextFactory);
+            }
+
             initialized = true;
         }
     }
@@ -425,6 +857,33 @@ public class
         return contextFactory;
     }
 
+    /**
+     * Create an executor that starts a new virtual thread for every task. We are compiled against
+     * older versions of Java, so this must all happen through reflection. Returns null if anything goes wrong.
+     */
+    private static ExecutorService makeVirtualThreadPool(String namePrefix)
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, Long.TYPE).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+            Method newPool = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService)newPool.invoke(null, factory);
+
+        } catch (ClassNotFoundException e) {
+            log.debug("Cannot create virtual thread pool: {}", e);
+        } catch (NoSuchMethodException e) {
+            log.debug("Cannot create virtual thread pool: {}", e);
+        } catch (IllegalAccessException e) {
+            log.debug("Cannot create virtual thread pool: {}", e);
+        } catch (InvocationTargetException e) {
+            log.debug("Cannot create virtual thread pool: {}", e.getTargetException());
+        }
+        return null;
+    }
+
     private static final class PoolNameFactory
         implements ThreadFactory
     {
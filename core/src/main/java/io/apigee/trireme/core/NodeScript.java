@@ -23,6 +23,7 @@ package io.apigee.trireme.core;
 
 import io.apigee.trireme.core.internal.AbstractModuleRegistry;
 import io.apigee.trireme.core.internal.ChildModuleRegistry;
+import io.apigee.trireme.core.internal.EventLoopScheduler;
 import io.apigee.trireme.core.internal.RootModuleRegistry;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.internal.TriremeProcess;
@@ -46,7 +47,7 @@ public class NodeScript
     private String script;
     private String scriptName;
     private String displayName;
-    private final String[] args;
+    private String[] args;
     private ScriptRunner runner;
     private Object attachment;
     private Sandbox sandbox;
@@ -58,6 +59,7 @@ public class NodeScript
     private String workingDir;
     private Map<String, String> environment;
     private String nodeVersion;
+    private boolean prestarted;
 
     NodeScript(NodeEnvironment env, String scriptName, File script, String[] args)
     {
@@ -85,6 +87,66 @@ public class NodeScript
         this.sandbox = env.getSandbox();
     }
 
+    /**
+     * Create a script for a ScriptPool, which will be started before we know what it is going to run.
+     */
+    NodeScript(NodeEnvironment env)
+    {
+        this.env = env;
+        this.sandbox = env.getSandbox();
+    }
+
+    /**
+     * Start up the runtime for this script, up to the point where it would run the script itself.
+     * The sandbox, environment, working directory, and Node version must be set before this is called.
+     */
+    void prestart()
+        throws NodeException
+    {
+        runner = new ScriptRunner(this, env, sandbox);
+        runner.setRegistry(getRegistry());
+        if (workingDir != null) {
+            try {
+                runner.setWorkingDirectory(workingDir);
+            } catch (IOException ioe) {
+                throw new NodeException(ioe);
+            }
+        }
+
+        ScriptStatus status = runner.prestart();
+        if (status != null) {
+            runner.close();
+            runner = null;
+            if (status.hasCause()) {
+                throw new NodeException(status.getCause());
+            }
+            throw new NodeException("Script runtime exited during startup with code " + status.getExitCode());
+        }
+        prestarted = true;
+    }
+
+    /**
+     * Give a script that was started using "prestart" a script to run.
+     */
+    void setScript(String scriptName, String script, String[] args)
+    {
+        this.scriptName = scriptName;
+        this.script = script;
+        this.args = args;
+        runner.setScript(scriptName, script, args);
+    }
+
+    /**
+     * Give a script that was started using "prestart" a file to run.
+     */
+    void setScriptFile(String scriptName, File scriptFile, String[] args)
+    {
+        this.scriptName = scriptName;
+        this.scriptFile = scriptFile;
+        this.args = args;
+        runner.setScriptFile(scriptFile, args);
+    }
+
     /**
      * Run the script and return a Future denoting its status. The script is treated exactly as any other
      * Node.js program -- that is, it runs in a separate thread, and the returned future may be used to
@@ -100,22 +162,27 @@ public class NodeScript
     public ScriptFuture execute()
         throws NodeException
     {
-        AbstractModuleRegistry registry = getRegistry();
-
-        if ((scriptFile == null) && (script == null)) {
-            runner = new ScriptRunner(this, env, sandbox, args, forceRepl);
-        } else if (scriptFile == null) {
-            runner = new ScriptRunner(this, env, sandbox, scriptName, script, args);
+        if (prestarted) {
+            // A ScriptPool already started the runtime, so use it just this once
+            prestarted = false;
         } else {
-            runner = new ScriptRunner(this, env, sandbox, scriptFile, args);
-        }
-        runner.setRegistry(registry);
-        runner.setParentProcess(parentProcess);
-        if (workingDir != null) {
-            try {
-                runner.setWorkingDirectory(workingDir);
-            } catch (IOException ioe) {
-                throw new NodeException(ioe);
+            AbstractModuleRegistry registry = getRegistry();
+
+            if ((scriptFile == null) && (script == null)) {
+                runner = new ScriptRunner(this, env, sandbox, args, forceRepl);
+            } else if (scriptFile == null) {
+                runner = new ScriptRunner(this, env, sandbox, scriptName, script, args);
+            } else {
+                runner = new ScriptRunner(this, env, sandbox, scriptFile, args);
+            }
+            runner.setRegistry(registry);
+            runner.setParentProcess(parentProcess);
+            if (workingDir != null) {
+                try {
+                    runner.setWorkingDirectory(workingDir);
+                } catch (IOException ioe) {
+                    throw new NodeException(ioe);
+                }
             }
         }
         ScriptFuture future = new ScriptFuture(runner);
@@ -124,7 +191,7 @@ public class NodeScript
             runner.pin();
         }
 
-        env.getScriptPool().execute(future);
+        start(future);
         return future;
     }
 
@@ -147,6 +214,11 @@ public class NodeScript
         }
         AbstractModuleRegistry registry = getRegistry();
 
+        if (runner != null) {
+            // Discard the runtime that a ScriptPool may have started
+            runner.close();
+        }
+        prestarted = false;
         runner = new ScriptRunner(this, env, sandbox, scriptName,
                                   makeModuleScript(), args);
         runner.setParentProcess(parentProcess);
@@ -162,10 +234,25 @@ public class NodeScript
         runner.setFuture(future);
         runner.pin();
 
-        env.getScriptPool().execute(future);
+        start(future);
         return future;
     }
 
+    /**
+     * Run the script on a shared event loop if the environment has them, or in a thread of its own
+     * otherwise. Child processes always get their own thread, because a parent may block until its
+     * child has initialized, and the two might otherwise end up on the same loop.
+     */
+    private void start(ScriptFuture future)
+    {
+        EventLoopScheduler scheduler = env.getEventLoopScheduler();
+        if ((scheduler != null) && !childProcess) {
+            scheduler.submit(runner);
+        } else {
+            env.getScriptPool().execute(future);
+        }
+    }
+
     private AbstractModuleRegistry getRegistry()
         throws NodeException
     {
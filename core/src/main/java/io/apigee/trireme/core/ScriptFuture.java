@@ -57,7 +57,7 @@ public class ScriptFuture
             return false;
         }
         cancelled = true;
-        runner.getSelector().wakeup();
+        runner.wakeup();
         return true;
     }
 
@@ -170,6 +170,15 @@ public class ScriptFuture
         notifyAll();
     }
 
+    /**
+     * Internal: Complete the future for a script that ran on a shared event loop, and so was never
+     * executed through "run".
+     */
+    public void setResult(ScriptStatus status)
+    {
+        set(status);
+    }
+
     public synchronized void setModuleResult(Scriptable result)
     {
         moduleResult = result;
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A ScriptPool keeps a number of scripts whose runtimes have already been started -- that is, they have
+ * already run all the code that sets up "process," the global objects, and the built-in modules, and they are
+ * waiting to run a main script. This makes a big difference for applications that launch a new short-lived
+ * script for each request, since most of the time it takes to run such a script goes to that setup.
+ * </p>
+ * <p>
+ * Use "createScript" on the pool just like "createScript" on the NodeEnvironment. If there is an idle
+ * runtime in the pool, then the script uses it, and the pool starts another in the background. Otherwise,
+ * the script is created as usual. Each runtime in the pool is used by exactly one script, so scripts are
+ * just as isolated from each other as they would be without the pool.
+ * </p>
+ * <p>
+ * Since the runtimes are started before the scripts are created, the sandbox, environment variables,
+ * working directory, and Node version are set on the pool rather than on each script. They must be set
+ * before "start" is called. Changing any of them on a script that was created by the pool has no effect
+ * unless the script is run using "executeModule," which does not use the pool.
+ * </p>
+ */
+public class ScriptPool
+{
+    private static final Logger log = LoggerFactory.getLogger(ScriptPool.class);
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final NodeEnvironment env;
+    private final int size;
+    private final LinkedBlockingQueue<NodeScript> idle = new LinkedBlockingQueue<NodeScript>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private ExecutorService refillPool;
+    private volatile boolean closed;
+
+    private Sandbox sandbox;
+    private Map<String, String> environment;
+    private String workingDirectory;
+    private String nodeVersion;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillFailures = new AtomicLong();
+    private final AtomicLong refillTime = new AtomicLong();
+
+    ScriptPool(NodeEnvironment env, int size)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least one");
+        }
+        this.env = env;
+        this.size = size;
+        this.sandbox = env.getSandbox();
+    }
+
+    /**
+     * Use the specified sandbox for all the scripts in the pool, instead of the one set on the environment.
+     */
+    public ScriptPool setSandbox(Sandbox box)
+    {
+        this.sandbox = box;
+        return this;
+    }
+
+    public Sandbox getSandbox() {
+        return sandbox;
+    }
+
+    /**
+     * Replace the environment variables for all the scripts in the pool, as in "NodeScript.setEnvironment."
+     */
+    public ScriptPool setEnvironment(Map<String, String> env)
+    {
+        this.environment = (env == null ? null : new HashMap<String, String>(env));
+        return this;
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    public ScriptPool setWorkingDirectory(String wd)
+    {
+        this.workingDirectory = wd;
+        return this;
+    }
+
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    /**
+     * Run all the scripts in the pool using the specified version of Node.js, rather than the default.
+     */
+    public ScriptPool setNodeVersion(String v)
+    {
+        this.nodeVersion = v;
+        return this;
+    }
+
+    public String getNodeVersion() {
+        return nodeVersion;
+    }
+
+    /**
+     * Start filling the pool in the background.
+     */
+    public synchronized ScriptPool start()
+    {
+        if (refillPool == null) {
+            final int poolId = poolCount.incrementAndGet();
+            refillPool = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Trireme Script Pool " + poolId);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            refill();
+        }
+        return this;
+    }
+
+    /**
+     * Create a script that will run the specified file, using an idle runtime from the pool if one is available.
+     * The arguments are exactly as for "NodeEnvironment.createScript."
+     */
+    public NodeScript createScript(String scriptName, File script, String[] args)
+        throws NodeException
+    {
+        NodeScript s = takeIdle();
+        if (s == null) {
+            s = configure(env.createScript(scriptName, script, args));
+        } else {
+            s.setScriptFile(scriptName, script, args);
+        }
+        return s;
+    }
+
+    /**
+     * Create a script that will run the specified code, using an idle runtime from the pool if one is available.
+     * The arguments are exactly as for "NodeEnvironment.createScript."
+     */
+    public NodeScript createScript(String scriptName, String script, String[] args)
+        throws NodeException
+    {
+        NodeScript s = takeIdle();
+        if (s == null) {
+            s = configure(env.createScript(scriptName, script, args));
+        } else {
+            s.setScript(scriptName, script, args);
+        }
+        return s;
+    }
+
+    /**
+     * Stop refilling the pool and release all the idle runtimes. Scripts that were already created using
+     * the pool are not affected.
+     */
+    public void close()
+    {
+        ExecutorService p;
+        synchronized (this) {
+            closed = true;
+            p = refillPool;
+        }
+        if (p != null) {
+            p.shutdownNow();
+        }
+        NodeScript s;
+        while ((s = idle.poll()) != null) {
+            s.close();
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return the number of started runtimes that are waiting for a script.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Return the number of scripts that were created using an idle runtime.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of scripts that had to be created from scratch because the pool was empty.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of runtimes that were started to fill the pool.
+     */
+    public long getRefills() {
+        return refills.get();
+    }
+
+    /**
+     * Return the number of times that starting a runtime for the pool failed.
+     */
+    public long getRefillFailures() {
+        return refillFailures.get();
+    }
+
+    /**
+     * Return the total time, in nanoseconds, that it took to start all the runtimes in the pool.
+     */
+    public long getRefillTime() {
+        return refillTime.get();
+    }
+
+    private NodeScript takeIdle()
+    {
+        NodeScript s = idle.poll();
+        if (s == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        refill();
+        return s;
+    }
+
+    private NodeScript configure(NodeScript s)
+    {
+        s.setSandbox(sandbox);
+        if (environment != null) {
+            s.setEnvironment(environment);
+        }
+        if (workingDirectory != null) {
+            s.setWorkingDirectory(workingDirectory);
+        }
+        if (nodeVersion != null) {
+            s.setNodeVersion(nodeVersion);
+        }
+        return s;
+    }
+
+    /**
+     * Start enough new runtimes in the background to make the pool full again.
+     */
+    private synchronized void refill()
+    {
+        if (closed || (refillPool == null)) {
+            return;
+        }
+        try {
+            while ((idle.size() + pending.get()) < size) {
+                pending.incrementAndGet();
+                refillPool.execute(new Refill());
+            }
+        } catch (RejectedExecutionException ree) {
+            pending.decrementAndGet();
+        }
+    }
+
+    private final class Refill
+        implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            NodeScript s = configure(new NodeScript(env));
+            try {
+                s.prestart();
+            } catch (NodeException ne) {
+                refillFailures.incrementAndGet();
+                pending.decrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Error starting a script runtime for the pool: {}", ne);
+                }
+                return;
+            }
+            refills.incrementAndGet();
+            refillTime.addAndGet(System.nanoTime() - start);
+
+            // Synchronize with "refill" so that it never counts this runtime twice, or not at all
+            boolean discard;
+            synchronized (ScriptPool.this) {
+                pending.decrementAndGet();
+                discard = closed;
+                if (!discard) {
+                    idle.offer(s);
+                }
+            }
+            if (discard) {
+                s.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ScriptPool [ size = " + size + " idle = " + getIdleCount() + " hits = " + hits +
+               " misses = " + misses + " refills = " + refills + " refill time = " + refillTime + " ]";
+    }
+}
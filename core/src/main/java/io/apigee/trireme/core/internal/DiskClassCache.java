@@ -0,0 +1,411 @@
+/**
+ * Copyright 2013 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.BytecodeClassCache;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This is a class cache that stores the bytecode for compiled scripts in a directory, so that it survives
+ * restarts of the JVM. Entries are stored in a subdirectory named after the Rhino and Trireme versions, and
+ * subdirectories for other versions are deleted when the cache is opened, since the bytecode generated by one
+ * version of Rhino may not run on another. The total size of the cache on disk is bounded, and the least
+ * recently used entries are deleted first. The order is tracked in memory, and the modification time of
+ * each file is updated now and then so that it roughly survives a restart.
+ * <p>
+ * Scripts that were loaded from disk are also kept in memory using soft references, like SoftClassCache.
+ * The directory should only be shared by environments that use the same optimization level and script
+ * time limit settings, because those affect the generated bytecode.
+ * </p>
+ */
+public class DiskClassCache
+    implements BytecodeClassCache
+{
+    private static final Logger log = LoggerFactory.getLogger(DiskClassCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024L * 1024L;
+
+    private static final int FILE_MAGIC = 0x54524d43;
+    private static final String FILE_SUFFIX = ".class-cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern VERSION_NAME = Pattern.compile("rhino-[A-Za-z0-9._-]+-trireme-[A-Za-z0-9._-]+");
+
+    /** Only update the modification time of a file that is in use this often. */
+    private static final long TOUCH_INTERVAL_MS = 60000L;
+
+    private final File directory;
+    private final long maxSize;
+
+    private final ConcurrentHashMap<String, SoftReference<Script>> loaded =
+        new ConcurrentHashMap<String, SoftReference<Script>>();
+    // Access-ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalSize;
+
+    private final AtomicLong totalOps = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Open a cache in the specified directory, creating it if necessary, that will hold at most "maxSize"
+     * bytes of class files.
+     */
+    public DiskClassCache(File rootDirectory, long maxSize)
+        throws IOException
+    {
+        this.maxSize = maxSize;
+        this.directory = new File(rootDirectory, getVersionName());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create class cache directory " + directory.getPath());
+        }
+
+        removeOldVersions(rootDirectory);
+        loadIndex();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public Script getCachedScript(String key)
+    {
+        totalOps.incrementAndGet();
+        SoftReference<Script> ref = loaded.get(key);
+        if (ref != null) {
+            Script s = ref.get();
+            if (s != null) {
+                memoryHits.incrementAndGet();
+                touch(key);
+                return s;
+            }
+            loaded.remove(key);
+        }
+
+        File f;
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+            f = getFile(key);
+        }
+
+        Object[] classFiles;
+        try {
+            classFiles = readClassFile(f);
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error reading cached classes from {}: {}", f.getPath(), ioe);
+            }
+            remove(key);
+            return null;
+        }
+
+        Script s;
+        try {
+            s = ScriptUtils.loadCompiledClasses(classFiles);
+        } catch (ClassFormatError cfe) {
+            if (log.isDebugEnabled()) {
+                log.debug("Invalid cached classes in {}: {}", f.getPath(), cfe);
+            }
+            remove(key);
+            return null;
+        }
+
+        diskHits.incrementAndGet();
+        touch(key);
+        loaded.put(key, new SoftReference<Script>(s));
+        return s;
+    }
+
+    /**
+     * We cannot get the bytecode out of an already-compiled script, so all we can do here is keep it
+     * in memory.
+     */
+    @Override
+    public void putCachedScript(String key, Script script)
+    {
+        loaded.put(key, new SoftReference<Script>(script));
+    }
+
+    @Override
+    public void putCachedClasses(String key, Object[] classFiles)
+    {
+        File f = getFile(key);
+        File tmp = null;
+        long size;
+        try {
+            tmp = File.createTempFile(f.getName() + '.', TEMP_SUFFIX, directory);
+            size = writeClassFile(tmp, classFiles);
+            if (!tmp.renameTo(f)) {
+                // Another thread may have beaten us to it, which is fine
+                tmp.delete();
+                return;
+            }
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error writing cached classes to {}: {}", f.getPath(), ioe);
+            }
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Entry old = entries.put(key, new Entry(size, System.currentTimeMillis()));
+            if (old != null) {
+                totalSize -= old.size;
+            }
+            totalSize += size;
+            evict();
+        }
+    }
+
+    private void touch(String key)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            // Re-order the LRU list
+            Entry e = entries.get(key);
+            if ((e == null) || ((now - e.touched) < TOUCH_INTERVAL_MS)) {
+                return;
+            }
+            e.touched = now;
+        }
+        // Update the timestamp so that the LRU order survives a restart
+        getFile(key).setLastModified(now);
+    }
+
+    private synchronized void remove(String key)
+    {
+        loaded.remove(key);
+        Entry e = entries.remove(key);
+        if (e != null) {
+            totalSize -= e.size;
+        }
+        getFile(key).delete();
+    }
+
+    private void evict()
+    {
+        assert(Thread.holdsLock(this));
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((totalSize > maxSize) && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            it.remove();
+            totalSize -= e.getValue().size;
+            loaded.remove(e.getKey());
+            getFile(e.getKey()).delete();
+            evictions.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted {} from the class cache", e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Build the LRU list from what is already on disk, oldest first.
+     */
+    private void loadIndex()
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b)
+            {
+                long am = a.lastModified();
+                long bm = b.lastModified();
+                return (am < bm ? -1 : (am > bm ? 1 : 0));
+            }
+        });
+
+        synchronized (this) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    String key = fileNameToKey(name.substring(0, name.length() - FILE_SUFFIX.length()));
+                    entries.put(key, new Entry(f.length(), f.lastModified()));
+                    totalSize += f.length();
+                } else if (name.endsWith(TEMP_SUFFIX)) {
+                    f.delete();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Remove the subdirectories that other versions created. Anything else in the root directory is left alone.
+     */
+    private void removeOldVersions(File rootDirectory)
+    {
+        File[] versions = rootDirectory.listFiles();
+        if (versions == null) {
+            return;
+        }
+        for (File v : versions) {
+            if (v.isDirectory() && !v.getName().equals(directory.getName()) &&
+                VERSION_NAME.matcher(v.getName()).matches()) {
+                File[] old = v.listFiles();
+                if (old != null) {
+                    for (File f : old) {
+                        if (f.getName().endsWith(FILE_SUFFIX) || f.getName().endsWith(TEMP_SUFFIX)) {
+                            f.delete();
+                        }
+                    }
+                }
+                if (v.delete() && log.isDebugEnabled()) {
+                    log.debug("Removed class cache for old version {}", v.getName());
+                }
+            }
+        }
+    }
+
+    private File getFile(String key)
+    {
+        return new File(directory, keyToFileName(key) + FILE_SUFFIX);
+    }
+
+    /**
+     * Keys are base64, so make them safe for the filesystem.
+     */
+    private static String keyToFileName(String key)
+    {
+        return key.replace('/', '_').replace('+', '-').replace('=', '.');
+    }
+
+    private static String fileNameToKey(String name)
+    {
+        return name.replace('_', '/').replace('-', '+').replace('.', '=');
+    }
+
+    private static String getVersionName()
+    {
+        String rhinoVersion = Context.class.getPackage().getImplementationVersion();
+        String name = "rhino-" + (rhinoVersion == null ? "unknown" : rhinoVersion) +
+                      "-trireme-" + (Version.TRIREME_VERSION == null ? "unknown" : Version.TRIREME_VERSION);
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static long writeClassFile(File f, Object[] classFiles)
+        throws IOException
+    {
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(classFiles.length / 2);
+            for (int i = 0; i < classFiles.length; i += 2) {
+                byte[] bytes = (byte[])classFiles[i + 1];
+                out.writeUTF((String)classFiles[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        return f.length();
+    }
+
+    private static Object[] readClassFile(File f)
+        throws IOException
+    {
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Invalid class cache file");
+            }
+            int count = in.readInt();
+            ArrayList<Object> classFiles = new ArrayList<Object>(count * 2);
+            for (int i = 0; i < count; i++) {
+                classFiles.add(in.readUTF());
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classFiles.add(bytes);
+            }
+            return classFiles.toArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DiskClassCache [ ops = " + totalOps + " memory hits = " + memoryHits +
+               " disk hits = " + diskHits + " evictions = " + evictions +
+               " size = " + getTotalSize() + " ]";
+    }
+
+    private static final class Entry
+    {
+        final long size;
+        long touched;
+
+        Entry(long size, long touched)
+        {
+            this.size = size;
+            this.touched = touched;
+        }
+    }
+}
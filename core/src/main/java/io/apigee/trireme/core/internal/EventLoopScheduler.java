@@ -0,0 +1,428 @@
+/**
+ * Copyright 2013 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.kernel.net.SelectorHandler;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs many scripts on a fixed set of event loop threads, rather than giving each script a
+ * thread of its own. Each script is assigned to one loop for its whole life, so that it keeps the
+ * single-threaded semantics that the modules depend on. The loop only runs a script when it has ticks
+ * to execute, a timer that is due, or a network channel that is ready, so idle scripts cost no more
+ * than the memory that holds them.
+ * <p>
+ * Since many scripts share a thread, a script that blocks -- for instance by reading a large file
+ * synchronously -- holds up every other script on the same loop.
+ * </p>
+ */
+public class EventLoopScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(EventLoopScheduler.class);
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public EventLoopScheduler(ContextFactory contextFactory, int numThreads)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads");
+        }
+
+        loops = new EventLoop[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            loops[i] = new EventLoop(contextFactory);
+            Thread t = new Thread(loops[i], "Trireme Event Loop " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Assign the script to one of the loops, and start it there. The script must already have
+     * its future set.
+     */
+    public void submit(ScriptRunner runner)
+    {
+        int ix = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        EventLoop loop = loops[ix];
+        Slot slot = new Slot(loop, runner);
+        runner.setEventLoop(slot);
+        loop.newScripts.offer(slot);
+        loop.selector.wakeup();
+    }
+
+    /**
+     * Return the number of scripts that are currently running on all the loops.
+     */
+    public int getScriptCount()
+    {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.scriptCount.get();
+        }
+        return count;
+    }
+
+    /**
+     * Stop all the loop threads. Any scripts still running on them will never complete.
+     */
+    public void close()
+    {
+        for (EventLoop loop : loops) {
+            loop.closed = true;
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * The state that a loop keeps for each script that it runs.
+     */
+    public static final class Slot
+    {
+        private final EventLoop loop;
+        private final ScriptRunner runner;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ArrayList<SelectionKey> selectedKeys = new ArrayList<SelectionKey>();
+        private long wakeupTime;
+        private boolean done;
+
+        Slot(EventLoop loop, ScriptRunner runner)
+        {
+            this.loop = loop;
+            this.runner = runner;
+        }
+
+        Selector getSelector() {
+            return loop.selector;
+        }
+
+        /**
+         * Put the script on the loop's run queue, if it is not there already. May be called from any thread.
+         */
+        void schedule()
+        {
+            if (scheduled.compareAndSet(false, true)) {
+                loop.readyScripts.offer(this);
+                if (Thread.currentThread() != loop.thread) {
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        SelectorHandler wrapHandler(SelectorHandler handler)
+        {
+            return new OwnedHandler(this, handler);
+        }
+
+        /**
+         * Have the loop cancel every key that the script registered on the shared selector and close the
+         * channels, since closing the selector, as a script with its own thread does, is not an option.
+         * May be called from any thread.
+         */
+        void close()
+        {
+            loop.closedScripts.offer(this);
+            if (Thread.currentThread() != loop.thread) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Every selection key on a shared selector has one of these as its attachment so that the loop
+     * can tell which script should handle it.
+     */
+    private static final class OwnedHandler
+        implements SelectorHandler
+    {
+        final Slot owner;
+        final SelectorHandler handler;
+
+        OwnedHandler(Slot owner, SelectorHandler handler)
+        {
+            this.owner = owner;
+            this.handler = handler;
+        }
+
+        @Override
+        public void selected(SelectionKey key)
+        {
+            handler.selected(key);
+        }
+    }
+
+    private static final class Wakeup
+        implements Comparable<Wakeup>
+    {
+        final long time;
+        final Slot slot;
+
+        Wakeup(long time, Slot slot)
+        {
+            this.time = time;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(Wakeup w)
+        {
+            if (time < w.time) {
+                return -1;
+            }
+            if (time > w.time) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    private static final class EventLoop
+        implements Runnable
+    {
+        private final ContextFactory contextFactory;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Slot> newScripts = new ConcurrentLinkedQueue<Slot>();
+        private final ConcurrentLinkedQueue<Slot> readyScripts = new ConcurrentLinkedQueue<Slot>();
+        private final ConcurrentLinkedQueue<Slot> closedScripts = new ConcurrentLinkedQueue<Slot>();
+        private final PriorityQueue<Wakeup> wakeups = new PriorityQueue<Wakeup>();
+        private final ArrayList<Slot> running = new ArrayList<Slot>();
+        private final AtomicInteger scriptCount = new AtomicInteger();
+        private volatile Thread thread;
+        private volatile boolean closed;
+
+        EventLoop(ContextFactory contextFactory)
+        {
+            this.contextFactory = contextFactory;
+            try {
+                this.selector = Selector.open();
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+            Context cx = contextFactory.enterContext();
+            try {
+                while (!closed) {
+                    startScripts(cx);
+                    releaseClosedScripts();
+
+                    long timeout = getSelectTimeout();
+                    if (timeout < 0L) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+
+                    dispatchSelectedKeys();
+                    fireWakeups();
+                    runReadyScripts(cx);
+                }
+            } catch (IOException ioe) {
+                log.error("Error in event loop: {}", ioe);
+            } finally {
+                Context.exit();
+                try {
+                    selector.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        /**
+         * Return -1 if the loop has work to do right now, zero if it should wait until woken up, or
+         * otherwise the number of milliseconds until the next timer is due.
+         */
+        private long getSelectTimeout()
+        {
+            if (!readyScripts.isEmpty() || !newScripts.isEmpty() || !closedScripts.isEmpty()) {
+                return -1L;
+            }
+            Wakeup next = wakeups.peek();
+            if (next == null) {
+                return 0L;
+            }
+            long delay = next.time - System.currentTimeMillis();
+            return (delay > 0L ? delay : -1L);
+        }
+
+        private void startScripts(Context cx)
+        {
+            Slot slot;
+            while ((slot = newScripts.poll()) != null) {
+                scriptCount.incrementAndGet();
+                ScriptStatus status;
+                try {
+                    status = slot.runner.startScript(cx);
+                } catch (Throwable t) {
+                    log.debug("Unexpected script error: {}", t);
+                    status = new ScriptStatus(t);
+                }
+
+                if (status == null) {
+                    slot.schedule();
+                } else {
+                    finishScript(cx, slot, status);
+                }
+            }
+        }
+
+        private void dispatchSelectedKeys()
+        {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Slot owner = ((OwnedHandler)key.attachment()).owner;
+                if (owner.done) {
+                    // Nobody will ever handle it, and it would be selected again and again
+                    key.cancel();
+                } else {
+                    owner.selectedKeys.add(key);
+                    owner.schedule();
+                }
+            }
+        }
+
+        private void releaseClosedScripts()
+        {
+            Slot slot;
+            while ((slot = closedScripts.poll()) != null) {
+                releaseChannels(slot);
+            }
+        }
+
+        /**
+         * Cancel the script's keys on the shared selector and close their channels. A script's own handles
+         * are closed when it exits, but anything that it left registered would otherwise stay on the selector
+         * until the loop is closed.
+         */
+        private void releaseChannels(Slot slot)
+        {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if ((attachment instanceof OwnedHandler) && (((OwnedHandler)attachment).owner == slot)) {
+                    key.cancel();
+                    try {
+                        key.channel().close();
+                    } catch (IOException ioe) {
+                        log.debug("Error closing channel: {}", ioe);
+                    }
+                }
+            }
+        }
+
+        private void fireWakeups()
+        {
+            long now = System.currentTimeMillis();
+            Wakeup w = wakeups.peek();
+            while ((w != null) && (w.time <= now)) {
+                wakeups.poll();
+                // Only the most recent wakeup for each script counts -- the others are stale
+                if (w.slot.wakeupTime == w.time) {
+                    w.slot.wakeupTime = 0L;
+                    w.slot.schedule();
+                }
+                w = wakeups.peek();
+            }
+        }
+
+        private void runReadyScripts(Context cx)
+        {
+            // Only run what is ready now, so that a script that keeps re-scheduling itself
+            // can't stop the loop from going back to the selector.
+            Slot slot;
+            while ((slot = readyScripts.poll()) != null) {
+                running.add(slot);
+            }
+
+            for (Slot s : running) {
+                s.scheduled.set(false);
+                if (!s.done) {
+                    runScript(cx, s);
+                }
+            }
+            running.clear();
+        }
+
+        private void runScript(Context cx, Slot slot)
+        {
+            ScriptStatus status;
+            try {
+                status = slot.runner.runSlice(cx, slot.selectedKeys);
+            } catch (Throwable t) {
+                log.debug("Unexpected script error: {}", t);
+                status = new ScriptStatus(t);
+            } finally {
+                slot.selectedKeys.clear();
+            }
+
+            if (status != null) {
+                finishScript(cx, slot, status);
+                return;
+            }
+
+            long next = slot.runner.getNextWakeup();
+            if ((next == 0L) || ((next > 0L) && (next <= System.currentTimeMillis()))) {
+                slot.schedule();
+            } else if ((next > 0L) && ((slot.wakeupTime == 0L) || (next < slot.wakeupTime))) {
+                slot.wakeupTime = next;
+                wakeups.add(new Wakeup(next, slot));
+            }
+        }
+
+        private void finishScript(Context cx, Slot slot, ScriptStatus status)
+        {
+            slot.done = true;
+            scriptCount.decrementAndGet();
+
+            ScriptStatus finalStatus;
+            try {
+                finalStatus = slot.runner.finishScript(cx, status);
+            } catch (Throwable t) {
+                log.debug("Error cleaning up script: {}", t);
+                finalStatus = new ScriptStatus(t);
+            }
+            cx.removeThreadLocal(ScriptRunner.RUNNER);
+            releaseChannels(slot);
+            slot.runner.getFuture().setResult(finalStatus);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.TopLevel;
+
+/**
+ * This class holds a single, sealed copy of the JavaScript standard objects that is shared by every script in
+ * an environment. Each script gets its own global scope, but instead of creating a new copy of "Object,"
+ * "String," "Array," and the rest for every script, the global scope inherits them from the template.
+ * <p>
+ * Since the shared objects are sealed, no script can change them, so the scripts remain isolated from
+ * each other. However, a script that tries to add to the prototype of a built-in object, or change one of
+ * its properties, will get an exception. Scripts may still replace the built-in objects themselves on their
+ * own global scope, since those assignments create new properties on the global scope.
+ * </p>
+ */
+public class GlobalScopeTemplate
+{
+    private final ScriptableObject standardObjects;
+
+    public GlobalScopeTemplate(ContextFactory factory)
+    {
+        Context cx = factory.enterContext();
+        try {
+            standardObjects = cx.initStandardObjects(null, true);
+            // Some standard objects are created lazily the first time that they are used. Create them all
+            // now so that nothing about the template changes once scripts are sharing it.
+            for (Object id : standardObjects.getAllIds()) {
+                if (id instanceof String) {
+                    ScriptableObject.getProperty(standardObjects, (String)id);
+                }
+            }
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Create a new global scope for a script that inherits all the standard objects from this template.
+     */
+    public ScriptableObject newGlobalScope()
+    {
+        TopLevel scope = new TopLevel();
+        scope.setPrototype(standardObjects);
+        scope.setParentScope(null);
+        // Let Rhino find "Array," "Function," and friends quickly from the new scope.
+        scope.cacheBuiltins();
+        return scope;
+    }
+
+    public ScriptableObject getStandardObjects() {
+        return standardObjects;
+    }
+}
@@ -33,6 +33,7 @@ public class JavaVersion
 
     private boolean hasAsyncFileIO;
     private boolean hasFlushFlags;
+    private boolean hasVirtualThreads;
 
     private JavaVersion()
     {
@@ -40,6 +41,7 @@ public class JavaVersion
         hasFlushFlags = hasMethod("java.util.zip.Deflater", "deflate",
                                   new Class<?>[] { byte[].class, Integer.TYPE,
                                                    Integer.TYPE, Integer.TYPE });
+        hasVirtualThreads = hasMethod("java.lang.Thread", "ofVirtual", new Class<?>[0]);
     }
 
     public static JavaVersion get() {
@@ -54,6 +56,10 @@ public class JavaVersion
         return hasFlushFlags;
     }
 
+    public boolean hasVirtualThreads() {
+        return hasVirtualThreads;
+    }
+
     private boolean hasClass(String name)
     {
         try {
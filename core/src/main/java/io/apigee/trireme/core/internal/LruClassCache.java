@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.BytecodeClassCache;
+import org.mozilla.javascript.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a class cache that holds compiled scripts in memory, up to a maximum number of scripts and a
+ * maximum total amount of bytecode, and removes the least recently used scripts first. Unlike
+ * SoftClassCache, it uses a predictable amount of memory no matter what the garbage collector is doing.
+ * <p>
+ * The size of each script is the size of the bytecode that Rhino generated for it, which is why this
+ * cache implements BytecodeClassCache. Scripts for which no bytecode is available, such as those compiled
+ * when the optimization level is -1, are counted as UNKNOWN_SCRIPT_SIZE bytes.
+ * </p>
+ * <p>
+ * The statistics are available using "registerMBean," which publishes them via JMX.
+ * </p>
+ */
+public class LruClassCache
+    implements BytecodeClassCache, LruClassCacheMXBean
+{
+    private static final Logger log = LoggerFactory.getLogger(LruClassCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+    public static final long UNKNOWN_SCRIPT_SIZE = 4096L;
+
+    public static final String MBEAN_DOMAIN = "io.apigee.trireme";
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final int maxEntries;
+    private final long maxSize;
+
+    // Access-ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+
+    private ObjectName mbeanName;
+
+    public LruClassCache(int maxEntries, long maxSize)
+    {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        if (maxSize < 1L) {
+            throw new IllegalArgumentException("maxSize");
+        }
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    public LruClassCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SIZE);
+    }
+
+    @Override
+    public synchronized Script getCachedScript(String key)
+    {
+        Entry e = entries.get(key);
+        if ((e == null) || (e.script == null)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.script;
+    }
+
+    /**
+     * Internal: Called by ScriptCompiler to look for a script again without counting another hit or miss.
+     */
+    synchronized Script peekCachedScript(String key)
+    {
+        Entry e = entries.get(key);
+        return (e == null ? null : e.script);
+    }
+
+    /**
+     * Record the size of the script. It is not usable until "putCachedScript" is called with the same key.
+     */
+    @Override
+    public synchronized void putCachedClasses(String key, Object[] classFiles)
+    {
+        long size = 0L;
+        for (int i = 1; i < classFiles.length; i += 2) {
+            size += ((byte[])classFiles[i]).length;
+        }
+        replace(key, new Entry(null, size));
+    }
+
+    @Override
+    public synchronized void putCachedScript(String key, Script script)
+    {
+        Entry e = entries.get(key);
+        if ((e != null) && (e.script == null)) {
+            e.script = script;
+        } else {
+            replace(key, new Entry(script, UNKNOWN_SCRIPT_SIZE));
+        }
+    }
+
+    /**
+     * Internal: Called by ScriptCompiler to record how long it took to compile a script for this cache.
+     */
+    public void recordCompilation(long nanos)
+    {
+        compilations.incrementAndGet();
+        compileTime.addAndGet(nanos);
+    }
+
+    private void replace(String key, Entry e)
+    {
+        assert(Thread.holdsLock(this));
+        Entry old = entries.put(key, e);
+        if (old != null) {
+            totalSize -= old.size;
+        }
+        totalSize += e.size;
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        // Always keep the newest entry, even if it is bigger than the whole cache
+        while (((entries.size() > maxEntries) || (totalSize > maxSize)) && (entries.size() > 1)) {
+            Map.Entry<String, Entry> e = it.next();
+            it.remove();
+            totalSize -= e.getValue().size;
+            evictions.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted {} from the class cache", e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Register this cache with the platform MBean server, and return the name that was used.
+     */
+    public synchronized ObjectName registerMBean()
+    {
+        if (mbeanName != null) {
+            return mbeanName;
+        }
+        try {
+            ObjectName name =
+                new ObjectName(MBEAN_DOMAIN + ":type=ClassCache,name=LruClassCache-" + nextId.getAndIncrement());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            mbeanName = name;
+            return name;
+
+        } catch (MalformedObjectNameException e) {
+            throw new AssertionError(e);
+        } catch (InstanceAlreadyExistsException e) {
+            throw new AssertionError(e);
+        } catch (NotCompliantMBeanException e) {
+            throw new AssertionError(e);
+        } catch (MBeanRegistrationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Remove this cache from the platform MBean server, if it was registered.
+     */
+    public synchronized void unregisterMBean()
+    {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (InstanceNotFoundException e) {
+            log.debug("MBean {} was already unregistered", mbeanName);
+        } catch (MBeanRegistrationException e) {
+            log.debug("Error unregistering MBean {}: {}", mbeanName, e);
+        }
+        mbeanName = null;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getCompilations() {
+        return compilations.get();
+    }
+
+    @Override
+    public long getCompileTimeMillis() {
+        return compileTime.get() / 1000000L;
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        entries.clear();
+        totalSize = 0L;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LruClassCache [ hits = " + hits + " misses = " + misses + " evictions = " + evictions +
+               " entries = " + getEntryCount() + " size = " + getSize() + " ]";
+    }
+
+    private static final class Entry
+    {
+        Script script;
+        final long size;
+
+        Entry(Script script, long size)
+        {
+            this.script = script;
+            this.size = size;
+        }
+    }
+}
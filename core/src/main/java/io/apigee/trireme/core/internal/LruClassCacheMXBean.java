@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+/**
+ * These are the statistics that LruClassCache makes available via JMX.
+ */
+public interface LruClassCacheMXBean
+{
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    /**
+     * The number of scripts that were compiled in order to be added to the cache.
+     */
+    long getCompilations();
+
+    /**
+     * The total time, in milliseconds, spent compiling scripts that were added to the cache.
+     */
+    long getCompileTimeMillis();
+
+    int getEntryCount();
+
+    int getMaxEntries();
+
+    /**
+     * The approximate total size, in bytes, of the bytecode for all the cached scripts.
+     */
+    long getSize();
+
+    long getMaxSize();
+
+    /**
+     * Remove every entry from the cache.
+     */
+    void clear();
+}
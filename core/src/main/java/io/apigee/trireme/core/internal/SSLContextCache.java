@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509TrustManager;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of SSLContext objects that is shared by all the scripts in an environment. The key is
+ * a digest of everything that went in to the context -- the protocol, keys, certificates, CAs, CRLs, and
+ * ciphers -- so that scripts that keep calling "tls.createSecureContext" or "https.request" with the same
+ * options get the same context back, without parsing the keys and building a new key store each time.
+ * That also means that they share the context's TLS session cache.
+ * <p>
+ * The cache holds at most "maxEntries" contexts and removes the least recently used ones first. Entries
+ * also expire a fixed time after they were added, so that a context does not live forever.
+ * </p>
+ */
+public class SSLContextCache
+{
+    private static final Logger log = LoggerFactory.getLogger(SSLContextCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_EXPIRATION_SECS = 3600L;
+
+    private final int maxEntries;
+    private final long expirationNanos;
+
+    // Access-ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SSLContextCache(int maxEntries, long expiration, TimeUnit unit)
+    {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        if (expiration < 1L) {
+            throw new IllegalArgumentException("expiration");
+        }
+        this.maxEntries = maxEntries;
+        this.expirationNanos = unit.toNanos(expiration);
+    }
+
+    public SSLContextCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRATION_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Return the entry for the key, or null if there is none or if it has expired.
+     */
+    public synchronized Entry get(String key)
+    {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if ((System.nanoTime() - e.created) > expirationNanos) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Add a context, and the trust manager that goes with it, which may be null. If two threads built
+     * the same context at the same time, the last one wins, which is harmless.
+     */
+    public synchronized Entry put(String key, SSLContext context, X509TrustManager trustManager)
+    {
+        Entry e = new Entry(context, trustManager);
+        entries.put(key, e);
+        evict();
+        return e;
+    }
+
+    private void evict()
+    {
+        assert(Thread.holdsLock(this));
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries) {
+            Map.Entry<String, Entry> e = it.next();
+            it.remove();
+            evictions.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted SSLContext {} from the cache", e.getValue().context);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SSLContextCache [ hits = " + hits + " misses = " + misses +
+               " evictions = " + evictions + " entries = " + getEntryCount() + " ]";
+    }
+
+    public static final class Entry
+    {
+        private final SSLContext context;
+        private final X509TrustManager trustManager;
+        private final long created = System.nanoTime();
+
+        Entry(SSLContext context, X509TrustManager trustManager)
+        {
+            this.context = context;
+            this.trustManager = trustManager;
+        }
+
+        public SSLContext getContext() {
+            return context;
+        }
+
+        public X509TrustManager getTrustManager() {
+            return trustManager;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.BytecodeClassCache;
+import io.apigee.trireme.core.ClassCache;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.kernel.Charsets;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the one place where script source code that comes from the user -- via "require," "vm," or
+ * anything else that compiles code at runtime -- is turned into a Script. It consults the environment's
+ * ClassCache, so that when many scripts in the same environment load the same modules, each module is
+ * compiled only once. There is one of these per NodeEnvironment, and it keeps statistics on how well the cache
+ * is working.
+ * <p>
+ * When background compilation is enabled in the environment, large scripts are not compiled on the script
+ * thread. Instead, "compile" returns null, so that the caller interprets the script this time, and the
+ * script is compiled on a separate thread pool. Later attempts to compile the same source get the compiled
+ * version. In the background there is no limit on the length of the source, and a script that is still too
+ * large to compile is split into pieces using ScriptSplitter.
+ * </p>
+ * <p>
+ * When several threads miss the cache for the same source at once, only one of them compiles it, and the
+ * others wait for that result.
+ * </p>
+ */
+public class ScriptCompiler
+{
+    private static final Logger log = LoggerFactory.getLogger(ScriptCompiler.class);
+
+    public static final String CACHE_KEY_HASH = "SHA-256";
+    public static final String COMPILED_CLASS_PREFIX = "io.apigee.trireme.compiled.Script_";
+
+    /**
+     * Scripts with source code at least this long are compiled in the background when that is enabled.
+     * Smaller scripts compile quickly enough that it's not worth running them in the interpreter first.
+     */
+    public static final int BACKGROUND_COMPILE_LENGTH = 32 * 1024;
+
+    /**
+     * At most this many background compilation results, and failures, are remembered. The least recently
+     * used ones are forgotten first, so that a process that evaluates many different large scripts does not
+     * keep every one of them forever.
+     */
+    public static final int MAX_BACKGROUND_ENTRIES = 1000;
+
+    private static final int COMPILE_THREADS =
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final NodeEnvironment env;
+
+    private ExecutorService compilePool;
+    private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+    private final BoundedMap<Boolean> failed = new BoundedMap<Boolean>(MAX_BACKGROUND_ENTRIES);
+    // Compilations in progress on script threads, so that concurrent misses for the same key share one
+    private final ConcurrentHashMap<String, FutureTask<Script>> inProgress =
+        new ConcurrentHashMap<String, FutureTask<Script>>();
+    // Background results when the environment has no class cache to put them in
+    private final BoundedMap<SoftReference<Script>> compiled =
+        new BoundedMap<SoftReference<Script>>(MAX_BACKGROUND_ENTRIES);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong uncompiled = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+    private final AtomicLong backgroundCompilations = new AtomicLong();
+    private final AtomicLong splitScripts = new AtomicLong();
+
+    public ScriptCompiler(NodeEnvironment env)
+    {
+        this.env = env;
+    }
+
+    /**
+     * Compile the script, using the cache if one is configured. Return null if the script is too large to
+     * compile, in which case the caller should run it using "ScriptUtils.interpretScript." Throw if the
+     * script does not compile.
+     */
+    public Script compile(Context cx, String code, String fileName)
+    {
+        if (env.isBackgroundCompilation() && (code.length() >= BACKGROUND_COMPILE_LENGTH)) {
+            String cacheKey = makeCacheKey(code);
+            if (cacheKey != null) {
+                return compileInBackground(code, fileName, cacheKey);
+            }
+        }
+
+        ClassCache cache = env.getClassCache();
+        if (cache == null) {
+            return doCompile(cx, code, fileName, null);
+        }
+
+        String cacheKey = makeCacheKey(code);
+        if (cacheKey == null) {
+            return doCompile(cx, code, fileName, null);
+        }
+
+        Script compiled = cache.getCachedScript(cacheKey);
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+
+        FutureTask<Script> task =
+            new FutureTask<Script>(new CacheCompile(cx, code, fileName, cache, cacheKey));
+        FutureTask<Script> running = inProgress.putIfAbsent(cacheKey, task);
+        if (running != null) {
+            // Another thread is already compiling the same source, so use its result
+            hits.incrementAndGet();
+            return awaitCompilation(running, cx, code, fileName);
+        }
+
+        try {
+            task.run();
+            return awaitCompilation(task, cx, code, fileName);
+        } finally {
+            inProgress.remove(cacheKey, task);
+        }
+    }
+
+    private Script compileMiss(Context cx, String code, String fileName, ClassCache cache, String cacheKey)
+    {
+        // The thread that was compiling this source before us may have just finished
+        Script compiled = (cache instanceof LruClassCache
+                           ? ((LruClassCache)cache).peekCachedScript(cacheKey)
+                           : cache.getCachedScript(cacheKey));
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+        misses.incrementAndGet();
+
+        if (cache instanceof BytecodeClassCache) {
+            long start = System.nanoTime();
+            Object[] classFiles =
+                ScriptUtils.tryCompileToClasses(cx, code, fileName, makeClassName(cacheKey));
+            if (classFiles != null) {
+                ((BytecodeClassCache)cache).putCachedClasses(cacheKey, classFiles);
+                compiled = ScriptUtils.loadCompiledClasses(classFiles);
+                recordCompilation(start, compiled, cache);
+                cache.putCachedScript(cacheKey, compiled);
+                return compiled;
+            }
+        }
+
+        compiled = doCompile(cx, code, fileName, cache);
+        if (compiled != null) {
+            cache.putCachedScript(cacheKey, compiled);
+        }
+        // Still may be null at this point...
+        return compiled;
+    }
+
+    private Script awaitCompilation(FutureTask<Script> task, Context cx, String code, String fileName)
+    {
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            // Don't wait any longer, but compile it ourselves
+            Thread.currentThread().interrupt();
+            return doCompile(cx, code, fileName, null);
+        } catch (ExecutionException ee) {
+            // Most likely a syntax error, which every caller should see
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    /**
+     * Return the compiled version of a script that was passed to "compile" earlier and was compiled in
+     * the background, or null if it is not ready. Callers that hold on to source code that they are
+     * interpreting may use this to switch to the compiled version when it is ready.
+     */
+    public Script getCompiledScript(String code)
+    {
+        if (!env.isBackgroundCompilation() || (code.length() < BACKGROUND_COMPILE_LENGTH)) {
+            return null;
+        }
+        String cacheKey = makeCacheKey(code);
+        if ((cacheKey == null) || pending.containsKey(cacheKey) || isFailed(cacheKey)) {
+            return null;
+        }
+        return lookup(cacheKey);
+    }
+
+    private Script compileInBackground(String code, String fileName, String cacheKey)
+    {
+        Script s = lookup(cacheKey);
+        if (s != null) {
+            hits.incrementAndGet();
+            return s;
+        }
+        misses.incrementAndGet();
+
+        if (!isFailed(cacheKey) && (pending.putIfAbsent(cacheKey, Boolean.TRUE) == null)) {
+            try {
+                getCompilePool().execute(new BackgroundCompile(code, fileName, cacheKey));
+            } catch (RejectedExecutionException ree) {
+                // The environment is closing
+                pending.remove(cacheKey);
+            }
+        }
+        // Interpret it this time
+        return null;
+    }
+
+    private Script lookup(String cacheKey)
+    {
+        ClassCache cache = env.getClassCache();
+        if (cache != null) {
+            return cache.getCachedScript(cacheKey);
+        }
+        synchronized (compiled) {
+            SoftReference<Script> ref = compiled.get(cacheKey);
+            if (ref == null) {
+                return null;
+            }
+            Script s = ref.get();
+            if (s == null) {
+                // The collector took it, so don't keep the key around either
+                compiled.remove(cacheKey);
+            }
+            return s;
+        }
+    }
+
+    private boolean isFailed(String cacheKey)
+    {
+        synchronized (failed) {
+            return failed.containsKey(cacheKey);
+        }
+    }
+
+    private void markFailed(String cacheKey)
+    {
+        synchronized (failed) {
+            failed.put(cacheKey, Boolean.TRUE);
+        }
+    }
+
+    private synchronized ExecutorService getCompilePool()
+    {
+        if (compilePool == null) {
+            compilePool = Executors.newFixedThreadPool(COMPILE_THREADS, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Trireme Compiler " + count.getAndIncrement());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return compilePool;
+    }
+
+    /**
+     * Stop the background compilation threads.
+     */
+    public synchronized void close()
+    {
+        if (compilePool != null) {
+            compilePool.shutdownNow();
+            compilePool = null;
+        }
+    }
+
+    private Script doCompile(Context cx, String code, String fileName, ClassCache cache)
+    {
+        long start = System.nanoTime();
+        Script compiled = ScriptUtils.tryCompile(cx, code, fileName);
+        recordCompilation(start, compiled, cache);
+        return compiled;
+    }
+
+    private void recordCompilation(long start, Script compiled, ClassCache cache)
+    {
+        long elapsed = System.nanoTime() - start;
+        compileTime.addAndGet(elapsed);
+        if (compiled == null) {
+            uncompiled.incrementAndGet();
+        } else {
+            compilations.incrementAndGet();
+            if (cache instanceof LruClassCache) {
+                ((LruClassCache)cache).recordCompilation(elapsed);
+            }
+        }
+    }
+
+    /**
+     * Return the number of scripts that were compiled in the background, including those that
+     * had to be split.
+     */
+    public long getBackgroundCompilations() {
+        return backgroundCompilations.get();
+    }
+
+    /**
+     * Return the number of scripts that were compiled in the background by splitting them into pieces.
+     */
+    public long getSplitScripts() {
+        return splitScripts.get();
+    }
+
+    /**
+     * Return the number of times that a script was found in the class cache.
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of times that a script was not found in the class cache and had to be compiled.
+     */
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of scripts that were compiled, whether or not there is a cache.
+     */
+    public long getCompilations() {
+        return compilations.get();
+    }
+
+    /**
+     * Return the number of scripts that were too large to compile and so have to be interpreted.
+     */
+    public long getUncompiledScripts() {
+        return uncompiled.get();
+    }
+
+    /**
+     * Return the total time spent compiling scripts, in nanoseconds.
+     */
+    public long getCompileTime() {
+        return compileTime.get();
+    }
+
+    /**
+     * Name the class after the cache key, so that the same script always compiles to the same class name
+     * no matter which file it was loaded from.
+     */
+    private static String makeClassName(String cacheKey)
+    {
+        return COMPILED_CLASS_PREFIX + cacheKey.replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    private static String makeCacheKey(String code)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance(CACHE_KEY_HASH);
+            ByteBuffer codeBuf = Utils.stringToBuffer(code, Charsets.UTF8);
+            md.update(codeBuf);
+            ByteBuffer keyBuf = ByteBuffer.wrap(md.digest());
+            return Utils.bufferToString(keyBuf, Charsets.BASE64);
+
+        } catch (NoSuchAlgorithmException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Can't calculate cache key for source code: " + e);
+            }
+            return null;
+        }
+    }
+
+    private final class CacheCompile
+        implements Callable<Script>
+    {
+        private final Context cx;
+        private final String code;
+        private final String fileName;
+        private final ClassCache cache;
+        private final String cacheKey;
+
+        CacheCompile(Context cx, String code, String fileName, ClassCache cache, String cacheKey)
+        {
+            this.cx = cx;
+            this.code = code;
+            this.fileName = fileName;
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public Script call()
+        {
+            return compileMiss(cx, code, fileName, cache, cacheKey);
+        }
+    }
+
+    private final class BackgroundCompile
+        implements Runnable
+    {
+        private final String code;
+        private final String fileName;
+        private final String cacheKey;
+
+        BackgroundCompile(String code, String fileName, String cacheKey)
+        {
+            this.code = code;
+            this.fileName = fileName;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public void run()
+        {
+            Context cx = env.getContextFactory().enterContext();
+            try {
+                ClassCache cache = env.getClassCache();
+                long start = System.nanoTime();
+                Script s = null;
+                boolean split = false;
+
+                try {
+                    if (cache instanceof BytecodeClassCache) {
+                        Object[] classFiles =
+                            ScriptUtils.tryCompileToClassesAnySize(cx, code, fileName, makeClassName(cacheKey));
+                        if (classFiles != null) {
+                            ((BytecodeClassCache)cache).putCachedClasses(cacheKey, classFiles);
+                            s = ScriptUtils.loadCompiledClasses(classFiles);
+                        }
+                    }
+                    if (s == null) {
+                        s = ScriptUtils.tryCompileAnySize(cx, code, fileName, 1);
+                    }
+                } catch (RuntimeException re) {
+                    // Rhino has a few different ways to fail on very large scripts
+                    if (log.isDebugEnabled()) {
+                        log.debug("Error compiling {} in the background: {}", fileName, re);
+                    }
+                }
+                if (s == null) {
+                    // This only helps scripts with a lot of top-level code. A Node module is wrapped in a
+                    // single function before it gets here, so a module whose own body is too large -- such
+                    // as a big bundle loaded with "require" -- cannot be split and is still interpreted.
+                    s = ScriptSplitter.compileSplit(cx, code, fileName);
+                    split = (s != null);
+                }
+
+                recordCompilation(start, s, cache);
+                if (s == null) {
+                    markFailed(cacheKey);
+                    return;
+                }
+
+                backgroundCompilations.incrementAndGet();
+                if (split) {
+                    splitScripts.incrementAndGet();
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Compiled {} in the background", fileName);
+                }
+                if (cache == null) {
+                    synchronized (compiled) {
+                        compiled.put(cacheKey, new SoftReference<Script>(s));
+                    }
+                } else {
+                    cache.putCachedScript(cacheKey, s);
+                }
+
+            } catch (RuntimeException re) {
+                // Most likely a syntax error, which the script will see when it is interpreted
+                if (log.isDebugEnabled()) {
+                    log.debug("Cannot compile {} in the background: {}", fileName, re);
+                }
+                markFailed(cacheKey);
+            } finally {
+                pending.remove(cacheKey);
+                Context.exit();
+            }
+        }
+    }
+
+    /**
+     * A map that forgets its least recently used entries once it holds more than "maxEntries" of them.
+     * Callers must synchronize on it.
+     */
+    private static final class BoundedMap<V>
+        extends LinkedHashMap<String, V>
+    {
+        private final int maxEntries;
+
+        BoundedMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+        {
+            return (size() > maxEntries);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ScriptCompiler [ hits = " + hits + " misses = " + misses +
+               " compilations = " + compilations + " uncompiled = " + uncompiled +
+               " background = " + backgroundCompilations + " split = " + splitScripts +
+               " compile time = " + (compileTime.get() / 1000000L) + " ms ]";
+    }
+}
@@ -64,6 +64,8 @@ import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
@@ -98,13 +100,17 @@ public class ScriptRunner
 
     public static final String TIMEOUT_TIMESTAMP_KEY = "_tickTimeout";
 
+    // Properties on "process" that tell trireme.js to stop before running the main script
+    private static final String DEFER_MAIN = "_deferMain";
+    private static final String RUN_MAIN = "_runMain";
+
     private final  NodeEnvironment env;
     private        long            now;
     private        AbstractModuleRegistry registry;
     private        File            scriptFile;
     private        String          script;
     private final  NodeScript      scriptObject;
-    private final  String[]        args;
+    private        String[]        args;
     private final  HashMap<String, NativeModule.ModuleImpl> moduleCache = new HashMap<String, NativeModule.ModuleImpl>();
     private final  HashMap<String, Object> internalModuleCache = new HashMap<String, Object>();
     private        ScriptFuture    future;
@@ -117,7 +123,8 @@ public class ScriptRunner
 
     private final  ConcurrentLinkedQueue<Activity> tickFunctions = new ConcurrentLinkedQueue<Activity>();
     private final  PriorityQueue<Activity>       timerQueue    = new PriorityQueue<Activity>();
-    private final  Selector                      selector;
+    private volatile Selector                    selector;
+    private        EventLoopScheduler.Slot       loopSlot;
     private        int                           timerSequence;
     private final  AtomicInteger                 pinCount      = new AtomicInteger(0);
     private        BasicFilesystem               filesystem;
@@ -129,6 +136,7 @@ public class ScriptRunner
     private String              scriptFileName;
     private TriremeProcess      parentProcess;
     private boolean             forceRepl;
+    private boolean             prestarted;
 
     private ScriptableObject    scope;
 
@@ -161,6 +169,15 @@ public class ScriptRunner
         this.forceRepl = forceRepl;
     }
 
+    /**
+     * Create a runner that does not know what script it will run yet. It must be given one using
+     * "setScript" or "setScriptFile" before it is started.
+     */
+    public ScriptRunner(NodeScript so, NodeEnvironment env, Sandbox sandbox)
+    {
+        this(so, env, sandbox, (String[])null);
+    }
+
     private ScriptRunner(NodeScript so, NodeEnvironment env, Sandbox sandbox,
                          String[] args)
     {
@@ -199,20 +216,43 @@ public class ScriptRunner
                 pathTranslator.mount(mount.getKey(), new File(mount.getValue()));
             }
         }
+    }
+
+    /**
+     * Internal: Set the script for a runner that was created without one.
+     */
+    public void setScript(String scriptName, String script, String[] args)
+    {
+        this.scriptFileName = scriptName;
+        this.script = script;
+        this.args = args;
+    }
 
+    /**
+     * Internal: Set the script file for a runner that was created without one.
+     */
+    public void setScriptFile(File scriptFile, String[] args)
+    {
+        this.scriptFile = scriptFile;
+        this.args = args;
         try {
-            this.selector = Selector.open();
+            this.scriptFileName = pathTranslator.reverseTranslate(scriptFile.getPath());
         } catch (IOException ioe) {
-            throw new AssertionError(ioe);
+            throw new AssertionError("Error translating file path: " + ioe);
         }
     }
 
     public void close()
     {
-        try {
-            selector.close();
-        } catch (IOException ioe) {
-            log.debug("Error closing selector", ioe);
+        if (loopSlot != null) {
+            // The selector belongs to the event loop, so just take our channels off of it
+            loopSlot.close();
+        } else if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing selector", ioe);
+            }
         }
     }
 
@@ -285,6 +325,41 @@ public class ScriptRunner
         return selector;
     }
 
+    @Override
+    public SelectionKey registerChannel(SelectableChannel channel, int ops, SelectorHandler handler)
+        throws ClosedChannelException
+    {
+        if (loopSlot == null) {
+            return channel.register(selector, ops, handler);
+        }
+        return channel.register(selector, ops, loopSlot.wrapHandler(handler));
+    }
+
+    /**
+     * Internal: Run this script on a shared event loop rather than in its own thread. This must be
+     * called before the script starts, and it replaces the script's own selector with the loop's.
+     */
+    public void setEventLoop(EventLoopScheduler.Slot slot)
+    {
+        this.loopSlot = slot;
+        this.selector = slot.getSelector();
+    }
+
+    /**
+     * Make the event loop notice that there is new work to do. This may be called from any thread.
+     */
+    public void wakeup()
+    {
+        if (loopSlot == null) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        } else {
+            loopSlot.schedule();
+        }
+    }
+
     /**
      * This thread pool is a thread pool that has a fixed maximum size and a queue. It is intended to be used
      * for tasks that would block the main thread, but that have a reasonable chance of completing in a
@@ -402,7 +477,7 @@ public class ScriptRunner
         Callback cb = new Callback(f, scope, thisObj, args);
         cb.setDomain((Scriptable)domain);
         tickFunctions.offer(cb);
-        selector.wakeup();
+        wakeup();
     }
 
     /**
@@ -423,7 +498,7 @@ public class ScriptRunner
         Task t = new Task(task, scope);
         t.setDomain((Scriptable)domain);
         tickFunctions.offer(t);
-        selector.wakeup();
+        wakeup();
     }
 
     @Override
@@ -432,7 +507,7 @@ public class ScriptRunner
         RunnableTask t = new RunnableTask(r);
         t.setDomain((Scriptable)domain);
         tickFunctions.offer(t);
-        selector.wakeup();
+        wakeup();
     }
 
     /**
@@ -573,7 +648,7 @@ public class ScriptRunner
             t.setRepeating(true);
         }
         timerQueue.add(t);
-        selector.wakeup();
+        wakeup();
         return t;
     }
 
@@ -599,7 +674,7 @@ public class ScriptRunner
                 if (!t.isCancelled()) {
                     t.setId(timerSequence++);
                     timerQueue.add(t);
-                    selector.wakeup();
+                    wakeup();
                 }
             }
         });
@@ -623,7 +698,7 @@ public class ScriptRunner
             log.warn("Negative pin count: {}", currentPinCount);
         }
         if (currentPinCount == 0) {
-            selector.wakeup();
+            wakeup();
         }
     }
 
@@ -694,6 +769,14 @@ public class ScriptRunner
     public ScriptStatus call()
         throws NodeException
     {
+        if (selector == null) {
+            try {
+                selector = Selector.open();
+            } catch (IOException ioe) {
+                throw new NodeException(ioe);
+            }
+        }
+
         Object ret = env.getContextFactory().call(new ContextAction()
         {
             @Override
@@ -707,8 +790,6 @@ public class ScriptRunner
 
     protected ScriptStatus runScript(Context cx)
     {
-        ScriptStatus status;
-
         if (scriptObject.getDisplayName() != null) {
             try {
                 Thread.currentThread().setName("Trireme: " + scriptObject.getDisplayName());
@@ -716,25 +797,84 @@ public class ScriptRunner
             }
         }
 
+        ScriptStatus status = startScript(cx);
+        if (status == null) {
+            try {
+                status = mainLoop(cx);
+            } catch (NodeExitException ne) {
+                // This exception is thrown by process.exit()
+                status = ne.getStatus();
+            } catch (IOException ioe) {
+                log.debug("I/O exception processing script: {}", ioe);
+                status = new ScriptStatus(ioe);
+            } catch (Throwable t) {
+                log.debug("Unexpected script error: {}", t);
+                status = new ScriptStatus(t);
+            }
+        }
+        return finishScript(cx, status);
+    }
+
+    /**
+     * Internal: Set up the global scope and run all of the startup code for the runtime on the calling thread,
+     * stopping just before the main script would run. When the runner is started later, it only has to run
+     * the main script. Returns null on success, or the status of the script if startup failed.
+     */
+    public ScriptStatus prestart()
+    {
+        return (ScriptStatus)env.getContextFactory().call(new ContextAction()
+        {
+            @Override
+            public Object run(Context cx)
+            {
+                cx.putThreadLocal(RUNNER, ScriptRunner.this);
+                now = System.currentTimeMillis();
+                try {
+                    ScriptStatus status = initScope(cx);
+                    if (status != null) {
+                        return status;
+                    }
+
+                    // trireme.js looks at argv while it starts up, so give it something to look at
+                    process.setArgv(new String[] { AbstractProcess.EXECUTABLE_NAME });
+                    process.put(DEFER_MAIN, process, Boolean.TRUE);
+                    Function main = (Function)registry.getMainScript().exec(cx, scope);
+                    main.call(cx, scope, scope, new Object[] { process });
+                    prestarted = true;
+                    return null;
+
+                } catch (NodeExitException ne) {
+                    return ne.getStatus();
+                } catch (Throwable t) {
+                    log.debug("Error starting script runtime: {}", t);
+                    return new ScriptStatus(t);
+                } finally {
+                    cx.removeThreadLocal(RUNNER);
+                }
+            }
+        });
+    }
+
+    public boolean isPrestarted() {
+        return prestarted;
+    }
+
+    /**
+     * Set up the global scope and run the main script up to the point where the event loop takes over.
+     * Returns null if the script should now enter its event loop, or the final status of the script
+     * if it is already done.
+     */
+    ScriptStatus startScript(Context cx)
+    {
         cx.putThreadLocal(RUNNER, this);
         now = System.currentTimeMillis();
 
         try {
-            // All scripts get their own global scope. This is a lot safer than sharing them in case a script wants
-            // to add to the prototype of String or Date or whatever (as they often do)
-            // This uses a bit more memory and in theory slows down script startup but in practice it is
-            // a drop in the bucket.
-            scope = cx.initStandardObjects();
-
-            // Lazy first-time init of the node version.
-            registry.loadRoot(cx);
-
-            try {
-                initGlobals(cx);
-            } catch (NodeException ne) {
-                return new ScriptStatus(ne);
-            } finally {
-                initialized.countDown();
+            if (!prestarted) {
+                ScriptStatus initStatus = initScope(cx);
+                if (initStatus != null) {
+                    return initStatus;
+                }
             }
 
             if ((scriptFile == null) && (script == null)) {
@@ -752,14 +892,25 @@ public class ScriptRunner
                 setScriptFileArgv(scriptFileName);
             }
 
-            // Run "trireme.js," which is our equivalent of "node.js". It returns a function that takes
-            // "process". When done, we may have ticks to execute.
-            Script mainScript = registry.getMainScript();
-            Function main = (Function)mainScript.exec(cx, scope);
+            Function main;
+            Object[] mainArgs;
+            if (prestarted) {
+                // "prestart" already ran "trireme.js," which left behind a function that runs the rest.
+                main = (Function)process.get(RUN_MAIN, process);
+                mainArgs = ScriptRuntime.emptyArgs;
+                process.delete(RUN_MAIN);
+                process.delete(DEFER_MAIN);
+            } else {
+                // Run "trireme.js," which is our equivalent of "node.js". It returns a function that takes
+                // "process". When done, we may have ticks to execute.
+                Script mainScript = registry.getMainScript();
+                main = (Function)mainScript.exec(cx, scope);
+                mainArgs = new Object[] { process };
+            }
 
             boolean timing = startTiming(cx);
             try {
-                main.call(cx, scope, scope, new Object[] { process });
+                main.call(cx, scope, scope, mainArgs);
             } catch (RhinoException re) {
                 boolean handled = handleScriptException(cx, re);
                 if (!handled) {
@@ -770,20 +921,54 @@ public class ScriptRunner
                     endTiming(cx);
                 }
             }
-
-            status = mainLoop(cx);
+            return null;
 
         } catch (NodeExitException ne) {
             // This exception is thrown by process.exit()
-            status = ne.getStatus();
-        } catch (IOException ioe) {
-            log.debug("I/O exception processing script: {}", ioe);
-            status = new ScriptStatus(ioe);
+            return ne.getStatus();
         } catch (Throwable t) {
             log.debug("Unexpected script error: {}", t);
-            status = new ScriptStatus(t);
+            return new ScriptStatus(t);
+        }
+    }
+
+    /**
+     * Create the global scope and the "process" object. Returns null on success or the status of
+     * the script if that failed.
+     */
+    private ScriptStatus initScope(Context cx)
+    {
+        // All scripts get their own global scope. This is a lot safer than sharing them in case a script wants
+        // to add to the prototype of String or Date or whatever (as they often do)
+        // This uses a bit more memory and in theory slows down script startup but in practice it is
+        // a drop in the bucket. If the environment asked for it, though, the standard objects are
+        // sealed and shared, and only the global scope itself is new.
+        GlobalScopeTemplate template = env.getGlobalScopeTemplate();
+        if (template == null) {
+            scope = cx.initStandardObjects();
+        } else {
+            scope = template.newGlobalScope();
+        }
+
+        // Lazy first-time init of the node version.
+        registry.loadRoot(cx);
+
+        try {
+            initGlobals(cx);
+            return null;
+        } catch (NodeException ne) {
+            return new ScriptStatus(ne);
+        } finally {
+            initialized.countDown();
         }
+    }
 
+    /**
+     * Fire the "exit" event and clean up everything that the script left open.
+     */
+    ScriptStatus finishScript(Context cx, ScriptStatus exitStatus)
+    {
+        ScriptStatus status = exitStatus;
         log.debug("Script exiting with exit code {}", status.getExitCode());
 
         if (!status.hasCause() && !process.isExiting()) {
@@ -894,8 +1079,7 @@ public class ScriptRunner
     {
         // Exit if there's no work do to but only if we're not pinned by a module.
         // We might exit if there are events on the timer queue if they are not also pinned.
-        while (!tickFunctions.isEmpty() || (pinCount.get() > 0) ||
-                process.isTickTaskPending() || process.isImmediateTaskPending()) {
+        while (hasPendingWork()) {
             try {
                 if ((future != null) && future.isCancelled()) {
                     return ScriptStatus.CANCELLED;
@@ -957,6 +1141,63 @@ public class ScriptRunner
         return ScriptStatus.OK;
     }
 
+    private boolean hasPendingWork()
+    {
+        return (!tickFunctions.isEmpty() || (pinCount.get() > 0) ||
+                process.isTickTaskPending() || process.isImmediateTaskPending());
+    }
+
+    /**
+     * This is the equivalent of one pass through "mainLoop," for scripts that run on a shared event loop.
+     * The loop has already done the "select" on our behalf and passes in the keys that belong to us.
+     * Returns null if the script should keep running, or its final status.
+     */
+    ScriptStatus runSlice(Context cx, List<SelectionKey> selectedKeys)
+    {
+        cx.putThreadLocal(RUNNER, this);
+        try {
+            if ((future != null) && future.isCancelled()) {
+                return ScriptStatus.CANCELLED;
+            }
+
+            executeNextTicks(cx);
+            executeTicks(cx);
+            executeImmediateCallbacks(cx);
+
+            now = System.currentTimeMillis();
+            for (SelectionKey key : selectedKeys) {
+                if (key.isValid()) {
+                    executeNetworkCallback(cx, key);
+                }
+            }
+            executeTimerTasks(cx, now);
+
+        } catch (NodeExitException ne) {
+            return ne.getStatus();
+        } catch (RhinoException re) {
+            return new ScriptStatus(re);
+        }
+
+        return (hasPendingWork() ? null : ScriptStatus.OK);
+    }
+
+    /**
+     * Tell a shared event loop when this script next needs to run, assuming that nothing else wakes it up.
+     * Zero means right away, and -1 means not until there is network I/O or a task is enqueued.
+     * Otherwise it is the time that the next timer fires.
+     */
+    long getNextWakeup()
+    {
+        if (!tickFunctions.isEmpty() || process.isTickTaskPending() ||
+            process.isImmediateTaskPending() || (pinCount.get() == 0)) {
+            return 0L;
+        }
+        if (timerQueue.isEmpty()) {
+            return -1L;
+        }
+        return timerQueue.peek().timeout;
+    }
+
     private Scriptable makeError(Context cx, RhinoException re)
     {
         if ((re instanceof JavaScriptException) &&
@@ -1093,18 +1334,24 @@ public class ScriptRunner
         while (keys.hasNext()) {
             SelectionKey selKey = keys.next();
             keys.remove();
-            boolean timed = startTiming(cx);
-            try {
-                ((SelectorHandler)selKey.attachment()).selected(selKey);
-            } catch (RhinoException re) {
-                boolean handled = handleScriptException(cx, re);
-                if (!handled) {
-                    throw re;
-                }
-            } finally {
-                if (timed) {
-                    endTiming(cx);
-                }
+            executeNetworkCallback(cx, selKey);
+        }
+    }
+
+    private void executeNetworkCallback(Context cx, SelectionKey selKey)
+        throws RhinoException
+    {
+        boolean timed = startTiming(cx);
+        try {
+            ((SelectorHandler)selKey.attachment()).selected(selKey);
+        } catch (RhinoException re) {
+            boolean handled = handleScriptException(cx, re);
+            if (!handled) {
+                throw re;
+            }
+        } finally {
+            if (timed) {
+                endTiming(cx);
             }
         }
     }
@@ -0,0 +1,381 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Rhino compiles the top level of a script into a single Java method, so a script with a lot of top-level
+ * code -- like a big bundle of concatenated files -- exceeds the 64K limit on the size of a method and has
+ * to be interpreted. This class splits a script like that into pieces, each made up of top-level statements,
+ * that may be compiled separately and then run one after the other in the same scope.
+ * <p>
+ * To preserve the semantics of the original script, top-level function declarations are moved into the
+ * first pieces, and the first piece declares every top-level "var," so that everything is hoisted just as
+ * it would have been. A "use strict" directive is repeated in every piece. Each piece keeps the line numbers
+ * of the original source, so stack traces don't change.
+ * </p>
+ * <p>
+ * This does not help a script whose top level is a single very large statement, such as a Node module,
+ * which is wrapped in a function before it is compiled.
+ * </p>
+ */
+public class ScriptSplitter
+{
+    private static final Logger log = LoggerFactory.getLogger(ScriptSplitter.class);
+
+    /**
+     * The maximum number of characters of top-level code in each piece, other than pieces that consist
+     * of a single statement that is larger than this.
+     */
+    public static final int DEFAULT_CHUNK_LENGTH = 16 * 1024;
+
+    /**
+     * Split the script and compile each piece. Return null if the script can't be split into more than
+     * one piece, or if one of the pieces is still too large to compile. Throw if the script has a
+     * syntax error. Only top-level statements are split, so a Node module, whose source is wrapped in a
+     * single function, always gets null here no matter how large its body is.
+     */
+    public static Script compileSplit(Context cx, String code, String fileName)
+    {
+        return compileSplit(cx, code, fileName, DEFAULT_CHUNK_LENGTH);
+    }
+
+    public static Script compileSplit(Context cx, String code, String fileName, int maxLength)
+    {
+        List<Chunk> chunks = split(cx, code, fileName, maxLength);
+        if (chunks == null) {
+            return null;
+        }
+
+        Script[] scripts = new Script[chunks.size()];
+        for (int i = 0; i < scripts.length; i++) {
+            Chunk c = chunks.get(i);
+            scripts[i] = ScriptUtils.tryCompileAnySize(cx, c.getSource(), fileName, c.getLineNumber());
+            if (scripts[i] == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Piece {} of {} at line {} is still too large to compile",
+                              i, fileName, c.getLineNumber());
+                }
+                return null;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compiled {} in {} pieces", fileName, scripts.length);
+        }
+        return new SplitScript(scripts);
+    }
+
+    /**
+     * Split the script into pieces of top-level code no longer than "maxLength," or return null if that
+     * would result in only one piece.
+     */
+    public static List<Chunk> split(Context cx, String code, String fileName, int maxLength)
+    {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        Parser parser = new Parser(env);
+        AstRoot root = parser.parse(code, fileName, 1);
+
+        ArrayList<AstNode> functions = new ArrayList<AstNode>();
+        ArrayList<AstNode> statements = new ArrayList<AstNode>();
+        boolean strict = false;
+        for (Node n : root) {
+            AstNode stmt = (AstNode)n;
+            if ((stmt instanceof FunctionNode) &&
+                (((FunctionNode)stmt).getFunctionType() == FunctionNode.FUNCTION_STATEMENT)) {
+                functions.add(stmt);
+            } else {
+                if (functions.isEmpty() && statements.isEmpty() && isStrictDirective(stmt)) {
+                    strict = true;
+                }
+                statements.add(stmt);
+            }
+        }
+
+        ArrayList<List<AstNode>> functionGroups = new ArrayList<List<AstNode>>();
+        group(functions, maxLength, functionGroups);
+        ArrayList<List<AstNode>> statementGroups = new ArrayList<List<AstNode>>();
+        group(statements, maxLength, statementGroups);
+        if ((functionGroups.size() + statementGroups.size()) < 2) {
+            return null;
+        }
+
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>(functionGroups.size() + statementGroups.size());
+        String prefix = (strict ? "'use strict';" : "");
+        String declarations = makeDeclarations(root);
+        LineCounter lines = new LineCounter(code);
+
+        for (List<AstNode> g : functionGroups) {
+            chunks.add(makeFunctionChunk(code, g, prefix + (chunks.isEmpty() ? declarations : ""), lines));
+        }
+
+        lines = new LineCounter(code);
+        int start = 0;
+        for (List<AstNode> g : statementGroups) {
+            int end = getEnd(g.get(g.size() - 1));
+            chunks.add(makeStatementChunk(code, start, end, functions,
+                                          prefix + (chunks.isEmpty() ? declarations : ""), lines));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static boolean isStrictDirective(AstNode stmt)
+    {
+        if (!(stmt instanceof ExpressionStatement)) {
+            return false;
+        }
+        AstNode expr = ((ExpressionStatement)stmt).getExpression();
+        return ((expr instanceof StringLiteral) && "use strict".equals(((StringLiteral)expr).getValue()));
+    }
+
+    /**
+     * Divide a list of statements, which are in source order, into groups of no more than "maxLength"
+     * characters.
+     */
+    private static void group(List<AstNode> stmts, int maxLength, List<List<AstNode>> groups)
+    {
+        ArrayList<AstNode> current = new ArrayList<AstNode>();
+        int length = 0;
+        for (AstNode stmt : stmts) {
+            if (!current.isEmpty() && ((length + stmt.getLength()) > maxLength)) {
+                groups.add(current);
+                current = new ArrayList<AstNode>();
+                length = 0;
+            }
+            current.add(stmt);
+            length += stmt.getLength();
+        }
+        if (!current.isEmpty()) {
+            groups.add(current);
+        }
+    }
+
+    /**
+     * Declare every variable that is declared using "var" outside of a function, so that it exists
+     * before any of the pieces run.
+     */
+    private static String makeDeclarations(AstRoot root)
+    {
+        final LinkedHashSet<String> names = new LinkedHashSet<String>();
+        for (Node n : root) {
+            ((AstNode)n).visit(new NodeVisitor()
+            {
+                @Override
+                public boolean visit(AstNode node)
+                {
+                    if (node instanceof FunctionNode) {
+                        return false;
+                    }
+                    if ((node instanceof VariableDeclaration) && ((VariableDeclaration)node).isVar()) {
+                        for (VariableInitializer vi : ((VariableDeclaration)node).getVariables()) {
+                            if (vi.getTarget() instanceof Name) {
+                                names.add(((Name)vi.getTarget()).getIdentifier());
+                            }
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+
+        if (names.isEmpty()) {
+            return "";
+        }
+        StringBuilder decl = new StringBuilder("var ");
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                decl.append(',');
+            }
+            decl.append(name);
+            first = false;
+        }
+        decl.append(';');
+        return decl.toString();
+    }
+
+    private static int getEnd(AstNode n)
+    {
+        return n.getAbsolutePosition() + n.getLength();
+    }
+
+    /**
+     * Produce a piece that declares a group of functions. Each function is on the same line as it was in
+     * the original source.
+     */
+    private static Chunk makeFunctionChunk(String code, List<AstNode> functions, String prefix,
+                                           LineCounter lines)
+    {
+        StringBuilder src = new StringBuilder(prefix);
+        int lineNumber = lines.getLine(functions.get(0).getAbsolutePosition());
+        int line = lineNumber;
+        for (AstNode fn : functions) {
+            int fnLine = lines.getLine(fn.getAbsolutePosition());
+            for (; line < fnLine; line++) {
+                src.append('\n');
+            }
+            src.append(code, fn.getAbsolutePosition(), getEnd(fn));
+            line = lines.getLine(getEnd(fn));
+        }
+        return new Chunk(src.toString(), lineNumber);
+    }
+
+    /**
+     * Produce a piece that contains all the source between "start" and "end," except for the function
+     * declarations, which have already run.
+     * <p>
+     * Rhino does not always record the start of a statement accurately -- for instance when it begins
+     * with a parenthesis -- so pieces are divided at the end of the last statement in each one.
+     * </p>
+     */
+    private static Chunk makeStatementChunk(String code, int start, int end, List<AstNode> functions,
+                                            String prefix, LineCounter lines)
+    {
+        StringBuilder src = new StringBuilder(prefix.length() + (end - start));
+        src.append(prefix);
+        src.append(code, start, end);
+
+        for (AstNode fn : functions) {
+            int pos = fn.getAbsolutePosition();
+            if ((pos >= start) && (pos < end)) {
+                blank(src, prefix.length() + (pos - start), fn.getLength());
+            }
+        }
+        return new Chunk(src.toString(), lines.getLine(start));
+    }
+
+    /**
+     * Replace a function declaration with an empty statement, followed by whitespace, keeping the line
+     * breaks so that the line numbers of what follows don't change. The semicolon keeps the statement before
+     * it from running on into the one after it.
+     */
+    private static void blank(StringBuilder src, int offset, int length)
+    {
+        src.setCharAt(offset, ';');
+        for (int i = offset + 1; i < (offset + length); i++) {
+            char c = src.charAt(i);
+            if ((c != '\n') && (c != '\r') && (c != '\u2028') && (c != '\u2029')) {
+                src.setCharAt(i, ' ');
+            }
+        }
+    }
+
+    /**
+     * Find the line numbers of positions in the source, which must be passed in increasing order.
+     */
+    private static final class LineCounter
+    {
+        private final String code;
+        private int pos;
+        private int line = 1;
+
+        LineCounter(String code)
+        {
+            this.code = code;
+        }
+
+        int getLine(int newPos)
+        {
+            assert(newPos >= pos);
+            for (; pos < newPos; pos++) {
+                if (code.charAt(pos) == '\n') {
+                    line++;
+                }
+            }
+            return line;
+        }
+    }
+
+    /**
+     * A piece of a larger script.
+     */
+    public static final class Chunk
+    {
+        private final String source;
+        private final int lineNumber;
+
+        Chunk(String source, int lineNumber)
+        {
+            this.source = source;
+            this.lineNumber = lineNumber;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * The line number in the original script on which this piece begins.
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+
+    /**
+     * Run each of the pieces of a split script in order, and return the result of the last one.
+     */
+    private static final class SplitScript
+        implements Script
+    {
+        private final Script[] scripts;
+
+        SplitScript(Script[] scripts)
+        {
+            this.scripts = scripts;
+        }
+
+        @Override
+        public Object exec(Context cx, Scriptable scope)
+        {
+            Object result = Undefined.instance;
+            for (Script s : scripts) {
+                result = s.exec(cx, scope);
+            }
+            return result;
+        }
+    }
+}
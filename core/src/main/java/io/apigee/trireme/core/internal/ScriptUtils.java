@@ -21,10 +21,14 @@
  */
 package io.apigee.trireme.core.internal;
 
+import org.mozilla.javascript.CompilerEnvirons;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.DefiningClassLoader;
 import org.mozilla.javascript.EvaluatorException;
 import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.optimizer.ClassCompiler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,28 +62,113 @@ public class ScriptUtils
         if (code.length() > MAX_COMPILED_SCRIPT_LENGTH) {
             // Assume that this script won't compile -- run it later in interpreted mode.
             return null;
+        }
+        return tryCompileAnySize(cx, code, fileName, 1);
+    }
 
-        } else {
-            try {
-                return cx.compileString(code, fileName, 1, null);
-
-            } catch (EvaluatorException ee) {
-                // Test for a script that is too large. We have to do this by checking the error message
-                if (BYTECODE_SIZE_MESSAGE.matcher(ee.getMessage()).matches()) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Source code for {} is too large -- running later in interpreted mode", fileName);
-                    }
-                    return null;
-                } else {
-                    throw ee;
+    /**
+     * Like "tryCompile," but try to compile the script no matter how long the source is. That may take
+     * a long time only to fail, so this is meant to be used off of the script thread. "lineNumber" is the
+     * line number in the file at which the source code starts.
+     */
+    public static Script tryCompileAnySize(Context cx, String code, String fileName, int lineNumber)
+    {
+        try {
+            return cx.compileString(code, fileName, lineNumber, null);
+
+        } catch (EvaluatorException ee) {
+            // Test for a script that is too large. We have to do this by checking the error message
+            if (BYTECODE_SIZE_MESSAGE.matcher(ee.getMessage()).matches()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Source code for {} is too large -- running later in interpreted mode", fileName);
                 }
-            } catch (IllegalArgumentException ie) {
+                return null;
+            } else {
+                throw ee;
+            }
+        } catch (IllegalArgumentException ie) {
+            if (log.isDebugEnabled()) {
+                log.debug("Source code for {} failed compilation, possibly too large", fileName);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Like "tryCompile," but return the generated class files rather than a Script, so that the caller
+     * may store them somewhere. The result is in the format of "ClassCompiler.compileToClassFiles" -- an array
+     * of alternating class names and byte arrays, in which the first class implements Script. Returns null
+     * if the script is too large, or if the context is in interpreted mode and so generates no bytecode.
+     */
+    public static Object[] tryCompileToClasses(Context cx, String code, String fileName, String className)
+    {
+        if (code.length() > MAX_COMPILED_SCRIPT_LENGTH) {
+            return null;
+        }
+        return tryCompileToClassesAnySize(cx, code, fileName, className);
+    }
+
+    /**
+     * Like "tryCompileToClasses," but without the limit on the length of the source.
+     */
+    public static Object[] tryCompileToClassesAnySize(Context cx, String code, String fileName, String className)
+    {
+        if (cx.getOptimizationLevel() < 0) {
+            return null;
+        }
+
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        ClassCompiler compiler = new ClassCompiler(env);
+        try {
+            return compiler.compileToClassFiles(code, fileName, 1, className);
+
+        } catch (EvaluatorException ee) {
+            if (BYTECODE_SIZE_MESSAGE.matcher(ee.getMessage()).matches()) {
                 if (log.isDebugEnabled()) {
-                    log.debug("Source code for {} failed compilation, possibly too large", fileName);
+                    log.debug("Source code for {} is too large -- running later in interpreted mode", fileName);
                 }
                 return null;
+            } else {
+                throw ee;
+            }
+        } catch (IllegalArgumentException ie) {
+            if (log.isDebugEnabled()) {
+                log.debug("Source code for {} failed compilation, possibly too large", fileName);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Load the class files produced by "tryCompileToClasses" and return an instance of the script.
+     * Every call loads the classes in a new class loader, just like Rhino does when it compiles a script.
+     */
+    public static Script loadCompiledClasses(Object[] classFiles)
+        throws ClassFormatError
+    {
+        DefiningClassLoader loader = new DefiningClassLoader(ScriptRuntime.class.getClassLoader());
+        Class<?> mainClass = null;
+        for (int i = 0; i < classFiles.length; i += 2) {
+            Class<?> c = loader.defineClass((String)classFiles[i], (byte[])classFiles[i + 1]);
+            if (i == 0) {
+                mainClass = c;
             }
         }
+        if (mainClass == null) {
+            throw new ClassFormatError("No classes to load");
+        }
+        loader.linkClass(mainClass);
+
+        try {
+            return (Script)mainClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new ClassFormatError("Cannot create compiled script: " + e);
+        } catch (IllegalAccessException e) {
+            throw new ClassFormatError("Cannot create compiled script: " + e);
+        } catch (ClassCastException e) {
+            throw new ClassFormatError("Compiled class is not a script: " + e);
+        }
     }
 
     /**
@@ -26,7 +26,10 @@ import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.FastCodec;
 import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.kernel.util.DirectBufferPool;
 import io.apigee.trireme.kernel.util.StringUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.EvaluatorException;
@@ -85,6 +88,9 @@ public class Buffer
 
         private static final IdPropertyMap props = new IdPropertyMap(CLASS_NAME);
 
+        /** Largest array that "fill" builds to copy in to a direct buffer. */
+        private static final int FILL_CHUNK_SIZE = 4096;
+
         private static final int
           Id_byteLength = -1,
           Id_compare = -2,
@@ -143,6 +149,8 @@ public class Buffer
         }
 
         private byte[] buf;
+        // When direct buffers are enabled, this replaces "buf," and "bufOffset" is relative to it
+        private ByteBuffer direct;
         private int bufOffset;
         private int bufLength;
 
@@ -184,14 +192,13 @@ public class Buffer
                 if ((len < 0) || (len > MAX_LENGTH)) {
                     throw Utils.makeRangeError(cx, this, "Length out of range");
                 }
-                buf.buf = new byte[len];
-                buf.bufOffset = 0;
-                buf.bufLength = len;
+                buf.allocate(cx, len);
 
             } else if (args[0] instanceof BufferImpl) {
                 // This is the constructor used by the "slice" operation.
                 BufferImpl src = (BufferImpl)args[0];
                 buf.buf = src.buf;
+                buf.direct = src.direct;
                 buf.bufLength = intArg(args, 1, src.bufLength);
                 buf.bufOffset = intArg(args, 2, 0);
                 buf.bufOffset += src.bufOffset;
@@ -337,6 +344,10 @@ public class Buffer
             String data = stringArg(args, 0);
             Charset charset = resolveEncoding(args, 1);
 
+            if (FastCodec.isSupported(charset)) {
+                return FastCodec.byteLength(data, charset);
+            }
+
             // Encode the characters and replace, just as we would do in the constructor
             CharsetEncoder encoder = getCharsetEncoder(charset, true);
 
@@ -365,8 +376,8 @@ public class Buffer
             Buffer.BufferImpl b2 = objArg(cx, scope, args, 1, Buffer.BufferImpl.class, true);
 
             int cmpLen = Math.min(b1.bufLength, b2.bufLength);
-            ByteBuffer bb1 = ByteBuffer.wrap(b1.buf, b1.bufOffset, cmpLen);
-            ByteBuffer bb2 = ByteBuffer.wrap(b2.buf, b2.bufOffset, cmpLen);
+            ByteBuffer bb1 = b1.view(b1.bufOffset, cmpLen);
+            ByteBuffer bb2 = b2.view(b2.bufOffset, cmpLen);
 
             int cmp = bb1.compareTo(bb2);
 
@@ -396,8 +407,7 @@ public class Buffer
             start += bufOffset;
             end += bufOffset;
 
-            ByteBuffer bb = ByteBuffer.wrap(buf, start, len);
-            return StringUtils.bufferToString(bb, cs);
+            return StringUtils.bufferToString(view(start, len), cs);
         }
 
         private int write(Context cx, Object[] args, Charset cs)
@@ -413,8 +423,18 @@ public class Buffer
                 return 0;
             }
 
+            ensureWritable();
             off += bufOffset;
-            ByteBuffer writeBuf = ByteBuffer.wrap(buf, off, len);
+
+            if ((buf != null) && FastCodec.isSupported(cs)) {
+                long result = FastCodec.encode(s, cs, buf, off, len);
+                if (proto != null) {
+                    proto.put("_charsWritten", proto, FastCodec.getCharsRead(result));
+                }
+                return FastCodec.getBytesWritten(result);
+            }
+
+            ByteBuffer writeBuf = view(off, len);
 
             // When encoding, it's important that we stop on any incomplete character
             // as per the spec.
@@ -437,15 +457,14 @@ public class Buffer
             int start = intArg(args, 1);
             int end = intArg(args, 2);
 
+            ensureWritable();
             start += bufOffset;
             end += bufOffset;
 
             if (val instanceof Number) {
-                Arrays.fill(buf, start, end,
-                            (byte)(((Number)val).intValue()));
+                fillBytes(start, end, (byte)(((Number)val).intValue()));
             } else if (val instanceof Boolean) {
-                Arrays.fill(buf, start, end,
-                            ((Boolean)val).booleanValue() ? (byte)1 : (byte)0);
+                fillBytes(start, end, ((Boolean)val).booleanValue() ? (byte)1 : (byte)0);
             } else if (val instanceof String) {
                 fillString((String)val, start, end);
             } else {
@@ -456,12 +475,12 @@ public class Buffer
         private void fillString(String s, int start, int end)
         {
             if (s.isEmpty()) {
-                Arrays.fill(buf, start, end, (byte)0);
+                fillBytes(start, end, (byte)0);
             } else {
                 byte[] tmp = s.getBytes(Charsets.UTF8);
                 if (tmp.length == 1) {
-                    Arrays.fill(buf, start, end, tmp[0]);
-                } else {
+                    fillBytes(start, end, tmp[0]);
+                } else if (direct == null) {
                     int pos = start;
                     while ((pos + tmp.length) <= end) {
                         System.arraycopy(tmp, 0, buf, pos, tmp.length);
@@ -469,6 +488,26 @@ public class Buffer
                     }
                     int len = Math.min(tmp.length, end - pos);
                     System.arraycopy(tmp, 0, buf, pos, len);
+                } else {
+                    ByteBuffer bb = view(start, end - start);
+                    while (bb.remaining() >= tmp.length) {
+                        bb.put(tmp);
+                    }
+                    bb.put(tmp, 0, bb.remaining());
+                }
+            }
+        }
+
+        private void fillBytes(int start, int end, byte val)
+        {
+            if (direct == null) {
+                Arrays.fill(buf, start, end, val);
+            } else if (end > start) {
+                byte[] tmp = new byte[Math.min(end - start, FILL_CHUNK_SIZE)];
+                Arrays.fill(tmp, val);
+                ByteBuffer bb = view(start, end - start);
+                while (bb.hasRemaining()) {
+                    bb.put(tmp, 0, Math.min(tmp.length, bb.remaining()));
                 }
             }
         }
@@ -480,10 +519,16 @@ public class Buffer
             int start = intArg(args, 2);
             int end = intArg(args, 3);
 
+            target.ensureWritable();
+
             start += bufOffset;
             end += bufOffset;
 
-            System.arraycopy(buf, start, target.buf, targetStart, end - start);
+            if ((direct == null) && (target.direct == null)) {
+                System.arraycopy(buf, start, target.buf, targetStart, end - start);
+            } else {
+                target.view(targetStart, end - start).put(view(start, end - start));
+            }
             return end - start;
         }
 
@@ -532,6 +577,7 @@ public class Buffer
 
         private void writeUint32(Object[] args)
         {
+            ensureWritable();
             int off = intArg(args, 0);
             long val = longArg(args, 1);
             boolean be = booleanArg(args, 2);
@@ -550,6 +596,7 @@ public class Buffer
 
         private void writeInt32(Object[] args)
         {
+            ensureWritable();
             int off = intArg(args, 0);
             int val = intArg(args, 1);
             boolean be = booleanArg(args, 2);
@@ -588,6 +635,7 @@ public class Buffer
 
         private void writeDouble(Object[] args, boolean bigEndian)
         {
+            ensureWritable();
             ensureArg(args, 0);
             double val;
             if (args[0] == ScriptRuntime.NaNobj) {
@@ -609,6 +657,9 @@ public class Buffer
 
         private long readInt64BE(int offset)
         {
+            if (direct != null) {
+                return direct.getLong(offset);
+            }
             return (((long)buf[offset] & 0xffL) << 56L) |
                 (((long)buf[offset + 1] & 0xffL) << 48L) |
                 (((long)buf[offset + 2] & 0xffL) << 40L) |
@@ -621,6 +672,9 @@ public class Buffer
 
         private long readInt64LE(int offset)
         {
+            if (direct != null) {
+                return Long.reverseBytes(direct.getLong(offset));
+            }
             return ((long)buf[offset] & 0xffL)|
                 (((long)buf[offset + 1] & 0xffL) << 8L) |
                 (((long)buf[offset + 2] & 0xffL) << 16L) |
@@ -633,6 +687,9 @@ public class Buffer
 
         private int readInt32BE(int offset)
         {
+            if (direct != null) {
+                return direct.getInt(bufOffset + offset);
+            }
             return (((int)buf[bufOffset +offset] & 0xff) << 24) |
                 (((int)buf[bufOffset +offset + 1] & 0xff) << 16) |
                 (((int)buf[bufOffset +offset + 2] & 0xff) << 8) |
@@ -641,6 +698,9 @@ public class Buffer
 
         private int readInt32LE(int offset)
         {
+            if (direct != null) {
+                return Integer.reverseBytes(direct.getInt(bufOffset + offset));
+            }
             return ((int)buf[bufOffset +offset] & 0xff) |
                 (((int)buf[bufOffset +offset + 1] & 0xff) << 8) |
                 (((int)buf[bufOffset +offset + 2] & 0xff) << 16) |
@@ -649,30 +709,42 @@ public class Buffer
 
         private void writeInt64BE(long value, int offset)
         {
-            buf[bufOffset + offset] = (byte)((value >>> 56L) & 0xffL);
-            buf[bufOffset +offset + 1] = (byte)((value >>> 48L) & 0xffL);
-            buf[bufOffset +offset + 2] = (byte)((value >>> 40L) & 0xffL);
-            buf[bufOffset +offset + 3] = (byte)((value >>> 32L) & 0xffL);
-            buf[bufOffset +offset + 4] = (byte)((value >>> 24L) & 0xffL);
-            buf[bufOffset +offset + 5] = (byte)((value >>> 16L) & 0xffL);
-            buf[bufOffset +offset + 6] = (byte)((value >>> 8L) & 0xffL);
-            buf[bufOffset +offset + 7] = (byte)(value & 0xffL);
+            if (direct != null) {
+                direct.putLong(offset, value);
+                return;
+            }
+            buf[offset] = (byte)((value >>> 56L) & 0xffL);
+            buf[offset + 1] = (byte)((value >>> 48L) & 0xffL);
+            buf[offset + 2] = (byte)((value >>> 40L) & 0xffL);
+            buf[offset + 3] = (byte)((value >>> 32L) & 0xffL);
+            buf[offset + 4] = (byte)((value >>> 24L) & 0xffL);
+            buf[offset + 5] = (byte)((value >>> 16L) & 0xffL);
+            buf[offset + 6] = (byte)((value >>> 8L) & 0xffL);
+            buf[offset + 7] = (byte)(value & 0xffL);
         }
 
         private void writeInt64LE(long value, int offset)
         {
-            buf[bufOffset +offset] = (byte)(value & 0xffL);
-            buf[bufOffset +offset + 1] = (byte)((value >>> 8L) & 0xffL);
-            buf[bufOffset +offset + 2] = (byte)((value >>> 16L) & 0xffL);
-            buf[bufOffset +offset + 3] = (byte)((value >>> 24L) & 0xffL);
-            buf[bufOffset +offset + 4] = (byte)((value >>> 32L) & 0xffL);
-            buf[bufOffset +offset + 5] = (byte)((value >>> 40L) & 0xffL);
-            buf[bufOffset +offset + 6] = (byte)((value >>> 48L) & 0xffL);
-            buf[bufOffset +offset + 7] = (byte)((value >>> 56L) & 0xffL);
+            if (direct != null) {
+                direct.putLong(offset, Long.reverseBytes(value));
+                return;
+            }
+            buf[offset] = (byte)(value & 0xffL);
+            buf[offset + 1] = (byte)((value >>> 8L) & 0xffL);
+            buf[offset + 2] = (byte)((value >>> 16L) & 0xffL);
+            buf[offset + 3] = (byte)((value >>> 24L) & 0xffL);
+            buf[offset + 4] = (byte)((value >>> 32L) & 0xffL);
+            buf[offset + 5] = (byte)((value >>> 40L) & 0xffL);
+            buf[offset + 6] = (byte)((value >>> 48L) & 0xffL);
+            buf[offset + 7] = (byte)((value >>> 56L) & 0xffL);
         }
 
         private void writeInt32BE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putInt(bufOffset + offset, (int)value);
+                return;
+            }
             buf[bufOffset +offset] = (byte)((value >>> 24L) & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 16L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 8L) & 0xffL);
@@ -681,6 +753,10 @@ public class Buffer
 
         private void writeInt32LE(long value, int offset)
         {
+            if (direct != null) {
+                direct.putInt(bufOffset + offset, Integer.reverseBytes((int)value));
+                return;
+            }
             buf[bufOffset +offset] = (byte)(value & 0xffL);
             buf[bufOffset +offset + 1] = (byte)((value >>> 8L) & 0xffL);
             buf[bufOffset +offset + 2] = (byte)((value >>> 16L) & 0xffL);
@@ -702,6 +778,10 @@ public class Buffer
                 buf.buf = bb.array();
                 buf.bufOffset = bb.arrayOffset() + bb.position();
                 buf.bufLength = bb.remaining();
+            } else if (bb.isDirect() && !copy) {
+                buf.direct = bb.slice();
+                buf.bufOffset = 0;
+                buf.bufLength = buf.direct.remaining();
             } else {
                 ByteBuffer tmp = bb.duplicate();
                 buf.buf = new byte[tmp.remaining()];
@@ -731,6 +811,9 @@ public class Buffer
 
         public ByteBuffer getBuffer()
         {
+            if (direct != null) {
+                return view(bufOffset, bufLength).slice();
+            }
 
             // https://github.com/apigee/trireme/issues/181
             // For cases where Trireme's Buffer is using a byte buffer with an offset we must copy the in-use portion of
@@ -750,20 +833,48 @@ public class Buffer
         public String getString(String encoding)
         {
             Charset cs = Charsets.get().getCharset(encoding);
-            return StringUtils.bufferToString(ByteBuffer.wrap(buf, bufOffset, bufLength), cs);
+            return StringUtils.bufferToString(view(bufOffset, bufLength), cs);
+        }
+
+        /**
+         * Return part of the buffer, starting at "off" bytes from the start, as a ByteBuffer with position
+         * zero that shares its contents. For a direct buffer, this may be passed straight to a channel.
+         */
+        public ByteBuffer getBuffer(int off, int len)
+        {
+            return view(bufOffset + off, len).slice();
+        }
+
+        /**
+         * Like "getBuffer(off, len)," but for a buffer that is about to be modified by something
+         * other than this class. This throws a JavaScript error if the buffer is read-only.
+         */
+        public ByteBuffer getWritableBuffer(int off, int len)
+        {
+            ensureWritable();
+            return getBuffer(off, len);
         }
 
         /**
          * Return the raw byte array under the buffer. Note that the actual buffer may be
          * longer than this, so users must either take "getLength" into account, or
          * call "toArray," which always returns an array of the exact length.
+         * A direct buffer has no array, so in that case this returns a copy of the contents, and
+         * "getArrayOffset" returns zero. Use "getBuffer" to modify a buffer that may be direct.
          */
         public byte[] getArray() {
-            return buf;
+            return (direct == null ? buf : toArray());
         }
 
         public int getArrayOffset() {
-            return bufOffset;
+            return (direct == null ? bufOffset : 0);
+        }
+
+        /**
+         * Return true if the contents of this buffer are in direct memory rather than in a byte array.
+         */
+        public boolean isDirect() {
+            return (direct != null);
         }
 
         /**
@@ -772,10 +883,66 @@ public class Buffer
         public byte[] toArray()
         {
             byte[] ret = new byte[bufLength];
-            System.arraycopy(buf, bufOffset, ret, 0, bufLength);
+            if (direct == null) {
+                System.arraycopy(buf, bufOffset, ret, 0, bufLength);
+            } else {
+                view(bufOffset, bufLength).get(ret);
+            }
             return ret;
         }
 
+        /**
+         * Return a ByteBuffer for "len" bytes of the storage starting at "start," which already includes
+         * "bufOffset." Its position is "start," just like "ByteBuffer.wrap."
+         */
+        private ByteBuffer view(int start, int len)
+        {
+            if (direct == null) {
+                return ByteBuffer.wrap(buf, start, len);
+            }
+            ByteBuffer bb = direct.duplicate();
+            bb.limit(start + len);
+            bb.position(start);
+            return bb;
+        }
+
+        /**
+         * A buffer may be a read-only view of a mapped file, which is shared with every other buffer over
+         * the same file, so it may not be modified. The same goes for slices of it.
+         */
+        public boolean isReadOnly() {
+            return ((direct != null) && direct.isReadOnly());
+        }
+
+        private void ensureWritable()
+        {
+            if (isReadOnly()) {
+                throw Utils.makeError(Context.getCurrentContext(), this, "Buffer is read-only");
+            }
+        }
+
+        /**
+         * Allocate storage for a new buffer, using direct memory if the environment has a pool for it and the
+         * pool is not full.
+         */
+        private void allocate(Context cx, int len)
+        {
+            bufOffset = 0;
+            bufLength = len;
+            if (len > 0) {
+                ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+                DirectBufferPool pool =
+                    (runner == null ? null : runner.getEnvironment().getDirectBufferPool());
+                if (pool != null) {
+                    direct = pool.allocate(len);
+                    if (direct != null) {
+                        return;
+                    }
+                }
+            }
+            buf = new byte[len];
+        }
+
         @Override
         public String getClassName() {
             return CLASS_NAME;
@@ -792,6 +959,9 @@ public class Buffer
 
         public int get(int index)
         {
+            if (direct != null) {
+                return (int)direct.get(index + bufOffset) & 0xff;
+            }
             return (int)buf[index + bufOffset] & 0xff;
         }
 
@@ -804,6 +974,7 @@ public class Buffer
         @Override
         public void put(int i, Scriptable start, Object value)
         {
+            ensureWritable();
             int index = i + bufOffset;
             if ((index >= 0) && (index < bufLength)) {
                 int val = ScriptRuntime.toInt32(value);
@@ -819,7 +990,11 @@ public class Buffer
             if (val < 0) {
                 val = 0xff + val + 1;
             }
-            buf[pos] = (byte)(val & 0xff);
+            if (direct == null) {
+                buf[pos] = (byte)(val & 0xff);
+            } else {
+                direct.put(pos, (byte)(val & 0xff));
+            }
         }
 
         public int getLength()
@@ -28,6 +28,8 @@ import io.apigee.trireme.kernel.crypto.CryptoService;
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.crypto.CipherImpl;
 import io.apigee.trireme.core.modules.crypto.ConnectionImpl;
 import io.apigee.trireme.core.modules.crypto.DHGroupImpl;
@@ -206,20 +208,28 @@ public class Crypto
                 }
             }
 
-            Function callback = objArg(args, 1, Function.class, false);
+            final Function callback = objArg(args, 1, Function.class, false);
+            final int size = sizeNum.intValue();
 
-            byte[] randomBytes = new byte[sizeNum.intValue()];
-            randomImpl.nextBytes(randomBytes);
-            Buffer.BufferImpl randomBytesBuffer = Buffer.BufferImpl.newBuffer(cx, thisObj, randomBytes);
-
-            if (callback != null) {
-                // TODO: what exception can be returned here?
-                thisClass.runtime.enqueueCallback(callback, callback, thisObj, thisClass.runtime.getDomain(),
-                        new Object[] { null, randomBytesBuffer });
-                return Undefined.instance;
-            } else {
-                return randomBytesBuffer;
+            if (callback == null) {
+                byte[] randomBytes = new byte[size];
+                randomImpl.nextBytes(randomBytes);
+                return Buffer.BufferImpl.newBuffer(cx, thisObj, randomBytes);
             }
+
+            // SecureRandom may block waiting for entropy, so fill the buffer in the crypto pool
+            final Random rand = randomImpl;
+            runInCryptoPool(thisClass.runtime, callback, thisObj, null, new Generator()
+            {
+                @Override
+                public byte[] generate()
+                {
+                    byte[] randomBytes = new byte[size];
+                    rand.nextBytes(randomBytes);
+                    return randomBytes;
+                }
+            });
+            return Undefined.instance;
         }
 
         @JSFunction
@@ -255,36 +265,104 @@ public class Crypto
         public static Scriptable PBKDF2(Context cx, Scriptable thisObj, Object[] args, Function func)
         {
             Crypto.ensureCryptoService(cx, thisObj);
-            CryptoService crypto = Crypto.getCryptoService();
+            final CryptoService crypto = Crypto.getCryptoService();
 
             Buffer.BufferImpl pwBuf = bufferArg(args, 0);
             Buffer.BufferImpl saltBuf = bufferArg(args, 1);
-            int iterations = intArg(args, 2);
-            int keyLen = intArg(args, 3);
             Function callback = objArg(cx, thisObj, args, 4, Function.class, false);
 
-            byte[] pw = pwBuf.toArray();
-            byte[] salt = saltBuf.toArray();
-
-            try {
-                byte[] key = crypto.generatePBKDF2(pw, salt, iterations, keyLen);
+            final byte[] pw = pwBuf.toArray();
+            final byte[] salt = saltBuf.toArray();
+            final int iterations = intArg(args, 2);
+            final int keyLen = intArg(args, 3);
 
-                Buffer.BufferImpl keyBuf = Buffer.BufferImpl.newBuffer(cx, thisObj, key);
-                if (callback == null) {
-                    return keyBuf;
+            if (callback == null) {
+                try {
+                    return Buffer.BufferImpl.newBuffer(cx, thisObj, crypto.generatePBKDF2(pw, salt, iterations, keyLen));
+                } finally {
+                    Arrays.fill(pw, (byte)0);
                 }
-                callback.call(cx, thisObj, null,
-                    new Object[]{Context.getUndefinedValue(), keyBuf});
-
-            } finally {
-                Arrays.fill(pw, (byte)0);
-                Arrays.fill(pw, (byte)0);
             }
+
+            runInCryptoPool(getRunner(cx), callback, thisObj, Context.getUndefinedValue(), new Generator()
+            {
+                @Override
+                public byte[] generate()
+                {
+                    try {
+                        return crypto.generatePBKDF2(pw, salt, iterations, keyLen);
+                    } finally {
+                        Arrays.fill(pw, (byte)0);
+                    }
+                }
+            });
             return null;
         }
 
+        /**
+         * Run the generator in the environment's crypto pool, and then call back on the script thread with
+         * either an error or a buffer holding the result. The buffer can only be created on the script thread,
+         * so a task builds it there and then queues the callback. The script stays pinned until the callback is
+         * queued so that it does not exit while the work is in progress. If the pool's queue is full,
+         * then the generator runs right here in the script thread instead.
+         */
+        private static void runInCryptoPool(final NodeRuntime runtime, final Function callback,
+                                            final Scriptable thisObj, final Object noError,
+                                            final Generator gen)
+        {
+            final Object domain = runtime.getDomain();
+            runtime.pin();
+            runtime.getEnvironment().getCryptoPool().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    byte[] result = null;
+                    String errMsg = null;
+                    try {
+                        result = gen.generate();
+                    } catch (RuntimeException re) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Error in crypto operation: {}", re);
+                        }
+                        errMsg = (re.getMessage() == null ? re.toString() : re.getMessage());
+                    }
+
+                    final byte[] finalResult = result;
+                    final String finalErr = errMsg;
+                    runtime.enqueueTask(new ScriptTask()
+                    {
+                        @Override
+                        public void execute(Context cx, Scriptable scope)
+                        {
+                            runtime.unPin();
+                            Object[] args;
+                            if (finalErr == null) {
+                                args = new Object[] { noError,
+                                                      Buffer.BufferImpl.newBuffer(cx, scope, finalResult) };
+                            } else {
+                                args = new Object[] { Utils.makeErrorObject(cx, scope, finalErr) };
+                            }
+                            // Go through the tick queue so that errors thrown by the callback go to its domain
+                            runtime.enqueueCallback(callback, callback, thisObj, domain, args);
+                        }
+                    });
+                }
+            });
+        }
+
+        private static NodeRuntime getRunner(Context cx)
+        {
+            return (NodeRuntime)cx.getThreadLocal(ScriptRunner.RUNNER);
+        }
+
         private void setRuntime(NodeRuntime runtime) {
             this.runtime = runtime;
         }
+
+        private interface Generator
+        {
+            byte[] generate();
+        }
     }
 }
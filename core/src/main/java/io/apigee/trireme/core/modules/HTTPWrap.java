@@ -30,12 +30,13 @@ import io.apigee.trireme.core.modules.crypto.SecureContextImpl;
 import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.net.internal.AdapterHandleDelegate;
 import io.apigee.trireme.net.internal.UpgradedSocketDelegate;
+import io.apigee.trireme.net.spi.AdmissionControl;
+import io.apigee.trireme.net.spi.AdmissionControlStub;
 import io.apigee.trireme.net.spi.HttpDataAdapter;
 import io.apigee.trireme.net.spi.HttpRequestAdapter;
 import io.apigee.trireme.net.spi.HttpResponseAdapter;
 import io.apigee.trireme.net.spi.HttpServerAdapter;
 import io.apigee.trireme.net.spi.HttpServerContainer;
-import io.apigee.trireme.net.spi.HttpServerStub;
 import io.apigee.trireme.net.spi.TLSParams;
 import io.apigee.trireme.net.spi.UpgradedSocket;
 import java.net.Inet6Address;
@@ -55,6 +56,7 @@ import org.slf4j.LoggerFactory;
 import static io.apigee.trireme.core.ArgUtils.*;
 
 import javax.net.ssl.SSLContext;
+import java.io.Closeable;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
@@ -138,7 +140,7 @@ public class HTTPWrap
      */
     public static class ServerContainer
         extends ScriptableObject
-        implements HttpServerStub
+        implements AdmissionControlStub
     {
         public static final String CLASS_NAME = "_httpServerWrapperClass";
 
@@ -161,6 +163,18 @@ public class HTTPWrap
         private final IdentityHashMap<ResponseAdapter, ResponseAdapter> pendingRequests =
             new IdentityHashMap<ResponseAdapter, ResponseAdapter>();
 
+        private final AdmissionControl admission = new AdmissionControl();
+
+        /** Close the adapter if the script exits without closing the server, so that it stops getting requests. */
+        private final Closeable adapterCloser = new Closeable()
+        {
+            @Override
+            public void close()
+            {
+                closeAdapter();
+            }
+        };
+
         /** DateFormat is not thread safe. Create one for each server, which will only use it in one thread at a time. */
         private final SimpleDateFormat dateFormat = new SimpleDateFormat(RFC_1123_FORMAT);
 
@@ -204,6 +218,7 @@ public class HTTPWrap
         public int listen(String host, int port, int backlog)
         {
             adapter.listen(host, port, backlog, tlsParams);
+            runner.registerCloseable(adapterCloser);
             log.debug("Listening on port {}", port);
             return 0;
         }
@@ -213,12 +228,18 @@ public class HTTPWrap
         public void close()
         {
             log.debug("Closing HTTP server adapter completely");
+            runner.unregisterCloseable(adapterCloser);
+            closeAdapter();
+            runner.unPin();
+        }
+
+        private void closeAdapter()
+        {
             if (adapter != null) {
                 adapter.suspend();
                 adapter.close();
                 adapter = null;
             }
-            runner.unPin();
         }
 
         @JSFunction
@@ -286,11 +307,13 @@ public class HTTPWrap
             }
 
             // Queue up a task to process the request
+            admission.requestQueued();
             runner.enqueueTask(new ScriptTask()
             {
                 @Override
                 public void execute(Context cx, Scriptable scope)
                 {
+                    admission.requestDelivered();
                     RequestAdapter reqAdapter =
                         (RequestAdapter) cx.newObject(ServerContainer.this, RequestAdapter.CLASS_NAME);
                     reqAdapter.init(request);
@@ -320,6 +343,9 @@ public class HTTPWrap
             if (request.isSelfContained()) {
                 final ByteBuffer requestData =
                     (request.hasData() ? request.getData() : null);
+                final int len = (requestData == null ? 0 : requestData.remaining());
+
+                admission.dataQueued(request, len);
                 // Queue up another task for the data. Noderunner guarantees that this will run after
                 // the previous task. However, do this in a separate tick because it's highly likely that
                 // the revious request to call "onHeaders" will register more event handlers
@@ -328,7 +354,11 @@ public class HTTPWrap
                     @Override
                     public void execute(Context cx, Scriptable scope)
                     {
-                        callOnData(cx, scope, request, requestData);
+                        try {
+                            callOnData(cx, scope, request, requestData);
+                        } finally {
+                            admission.dataDelivered(len);
+                        }
                     }
                 });
                 runner.enqueueTask(new ScriptTask()
@@ -345,10 +375,12 @@ public class HTTPWrap
         @Override
         public void onUpgrade(final HttpRequestAdapter request, final UpgradedSocket socket)
         {
+            admission.requestQueued();
             runner.enqueueTask(new ScriptTask() {
                 @Override
                 public void execute(Context cx, Scriptable scope)
                 {
+                    admission.requestDelivered();
                     RequestAdapter reqAdapter =
                         (RequestAdapter)cx.newObject(ServerContainer.this, RequestAdapter.CLASS_NAME);
                     reqAdapter.init(request);
@@ -384,6 +416,7 @@ public class HTTPWrap
             final int len = (requestData == null ? 0 : requestData.remaining());
 
             request.incrementQueueLength(len);
+            admission.dataQueued(request, len);
 
             runner.enqueueTask(new ScriptTask()
             {
@@ -394,6 +427,7 @@ public class HTTPWrap
                         callOnData(cx, scope, request, requestData);
                     } finally {
                         request.incrementQueueLength(-len);
+                        admission.dataDelivered(len);
                     }
                 }
             });
@@ -427,7 +461,8 @@ public class HTTPWrap
             if (log.isDebugEnabled()) {
                 log.debug("Calling onData with {}", incoming);
             }
-            Buffer.BufferImpl buf = Buffer.BufferImpl.newBuffer(cx, scope, requestData, true);
+            // The adapter gave us this data, so the script may have it without another copy
+            Buffer.BufferImpl buf = Buffer.BufferImpl.newBuffer(cx, scope, requestData, false);
             onData.call(cx, onData, this, new Object[]{incoming, buf});
         }
 
@@ -494,6 +529,11 @@ public class HTTPWrap
             }
         }
 
+        @Override
+        public AdmissionControl getAdmissionControl() {
+            return admission;
+        }
+
         @JSGetter("makeSocket")
         @SuppressWarnings("unused")
         public Function getMakeSocket()
@@ -43,6 +43,7 @@ import static io.apigee.trireme.core.ArgUtils.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 /**
  * This class implements the NativeModule, which is normally part of "node.js" itself. It is the bootstrapper
@@ -91,6 +92,9 @@ public class NativeModule
 
         public static final String CLASS_NAME = "NativeModule";
 
+        // Looking this up takes a copy of every public method of the class, so only do it once
+        private static final Method REQUIRE_METHOD = Utils.findMethod(NativeImpl.class, "require");
+
         private ScriptRunner runner;
         private String     fileName;
         private String     id;
@@ -200,9 +204,7 @@ public class NativeModule
 
         private void runCompiledModule(Script compiled, Context cx, ModuleImpl mod)
         {
-            Function requireFunc = new FunctionObject("require",
-                                                      Utils.findMethod(NativeImpl.class, "require"),
-                                                      this);
+            Function requireFunc = new FunctionObject("require", REQUIRE_METHOD, this);
 
             // The script code found in src/main/javascript is wrapped with a function by the Rhino compiler
             // (see the pom.xml for the wrapper code). What we actually
@@ -32,6 +32,7 @@ import org.mozilla.javascript.ScriptableObject;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
@@ -180,16 +181,21 @@ public abstract class AbstractCipherImpl
             }
             buf = Utils.stringToBuffer((String)args[0], Charsets.get().resolveCharset(enc));
         } else {
+            // A direct buffer is read in place rather than copied out
             Buffer.BufferImpl jsBuf = objArg(args, 0, Buffer.BufferImpl.class, true);
             buf = jsBuf.getBuffer();
         }
 
-        byte[] out =
-            cipher.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
-        if (out == null) {
+        ByteBuffer out = ByteBuffer.allocate(cipher.getOutputSize(buf.remaining()));
+        try {
+            cipher.update(buf, out);
+        } catch (ShortBufferException sbe) {
+            throw Utils.makeError(cx, this, sbe.toString());
+        }
+        if (out.position() == 0) {
             return Buffer.BufferImpl.newBuffer(cx, this, EMPTY);
         }
-        return Buffer.BufferImpl.newBuffer(cx, this, out);
+        return Buffer.BufferImpl.newBuffer(cx, this, out.array(), 0, out.position());
     }
 
     protected Object doFinal(Context cx)
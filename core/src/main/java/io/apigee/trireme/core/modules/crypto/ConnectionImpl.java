@@ -32,6 +32,7 @@ import io.apigee.trireme.kernel.crypto.SSLCiphers;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.kernel.tls.TLSConnection;
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.ScriptRuntime;
@@ -213,8 +214,18 @@ public class ConnectionImpl
                 @Override
                 public void call(Void val)
                 {
-                    onHandshakeDone.call(Context.getCurrentContext(), onHandshakeDone,
-                                         ConnectionImpl.this, ScriptRuntime.emptyArgs);
+                    // Queue this behind "onwrap," because when a session is resumed, the client's
+                    // last handshake message is still on its way to the network at this point, and it
+                    // must get there even if the script rejects the connection.
+                    runtime.enqueueTask(new ScriptTask()
+                    {
+                        @Override
+                        public void execute(Context cx, Scriptable scope)
+                        {
+                            onHandshakeDone.call(cx, onHandshakeDone,
+                                                 ConnectionImpl.this, ScriptRuntime.emptyArgs);
+                        }
+                    });
                 }
             });
         }
@@ -247,8 +258,7 @@ public class ConnectionImpl
                             ConnectionImpl self = ConnectionImpl.this;
                             Buffer.BufferImpl buf =
                                 (bb == null ? null : Buffer.BufferImpl.newBuffer(cx, self, bb, false));
-                            Function cb =
-                                (arg == null ? null : ((CallbackHolder)arg).getCallback());
+                            Function cb = (arg == null ? null : toFunction(arg));
                             onWrap.call(cx, onWrap, self, new Object[]{buf, shutdown, cb});
                         }
                     });
@@ -448,13 +458,21 @@ public class ConnectionImpl
     @SuppressWarnings("unused")
     public static Object getSession(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
-        return Undefined.instance;
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+        byte[] id = self.processor.getSessionId();
+        if (id == null) {
+            return Undefined.instance;
+        }
+        return Buffer.BufferImpl.newBuffer(cx, thisObj, id);
     }
 
     @JSFunction
     @SuppressWarnings("unused")
     public static void setSession(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
+        Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+        self.processor.setSession(buf.toArray());
     }
 
     @JSFunction
@@ -467,7 +485,8 @@ public class ConnectionImpl
     @SuppressWarnings("unused")
     public static boolean isSessionReused(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
-        return false;
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+        return self.processor.isSessionReused();
     }
 
     @JSFunction
@@ -510,6 +529,37 @@ public class ConnectionImpl
         return c;
     }
 
+    /**
+     * TLSConnection passes back the callback from "wrap," unless it wrapped several chunks at once, in which
+     * case it passes a single callback that calls all of them.
+     */
+    @SuppressWarnings("unchecked")
+    private static Function toFunction(Object cb)
+    {
+        if (cb instanceof CallbackHolder) {
+            return ((CallbackHolder)cb).getCallback();
+        }
+        return new CallbackFunction((Callback<Object>)cb);
+    }
+
+    private static final class CallbackFunction
+        extends BaseFunction
+    {
+        private final Callback<Object> callback;
+
+        CallbackFunction(Callback<Object> callback)
+        {
+            this.callback = callback;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+        {
+            callback.call(args.length > 0 ? args[0] : null);
+            return Undefined.instance;
+        }
+    }
+
     private static abstract class CallbackHolder
         implements Callback<Object>
     {
@@ -105,7 +105,8 @@ public class HashImpl
                                            bb.limit());
         } else {
             Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
-            thisClass.messageDigest.update(buf.getArray(), buf.getArrayOffset(), buf.getLength());
+            // A direct buffer is digested in place rather than copied out
+            thisClass.messageDigest.update(buf.getBuffer());
         }
     }
 
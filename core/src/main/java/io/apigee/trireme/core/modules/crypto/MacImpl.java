@@ -110,7 +110,8 @@ public class MacImpl
                                     bb.limit());
         } else {
             Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
-            thisClass.digest.update(buf.getArray(), buf.getArrayOffset(), buf.getLength());
+            // A direct buffer is digested in place rather than copied out
+            thisClass.digest.update(buf.getBuffer());
         }
     }
 
@@ -26,6 +26,7 @@ import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.kernel.CompositeTrustManager;
 import io.apigee.trireme.kernel.crypto.CryptoException;
 import io.apigee.trireme.kernel.crypto.SSLCiphers;
+import io.apigee.trireme.core.internal.SSLContextCache;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.core.modules.Crypto;
@@ -52,6 +53,7 @@ import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyPair;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.CRLException;
@@ -88,7 +90,11 @@ public class SecureContextImpl
     private List<X509CRL> crls;
     private String protocol;
     private String[] ciphers;
+    private boolean rootCerts;
+    private byte[] pkcs12;
+    private boolean cacheable = true;
     private boolean initialized;
+    private SSLContext context;
 
     @Override
     public String getClassName() {
@@ -286,6 +292,7 @@ public class SecureContextImpl
         self.initialized = false;
 
         self.trustManagers = DefaultTrustStore.get().getTrustManagers();
+        self.rootCerts = true;
         if (self.trustManagers == null) {
             throw Utils.makeError(cx, thisObj, "Cannot load default root CA certificates");
         }
@@ -365,6 +372,8 @@ public class SecureContextImpl
             KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
             keyFactory.init(keyStore, passphrase);
             self.keyManagers = keyFactory.getKeyManagers();
+            self.pkcs12 = Arrays.copyOfRange(pfxBuf.getArray(), pfxBuf.getArrayOffset(),
+                                             pfxBuf.getArrayOffset() + pfxBuf.getLength());
             log.debug("Loaded SSL key from PKCS12");
 
         } catch (GeneralSecurityException gse) {
@@ -389,6 +398,8 @@ public class SecureContextImpl
         String name = stringArg(args, 0);
         SecureContextImpl self = (SecureContextImpl)thisObj;
         self.initialized = false;
+        // The file might change, so don't share the result with anyone else
+        self.cacheable = false;
         ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
 
         try {
@@ -422,6 +433,8 @@ public class SecureContextImpl
         String p = stringArg(args, 1);
         SecureContextImpl self = (SecureContextImpl)thisObj;
         self.initialized = false;
+        // The file might change, so don't share the result with anyone else
+        self.cacheable = false;
         ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
 
         char[] passphrase = p.toCharArray();
@@ -538,13 +551,40 @@ public class SecureContextImpl
 
     /**
      * Once all that stuff on top has been all set, then this actually creates an SSLContext object.
+     * The context is re-used until one of the setters is called again, and if the environment has an
+     * SSLContextCache, then it is shared with every other secure context that was set up the same way.
      */
     public SSLContext makeContext(Context cx, Scriptable scope)
     {
-        if (!initialized) {
-            initialize(cx, scope);
+        if (initialized) {
+            return context;
+        }
+
+        SSLContextCache cache = getCache(cx);
+        String key = ((cache == null) || !cacheable) ? null : makeCacheKey();
+        if (key != null) {
+            SSLContextCache.Entry e = cache.get(key);
+            if (e != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Using cached SSLContext {}", e.getContext());
+                }
+                context = e.getContext();
+                trustedCertManager = e.getTrustManager();
+                initialized = true;
+                return context;
+            }
         }
 
+        initialize(cx, scope);
+        context = createContext(cx, scope);
+        if (key != null) {
+            cache.put(key, context, trustedCertManager);
+        }
+        return context;
+    }
+
+    private SSLContext createContext(Context cx, Scriptable scope)
+    {
         // Create an SSLContext that totally ignores the trust manager that we just spent all that time
         // setting up, and instead accepts everything.
         // Then we manually call the trust manager on every new handshake and report the result back
@@ -569,6 +609,66 @@ public class SecureContextImpl
         }
     }
 
+    private static SSLContextCache getCache(Context cx)
+    {
+        ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        if ((runtime == null) || (runtime.getEnvironment() == null)) {
+            return null;
+        }
+        return runtime.getEnvironment().getSSLContextCache();
+    }
+
+    /**
+     * Return a digest of everything that went in to this context, or null if we can't tell.
+     */
+    private String makeCacheKey()
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            addToKey(digest, protocol.getBytes(Charsets.UTF8));
+            addToKey(digest, (privateKey == null ? null : privateKey.getEncoded()));
+            addToKey(digest, (cert == null ? null : cert.getEncoded()));
+            addToKey(digest, pkcs12);
+            for (Certificate ca : caCerts) {
+                addToKey(digest, ca.getEncoded());
+            }
+            if (crls != null) {
+                for (X509CRL crl : crls) {
+                    addToKey(digest, crl.getEncoded());
+                }
+            }
+            addToKey(digest, new byte[] { (byte)(rootCerts ? 1 : 0) });
+            if (ciphers != null) {
+                for (String c : ciphers) {
+                    addToKey(digest, c.getBytes(Charsets.UTF8));
+                }
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+
+        } catch (GeneralSecurityException gse) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not caching SSLContext: {}", gse.toString());
+            }
+            return null;
+        }
+    }
+
+    private static void addToKey(MessageDigest digest, byte[] field)
+    {
+        // Include the length so that fields can't run together
+        int len = (field == null ? -1 : field.length);
+        digest.update(new byte[] { (byte)(len >> 24), (byte)(len >> 16), (byte)(len >> 8), (byte)len });
+        if (field != null) {
+            digest.update(field);
+        }
+    }
+
     public X509TrustManager getTrustManager() {
         return trustedCertManager;
     }
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.net.spi;
+
+import java.util.IdentityHashMap;
+
+/**
+ * This class keeps track of how much work an HTTP server has handed to a script that the script has not yet
+ * had a chance to run. A script runs on a single thread, so if requests arrive faster than it can handle
+ * them they pile up in its task queue, using memory and adding latency to every request behind them.
+ * With limits set, an adapter should call "admit" before "onRequest" or "onUpgrade" and reject the request
+ * right away, for instance with a 503, if it returns false. "admit" counts the request as queued in the
+ * same step as it checks the limit, so concurrent adapter threads cannot go over it. When too much request
+ * data is queued, reading stops on every request that sent some until the script catches up, as long as
+ * the request implements ThrottledRequestAdapter. The class is all thread-safe.
+ */
+
+public class AdmissionControl
+{
+    private final IdentityHashMap<ThrottledRequestAdapter, ThrottledRequestAdapter> throttled =
+        new IdentityHashMap<ThrottledRequestAdapter, ThrottledRequestAdapter>();
+
+    private int maxQueuedRequests;
+    private long maxQueuedBytes;
+
+    private int queuedRequests;
+    private int admittedRequests;
+    private long queuedBytes;
+    private long rejectedRequests;
+
+    /**
+     * Set the maximum number of requests, and bytes of request data, that may be queued for the script.
+     * Zero, which is the default, means no limit.
+     */
+    public synchronized void setLimits(int maxQueuedRequests, long maxQueuedBytes)
+    {
+        if ((maxQueuedRequests < 0) || (maxQueuedBytes < 0L)) {
+            throw new IllegalArgumentException("Admission limits may not be negative");
+        }
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public synchronized int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public synchronized long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Return true if a new request would be accepted right now.
+     */
+    public synchronized boolean isAdmitting()
+    {
+        return (((maxQueuedRequests <= 0) || (queuedRequests < maxQueuedRequests)) &&
+                !isOverBytes());
+    }
+
+    /**
+     * Return true, and count the request as queued, if a new request may be passed to "onRequest" or
+     * "onUpgrade." Otherwise count it as rejected and return false. An adapter that gets true must make
+     * one of those calls, since the stub will not count the request again when it does.
+     */
+    public synchronized boolean admit()
+    {
+        if (isAdmitting()) {
+            queuedRequests++;
+            admittedRequests++;
+            return true;
+        }
+        rejectedRequests++;
+        return false;
+    }
+
+    /**
+     * Called by the stub when a new request is queued for the script. The request was already counted if
+     * the adapter called "admit" for it first.
+     */
+    public synchronized void requestQueued()
+    {
+        if (admittedRequests > 0) {
+            admittedRequests--;
+        } else {
+            queuedRequests++;
+        }
+    }
+
+    /** Called by the stub when the script starts to process a queued request. */
+    public synchronized void requestDelivered()
+    {
+        queuedRequests--;
+    }
+
+    /**
+     * Called by the stub when data for a request is queued for the script. If there is now too much,
+     * reading stops for that request if it supports it.
+     */
+    public synchronized void dataQueued(HttpRequestAdapter request, int len)
+    {
+        queuedBytes += len;
+        if (isOverBytes() && (request instanceof ThrottledRequestAdapter) && !throttled.containsKey(request)) {
+            ThrottledRequestAdapter tr = (ThrottledRequestAdapter)request;
+            throttled.put(tr, tr);
+            tr.setThrottled(true);
+        }
+    }
+
+    /**
+     * Called by the stub when the script has received queued data. Once there is no longer too much,
+     * reading starts again for every request that was stopped.
+     */
+    public synchronized void dataDelivered(int len)
+    {
+        queuedBytes -= len;
+        if (!isOverBytes() && !throttled.isEmpty()) {
+            for (ThrottledRequestAdapter r : throttled.keySet()) {
+                r.setThrottled(false);
+            }
+            throttled.clear();
+        }
+    }
+
+    /** Return the number of requests that the script has not yet started to process. */
+    public synchronized int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    /** Return the number of bytes of request data that the script has not yet received. */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /** Return the number of requests for which "admit" returned false. */
+    public synchronized long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    private boolean isOverBytes()
+    {
+        return ((maxQueuedBytes > 0L) && (queuedBytes > maxQueuedBytes));
+    }
+}
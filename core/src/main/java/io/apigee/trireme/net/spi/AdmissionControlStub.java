@@ -0,0 +1,38 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.net.spi;
+
+/**
+ * An HttpServerStub that also implements this interface lets the adapter limit how much work may be
+ * queued for the script. It is separate from HttpServerStub so that existing implementations of that
+ * interface keep working, so adapters should check for it using "instanceof."
+ */
+public interface AdmissionControlStub
+    extends HttpServerStub
+{
+    /**
+     * Get the object that limits how much work may be queued for the script. The adapter may set limits
+     * on it, and if it does, it should call "admit" before each call to "onRequest" or "onUpgrade" and
+     * reject the request itself, without making that call, if it returns false.
+     */
+    AdmissionControl getAdmissionControl();
+}
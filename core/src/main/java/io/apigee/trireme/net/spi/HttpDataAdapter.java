@@ -27,6 +27,10 @@ public interface HttpDataAdapter
 {
     boolean hasData();
 
+    /**
+     * Return the data in this chunk. The buffer becomes the contents of a JavaScript Buffer without being
+     * copied, so the adapter must not modify or re-use it afterwards.
+     */
     ByteBuffer getData();
 
     void setData(ByteBuffer buf);
@@ -56,6 +56,10 @@ public interface HttpMessageAdapter
      */
     boolean isSelfContained();
 
+    /**
+     * Return the data in a self-contained message. As with HttpDataAdapter, the buffer is handed to
+     * JavaScript without being copied.
+     */
     ByteBuffer getData();
     void setData(ByteBuffer buf);
 
@@ -22,10 +22,11 @@
 package io.apigee.trireme.net.spi;
 
 /**
- * This class manages pause-resume behavior for large HTTP requests. It takes two sets of inputs.
+ * This class manages pause-resume behavior for large HTTP requests. It takes three sets of inputs.
  * The first are calls to "pause" and "resume" from Node.js code. The second is a counter of
- * bytes pending for the task queue. It will call "pause" on an HttpRequestAdapter
- * if either one is true, and not resume until both are false. The class is all thread-safe.
+ * bytes pending for the task queue. The third is a flag set by AdmissionControl when the script
+ * as a whole has too much data queued. It will call "pause" on an HttpRequestAdapter
+ * if any one is true, and not resume until all are false. The class is all thread-safe.
  */
 
 public class PauseHelper
@@ -34,6 +35,7 @@ public class PauseHelper
     private final int waterMark;
 
     private boolean pauseRequested;
+    private boolean throttled;
     private int queueSize;
     private boolean paused;
 
@@ -49,33 +51,40 @@ public class PauseHelper
     public synchronized void pause()
     {
         pauseRequested = true;
-
-        if (!paused) {
-            paused = true;
-            control.doPause();
-        }
+        update();
     }
 
     public synchronized void resume()
     {
         pauseRequested = false;
-
-        if (paused && (queueSize <= waterMark)) {
-            paused = false;
-            control.doResume();
-        }
+        update();
     }
 
     public synchronized void incrementQueueLength(int delta)
     {
         queueSize += delta;
+        update();
+    }
 
-        if (paused && (queueSize <= waterMark) && !pauseRequested) {
-            paused = false;
-            control.doResume();
-        } else if (!paused && (queueSize > waterMark)) {
+    /**
+     * Handle a pause or resume from AdmissionControl.
+     */
+    public synchronized void setThrottled(boolean throttled)
+    {
+        this.throttled = throttled;
+        update();
+    }
+
+    private void update()
+    {
+        boolean shouldPause = (pauseRequested || throttled || (queueSize > waterMark));
+
+        if (shouldPause && !paused) {
             paused = true;
             control.doPause();
+        } else if (!shouldPause && paused) {
+            paused = false;
+            control.doResume();
         }
     }
 
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.net.spi;
+
+/**
+ * An HttpRequestAdapter that also implements this interface may be paused by "AdmissionControl" when the
+ * script as a whole has too much request data queued. It is separate from HttpRequestAdapter so that
+ * existing implementations of that interface keep working. Requests that do not implement it are
+ * counted but never paused.
+ */
+public interface ThrottledRequestAdapter
+    extends HttpRequestAdapter
+{
+    /**
+     * Pause or resume the flow of data to this request because the script as a whole has too much
+     * request data waiting in its task queue, regardless of any calls to "pause" and "resume."
+     * "PauseHelper" is designed to help implement this.
+     */
+    void setThrottled(boolean throttled);
+}
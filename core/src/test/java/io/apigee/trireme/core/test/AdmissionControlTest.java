@@ -0,0 +1,177 @@
+package io.apigee.trireme.core.test;
+
+import io.apigee.trireme.net.spi.AdmissionControl;
+import io.apigee.trireme.net.spi.HttpRequestAdapter;
+import io.apigee.trireme.net.spi.ThrottledRequestAdapter;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest
+{
+    @Test
+    public void testNoLimits()
+    {
+        AdmissionControl ac = new AdmissionControl();
+        RequestHelper r = new RequestHelper();
+        for (int i = 0; i < 1000; i++) {
+            ac.requestQueued();
+            ac.dataQueued(r.request, 100000);
+        }
+        assertTrue(ac.admit());
+        assertFalse(r.throttled);
+        assertEquals(1001, ac.getQueuedRequests());
+        assertEquals(100000000L, ac.getQueuedBytes());
+        assertEquals(0L, ac.getRejectedRequests());
+    }
+
+    @Test
+    public void testMaxRequests()
+    {
+        AdmissionControl ac = new AdmissionControl();
+        ac.setLimits(2, 0L);
+
+        assertTrue(ac.admit());
+        assertTrue(ac.admit());
+        assertEquals(2, ac.getQueuedRequests());
+        assertFalse(ac.isAdmitting());
+        assertFalse(ac.admit());
+        assertFalse(ac.admit());
+        assertEquals(2L, ac.getRejectedRequests());
+
+        // The stub does not count admitted requests twice
+        ac.requestQueued();
+        ac.requestQueued();
+        assertEquals(2, ac.getQueuedRequests());
+
+        ac.requestDelivered();
+        assertTrue(ac.admit());
+        assertEquals(2, ac.getQueuedRequests());
+        ac.requestQueued();
+
+        // A request that did not go through "admit" is still counted
+        ac.requestDelivered();
+        ac.requestQueued();
+        assertEquals(2, ac.getQueuedRequests());
+    }
+
+    @Test
+    public void testConcurrentAdmit()
+        throws InterruptedException
+    {
+        final AdmissionControl ac = new AdmissionControl();
+        ac.setLimits(50, 0L);
+        final AtomicInteger admitted = new AtomicInteger();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 100; j++) {
+                        if (ac.admit()) {
+                            admitted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(50, admitted.get());
+        assertEquals(50, ac.getQueuedRequests());
+        assertEquals(750L, ac.getRejectedRequests());
+    }
+
+    @Test
+    public void testMaxBytes()
+    {
+        AdmissionControl ac = new AdmissionControl();
+        ac.setLimits(0, 100L);
+        RequestHelper r1 = new RequestHelper();
+        RequestHelper r2 = new RequestHelper();
+
+        ac.dataQueued(r1.request, 60);
+        ac.dataQueued(r2.request, 40);
+        assertFalse(r1.throttled);
+        assertFalse(r2.throttled);
+        assertTrue(ac.isAdmitting());
+
+        ac.dataQueued(r2.request, 1);
+        assertFalse(r1.throttled);
+        assertTrue(r2.throttled);
+        assertFalse(ac.admit());
+        ac.dataQueued(r1.request, 10);
+        assertTrue(r1.throttled);
+
+        ac.dataDelivered(10);
+        assertTrue(r1.throttled);
+        assertTrue(r2.throttled);
+        ac.dataDelivered(1);
+        assertFalse(r1.throttled);
+        assertFalse(r2.throttled);
+        assertTrue(ac.admit());
+        assertEquals(100L, ac.getQueuedBytes());
+    }
+
+    @Test
+    public void testNotThrottleable()
+    {
+        AdmissionControl ac = new AdmissionControl();
+        ac.setLimits(0, 100L);
+        RequestHelper r = new RequestHelper(HttpRequestAdapter.class);
+
+        ac.dataQueued(r.request, 200);
+        assertFalse(r.called);
+        assertFalse(ac.admit());
+        ac.dataDelivered(200);
+        assertFalse(r.called);
+        assertTrue(ac.admit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits()
+    {
+        new AdmissionControl().setLimits(-1, 0L);
+    }
+
+    /**
+     * Make a request that only records calls to "setThrottled."
+     */
+    private static class RequestHelper
+        implements InvocationHandler
+    {
+        final HttpRequestAdapter request;
+        boolean throttled;
+        boolean called;
+
+        RequestHelper()
+        {
+            this(ThrottledRequestAdapter.class);
+        }
+
+        RequestHelper(Class<? extends HttpRequestAdapter> type)
+        {
+            request = (HttpRequestAdapter)Proxy.newProxyInstance(
+                type.getClassLoader(), new Class<?>[] { type }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if ("setThrottled".equals(method.getName())) {
+                throttled = (Boolean)args[0];
+                called = true;
+            }
+            return null;
+        }
+    }
+}
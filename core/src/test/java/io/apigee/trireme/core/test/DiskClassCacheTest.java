@@ -0,0 +1,165 @@
+package io.apigee.trireme.core.test;
+
+import io.apigee.trireme.core.internal.DiskClassCache;
+import io.apigee.trireme.core.internal.ScriptUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DiskClassCacheTest
+{
+    private File dir;
+
+    @Before
+    public void createDir()
+        throws IOException
+    {
+        dir = File.createTempFile("classcache", ".dir");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir()
+    {
+        deleteAll(dir);
+    }
+
+    @Test
+    public void testPersist()
+        throws IOException
+    {
+        DiskClassCache cache = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        assertNull(cache.getCachedScript("foo"));
+        cache.putCachedClasses("foo", compile("1 + 2;", "Foo"));
+        assertEquals(1, cache.getEntryCount());
+
+        // A new cache on the same directory should see the class
+        DiskClassCache cache2 = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        assertEquals(1, cache2.getEntryCount());
+        Script s = cache2.getCachedScript("foo");
+        assertNotNull(s);
+        assertEquals(3, ((Number)run(s)).intValue());
+        // Second time comes from memory
+        assertSame(s, cache2.getCachedScript("foo"));
+        assertNull(cache2.getCachedScript("bar"));
+    }
+
+    @Test
+    public void testBase64Keys()
+        throws IOException
+    {
+        String key = "ab+/cd==";
+        DiskClassCache cache = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        cache.putCachedClasses(key, compile("'hello';", "Hello"));
+
+        DiskClassCache cache2 = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        Script s = cache2.getCachedScript(key);
+        assertNotNull(s);
+        assertEquals("hello", run(s));
+    }
+
+    @Test
+    public void testEviction()
+        throws IOException
+    {
+        Object[] one = compile("1;", "One");
+        long size = ((byte[])one[1]).length;
+        // Room for about two scripts
+        DiskClassCache cache = new DiskClassCache(dir, size * 2 + (size / 2));
+
+        cache.putCachedClasses("one", one);
+        cache.putCachedClasses("two", compile("2;", "Two"));
+        assertNotNull(cache.getCachedScript("one"));
+        cache.putCachedClasses("three", compile("3;", "Three"));
+
+        // "two" was least recently used
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getTotalSize() <= cache.getMaxSize());
+        DiskClassCache cache2 = new DiskClassCache(dir, cache.getMaxSize());
+        assertNull(cache2.getCachedScript("two"));
+        assertNotNull(cache2.getCachedScript("one"));
+        assertNotNull(cache2.getCachedScript("three"));
+    }
+
+    @Test
+    public void testCorruptFile()
+        throws IOException
+    {
+        DiskClassCache cache = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        cache.putCachedClasses("foo", compile("1;", "Corrupt"));
+
+        File[] files = cache.getDirectory().listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        DiskClassCache cache2 = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        assertNull(cache2.getCachedScript("foo"));
+        assertEquals(0, cache2.getEntryCount());
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void testOldVersions()
+        throws IOException
+    {
+        File old = new File(dir, "rhino-0.0-trireme-0.0");
+        assertTrue(old.mkdir());
+        new FileOutputStream(new File(old, "foo.class-cache")).close();
+        // Other directories aren't ours to remove
+        File other = new File(dir, "other");
+        assertTrue(other.mkdir());
+
+        DiskClassCache cache = new DiskClassCache(dir, DiskClassCache.DEFAULT_MAX_SIZE);
+        assertFalse(old.exists());
+        assertTrue(other.exists());
+        assertTrue(cache.getDirectory().exists());
+    }
+
+    private static Object[] compile(String code, String name)
+    {
+        Context cx = Context.enter();
+        try {
+            cx.setOptimizationLevel(1);
+            Object[] classes =
+                ScriptUtils.tryCompileToClasses(cx, code, name + ".js", "io.apigee.trireme.test.compiled." + name);
+            assertNotNull(classes);
+            return classes;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private static Object run(Script s)
+    {
+        Context cx = Context.enter();
+        try {
+            Scriptable scope = cx.initStandardObjects();
+            return s.exec(cx, scope);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private static void deleteAll(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteAll(c);
+            }
+        }
+        f.delete();
+    }
+}
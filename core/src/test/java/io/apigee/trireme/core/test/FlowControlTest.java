@@ -82,6 +82,25 @@ public class FlowControlTest
         assertFalse(fh.paused);
     }
 
+    @Test
+    public void testThrottle()
+    {
+        FlowHelper fh = new FlowHelper();
+        PauseHelper h = new PauseHelper(fh, 10);
+
+        assertFalse(fh.paused);
+        h.setThrottled(true);
+        assertTrue(fh.paused);
+        h.pause();
+        h.resume();
+        assertTrue(fh.paused);
+        h.incrementQueueLength(11);
+        h.setThrottled(false);
+        assertTrue(fh.paused);
+        h.incrementQueueLength(-11);
+        assertFalse(fh.paused);
+    }
+
     public static class FlowHelper
         implements PauseHelper.FlowControl
     {
@@ -0,0 +1,135 @@
+package io.apigee.trireme.core.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.internal.LruClassCache;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LruClassCacheTest
+{
+    @Test
+    public void testHitsAndMisses()
+    {
+        LruClassCache cache = new LruClassCache();
+        Script s = compile("1;");
+        assertNull(cache.getCachedScript("one"));
+        cache.putCachedScript("one", s);
+        assertSame(s, cache.getCachedScript("one"));
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(LruClassCache.UNKNOWN_SCRIPT_SIZE, cache.getSize());
+    }
+
+    @Test
+    public void testEntryLimit()
+    {
+        LruClassCache cache = new LruClassCache(2, LruClassCache.DEFAULT_MAX_SIZE);
+        cache.putCachedScript("one", compile("1;"));
+        cache.putCachedScript("two", compile("2;"));
+        assertNotNull(cache.getCachedScript("one"));
+        cache.putCachedScript("three", compile("3;"));
+
+        // "two" was least recently used
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1L, cache.getEvictions());
+        assertNull(cache.getCachedScript("two"));
+        assertNotNull(cache.getCachedScript("one"));
+        assertNotNull(cache.getCachedScript("three"));
+    }
+
+    @Test
+    public void testSizeLimit()
+    {
+        LruClassCache cache = new LruClassCache(100, 2500L);
+        putClasses(cache, "one", 1000);
+        putClasses(cache, "two", 1000);
+        assertEquals(2000L, cache.getSize());
+        putClasses(cache, "three", 1000);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(2000L, cache.getSize());
+        assertNull(cache.getCachedScript("one"));
+        assertNotNull(cache.getCachedScript("two"));
+
+        // An entry larger than the whole cache replaces everything else
+        putClasses(cache, "big", 5000);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(5000L, cache.getSize());
+        assertNotNull(cache.getCachedScript("big"));
+    }
+
+    @Test
+    public void testClassesWithoutScript()
+    {
+        LruClassCache cache = new LruClassCache();
+        cache.putCachedClasses("one", new Object[] { "One", new byte[100] });
+        assertNull(cache.getCachedScript("one"));
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void testMBean()
+        throws Exception
+    {
+        LruClassCache cache = new LruClassCache(10, 10000L);
+        ObjectName name = cache.registerMBean();
+        try {
+            cache.putCachedScript("one", compile("1;"));
+            cache.getCachedScript("one");
+            cache.recordCompilation(2000000L);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "Hits"));
+            assertEquals(1, server.getAttribute(name, "EntryCount"));
+            assertEquals(1L, server.getAttribute(name, "Compilations"));
+            assertEquals(2L, server.getAttribute(name, "CompileTimeMillis"));
+
+            server.invoke(name, "clear", null, null);
+            assertEquals(0, cache.getEntryCount());
+        } finally {
+            cache.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    private static void putClasses(LruClassCache cache, String key, int size)
+    {
+        cache.putCachedClasses(key, new Object[] { key, new byte[size] });
+        cache.putCachedScript(key, compile("'" + key + "';"));
+    }
+
+    @Test
+    public void testMBeanReplaced()
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setBoundedClassCache(10, 100000L);
+        ObjectName name = ((LruClassCache)env.getClassCache()).registerMBean();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        env.setClassCache(new LruClassCache());
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        env.setBoundedClassCache(10, 100000L);
+        name = ((LruClassCache)env.getClassCache()).registerMBean();
+        env.setDefaultClassCache();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        env.close();
+    }
+
+    private static Script compile(String code)
+    {
+        Context cx = Context.enter();
+        try {
+            return cx.compileString(code, "test.js", 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+}
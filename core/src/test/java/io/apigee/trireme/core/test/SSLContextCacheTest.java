@@ -0,0 +1,69 @@
+package io.apigee.trireme.core.test;
+
+import io.apigee.trireme.core.internal.SSLContextCache;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SSLContextCacheTest
+{
+    @Test
+    public void testGetAndPut()
+        throws GeneralSecurityException
+    {
+        SSLContextCache cache = new SSLContextCache();
+        assertNull(cache.get("foo"));
+        SSLContext ctx = makeContext();
+        cache.put("foo", ctx, null);
+
+        SSLContextCache.Entry e = cache.get("foo");
+        assertNotNull(e);
+        assertSame(ctx, e.getContext());
+        assertNull(e.getTrustManager());
+        assertNull(cache.get("bar"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction()
+        throws GeneralSecurityException
+    {
+        SSLContextCache cache = new SSLContextCache(2, 1, TimeUnit.HOURS);
+        cache.put("one", makeContext(), null);
+        cache.put("two", makeContext(), null);
+        assertNotNull(cache.get("one"));
+        cache.put("three", makeContext(), null);
+
+        // "two" was least recently used
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("two"));
+        assertNotNull(cache.get("one"));
+        assertNotNull(cache.get("three"));
+    }
+
+    @Test
+    public void testExpiration()
+        throws GeneralSecurityException, InterruptedException
+    {
+        SSLContextCache cache = new SSLContextCache(10, 100, TimeUnit.MILLISECONDS);
+        cache.put("foo", makeContext(), null);
+        assertNotNull(cache.get("foo"));
+        Thread.sleep(200L);
+        assertNull(cache.get("foo"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    private static SSLContext makeContext()
+        throws GeneralSecurityException
+    {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        return ctx;
+    }
+}
@@ -0,0 +1,130 @@
+package io.apigee.trireme.core.test;
+
+import io.apigee.trireme.core.internal.ScriptSplitter;
+import io.apigee.trireme.core.internal.ScriptUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptSplitterTest
+{
+    private Context cx;
+    private Scriptable scope;
+
+    @Before
+    public void enter()
+    {
+        cx = Context.enter();
+        cx.setOptimizationLevel(1);
+        scope = cx.initStandardObjects();
+    }
+
+    @After
+    public void exit()
+    {
+        Context.exit();
+    }
+
+    @Test
+    public void testNoSplit()
+    {
+        assertNull(ScriptSplitter.split(cx, "var x = 1;\nx++;\n", "small.js", 1024));
+    }
+
+    @Test
+    public void testHoisting()
+    {
+        String code =
+            "var a = early();\n" +
+            "var b = typeof later;\n" +
+            "var later = 1;\n" +
+            "early.prototype.x = 'x';\n" +
+            "function early() { return 'early'; }\n" +
+            "var c = new early().x;\n" +
+            "a + ',' + b + ',' + c;\n";
+
+        List<ScriptSplitter.Chunk> chunks = ScriptSplitter.split(cx, code, "hoist.js", 10);
+        assertNotNull(chunks);
+        assertTrue(chunks.size() > 2);
+
+        Object result = null;
+        for (ScriptSplitter.Chunk c : chunks) {
+            result = cx.evaluateString(scope, c.getSource(), "hoist.js", c.getLineNumber(), null);
+        }
+        assertEquals("early,undefined,x", result);
+    }
+
+    @Test
+    public void testNoSemicolons()
+    {
+        String code =
+            "var a = 1\n" +
+            "function f() { return 2 }\n" +
+            "(a + f())\n";
+
+        List<ScriptSplitter.Chunk> chunks = ScriptSplitter.split(cx, code, "asi.js", 5);
+        assertNotNull(chunks);
+        Object result = null;
+        for (ScriptSplitter.Chunk c : chunks) {
+            result = cx.evaluateString(scope, c.getSource(), "asi.js", c.getLineNumber(), null);
+        }
+        assertEquals(3, ((Number)result).intValue());
+    }
+
+    @Test
+    public void testStrict()
+    {
+        String code =
+            "'use strict';\n" +
+            "var x = 1;\n" +
+            "x++;\n";
+
+        List<ScriptSplitter.Chunk> chunks = ScriptSplitter.split(cx, code, "strict.js", 5);
+        assertNotNull(chunks);
+        for (ScriptSplitter.Chunk c : chunks) {
+            assertTrue(c.getSource().startsWith("'use strict';"));
+        }
+    }
+
+    @Test
+    public void testLineNumbers()
+    {
+        String code =
+            "var x = 1;\n" +
+            "x++;\n" +
+            "\n" +
+            "throw new Error('line four');\n";
+
+        Script s = ScriptSplitter.compileSplit(cx, code, "lines.js", 5);
+        try {
+            s.exec(cx, scope);
+            fail("Expected an error");
+        } catch (RhinoException re) {
+            assertEquals(4, re.lineNumber());
+        }
+    }
+
+    @Test
+    public void testTooLarge()
+    {
+        StringBuilder code = new StringBuilder("var total = 0;\n");
+        for (int i = 0; i < 20000; i++) {
+            code.append("total += ").append(i).append(";\n");
+        }
+        code.append("total;\n");
+
+        assertNull(ScriptUtils.tryCompileAnySize(cx, code.toString(), "big.js", 1));
+
+        Script s = ScriptSplitter.compileSplit(cx, code.toString(), "big.js");
+        assertNotNull(s);
+        assertEquals(199990000L, ((Number)s.exec(cx, scope)).longValue());
+    }
+}
@@ -22,8 +22,12 @@
 package io.apigee.trireme.kernel;
 
 import io.apigee.trireme.kernel.net.NetworkPolicy;
+import io.apigee.trireme.kernel.net.SelectorHandler;
 
 import java.io.Closeable;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -77,6 +81,14 @@ public interface GenericNodeRuntime
      */
     Selector getSelector();
 
+    /**
+     * Register a channel with the network selector -- internal only. Handles must register this way,
+     * rather than by passing "getSelector" to the channel, because the selector may be shared by more
+     * than one script and the runtime needs to know which script owns each key.
+     */
+    SelectionKey registerChannel(SelectableChannel channel, int ops, SelectorHandler handler)
+        throws ClosedChannelException;
+
     /**
      * Return an object that must be called every time the process tries to open an outgoing network
      * connection or listen for incoming connections. This may be used to protect access to and from
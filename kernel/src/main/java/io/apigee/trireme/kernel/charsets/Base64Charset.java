@@ -129,7 +129,7 @@ public class Base64Charset
                         continue;
                     }
 
-                    boolean valid = ((c <= decoding.length) && (decoding[c] >= 0));
+                    boolean valid = ((c < decoding.length) && (decoding[c] >= 0));
                     if (!valid && CodingErrorAction.REPORT.equals(unmappableAction)) {
                         throw new CharacterCodingException();
                     }
@@ -0,0 +1,478 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+import io.apigee.trireme.kernel.Charsets;
+
+import java.nio.charset.Charset;
+
+/**
+ * Hand-written conversions between strings and byte arrays for the encodings that Node scripts use most:
+ * UTF-8, ASCII, "binary," hex, and base64. They do the same thing as the CharsetEncoder and
+ * CharsetDecoder for each encoding, including the handling of bad input, but they work directly on
+ * arrays, so they don't need to allocate CharBuffers or intermediate buffers that grow as they go.
+ * <p>
+ * The encoders come in two flavors. The ones that produce a whole array replace bad input, like
+ * "String.getBytes" does. The ones that write into part of an existing array stop at the first
+ * malformed character and never write part of a character, which is what "Buffer.write" needs.
+ * </p>
+ */
+
+public class FastCodec
+{
+    private static final byte REPLACEMENT = (byte)'?';
+    private static final char DECODE_REPLACEMENT = '\uFFFD';
+
+    private static final char[] HEX_CHARS = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private static final char[] BASE64_CHARS = {
+        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H',
+        'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+        'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X',
+        'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+        'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n',
+        'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+        'w', 'x', 'y', 'z', '0', '1', '2', '3',
+        '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    /**
+     * Maps characters to base64 values, for both the standard and the "URL-safe" alphabets.
+     */
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < BASE64_CHARS.length; i++) {
+            BASE64_VALUES[BASE64_CHARS[i]] = (byte)i;
+        }
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private FastCodec()
+    {
+    }
+
+    /**
+     * Return true if the methods in this class handle the character set. For any other character set,
+     * use a CharsetEncoder or CharsetDecoder instead.
+     */
+    public static boolean isSupported(Charset cs)
+    {
+        return Charsets.UTF8.equals(cs) || Charsets.ASCII.equals(cs) || Charsets.NODE_BINARY.equals(cs) ||
+               Charsets.NODE_HEX.equals(cs) || Charsets.BASE64.equals(cs);
+    }
+
+    /**
+     * Return the number of bytes that "encode(s, cs)" would return, without encoding anything.
+     */
+    public static int byteLength(String s, Charset cs)
+    {
+        if (Charsets.UTF8.equals(cs)) {
+            return utf8Length(s);
+        }
+        if (Charsets.ASCII.equals(cs)) {
+            return asciiLength(s);
+        }
+        if (Charsets.NODE_BINARY.equals(cs)) {
+            return s.length();
+        }
+        if (Charsets.NODE_HEX.equals(cs)) {
+            return hexLength(s);
+        }
+        if (Charsets.BASE64.equals(cs)) {
+            return (int)(base64Encode(s, null, 0, Integer.MAX_VALUE, true) & 0xffffffffL);
+        }
+        throw new IllegalArgumentException("Unsupported character set " + cs);
+    }
+
+    /**
+     * Encode the whole string into a new array of exactly the right size. Unpaired surrogates and
+     * unmappable characters are replaced with "?", except in base64, where invalid characters are skipped.
+     */
+    public static byte[] encode(String s, Charset cs)
+    {
+        if (Charsets.UTF8.equals(cs) || Charsets.ASCII.equals(cs)) {
+            // The JDK already has its own fast path for these
+            return s.getBytes(cs);
+        }
+
+        byte[] out = new byte[byteLength(s, cs)];
+        if (Charsets.NODE_BINARY.equals(cs)) {
+            binaryEncode(s, out, 0, out.length);
+        } else if (Charsets.NODE_HEX.equals(cs)) {
+            hexEncode(s, out, 0, out.length);
+        } else if (Charsets.BASE64.equals(cs)) {
+            base64Encode(s, out, 0, out.length, true);
+        } else {
+            throw new IllegalArgumentException("Unsupported character set " + cs);
+        }
+        return out;
+    }
+
+    /**
+     * Encode as much of the string as will fit in "len" bytes of "out" starting at "off". Encoding stops
+     * before any character that does not fit completely, and at any unpaired surrogate. Unmappable
+     * characters are replaced as in "encode." The result holds both the number of characters that were
+     * encoded and the number of bytes that were written -- use "getCharsRead" and "getBytesWritten" to
+     * get them.
+     */
+    public static long encode(String s, Charset cs, byte[] out, int off, int len)
+    {
+        if (Charsets.UTF8.equals(cs)) {
+            return utf8Encode(s, out, off, len);
+        }
+        if (Charsets.ASCII.equals(cs)) {
+            return asciiEncode(s, out, off, len);
+        }
+        if (Charsets.NODE_BINARY.equals(cs)) {
+            return binaryEncode(s, out, off, len);
+        }
+        if (Charsets.NODE_HEX.equals(cs)) {
+            return hexEncode(s, out, off, len);
+        }
+        if (Charsets.BASE64.equals(cs)) {
+            return base64Encode(s, out, off, len, false);
+        }
+        throw new IllegalArgumentException("Unsupported character set " + cs);
+    }
+
+    public static int getCharsRead(long result) {
+        return (int)(result >>> 32);
+    }
+
+    public static int getBytesWritten(long result) {
+        return (int)(result & 0xffffffffL);
+    }
+
+    private static long result(int chars, int bytes) {
+        return ((long)chars << 32) | (bytes & 0xffffffffL);
+    }
+
+    /**
+     * Decode "len" bytes starting at "off." Invalid input is replaced with U+FFFD.
+     */
+    public static String decode(byte[] b, int off, int len, Charset cs)
+    {
+        if (Charsets.UTF8.equals(cs)) {
+            return new String(b, off, len, Charsets.UTF8);
+        }
+        if (Charsets.ASCII.equals(cs)) {
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                byte v = b[off + i];
+                chars[i] = (v < 0 ? DECODE_REPLACEMENT : (char)v);
+            }
+            return new String(chars);
+        }
+        if (Charsets.NODE_BINARY.equals(cs)) {
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char)(b[off + i] & 0xff);
+            }
+            return new String(chars);
+        }
+        if (Charsets.NODE_HEX.equals(cs)) {
+            char[] chars = new char[len * 2];
+            for (int i = 0; i < len; i++) {
+                int v = b[off + i];
+                chars[i * 2] = HEX_CHARS[(v >> 4) & 0xf];
+                chars[(i * 2) + 1] = HEX_CHARS[v & 0xf];
+            }
+            return new String(chars);
+        }
+        if (Charsets.BASE64.equals(cs)) {
+            return base64Decode(b, off, len);
+        }
+        throw new IllegalArgumentException("Unsupported character set " + cs);
+    }
+
+    private static int utf8Length(String s)
+    {
+        int n = s.length();
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                total++;
+            } else if (c < 0x800) {
+                total += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (isPair(s, i, n)) {
+                    total += 4;
+                    i++;
+                } else {
+                    // Replaced with "?"
+                    total++;
+                }
+            } else {
+                total += 3;
+            }
+        }
+        return total;
+    }
+
+    private static long utf8Encode(String s, byte[] out, int off, int len)
+    {
+        int n = s.length();
+        int dp = off;
+        int dl = off + len;
+        int sp = 0;
+
+        while (sp < n) {
+            char c = s.charAt(sp);
+            if (c < 0x80) {
+                if (dp >= dl) {
+                    break;
+                }
+                out[dp++] = (byte)c;
+                sp++;
+            } else if (c < 0x800) {
+                if ((dl - dp) < 2) {
+                    break;
+                }
+                out[dp++] = (byte)(0xc0 | (c >> 6));
+                out[dp++] = (byte)(0x80 | (c & 0x3f));
+                sp++;
+            } else if (Character.isSurrogate(c)) {
+                if (!isPair(s, sp, n) || ((dl - dp) < 4)) {
+                    break;
+                }
+                int cp = Character.toCodePoint(c, s.charAt(sp + 1));
+                out[dp++] = (byte)(0xf0 | (cp >> 18));
+                out[dp++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                out[dp++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                out[dp++] = (byte)(0x80 | (cp & 0x3f));
+                sp += 2;
+            } else {
+                if ((dl - dp) < 3) {
+                    break;
+                }
+                out[dp++] = (byte)(0xe0 | (c >> 12));
+                out[dp++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                out[dp++] = (byte)(0x80 | (c & 0x3f));
+                sp++;
+            }
+        }
+        return result(sp, dp - off);
+    }
+
+    private static int asciiLength(String s)
+    {
+        int n = s.length();
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            // A surrogate pair is one unmappable character, so it becomes a single "?"
+            if (isPair(s, i, n)) {
+                i++;
+            }
+            total++;
+        }
+        return total;
+    }
+
+    private static long asciiEncode(String s, byte[] out, int off, int len)
+    {
+        int n = s.length();
+        int dp = off;
+        int dl = off + len;
+        int sp = 0;
+
+        while ((sp < n) && (dp < dl)) {
+            char c = s.charAt(sp);
+            if (c < 0x80) {
+                out[dp++] = (byte)c;
+                sp++;
+            } else if (Character.isSurrogate(c)) {
+                if (!isPair(s, sp, n)) {
+                    break;
+                }
+                out[dp++] = REPLACEMENT;
+                sp += 2;
+            } else {
+                out[dp++] = REPLACEMENT;
+                sp++;
+            }
+        }
+        return result(sp, dp - off);
+    }
+
+    private static long binaryEncode(String s, byte[] out, int off, int len)
+    {
+        int n = Math.min(s.length(), len);
+        for (int i = 0; i < n; i++) {
+            out[off + i] = (byte)s.charAt(i);
+        }
+        return result(n, n);
+    }
+
+    private static int hexLength(String s)
+    {
+        int n = s.length() & ~1;
+        for (int i = 0; i < n; i++) {
+            hexValue(s, i);
+        }
+        return n / 2;
+    }
+
+    /**
+     * Two characters make each byte, and an odd one at the end is ignored. Like the HexCharset,
+     * throw NumberFormatException on any character that is not a hex digit.
+     */
+    private static long hexEncode(String s, byte[] out, int off, int len)
+    {
+        int n = Math.min(s.length() / 2, len);
+        for (int i = 0; i < n; i++) {
+            out[off + i] = (byte)((hexValue(s, i * 2) << 4) | hexValue(s, (i * 2) + 1));
+        }
+        // If everything fit, then the odd character at the end was read too
+        return result((n == (s.length() / 2)) ? s.length() : n * 2, n);
+    }
+
+    private static int hexValue(String s, int pos)
+    {
+        int v = Character.digit(s.charAt(pos), 16);
+        if (v < 0) {
+            throw new NumberFormatException("For input string: \"" + s.substring(pos & ~1, (pos & ~1) + 2) + '\"');
+        }
+        return v;
+    }
+
+    /**
+     * This has the same semantics as the Base64Charset: whitespace and "=" are always skipped, invalid
+     * characters are skipped as well, and every four valid characters make three bytes. Two or three
+     * characters left over at the end make one or two bytes, plus one more if the last character has bits
+     * left over. If "out" is null, only count the bytes. If "whole" is false, a final group that may need
+     * more room than is left is not written at all.
+     */
+    private static long base64Encode(String s, byte[] out, int off, int len, boolean whole)
+    {
+        int n = s.length();
+        int dp = off;
+        int dl = (out == null ? Integer.MAX_VALUE : off + len);
+        int sp = 0;
+        int count = 0;
+        int c0 = 0, c1 = 0, c2 = 0;
+
+        while (sp < n) {
+            char c = s.charAt(sp++);
+            int v = ((c < BASE64_VALUES.length) ? BASE64_VALUES[c] : -1);
+            if (v < 0) {
+                continue;
+            }
+            switch (count) {
+            case 0:
+                c0 = v;
+                count = 1;
+                break;
+            case 1:
+                c1 = v;
+                count = 2;
+                break;
+            case 2:
+                c2 = v;
+                count = 3;
+                break;
+            default:
+                if ((dl - dp) < 3) {
+                    return result(sp, dp - off);
+                }
+                if (out != null) {
+                    out[dp] = (byte)((c0 << 2) | (c1 >> 4));
+                    out[dp + 1] = (byte)(((c1 << 4) & 0xff) | (c2 >> 2));
+                    out[dp + 2] = (byte)(((c2 << 6) & 0xff) | v);
+                }
+                dp += 3;
+                count = 0;
+                break;
+            }
+        }
+
+        if (count > 1) {
+            if (!whole && ((dl - dp) < 3)) {
+                return result(sp, dp - off);
+            }
+            int next = (c1 << 4) & 0xff;
+            if (out != null) {
+                out[dp] = (byte)((c0 << 2) | (c1 >> 4));
+            }
+            dp++;
+            if ((count == 3) || (next != 0)) {
+                if (out != null) {
+                    out[dp] = (byte)(next | (count == 3 ? (c2 >> 2) : 0));
+                }
+                dp++;
+            }
+            if (count == 3) {
+                next = (c2 << 6) & 0xff;
+                if (next != 0) {
+                    if (out != null) {
+                        out[dp] = (byte)next;
+                    }
+                    dp++;
+                }
+            }
+        }
+        return result(sp, dp - off);
+    }
+
+    private static String base64Decode(byte[] b, int off, int len)
+    {
+        char[] chars = new char[((len + 2) / 3) * 4];
+        int sp = off;
+        int end = off + len;
+        int dp = 0;
+
+        while ((end - sp) >= 3) {
+            int b1 = b[sp] & 0xff;
+            int b2 = b[sp + 1] & 0xff;
+            int b3 = b[sp + 2] & 0xff;
+            sp += 3;
+            chars[dp++] = BASE64_CHARS[b1 >>> 2];
+            chars[dp++] = BASE64_CHARS[((b1 & 0x3) << 4) | (b2 >>> 4)];
+            chars[dp++] = BASE64_CHARS[((b2 & 0xf) << 2) | (b3 >>> 6)];
+            chars[dp++] = BASE64_CHARS[b3 & 0x3f];
+        }
+
+        int left = end - sp;
+        if (left > 0) {
+            int b1 = b[sp] & 0xff;
+            int b2 = (left >= 2) ? (b[sp + 1] & 0xff) : 0;
+            chars[dp++] = BASE64_CHARS[b1 >>> 2];
+            chars[dp++] = BASE64_CHARS[((b1 & 0x3) << 4) | (b2 >>> 4)];
+            chars[dp++] = (left >= 2) ? BASE64_CHARS[(b2 & 0xf) << 2] : '=';
+            chars[dp++] = '=';
+        }
+        return new String(chars, 0, dp);
+    }
+
+    private static boolean isPair(String s, int pos, int len)
+    {
+        return Character.isHighSurrogate(s.charAt(pos)) && ((pos + 1) < len) &&
+               Character.isLowSurrogate(s.charAt(pos + 1));
+    }
+}
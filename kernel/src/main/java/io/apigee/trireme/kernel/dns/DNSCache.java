@@ -0,0 +1,352 @@
+package io.apigee.trireme.kernel.dns;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of DNS answers that may be shared by all the scripts in an environment. Successful answers
+ * are kept for the smallest TTL of the records in them, up to a maximum. Answers that say that the name
+ * does not exist, or that it has no records of the requested type, are kept for a fixed "negative" TTL.
+ * (We don't parse the authority section of the response, so the SOA minimum is not available.)
+ * Errors like timeouts are not cached at all.
+ * <p>
+ * The cache also keeps track of queries that are in progress, so that when several callers ask the same
+ * question at once, only one query goes out on the network and all of them get the answer. The answer
+ * is delivered to each caller on its own script thread. A caller that has not had an answer after
+ * a while gets ETIMEOUT from a timer on its own script thread, so that nobody waits forever if the
+ * script that sent the query exits or the query is lost.
+ * </p>
+ */
+
+public class DNSCache
+{
+    private static final Logger log = LoggerFactory.getLogger(DNSCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_TTL_SECS = 3600L;
+    public static final long DEFAULT_NEGATIVE_TTL_SECS = 30L;
+
+    /**
+     * This is longer than all the retries in DNSResolver, so it only matters when a query was lost.
+     */
+    public static final long DEFAULT_QUERY_TIMEOUT_SECS = 30L;
+
+    private final int maxEntries;
+    private final long maxTtlNanos;
+    private final long negativeTtlNanos;
+    private volatile long queryTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_QUERY_TIMEOUT_SECS);
+
+    // Access-ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, Pending> pending = new HashMap<String, Pending>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public DNSCache(int maxEntries, long maxTtl, long negativeTtl, TimeUnit unit)
+    {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries");
+        }
+        if ((maxTtl < 0L) || (negativeTtl < 0L)) {
+            throw new IllegalArgumentException("ttl");
+        }
+        this.maxEntries = maxEntries;
+        this.maxTtlNanos = unit.toNanos(maxTtl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+    }
+
+    public DNSCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_TTL_SECS, DEFAULT_NEGATIVE_TTL_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Return the cached answer for the question, or null if there is none or if it has expired.
+     */
+    public synchronized Entry get(String name, int type)
+    {
+        String key = makeKey(name, type);
+        Entry e = entries.get(key);
+        if ((e != null) && (System.nanoTime() - e.expiration) >= 0L) {
+            entries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return e;
+    }
+
+    /**
+     * Register a caller that wants the answer to a question that was not in the cache. This must be called
+     * from the caller's script thread. If this returns true, then the caller must send the query and
+     * call "complete" with the result. Otherwise, the same query is already in progress, and "onComplete"
+     * will be called when it finishes.
+     */
+    public boolean join(String name, int type,
+                        GenericNodeRuntime runtime, IOCompletionHandler<Wire> onComplete)
+    {
+        final String key = makeKey(name, type);
+        final Waiter w = new Waiter(runtime, runtime.getDomain(), onComplete);
+        boolean send;
+
+        synchronized (this) {
+            Pending p = pending.get(key);
+            long now = System.nanoTime();
+
+            if (p == null) {
+                p = new Pending(now);
+                pending.put(key, p);
+                send = true;
+            } else if ((now - p.started) > queryTimeoutNanos) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Query for {} was lost. Sending it again", key);
+                }
+                p.started = now;
+                send = true;
+            } else {
+                coalesced.incrementAndGet();
+                send = false;
+            }
+
+            p.waiters.add(w);
+        }
+
+        // If "complete" gets there first, then this timer finds nothing to do
+        w.timer = runtime.createTimedTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                timeOut(key, w);
+            }
+        }, queryTimeoutNanos, TimeUnit.NANOSECONDS, false, w.domain);
+        return send;
+    }
+
+    /**
+     * Called on the waiter's script thread when it has waited too long. If it is the last one waiting,
+     * then the next caller will send the query again.
+     */
+    private void timeOut(String key, Waiter w)
+    {
+        synchronized (this) {
+            Pending p = pending.get(key);
+            if ((p == null) || !p.waiters.remove(w)) {
+                return;
+            }
+            if (p.waiters.isEmpty()) {
+                pending.remove(key);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Timed out waiting for query {}", key);
+        }
+        w.onComplete.ioComplete(ErrorCodes.ETIMEOUT, null);
+    }
+
+    /**
+     * Record the result of a query that was sent because "join" returned true, and deliver it to everyone
+     * who is waiting for it. This may be called from any thread.
+     */
+    public void complete(String name, int type, int errCode, Wire msg)
+    {
+        String key = makeKey(name, type);
+        Pending p;
+
+        synchronized (this) {
+            p = pending.remove(key);
+
+            long ttl = getTtl(errCode, msg);
+            if (ttl > 0L) {
+                entries.put(key, new Entry(errCode, msg, System.nanoTime() + ttl));
+                evict();
+            }
+        }
+
+        if (p != null) {
+            for (Waiter w : p.waiters) {
+                w.cancelTimer();
+                w.deliver(errCode, msg);
+            }
+        }
+    }
+
+    private long getTtl(int errCode, Wire msg)
+    {
+        if (errCode == ErrorCodes.ENOTFOUND) {
+            return negativeTtlNanos;
+        }
+        if (errCode != 0) {
+            return 0L;
+        }
+        if (msg.getAnswers().isEmpty()) {
+            return negativeTtlNanos;
+        }
+
+        long ttl = Long.MAX_VALUE;
+        for (Wire.RR rr : msg.getAnswers()) {
+            ttl = Math.min(ttl, rr.getTtl());
+        }
+        return Math.min(TimeUnit.SECONDS.toNanos(ttl), maxTtlNanos);
+    }
+
+    private void evict()
+    {
+        assert(Thread.holdsLock(this));
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String makeKey(String name, int type)
+    {
+        return String.valueOf(type) + ':' + name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Set how long a query may be in progress before it is considered lost. After that, the next caller
+     * sends it again, and each caller that has been waiting that long gets ETIMEOUT.
+     */
+    public void setQueryTimeout(long timeout, TimeUnit unit)
+    {
+        if (timeout <= 0L) {
+            throw new IllegalArgumentException("timeout");
+        }
+        this.queryTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public long getQueryTimeout(TimeUnit unit) {
+        return unit.convert(queryTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of callers that did not send a query because the same one was already in progress.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DNSCache [ hits = " + hits + " misses = " + misses +
+               " coalesced = " + coalesced + " entries = " + getEntryCount() + " ]";
+    }
+
+    public static final class Entry
+    {
+        private final int errCode;
+        private final Wire message;
+        private final long expiration;
+
+        Entry(int errCode, Wire message, long expiration)
+        {
+            this.errCode = errCode;
+            this.message = message;
+            this.expiration = expiration;
+        }
+
+        /**
+         * Return zero if the query succeeded, or an error code such as ENOTFOUND.
+         */
+        public int getErrCode() {
+            return errCode;
+        }
+
+        /**
+         * Return the response, which is shared and must not be modified, or null if the query failed.
+         */
+        public Wire getMessage() {
+            return message;
+        }
+    }
+
+    private static final class Pending
+    {
+        final List<Waiter> waiters = new ArrayList<Waiter>(1);
+        long started;
+
+        Pending(long started)
+        {
+            this.started = started;
+        }
+    }
+
+    private static final class Waiter
+    {
+        private final GenericNodeRuntime runtime;
+        private final Object domain;
+        private final IOCompletionHandler<Wire> onComplete;
+        private volatile Future<Boolean> timer;
+
+        Waiter(GenericNodeRuntime runtime, Object domain, IOCompletionHandler<Wire> onComplete)
+        {
+            this.runtime = runtime;
+            this.domain = domain;
+            this.onComplete = onComplete;
+        }
+
+        void cancelTimer()
+        {
+            Future<Boolean> t = timer;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+
+        void deliver(final int errCode, final Wire msg)
+        {
+            runtime.executeScriptTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onComplete.ioComplete(errCode, msg);
+                }
+            }, domain);
+        }
+    }
+}
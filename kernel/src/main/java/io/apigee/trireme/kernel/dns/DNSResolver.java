@@ -8,13 +8,16 @@ import io.apigee.trireme.kernel.handles.NIODatagramHandle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
- * This is a really simple DNS resolver based on the handles.
+ * This is a really simple DNS resolver based on the handles. If it has a DNSCache, then answers come from
+ * the cache when possible, and identical queries that are already in progress are not sent again.
  */
 
 public class DNSResolver
@@ -32,10 +35,17 @@ public class DNSResolver
     protected static final SecureRandom rand = new SecureRandom();
 
     protected final GenericNodeRuntime runtime;
+    protected final DNSCache cache;
 
     public DNSResolver(GenericNodeRuntime runtime)
+    {
+        this(runtime, null);
+    }
+
+    public DNSResolver(GenericNodeRuntime runtime, DNSCache cache)
     {
         this.runtime = runtime;
+        this.cache = cache;
     }
 
     public void resolve(String name, String type,
@@ -57,8 +67,138 @@ public class DNSResolver
             throw new OSException(ErrorCodes.EINVAL, "Invalid DNS query");
         }
 
-        QueryStatus q = new QueryStatus(query, queryBuf, onComplete);
-        q.send(TIMEOUTS[0]);
+        if (cache == null) {
+            QueryStatus q = new QueryStatus(query, queryBuf, onComplete);
+            q.send(TIMEOUTS[0]);
+            return;
+        }
+
+        final String cacheName = name;
+        final int typeCode = query.getQuestion().getType();
+        DNSCache.Entry cached = cache.get(cacheName, typeCode);
+        if (cached != null) {
+            deliver(onComplete, cached.getErrCode(), cached.getMessage(), runtime.getDomain());
+            return;
+        }
+
+        if (cache.join(cacheName, typeCode, runtime, onComplete)) {
+            QueryStatus q = new QueryStatus(query, queryBuf, new IOCompletionHandler<Wire>()
+            {
+                @Override
+                public void ioComplete(int errCode, Wire msg)
+                {
+                    cache.complete(cacheName, typeCode, errCode, msg);
+                }
+            });
+            q.send(TIMEOUTS[0]);
+        }
+    }
+
+    /**
+     * Look up the address of a host the way that "getaddrinfo" would, but without tying up a thread
+     * while waiting for the network. Address literals and names in /etc/hosts are answered right away
+     * when they are of the right family, and other names are sent to the DNS servers using "resolve."
+     * "family" is 4 or 6 to only return that kind of address, or 0 for either one, with IPv4 preferred.
+     * Names without a dot, which may need the search domains from resolv.conf, and all names when there
+     * are no DNS servers configured, are handed to the JVM's resolver on the async pool instead.
+     * In every case "onComplete" is called on the script thread.
+     */
+    public void lookup(final String name, final int family,
+                       final IOCompletionHandler<InetAddress> onComplete)
+    {
+        final Object domain = runtime.getDomain();
+
+        // The hosts file only returns addresses of the right family. A literal of the other family
+        // goes on to the resolver like any other name, which is what the JVM's resolver does too.
+        InetAddress addr = HostsFile.parseLiteral(name);
+        if (addr == null) {
+            addr = HostsFile.get().lookup(name, family);
+        }
+        if ((addr != null) && HostsFile.isFamily(addr, family)) {
+            deliver(onComplete, 0, addr, domain);
+            return;
+        }
+
+        if ((name.indexOf('.') < 0) || DNSConfig.get().getServers().isEmpty()) {
+            blockingLookup(name, family, onComplete, domain);
+            return;
+        }
+
+        lookupType(name, (family == 6 ? "AAAA" : "A"), family, onComplete, domain);
+    }
+
+    private void lookupType(final String name, final String type, final int family,
+                            final IOCompletionHandler<InetAddress> onComplete, final Object domain)
+    {
+        final int typeCode = Types.get().getTypeCode(type);
+        try {
+            resolve(name, type, new IOCompletionHandler<Wire>()
+            {
+                @Override
+                public void ioComplete(int errCode, Wire msg)
+                {
+                    InetAddress result = null;
+                    if (errCode == 0) {
+                        for (Wire.RR rr : msg.getAnswers()) {
+                            if (rr.getType() == typeCode) {
+                                result = (InetAddress)rr.getResult();
+                                break;
+                            }
+                        }
+                    }
+
+                    if (result != null) {
+                        onComplete.ioComplete(0, result);
+                    } else if ((family == 0) && (typeCode == Types.TYPE_A) &&
+                               ((errCode == 0) || (errCode == ErrorCodes.ENOTFOUND))) {
+                        // No IPv4 address, so try IPv6
+                        lookupType(name, "AAAA", family, onComplete, domain);
+                    } else {
+                        onComplete.ioComplete((errCode == 0 ? ErrorCodes.ENOTFOUND : errCode), null);
+                    }
+                }
+            });
+        } catch (OSException ose) {
+            deliver(onComplete, ose.getCode(), null, domain);
+        }
+    }
+
+    private void blockingLookup(final String name, final int family,
+                                final IOCompletionHandler<InetAddress> onComplete, final Object domain)
+    {
+        runtime.getAsyncPool().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    InetAddress addr = InetAddress.getByName(name);
+                    if (HostsFile.isFamily(addr, family)) {
+                        deliver(onComplete, 0, addr, domain);
+                    } else {
+                        deliver(onComplete, ErrorCodes.EIO, null, domain);
+                    }
+                } catch (UnknownHostException uhe) {
+                    deliver(onComplete, ErrorCodes.ENOTFOUND, null, domain);
+                }
+            }
+        });
+    }
+
+    /**
+     * Call the handler on the script thread, in a later tick.
+     */
+    private <T> void deliver(final IOCompletionHandler<T> onComplete, final int errCode, final T result,
+                             Object domain)
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onComplete.ioComplete(errCode, result);
+            }
+        }, domain);
     }
 
     private Wire makeQuery(String n, String type)
@@ -216,9 +356,12 @@ public class DNSResolver
                         handleSuccessfulResponse(dnsMsg);
                         break;
                     case 1:
-                        onComplete.ioComplete(ErrorCodes.ESERVFAIL, null);
+                        onComplete.ioComplete(ErrorCodes.EBADRESP, null);
                         break;
                     case 2:
+                        onComplete.ioComplete(ErrorCodes.ESERVFAIL, null);
+                        break;
+                    case 3:
                         onComplete.ioComplete(ErrorCodes.ENOTFOUND, null);
                         break;
                     case 4:
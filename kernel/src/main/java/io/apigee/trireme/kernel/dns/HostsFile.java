@@ -0,0 +1,136 @@
+package io.apigee.trireme.kernel.dns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * This class reads /etc/hosts once, so that host names may be looked up without going to the network
+ * and without the blocking resolver built in to the JVM.
+ */
+
+public class HostsFile
+{
+    private static final Logger log = LoggerFactory.getLogger(HostsFile.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+    private static final Pattern IPV4_LITERAL = Pattern.compile("^[0-9]{1,3}(\\.[0-9]{1,3}){3}$");
+
+    private static final HostsFile myself = new HostsFile();
+
+    private final HashMap<String, List<InetAddress>> hosts = new HashMap<String, List<InetAddress>>();
+
+    public static HostsFile get() {
+        return myself;
+    }
+
+    private HostsFile()
+    {
+        readHosts(new File("/etc/hosts"));
+    }
+
+    /**
+     * Return the first address listed for the name, or null if the name is not there. "family" is 4 or 6
+     * for only one kind of address, or 0 for either.
+     */
+    public InetAddress lookup(String name, int family)
+    {
+        List<InetAddress> addrs = hosts.get(name.toLowerCase(Locale.US));
+        if (addrs == null) {
+            return null;
+        }
+        for (InetAddress a : addrs) {
+            if (isFamily(a, family)) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the address if the name is an IPv4 or IPv6 address literal, or null if it is not.
+     * This never goes to the network.
+     */
+    public static InetAddress parseLiteral(String name)
+    {
+        if (!IPV4_LITERAL.matcher(name).matches() && (name.indexOf(':') < 0)) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(name);
+        } catch (UnknownHostException uhe) {
+            return null;
+        }
+    }
+
+    public static boolean isFamily(InetAddress addr, int family)
+    {
+        switch (family) {
+        case 4:
+            return (addr instanceof Inet4Address);
+        case 6:
+            return (addr instanceof Inet6Address);
+        default:
+            return true;
+        }
+    }
+
+    private void readHosts(File hostsFile)
+    {
+        if (!hostsFile.isFile() || !hostsFile.canRead()) {
+            log.debug("Cannot open {}", hostsFile);
+            return;
+        }
+
+        try {
+            BufferedReader rdr =
+                new BufferedReader(new InputStreamReader(new FileInputStream(hostsFile)));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    int comment = line.indexOf('#');
+                    if (comment >= 0) {
+                        line = line.substring(0, comment);
+                    }
+                    String[] fields = WHITESPACE.split(line.trim());
+                    if (fields.length < 2) {
+                        continue;
+                    }
+                    InetAddress addr = parseLiteral(fields[0]);
+                    if (addr == null) {
+                        continue;
+                    }
+                    for (int i = 1; i < fields.length; i++) {
+                        String name = fields[i].toLowerCase(Locale.US);
+                        List<InetAddress> addrs = hosts.get(name);
+                        if (addrs == null) {
+                            addrs = new ArrayList<InetAddress>(1);
+                            hosts.put(name, addrs);
+                        }
+                        addrs.add(addr);
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error reading {}: {}", hostsFile, ioe);
+            }
+        }
+    }
+}
@@ -226,6 +226,21 @@ public class BasicFilesystem
         return (read < 0 ? 0 : read);
     }
 
+    /**
+     * Return a read-only view of the whole file from the mapping cache, or null if the file should be
+     * read using "read" instead.
+     */
+    public ByteBuffer map(int fd, MappedFileCache cache)
+        throws OSException
+    {
+        AbstractFileHandle handle = ensureRegularFileHandle(fd);
+        try {
+            return cache.map(handle.getFile(), handle.getChannel());
+        } catch (IOException ioe) {
+            throw new OSException(ErrorCodes.EIO, ioe);
+        }
+    }
+
     public FileStats stat(File f, String origPath, boolean noFollow)
         throws OSException
     {
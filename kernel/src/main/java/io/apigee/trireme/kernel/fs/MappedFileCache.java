@@ -0,0 +1,228 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of memory-mapped files that may be shared by all the scripts in an environment. It is
+ * used to read large files that do not change, like static content and configuration, so that
+ * reading the same file over and over does not copy it from the disk into a new Buffer every time. Instead,
+ * every reader gets a read-only view of the same mapping.
+ * <p>
+ * An entry is re-mapped whenever the file's identity, modification time, or length has changed since
+ * it was mapped. The identity is the "file key," which is the device and inode on Unix, so a file that
+ * is replaced by renaming a new one over it is always seen. The cache is bounded by the total size of
+ * the files in it, and the least recently used files are dropped first. Java cannot unmap a file
+ * explicitly, so the memory for a mapping is released once it has been dropped from the cache and
+ * no Buffers that point to it are left.
+ * </p>
+ * <p>
+ * A mapping is a view of the file itself, and not a copy. If the file is modified in place while
+ * it is mapped, then every Buffer over it sees the change, even one that was handed out earlier,
+ * and the change may not be noticed at all if the length and modification time stay the same.
+ * Worse, if it is truncated, then reading the missing part fails with an InternalError, or may even
+ * crash the JVM on some platforms. So this is only suitable for files that are never modified in place
+ * while the process is running, which is how most deployment tools replace files anyway.
+ * </p>
+ */
+
+public class MappedFileCache
+{
+    private static final Logger log = LoggerFactory.getLogger(MappedFileCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024L * 1024L;
+    public static final int DEFAULT_MIN_FILE_SIZE = 64 * 1024;
+
+    private final long maxSize;
+    private final int minFileSize;
+
+    // Access-ordered, so the first entry is always the least recently used one
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MappedFileCache(long maxSize, int minFileSize)
+    {
+        if (maxSize < 0L) {
+            throw new IllegalArgumentException("maxSize");
+        }
+        if (minFileSize < 0) {
+            throw new IllegalArgumentException("minFileSize");
+        }
+        this.maxSize = maxSize;
+        this.minFileSize = minFileSize;
+    }
+
+    public MappedFileCache()
+    {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MIN_FILE_SIZE);
+    }
+
+    /**
+     * Return a read-only view of the whole file, using the cached mapping if the file has not changed.
+     * Return null if the file is too small or too large to be worth mapping, in which case it should be
+     * read the regular way. "channel" must be open for reading.
+     */
+    public ByteBuffer map(File file, FileChannel channel)
+        throws IOException
+    {
+        long length = channel.size();
+        if (!isMappable(length)) {
+            return null;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Object fileKey = attrs.fileKey();
+        String key = file.getPath();
+
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if ((e != null) && (e.length == length) && (e.mtime == mtime) &&
+                sameKey(fileKey, e.fileKey)) {
+                hits.incrementAndGet();
+                return e.map.duplicate();
+            }
+            if (e != null) {
+                entries.remove(key);
+                size -= e.length;
+            }
+        }
+
+        misses.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Mapping {} bytes from {}", length, file);
+        }
+        ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, length).asReadOnlyBuffer();
+
+        if (length <= maxSize) {
+            synchronized (this) {
+                Entry old = entries.put(key, new Entry(map, length, mtime, fileKey));
+                if (old != null) {
+                    // Someone else mapped it at the same time
+                    size -= old.length;
+                }
+                size += length;
+                evict();
+            }
+        }
+        return map.duplicate();
+    }
+
+    /**
+     * Some platforms, like Windows, have no file key, so there only the time and length are checked.
+     */
+    private static boolean sameKey(Object k1, Object k2)
+    {
+        return (k1 == null ? k2 == null : k1.equals(k2));
+    }
+
+    /**
+     * Return true if a file of this length would be mapped by "map." Callers may use this to avoid
+     * going to another thread to call "map" for a file that is too small.
+     */
+    public boolean isMappable(long length)
+    {
+        return ((length >= minFileSize) && (length <= Integer.MAX_VALUE));
+    }
+
+    private void evict()
+    {
+        assert(Thread.holdsLock(this));
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0L;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMinFileSize() {
+        return minFileSize;
+    }
+
+    /**
+     * Return the total length of all the files in the cache.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MappedFileCache [ hits = " + hits + " misses = " + misses +
+               " entries = " + getEntryCount() + " size = " + getSize() + " ]";
+    }
+
+    private static final class Entry
+    {
+        final ByteBuffer map;
+        final long length;
+        final long mtime;
+        final Object fileKey;
+
+        Entry(ByteBuffer map, long length, long mtime, Object fileKey)
+        {
+            this.map = map;
+            this.length = length;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+        }
+    }
+}
@@ -22,6 +22,7 @@
 package io.apigee.trireme.kernel.handles;
 
 import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.util.BufferUtils;
 import io.apigee.trireme.kernel.util.StringUtils;
 
 import java.nio.ByteBuffer;
@@ -48,6 +49,16 @@ public abstract class AbstractHandle
         throw new IllegalStateException("Handle does not support passing handles");
     }
 
+    @Override
+    public int writev(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler)
+    {
+        // Handles that can't write more than one buffer at a time still save a lot of calls this way
+        if (bufs.length == 1) {
+            return write(bufs[0], handler);
+        }
+        return write(BufferUtils.gatherBuffers(bufs), handler);
+    }
+
     @Override
     public int write(String s, Charset cs, IOCompletionHandler<Integer> handler)
     {
@@ -30,6 +30,11 @@ public interface Handle
 
     int writeHandle(ByteBuffer buf, Object handleArg, IOCompletionHandler<Integer> handler);
 
+    /**
+     * Write all the buffers, in order, and call the handler once when all of them have been written.
+     */
+    int writev(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler);
+
     int write(String s, Charset cs, IOCompletionHandler<Integer> handler);
 
     int writeHandle(String s, Charset cs, Object handleArg, IOCompletionHandler<Integer> handler);
@@ -78,7 +78,7 @@ public class NIODatagramHandle
             runtime.registerCloseable(channel);
             channel.configureBlocking(false);
             channel.socket().bind(bound);
-            selKey = channel.register(runtime.getSelector(), 0,
+            selKey = runtime.registerChannel(channel, 0,
                              new SelectorHandler() {
                                  @Override
                                  public void selected(SelectionKey key)
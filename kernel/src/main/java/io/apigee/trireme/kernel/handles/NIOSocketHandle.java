@@ -39,6 +39,7 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 /**
  * Node's own script modules use this internal module to implement the guts of async TCP.
@@ -50,15 +51,16 @@ public class NIOSocketHandle
     private static final Logger log = LoggerFactory.getLogger(NIOSocketHandle.class);
 
     public static final int    READ_BUFFER_SIZE = 32767;
+    public static final int    MAX_GATHERED_WRITES = 64;
 
     private InetSocketAddress       boundAddress;
     private ServerSocketChannel     svrChannel;
     private SocketChannel           clientChannel;
     private boolean                 readStarted;
-    private ByteBuffer              readBuffer;
     private IOCompletionHandler<AbstractHandle> serverConnectionHandler;
     private IOCompletionHandler<Integer>        clientConnectionHandler;
     private IOCompletionHandler<ByteBuffer>     readHandler;
+    private final ByteBuffer[]                  gatheredWrites = new ByteBuffer[MAX_GATHERED_WRITES];
 
     public NIOSocketHandle(GenericNodeRuntime runtime)
     {
@@ -71,7 +73,7 @@ public class NIOSocketHandle
         super(runtime);
         this.clientChannel = clientChannel;
         clientInit();
-        selKey = clientChannel.register(runtime.getSelector(), SelectionKey.OP_WRITE,
+        selKey = runtime.registerChannel(clientChannel, SelectionKey.OP_WRITE,
                                         new SelectorHandler()
                                         {
                                             @Override
@@ -89,7 +91,6 @@ public class NIOSocketHandle
     private void clientInit()
         throws IOException, OSException
     {
-        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         clientChannel.configureBlocking(false);
         setNoDelay(true);
     }
@@ -166,7 +167,7 @@ public class NIOSocketHandle
             svrChannel.configureBlocking(false);
             svrChannel.socket().setReuseAddress(true);
             svrChannel.socket().bind(boundAddress, backlog);
-            svrChannel.register(runtime.getSelector(), SelectionKey.OP_ACCEPT,
+            runtime.registerChannel(svrChannel, SelectionKey.OP_ACCEPT,
                                 new SelectorHandler()
                                 {
                                     @Override
@@ -251,6 +252,46 @@ public class NIOSocketHandle
         return qw.length;
     }
 
+    /**
+     * Queue up all the buffers and then try to send all of them at once using a single system call.
+     */
+    @Override
+    public int writev(ByteBuffer[] bufs, final IOCompletionHandler<Integer> handler)
+    {
+        if (bufs.length == 1) {
+            return write(bufs[0], handler);
+        }
+
+        int len = 0;
+        for (ByteBuffer b : bufs) {
+            len += b.remaining();
+        }
+        final int totalLen = len;
+        IOCompletionHandler<Integer> lastHandler = new IOCompletionHandler<Integer>()
+        {
+            @Override
+            public void ioComplete(int errCode, Integer value)
+            {
+                if (handler != null) {
+                    handler.ioComplete(errCode, (errCode == 0) ? totalLen : value);
+                }
+            }
+        };
+
+        boolean wasEmpty = writeQueue.isEmpty();
+        for (int i = 0; i < bufs.length; i++) {
+            QueuedWrite qw = new QueuedWrite(bufs[i], (i == (bufs.length - 1)) ? lastHandler : null);
+            writeQueue.addLast(qw);
+            queuedBytes += qw.getLength();
+        }
+        if (wasEmpty) {
+            processWrites();
+        } else {
+            addInterest(SelectionKey.OP_WRITE);
+        }
+        return totalLen;
+    }
+
     @Override
     public void shutdown(IOCompletionHandler<Integer> handler)
     {
@@ -363,7 +404,7 @@ public class NIOSocketHandle
             if (log.isDebugEnabled()) {
                 log.debug("Registering socket with interest {}", interest);
             }
-            selKey = newChannel.register(runtime.getSelector(),
+            selKey = runtime.registerChannel(newChannel,
                                                     interest,
                                                     new SelectorHandler()
                                                     {
@@ -425,60 +466,120 @@ public class NIOSocketHandle
         removeInterest(SelectionKey.OP_WRITE);
         QueuedWrite qw;
         while (true) {
-            qw = writeQueue.pollFirst();
+            qw = writeQueue.peekFirst();
             if (qw == null) {
                 break;
             }
-            queuedBytes -= qw.getLength();
-            assert(queuedBytes >= 0);
-            try {
-                if (qw.shutdown) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Sending shutdown for {}", clientChannel);
-                    }
-                    clientChannel.socket().shutdownOutput();
-                    qw.getHandler().ioComplete(0, 0);
-                } else {
-                    int written = clientChannel.write(qw.buf);
-                    if (log.isDebugEnabled()) {
-                        log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
-                    }
-                    if (qw.buf.hasRemaining()) {
-                        // We didn't write the whole thing -- need to keep writing.
-                        writeReady = false;
-                        writeQueue.addFirst(qw);
-                        queuedBytes += qw.getLength();
-                        addInterest(SelectionKey.OP_WRITE);
-                        break;
-                    } else {
-                        qw.getHandler().ioComplete(0, qw.getLength());
-                    }
+            if (qw.shutdown) {
+                writeQueue.pollFirst();
+                processShutdown(qw);
+                continue;
+            }
+
+            // Send as many queued writes as we can with a single call
+            int count = 0;
+            for (QueuedWrite w : writeQueue) {
+                if (w.shutdown || (count == MAX_GATHERED_WRITES)) {
+                    break;
                 }
+                gatheredWrites[count++] = w.buf;
+            }
 
+            try {
+                long written = clientChannel.write(gatheredWrites, 0, count);
+                if (log.isDebugEnabled()) {
+                    log.debug("Wrote {} to {} from {} buffers", written, clientChannel, count);
+                }
             } catch (ClosedChannelException cce) {
                 if (log.isDebugEnabled()) {
                     log.debug("Channel is closed");
                 }
-                qw.getHandler().ioComplete(ErrorCodes.EOF, 0);
+                failWrites(ErrorCodes.EOF);
+                return;
             } catch (IOException ioe) {
                 if (log.isDebugEnabled()) {
                     log.debug("Error on write: {}", ioe);
                 }
-                qw.getHandler().ioComplete(ErrorCodes.EIO, 0);
+                failWrites(ErrorCodes.EIO);
+                return;
+            } finally {
+                Arrays.fill(gatheredWrites, 0, count, null);
+            }
+
+            // Complete every write that was sent in its entirety, in order
+            for (int i = 0; i < count; i++) {
+                qw = writeQueue.peekFirst();
+                if (qw.buf.hasRemaining()) {
+                    // We didn't write the whole thing -- need to keep writing.
+                    writeReady = false;
+                    addInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.pollFirst();
+                queuedBytes -= qw.getLength();
+                assert(queuedBytes >= 0);
+                completeWrite(qw, 0, qw.getLength());
             }
         }
     }
 
+    private void processShutdown(QueuedWrite qw)
+    {
+        queuedBytes -= qw.getLength();
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Sending shutdown for {}", clientChannel);
+            }
+            clientChannel.socket().shutdownOutput();
+            completeWrite(qw, 0, 0);
+        } catch (ClosedChannelException cce) {
+            if (log.isDebugEnabled()) {
+                log.debug("Channel is closed");
+            }
+            completeWrite(qw, ErrorCodes.EOF, 0);
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error on shutdown: {}", ioe);
+            }
+            completeWrite(qw, ErrorCodes.EIO, 0);
+        }
+    }
+
+    /**
+     * Fail every write on the queue, since the socket is no good. Writes that the handlers queue while
+     * this runs are left for the next pass.
+     */
+    private void failWrites(int err)
+    {
+        int count = writeQueue.size();
+        for (int i = 0; i < count; i++) {
+            QueuedWrite qw = writeQueue.pollFirst();
+            queuedBytes -= qw.getLength();
+            completeWrite(qw, err, 0);
+        }
+    }
+
+    private static void completeWrite(QueuedWrite qw, int err, int len)
+    {
+        // Only the last buffer from "writev" has a handler
+        if (qw.getHandler() != null) {
+            qw.getHandler().ioComplete(err, len);
+        }
+    }
+
     @Override
     protected void processReads()
     {
         if (!readStarted) {
             return;
         }
+        // Socket reads always happen on the thread that runs the script, so they share that thread's slab
+        // rather than each socket having its own buffer.
+        SlabAllocator alloc = SlabAllocator.get();
         int read;
         do {
             try {
-                read = clientChannel.read(readBuffer);
+                read = clientChannel.read(alloc.getReadBuffer(READ_BUFFER_SIZE, READ_BUFFER_SIZE));
             } catch (IOException ioe) {
                 if (log.isDebugEnabled()) {
                     log.debug("Error reading from channel: {}", ioe, ioe);
@@ -486,15 +587,11 @@ public class NIOSocketHandle
                 read = -1;
             }
             if (log.isDebugEnabled()) {
-                log.debug("Read {} bytes from {} into {}", read, clientChannel, readBuffer);
+                log.debug("Read {} bytes from {}", read, clientChannel);
             }
             if (read > 0) {
-                readBuffer.flip();
-                ByteBuffer buf = ByteBuffer.allocate(readBuffer.remaining());
-                buf.put(readBuffer);
-                buf.flip();
-                readBuffer.clear();
-                readHandler.ioComplete(0, buf);
+                // The handler owns this slice of the slab from now on
+                readHandler.ioComplete(0, alloc.claim());
 
             } else if (read < 0) {
                 removeInterest(SelectionKey.OP_READ);
@@ -503,6 +600,15 @@ public class NIOSocketHandle
         } while (readStarted && (read > 0));
     }
 
+    /**
+     * Internal: Tell the allocator that a buffer that was just delivered to a read handler on this thread
+     * was completely consumed, and that no reference to it was kept, so that the space may be re-used.
+     */
+    public static void releaseReadBuffer(ByteBuffer buf)
+    {
+        SlabAllocator.get().release(buf);
+    }
+
     @Override
     public InetSocketAddress getSockName()
     {
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class hands out buffers for network reads by carving them off of a larger "slab." That way the data
+ * may be passed on to the reader without copying it, and without allocating a new buffer for every read.
+ * This is the same thing that Node itself did for socket reads.
+ * <p>
+ * A slab is never re-used once it is full. Instead, it is garbage-collected once none of the buffers that were
+ * carved from it are referenced any more, so a buffer that is handed to JavaScript code may live as long as
+ * it needs to. In addition, if the last buffer that was handed out was consumed completely and not saved
+ * anywhere, the caller may "release" it so that its space is used by the next read. Reads that are smaller
+ * than the "copy size" are copied in to a buffer of their own, so that a few bytes that are kept around
+ * do not keep a whole slab from being collected.
+ * </p>
+ * <p>
+ * An allocator is not thread-safe, so each one must only be used by a single thread. Socket reads and
+ * TLS output both share the allocator returned by "get" for the current thread.
+ * </p>
+ */
+public class SlabAllocator
+{
+    public static final int DEFAULT_SLAB_SIZE = 256 * 1024;
+
+    /**
+     * The size of the slabs that are shared by everything on a thread. This is small, because in some
+     * modes every script has a thread of its own.
+     */
+    public static final int SHARED_SLAB_SIZE = 64 * 1024;
+    public static final int SHARED_READ_SIZE = 32 * 1024;
+    public static final int SHARED_COPY_SIZE = 1024;
+
+    private static final ThreadLocal<SlabAllocator> shared =
+        new ThreadLocal<SlabAllocator>()
+        {
+            @Override
+            protected SlabAllocator initialValue()
+            {
+                return new SlabAllocator(SHARED_SLAB_SIZE, SHARED_READ_SIZE, SHARED_COPY_SIZE, false);
+            }
+        };
+
+    private final int slabSize;
+    private final int readSize;
+    private final int copySize;
+    private final boolean direct;
+
+    private ByteBuffer slab;
+    private int top;
+    private ByteBuffer lastBuffer;
+    private int lastStart;
+    private long slabCount;
+
+    /**
+     * Create an allocator that will allocate slabs of "slabSize" bytes, and always allow up to "readSize"
+     * bytes for each read. If "direct" is true then the slabs will be direct buffers, which only makes sense
+     * if the data won't be passed to JavaScript, because the "Buffer" class requires an array.
+     */
+    public SlabAllocator(int slabSize, int readSize, boolean direct)
+    {
+        this(slabSize, readSize, 0, direct);
+    }
+
+    /**
+     * Create an allocator as above, which also copies any read of fewer than "copySize" bytes in to a
+     * buffer of its own rather than handing out part of the slab.
+     */
+    public SlabAllocator(int slabSize, int readSize, int copySize, boolean direct)
+    {
+        if (readSize > slabSize) {
+            throw new IllegalArgumentException("Read size may not be larger than the slab size");
+        }
+        this.slabSize = slabSize;
+        this.readSize = readSize;
+        this.copySize = copySize;
+        this.direct = direct;
+    }
+
+    /**
+     * Return the allocator that is shared by everything that runs on the current thread.
+     */
+    public static SlabAllocator get()
+    {
+        return shared.get();
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public int getReadSize() {
+        return readSize;
+    }
+
+    public int getCopySize() {
+        return copySize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Return the number of slabs that have been allocated so far.
+     */
+    public long getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * Return a buffer with room to read up to "readSize" bytes. The same buffer is returned every time until
+     * the slab fills up, so "claim" must be called after every read that returned data.
+     */
+    public ByteBuffer getReadBuffer()
+    {
+        return getReadBuffer(readSize, readSize);
+    }
+
+    /**
+     * Return a buffer as above with room for at least "minSize" bytes, and for up to "maxSize" if there
+     * is that much left in the current slab.
+     */
+    public ByteBuffer getReadBuffer(int minSize, int maxSize)
+    {
+        if ((minSize > slabSize) || (maxSize < minSize)) {
+            throw new IllegalArgumentException("Invalid read size");
+        }
+        if ((slab == null) || ((slabSize - top) < minSize)) {
+            slab = (direct ? ByteBuffer.allocateDirect(slabSize) : ByteBuffer.allocate(slabSize));
+            top = 0;
+            lastBuffer = null;
+            slabCount++;
+        }
+        slab.limit(top + Math.min(maxSize, slabSize - top));
+        slab.position(top);
+        return slab;
+    }
+
+    /**
+     * Return a new buffer that contains only the data that was read into the buffer returned by
+     * "getReadBuffer," and make sure that the space is not handed out again.
+     */
+    public ByteBuffer claim()
+    {
+        int end = slab.position();
+        slab.limit(end);
+        slab.position(top);
+
+        if ((end - top) < copySize) {
+            // Leave the space in the slab for the next read
+            ByteBuffer copy = ByteBuffer.allocate(end - top);
+            copy.put(slab);
+            copy.flip();
+            lastBuffer = null;
+            return copy;
+        }
+
+        ByteBuffer buf = slab.slice();
+
+        lastBuffer = buf;
+        lastStart = top;
+        top = end;
+        return buf;
+    }
+
+    /**
+     * Indicate that the buffer was consumed and is no longer referenced by anyone. If it was the last one
+     * returned by "claim" then its space will be used for the next read and this method returns true.
+     * Otherwise nothing happens.
+     */
+    public boolean release(ByteBuffer buf)
+    {
+        if ((buf != null) && (buf == lastBuffer)) {
+            top = lastStart;
+            lastBuffer = null;
+            return true;
+        }
+        return false;
+    }
+}
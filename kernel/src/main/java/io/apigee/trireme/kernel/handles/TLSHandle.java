@@ -57,7 +57,7 @@ public class TLSHandle
 
         tls.setWriteCallback(new TriCallback<ByteBuffer, Boolean, Object>() {
             @Override
-            public void call(ByteBuffer buf, final Boolean isShutdown, Object cb)
+            public void call(final ByteBuffer buf, final Boolean isShutdown, Object cb)
             {
                 final Callback<Object> callback = (Callback<Object>)cb;
 
@@ -71,6 +71,8 @@ public class TLSHandle
                         @Override
                         public void ioComplete(int errCode, Integer value)
                         {
+                            // Nobody else saw the buffer, so TLS may write the next record in the same space
+                            TLSConnection.releaseOutputBuffer(buf);
                             if (isShutdown) {
                                 handle.shutdown(new IOCompletionHandler<Integer>()
                                 {
@@ -122,6 +124,7 @@ public class TLSHandle
             log.trace("Sending {} via TLS", buf);
         }
 
+        int len = buf.remaining();
         tls.wrap(buf, new Callback<Object>()
         {
             @Override
@@ -136,7 +139,14 @@ public class TLSHandle
                 }
             }
         });
-        return tls.getWriteQueueLength();
+        // Like the other handles, report how much was written, whether or not it is still queued
+        return len;
+    }
+
+    @Override
+    public int getWritesOutstanding()
+    {
+        return tls.getWriteQueueLength() + handle.getWritesOutstanding();
     }
 
     private void setTlsReadCallback(final IOCompletionHandler<ByteBuffer> handler)
@@ -166,6 +176,10 @@ public class TLSHandle
                 }
                 if ((buf != null) && buf.hasRemaining()) {
                     tls.unwrap(buf, null);
+                    if (!buf.hasRemaining()) {
+                        // TLS copied all of it, so the socket may read into the same space again
+                        NIOSocketHandle.releaseReadBuffer(buf);
+                    }
                 }
                 if (errCode != 0) {
                     // Tell TLS that the inbound closed, but don't try and use the socket again.
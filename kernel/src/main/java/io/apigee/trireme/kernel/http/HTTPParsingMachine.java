@@ -24,15 +24,20 @@ package io.apigee.trireme.kernel.http;
 import io.apigee.trireme.kernel.Charsets;
 
 import java.nio.ByteBuffer;
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 
 /**
  * This is a generic HTTP parser that obeys the basic contract expected by Node. The "HTTPParser"
  * module uses this to perform parsing in a native way for Node.
+ * <p>
+ * The parser works directly on the bytes in the buffer rather than turning each line into a String and
+ * matching it against a regular expression. It only copies data when a line is split between two buffers.
+ * Common methods, header names, and header values are returned as shared String objects, and the
+ * Result object and its lists of headers are re-used by the next call to "parse," so callers must
+ * not hold on to them. The grammar is the same as the one in HTTPGrammar.
+ * </p>
  */
 public class HTTPParsingMachine
 {
@@ -52,14 +57,62 @@ public class HTTPParsingMachine
 
     public static final String CONNECT_METHOD = "CONNECT";
 
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int INITIAL_HEADERS = 16;
+
+    private static final byte[] HTTP_PREFIX = "HTTP/".getBytes(Charsets.ASCII);
+
+    private static final boolean[] TOKEN_CHARS = new boolean[128];
+
+    static {
+        for (int c = 0x21; c < 0x7f; c++) {
+            TOKEN_CHARS[c] = true;
+        }
+        for (char c : "()<>@,;:\"/[]?+{}\\".toCharArray()) {
+            TOKEN_CHARS[c] = false;
+        }
+    }
+
+    private static final StringTable METHODS = new StringTable(
+        "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "CONNECT", "TRACE");
+
+    private static final StringTable REASONS = new StringTable(
+        "OK", "Created", "Accepted", "No Content", "Partial Content", "Continue", "Switching Protocols",
+        "Moved Permanently", "Found", "See Other", "Not Modified", "Temporary Redirect",
+        "Bad Request", "Unauthorized", "Forbidden", "Not Found", "Method Not Allowed", "Conflict",
+        "Internal Server Error", "Bad Gateway", "Service Unavailable", "Gateway Timeout");
+
+    private static final StringTable HEADER_NAMES = new StringTable(withLowerCase(
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age", "Allow",
+        "Authorization", "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+        "Content-Language", "Content-Length", "Content-Location", "Content-Range", "Content-Type", "Cookie",
+        "Date", "ETag", "Expect", "Expires", "Forwarded", "From", "Host", "If-Match", "If-Modified-Since",
+        "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Link", "Location",
+        "Origin", "Pragma", "Proxy-Authenticate", "Proxy-Authorization", "Proxy-Connection", "Range",
+        "Referer", "Retry-After", "Server", "Set-Cookie", "Strict-Transport-Security", "TE", "Trailer",
+        "Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "Via", "Warning", "WWW-Authenticate",
+        "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto", "X-Requested-With"));
+
+    private static final StringTable HEADER_VALUES = new StringTable(
+        "close", "Close", "keep-alive", "Keep-Alive", "upgrade", "Upgrade", "websocket", "chunked", "identity",
+        "gzip", "deflate", "gzip, deflate", "*/*", "no-cache", "max-age=0", "bytes", "0", "localhost",
+        "text/plain", "text/html", "application/json", "application/octet-stream",
+        "application/x-www-form-urlencoded", "100-continue");
+
     private final ParsingMode     mode;
     private BodyMode              bodyMode;
     private Status                state;
-    private ByteBuffer            oddData;
+
+    // Part of a line that was split across buffers. When a line is complete, it is in "lineBytes"
+    // between "lineStart" and "lineEnd," which is either "partialLine" or the array of the input buffer.
+    private byte[]      partialLine = new byte[INITIAL_LINE_SIZE];
+    private int         partialLength;
+    private byte[]      lineBytes;
+    private int         lineStart;
+    private int         lineEnd;
 
     // These are set on each request for the convenience of the callee.
     // HTTP headers and body are NOT to save on GC.
-    private boolean     readCR;
     private String      method;
     private String      uri;
     private int         majorVersion;
@@ -70,11 +123,25 @@ public class HTTPParsingMachine
     private boolean     upgradeHeader;
     private boolean     connectionUpgrade;
     private boolean     connectMethod;
-    private Map.Entry<String, String> lastHeader;
-    private Map.Entry<String, String> lastTrailer;
+    private Header      lastHeader;
+    private Header      lastTrailer;
+    private boolean     holdingHeader;
+    private boolean     holdingTrailer;
     private int         contentLength;
     private int         readLength;
 
+    // Everything that we hand back from "parse" is re-used on the next call
+    private final Result result = new Result();
+    private final ArrayList<Map.Entry<String, String>> headerList =
+        new ArrayList<Map.Entry<String, String>>(INITIAL_HEADERS);
+    private final ArrayList<Map.Entry<String, String>> trailerList =
+        new ArrayList<Map.Entry<String, String>>();
+    private Header[]    entries = new Header[INITIAL_HEADERS];
+    private int         entryCount;
+    // The last header or trailer of a call that ran out of input, which the next line might continue
+    private final Header heldHeader = new Header();
+    private final Header heldTrailer = new Header();
+
     public HTTPParsingMachine(ParsingMode mode)
     {
         this.mode = mode;
@@ -86,15 +153,23 @@ public class HTTPParsingMachine
      * The parser will try to maintain as little state as possible but it may keep some of the buffer
      * for incomplete processing. "buf" is not copied --  the body data retained may contain a slice of
      * "buf," so the caller must not modify "buf" after making this call. "buf" may be null in which case
-     * we assume that there is no more input coming.
+     * we assume that there is no more input coming. The result is only valid until the next call.
      */
     public Result parse(ByteBuffer buf)
     {
-        Result r = new Result();
+        Result r = result;
+        r.clear();
+        headerList.clear();
+        trailerList.clear();
+        // The header objects from the last call are about to be re-used
+        entryCount = 0;
+        lastHeader = null;
+        lastTrailer = null;
+
         while (true) {
             switch (state) {
             case START:
-                if (!processStart(buf, r)) {
+                if (!processStart(buf)) {
                     return r;
                 }
                 break;
@@ -145,8 +220,7 @@ public class HTTPParsingMachine
     {
         bodyMode = BodyMode.NONE;
         state = Status.START;
-        oddData = null;
-        readCR = false;
+        partialLength = 0;
 
         method = null;
         uri = null;
@@ -158,6 +232,9 @@ public class HTTPParsingMachine
         connectionUpgrade = false;
         connectMethod = false;
         lastHeader = null;
+        lastTrailer = null;
+        holdingHeader = false;
+        holdingTrailer = false;
         contentLength = 0;
         readLength = -1;
     }
@@ -185,58 +262,30 @@ public class HTTPParsingMachine
      * Process the start line -- return false if we can't get a complete line, and otherwise return true and
      * update the state as appropriate.
      */
-    private boolean processStart(ByteBuffer buf, Result r)
+    private boolean processStart(ByteBuffer buf)
     {
-        skipBlankLine(buf);
-        String startLine = readLine(buf);
-        if (startLine == null) {
-            // We don't have a complete start line yet
-            storeRemaining(buf);
-            return false;
-        }
+        do {
+            if (!readLine(buf)) {
+                // We don't have a complete start line yet
+                return false;
+            }
+            // Skip extra blank lines between pipelined requests
+        } while (lineStart == lineEnd);
 
-        Matcher m;
+        boolean ok;
         switch (mode) {
         case REQUEST:
-            m = HTTPGrammar.REQUEST_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() != 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            method = m.group(1);
-            if (CONNECT_METHOD.equalsIgnoreCase(method)) {
-                connectMethod = true;
-            }
-            uri = m.group(2);
-            try {
-                majorVersion = Integer.parseInt(m.group(3));
-                minorVersion = Integer.parseInt(m.group(4));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
+            ok = parseRequestLine(lineBytes, lineStart, lineEnd);
             break;
-
         case RESPONSE:
-            m = HTTPGrammar.STATUS_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() < 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            try {
-                majorVersion = Integer.parseInt(m.group(1));
-                minorVersion = Integer.parseInt(m.group(2));
-                statusCode = Integer.parseInt(m.group(3));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
-            if (m.group(4) == null) {
-                reasonPhrase = "";
-            } else {
-                reasonPhrase = m.group(4).trim();
-            }
+            ok = parseStatusLine(lineBytes, lineStart, lineEnd);
             break;
+        default:
+            throw new AssertionError();
+        }
+        if (!ok) {
+            state = Status.ERROR;
+            return true;
         }
 
         // Initialize keep alive -- we will explictly check the "Connection" header later
@@ -248,53 +297,112 @@ public class HTTPParsingMachine
         return true;
     }
 
+    /**
+     * Parse "METHOD URI HTTP/x.y".
+     */
+    private boolean parseRequestLine(byte[] b, int start, int end)
+    {
+        int sp = start;
+        while ((sp < end) && isToken(b[sp])) {
+            sp++;
+        }
+        if ((sp == start) || (sp == end) || (b[sp] != ' ')) {
+            return false;
+        }
+
+        int e = trimEnd(b, sp, end);
+        // "e - 8" is where "HTTP/x.y" must start, and there must be a space and at least one character of URI
+        int v = e - 8;
+        if ((v <= (sp + 2)) || (b[v - 1] != ' ') || !isVersion(b, v)) {
+            return false;
+        }
+        for (int i = sp + 1; i < (v - 1); i++) {
+            if (!isText(b[i])) {
+                return false;
+            }
+        }
+
+        method = METHODS.get(b, start, sp);
+        if (CONNECT_METHOD.equalsIgnoreCase(method)) {
+            connectMethod = true;
+        }
+        uri = new String(b, sp + 1, v - sp - 2, Charsets.ASCII);
+        majorVersion = b[v + 5] - '0';
+        minorVersion = b[v + 7] - '0';
+        return true;
+    }
+
+    /**
+     * Parse "HTTP/x.y CODE REASON", where the reason phrase is optional.
+     */
+    private boolean parseStatusLine(byte[] b, int start, int end)
+    {
+        if (((end - start) < 10) || !isVersion(b, start) || (b[start + 8] != ' ')) {
+            return false;
+        }
+
+        int p = start + 9;
+        long code = 0;
+        while ((p < end) && isDigit(b[p])) {
+            code = (code * 10L) + (b[p] - '0');
+            if (code > Integer.MAX_VALUE) {
+                return false;
+            }
+            p++;
+        }
+        if (p == (start + 9)) {
+            return false;
+        }
+
+        if ((p < end) && (b[p] == ' ')) {
+            for (int i = p; i < end; i++) {
+                if (!isText(b[i])) {
+                    return false;
+                }
+            }
+            int rs = p;
+            while ((rs < end) && isLws(b[rs])) {
+                rs++;
+            }
+            reasonPhrase = REASONS.get(b, rs, trimEnd(b, rs, end));
+        } else {
+            for (int i = p; i < end; i++) {
+                if (!isLws(b[i])) {
+                    return false;
+                }
+            }
+            reasonPhrase = "";
+        }
+
+        majorVersion = b[start + 5] - '0';
+        minorVersion = b[start + 7] - '0';
+        statusCode = (int)code;
+        return true;
+    }
+
     /**
      * Process lines until either we can't read a complete line, or we get to the end of the headers.
      */
     private boolean processHeaders(ByteBuffer buf, Result r)
     {
-        ArrayList<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-        r.setHeaders(headers);
-        String line = readLine(buf);
-
-        while (line != null) {
-            if (line.isEmpty()) {
+        r.setHeaders(headerList);
+        while (readLine(buf)) {
+            if (lineStart == lineEnd) {
+                releaseHeld(true);
                 state = Status.BODY;
                 if ((upgradeHeader && connectionUpgrade) || connectMethod) {
                     // Stop processing data after headers on a CONNECT or Upgrade
                     return false;
                 }
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2).trim());
-                    headers.add(hdr);
-                    lastHeader = hdr;
-                    if (!processHeader(hdr.getKey(), hdr.getValue())) {
-                        state = Status.ERROR;
-                        return true;
-                    }
-
-                } else if (lastHeader != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastHeader.setValue(lastHeader.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseHeaderLine(true)) {
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
+        holdLast(true);
         return false;
     }
 
@@ -303,43 +411,126 @@ public class HTTPParsingMachine
      */
     private boolean processTrailers(ByteBuffer buf, Result r)
     {
-        ArrayList<Map.Entry<String, String>> trailers = new ArrayList<Map.Entry<String, String>>();
-        r.setTrailers(trailers);
-        String line = readLine(buf);
-
-        while (line != null) {
-            if (line.isEmpty()) {
+        r.setTrailers(trailerList);
+        while (readLine(buf)) {
+            if (lineStart == lineEnd) {
+                releaseHeld(false);
                 state = Status.COMPLETE;
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2));
-                    trailers.add(hdr);
-                    lastTrailer = hdr;
-
-                } else if (lastTrailer != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastTrailer.setValue(lastTrailer.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseHeaderLine(false)) {
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
+        holdLast(false);
         return false;
     }
 
+    /**
+     * We ran out of input while reading headers or trailers. If the next line might continue the last one,
+     * take it out of this result and hold on to it until we know. If we already have the start of the
+     * next line, then we know now.
+     */
+    private void holdLast(boolean isHeader)
+    {
+        Header last = (isHeader ? lastHeader : lastTrailer);
+        if ((last == null) || ((partialLength > 0) && !isLws(partialLine[0]))) {
+            return;
+        }
+        ArrayList<Map.Entry<String, String>> list = (isHeader ? headerList : trailerList);
+        Header held = (isHeader ? heldHeader : heldTrailer);
+        held.key = last.key;
+        held.value = last.value;
+        list.remove(list.size() - 1);
+        if (isHeader) {
+            lastHeader = null;
+            holdingHeader = true;
+        } else {
+            lastTrailer = null;
+            holdingTrailer = true;
+        }
+    }
+
+    /**
+     * Add any header or trailer that was held back by "holdLast" to this result.
+     */
+    private void releaseHeld(boolean isHeader)
+    {
+        if (!(isHeader ? holdingHeader : holdingTrailer)) {
+            return;
+        }
+        Header held = (isHeader ? heldHeader : heldTrailer);
+        Header hdr = newHeader();
+        hdr.key = held.key;
+        hdr.value = held.value;
+        if (isHeader) {
+            headerList.add(hdr);
+            lastHeader = hdr;
+            holdingHeader = false;
+        } else {
+            trailerList.add(hdr);
+            lastTrailer = hdr;
+            holdingTrailer = false;
+        }
+    }
+
+    /**
+     * Parse a header or trailer line, or a continuation of the last one. Return false if it's invalid.
+     */
+    private boolean parseHeaderLine(boolean isHeader)
+    {
+        byte[] b = lineBytes;
+        int start = lineStart;
+        int end = lineEnd;
+
+        releaseHeld(isHeader);
+        if (isLws(b[start])) {
+            // Continuation of the previous header
+            int vs = skipLws(b, start, end);
+            int ve = valueEnd(b, vs, end);
+            if (ve < 0) {
+                return false;
+            }
+            Header last = (isHeader ? lastHeader : lastTrailer);
+            if (last == null) {
+                // There is nothing to continue
+                return false;
+            }
+            last.value = last.value + new String(b, vs, ve - vs, Charsets.ASCII);
+            return true;
+        }
+
+        int colon = start;
+        while ((colon < end) && isToken(b[colon])) {
+            colon++;
+        }
+        if ((colon == start) || (colon == end) || (b[colon] != ':')) {
+            return false;
+        }
+        int vs = skipLws(b, colon + 1, end);
+        int ve = valueEnd(b, vs, end);
+        if (ve < 0) {
+            return false;
+        }
+
+        Header hdr = newHeader();
+        hdr.key = HEADER_NAMES.get(b, start, colon);
+        if (isHeader) {
+            // Trailing white space is only removed from headers
+            ve = trimEnd(b, vs, ve);
+            hdr.value = HEADER_VALUES.get(b, vs, ve);
+            headerList.add(hdr);
+            lastHeader = hdr;
+            return processHeader(hdr.key, hdr.value);
+        }
+        hdr.value = HEADER_VALUES.get(b, vs, ve);
+        trailerList.add(hdr);
+        lastTrailer = hdr;
+        return true;
+    }
+
     /**
      * Treat any headers that we care about because we need to handle the rest of the protocol.
      */
@@ -438,29 +629,45 @@ public class HTTPParsingMachine
      */
     private boolean processChunkHeader(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
             return false;
         }
-        try {
-            String hdr = line;
-            int semi = hdr.indexOf(';');
-            if (semi > 0) {
-                hdr = line.substring(0, semi);
+        byte[] b = lineBytes;
+        int end = lineEnd;
+        for (int i = lineStart + 1; i < lineEnd; i++) {
+            if (b[i] == ';') {
+                // Ignore chunk extensions
+                end = i;
+                break;
             }
-            contentLength = Integer.parseInt(hdr, 16);
-            readLength = 0;
-            if (contentLength == 0) {
-                state = Status.TRAILERS;
-            } else {
-                state = Status.CHUNK_BODY;
+        }
+
+        long len = 0;
+        for (int i = lineStart; i < end; i++) {
+            int digit = Character.digit(b[i], 16);
+            if (digit < 0) {
+                state = Status.ERROR;
+                return true;
             }
-            return true;
-        } catch (NumberFormatException nfe) {
+            len = (len * 16L) + digit;
+            if (len > Integer.MAX_VALUE) {
+                state = Status.ERROR;
+                return true;
+            }
+        }
+        if (end == lineStart) {
             state = Status.ERROR;
             return true;
         }
+
+        contentLength = (int)len;
+        readLength = 0;
+        if (contentLength == 0) {
+            state = Status.TRAILERS;
+        } else {
+            state = Status.CHUNK_BODY;
+        }
+        return true;
     }
 
     /**
@@ -468,9 +675,7 @@ public class HTTPParsingMachine
      */
     private boolean processChunkTrailer(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
             return false;
         }
         if (contentLength == 0) {
@@ -534,106 +739,244 @@ public class HTTPParsingMachine
     }
 
     /**
-     * Read a single line according to the HTTP spec -- read the line up to the end of a CRLF pair (not anything
-     * else, just CRLF and exactly that) and turn it into an ASCII (not UTF-8) string. For other protocols, like SIP,
-     * we'd want to modify this.
+     * Find a single line according to the HTTP spec -- up to the end of a CRLF pair (not anything
+     * else, just CRLF and exactly that). If there is one, set "lineBytes," "lineStart," and "lineEnd" to
+     * the line without the CRLF, advance the buffer past it, and return true. Otherwise, save the rest of the
+     * buffer until the next call and return false. For other protocols, like SIP, we'd want to modify this.
      */
-    private String readLine(ByteBuffer buf)
+    private boolean readLine(ByteBuffer buf)
     {
         if (buf == null) {
-            return null;
-        }
-        int p = buf.position();
-        while (p < buf.limit()) {
-            // Search for the first CRLF pair before end of buffer
-            byte b = buf.get(p);
-            if (readCR && (b == '\n')) {
-                // If we get here then "p" points to the last character in the line. Slice the buffer.
-                readCR = false;
-                ByteBuffer line = buf.duplicate();
-                p++;
-                line.limit(p);
-                buf.position(p);
-
-                // Be sure to read from the odd-data buffer as well.
-                String ret;
-                if (oddData == null) {
-                    ret = bufferToString(line);
-                } else {
-                    oddData.flip();
-                    // This is only valid because we know that the line is ASCII
-                    ret = bufferToString(oddData) + bufferToString(line);
-                    oddData.clear();
+            return false;
+        }
+        int pos = buf.position();
+        int limit = buf.limit();
+
+        if (buf.hasArray()) {
+            byte[] a = buf.array();
+            int offset = buf.arrayOffset();
+            for (int i = pos; i < limit; i++) {
+                if ((a[offset + i] == '\n') &&
+                    ((i > pos) ? (a[offset + i - 1] == '\r') : endsWithCR())) {
+                    if (partialLength == 0) {
+                        // The usual case -- the whole line is right there in the buffer
+                        lineBytes = a;
+                        lineStart = offset + pos;
+                        lineEnd = offset + i - 1;
+                    } else {
+                        appendPartial(a, offset + pos, i + 1 - pos);
+                        completePartial();
+                    }
+                    buf.position(i + 1);
+                    return true;
+                }
+            }
+        } else {
+            for (int i = pos; i < limit; i++) {
+                if ((buf.get(i) == '\n') &&
+                    ((i > pos) ? (buf.get(i - 1) == '\r') : endsWithCR())) {
+                    int len = i + 1 - pos;
+                    ensurePartial(len);
+                    buf.get(partialLine, partialLength, len);
+                    partialLength += len;
+                    completePartial();
+                    return true;
                 }
-                assert(ret.endsWith("\r\n"));
-                return ret.substring(0, ret.length() - 2);
-
-            } else if (!readCR && (b == '\r')) {
-                readCR = true;
-            } else {
-                readCR = false;
             }
-            p++;
         }
-        return null;
+
+        // If we get here then there isn't a whole line, so save it for next time
+        int len = limit - pos;
+        ensurePartial(len);
+        buf.get(partialLine, partialLength, len);
+        partialLength += len;
+        return false;
+    }
+
+    private boolean endsWithCR()
+    {
+        return ((partialLength > 0) && (partialLine[partialLength - 1] == '\r'));
+    }
+
+    private void appendPartial(byte[] b, int start, int len)
+    {
+        ensurePartial(len);
+        System.arraycopy(b, start, partialLine, partialLength, len);
+        partialLength += len;
     }
 
-    private String bufferToString(ByteBuffer buf)
+    private void ensurePartial(int len)
     {
-        assert(buf.hasArray());
-        return new String(buf.array(), buf.arrayOffset() + buf.position(),
-                          buf.remaining(), Charsets.ASCII);
+        if ((partialLength + len) > partialLine.length) {
+            byte[] newLine = new byte[Math.max(partialLine.length * 2, partialLength + len)];
+            System.arraycopy(partialLine, 0, newLine, 0, partialLength);
+            partialLine = newLine;
+        }
     }
 
     /**
-     * Skip the first two characters in the buffer or in the "odd data" buffer if and only if
-     * they are an empty CRLF. We use this to skip extra lines in pipelined requests.
+     * The partial line buffer now ends with CRLF -- make it the current line.
      */
-    private void skipBlankLine(ByteBuffer buf)
+    private void completePartial()
     {
-        // Tricky because we have to look in two different buffers.
-        if (oddData == null) {
-            if (buf.remaining() >= 2) {
-                if ((buf.get(buf.position()) == '\r') && (buf.get(buf.position() + 1) == '\n')) {
-                    buf.position(buf.position() + 2);
-                }
-            }
-        } else if (oddData.remaining() == 1) {
-            if (buf.remaining() >= 1) {
-                if ((oddData.get(0) == '\r') && (buf.get(buf.position()) == '\n')) {
-                    oddData = null;
-                    buf.position(buf.position() + 1);
-                }
-            }
-        } else if (oddData.remaining() >= 2) {
-            if ((oddData.get(0) == '\r') && (oddData.get(1) == '\n')) {
-                oddData.position(2);
-                if (!oddData.hasRemaining()) {
-                    oddData = null;
-                }
+        lineBytes = partialLine;
+        lineStart = 0;
+        lineEnd = partialLength - 2;
+        partialLength = 0;
+    }
+
+    private Header newHeader()
+    {
+        if (entryCount == entries.length) {
+            Header[] newEntries = new Header[entries.length * 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            entries = newEntries;
+        }
+        Header h = entries[entryCount];
+        if (h == null) {
+            h = new Header();
+            entries[entryCount] = h;
+        }
+        entryCount++;
+        return h;
+    }
+
+    private static boolean isToken(byte b)
+    {
+        // Non-ASCII characters were always allowed here
+        return ((b < 0) || TOKEN_CHARS[b]);
+    }
+
+    private static boolean isCtl(byte b)
+    {
+        return ((b >= 0) && ((b < 0x20) || (b == 0x7f)));
+    }
+
+    /**
+     * Characters allowed in the URI and reason phrase.
+     */
+    private static boolean isText(byte b)
+    {
+        return (!isCtl(b) || (b == '\t'));
+    }
+
+    private static boolean isLws(byte b)
+    {
+        return ((b == ' ') || (b == '\t'));
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return ((b >= '0') && (b <= '9'));
+    }
+
+    /**
+     * Is there an "HTTP/x.y" at "start"?
+     */
+    private static boolean isVersion(byte[] b, int start)
+    {
+        for (int i = 0; i < HTTP_PREFIX.length; i++) {
+            if (b[start + i] != HTTP_PREFIX[i]) {
+                return false;
             }
         }
+        return (isDigit(b[start + 5]) && (b[start + 6] == '.') && isDigit(b[start + 7]));
+    }
+
+    private static int skipLws(byte[] b, int start, int end)
+    {
+        int i = start;
+        while ((i < end) && isLws(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(byte[] b, int start, int end)
+    {
+        int i = end;
+        while ((i > start) && isLws(b[i - 1])) {
+            i--;
+        }
+        return i;
     }
 
     /**
-     * Copy whatever is remaining in the current buffer into the "odd data" buffer, so that we can handle
-     * partial lines and chunks.
+     * A header value is a string of non-control characters followed by optional white space. Return
+     * the end of the non-control characters, or -1 if the value is not valid.
      */
-    private void storeRemaining(ByteBuffer buf)
+    private static int valueEnd(byte[] b, int start, int end)
     {
-        if (buf == null) {
-            return;
+        int i = start;
+        while ((i < end) && !isCtl(b[i])) {
+            i++;
+        }
+        for (int j = i; j < end; j++) {
+            if (!isLws(b[j])) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private static final class Header
+        implements Map.Entry<String, String>
+    {
+        String key;
+        String value;
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public String getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String setValue(String v)
+        {
+            String old = value;
+            value = v;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey())) &&
+                   (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + '=' + value;
         }
-        // TODO should we slice the buffer instead and make a list of buffers?
-        if (oddData == null) {
-            oddData = ByteBuffer.allocate(buf.remaining());
-        } else if (oddData.remaining() < buf.remaining()) {
-            ByteBuffer newData = ByteBuffer.allocate(oddData.position() + buf.remaining());
-            oddData.flip();
-            newData.put(oddData);
-            oddData = newData;
+    }
+
+    private static String[] withLowerCase(String... names)
+    {
+        String[] all = new String[names.length * 2];
+        for (int i = 0; i < names.length; i++) {
+            all[i * 2] = names[i];
+            all[(i * 2) + 1] = names[i].toLowerCase().intern();
         }
-        oddData.put(buf);
+        return all;
     }
 
     public class Result
@@ -642,6 +985,13 @@ public class HTTPParsingMachine
         private List<Map.Entry<String, String>> trailers;
         private ByteBuffer body;
 
+        void clear()
+        {
+            headers = null;
+            trailers = null;
+            body = null;
+        }
+
         public boolean isError()
         {
             return (state == Status.ERROR);
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.http;
+
+import io.apigee.trireme.kernel.Charsets;
+
+/**
+ * A fixed hash table of strings that appear over and over again in HTTP messages, such as common
+ * methods and header names. The parser uses it to turn bytes into one of these String objects without
+ * decoding and allocating a new one each time. The table never changes after it is built, so it is
+ * safe to share between threads.
+ */
+final class StringTable
+{
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+    private final int maxLength;
+
+    StringTable(String... strings)
+    {
+        int size = 16;
+        while (size < (strings.length * 4)) {
+            size <<= 1;
+        }
+        keys = new byte[size][];
+        values = new String[size];
+        mask = size - 1;
+
+        int max = 0;
+        for (String s : strings) {
+            byte[] b = s.getBytes(Charsets.ASCII);
+            if (lookup(b, 0, b.length) == null) {
+                int i = hash(b, 0, b.length) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = b;
+                values[i] = s;
+                max = Math.max(max, b.length);
+            }
+        }
+        maxLength = max;
+    }
+
+    /**
+     * Return the string from the table that matches the bytes exactly, or null if there is none.
+     */
+    String lookup(byte[] b, int start, int end)
+    {
+        if ((end - start) > maxLength) {
+            return null;
+        }
+        int i = hash(b, start, end) & mask;
+        byte[] k;
+        while ((k = keys[i]) != null) {
+            if (matches(k, b, start, end)) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Return the string from the table that matches the bytes, or a new string if there is none.
+     */
+    String get(byte[] b, int start, int end)
+    {
+        String s = lookup(b, start, end);
+        if (s == null) {
+            return new String(b, start, end - start, Charsets.ASCII);
+        }
+        return s;
+    }
+
+    private static boolean matches(byte[] k, byte[] b, int start, int end)
+    {
+        if (k.length != (end - start)) {
+            return false;
+        }
+        for (int i = 0; i < k.length; i++) {
+            if (k[i] != b[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] b, int start, int end)
+    {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = (31 * h) + b[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
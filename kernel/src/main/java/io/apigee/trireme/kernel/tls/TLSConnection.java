@@ -26,6 +26,7 @@ import io.apigee.trireme.kernel.Callback;
 import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.GenericNodeRuntime;
 import io.apigee.trireme.kernel.TriCallback;
+import io.apigee.trireme.kernel.handles.SlabAllocator;
 import io.apigee.trireme.kernel.util.BufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,13 +35,19 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.X509TrustManager;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class abstracts the icky stuff around an SSLEngine, including all the looping and wrapping and unwrapping.
@@ -53,13 +60,43 @@ public class TLSConnection
 
     private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
+    /*
+     * SNI was added to SSLParameters in Java 8, and we build for Java 7, so look it up by reflection.
+     */
+    private static final Method getServerNames;
+    private static final Method setServerNames;
+
+    static {
+        Method getNames = null;
+        Method setNames = null;
+        try {
+            getNames = SSLParameters.class.getMethod("getServerNames");
+            setNames = SSLParameters.class.getMethod("setServerNames", List.class);
+        } catch (NoSuchMethodException nse) {
+            log.debug("SNI is not supported by this JDK");
+        }
+        getServerNames = getNames;
+        setServerNames = setNames;
+    }
+
+    /**
+     * The most space that we set aside for the output of a single pass through "wrap" or "unwrap." This has room
+     * for a few TLS records, so that a burst of small writes, or a large read from the network, turns in to
+     * a single callback.
+     */
+    public static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** The most chunks from the outgoing queue that we will pass to the engine at once. */
+    public static final int MAX_WRAP_CHUNKS = 16;
+
     private final ArrayDeque<TLSChunk> outgoing = new ArrayDeque<TLSChunk>();
     private final ArrayDeque<TLSChunk> incoming = new ArrayDeque<TLSChunk>();
 
     private final GenericNodeRuntime runtime;
     private final boolean isServer;
-    private final String serverName;
-    private final int serverPort;
+    private String serverName;
+    private int serverPort;
+    private byte[] requestedSession;
 
     private boolean requestCert;
     private boolean rejectUnauthorized;
@@ -70,15 +107,17 @@ public class TLSConnection
     private Callback<Void> onHandshakeDone;
     private Callback<Throwable> onError;
 
+    private SSLContext context;
     private SSLEngine engine;
     private X509TrustManager trustManager;
-    private ByteBuffer writeBuf;
-    private ByteBuffer readBuf;
+    private final ByteBuffer[] wrapSources = new ByteBuffer[MAX_WRAP_CHUNKS];
 
+    private boolean engineStarted;
     private boolean handshaking;
     private boolean initFinished;
     private boolean sentShutdown;
     private boolean receivedShutdown;
+    private long handshakeStartTime;
 
     private SSLException error;
     private SSLException verifyError;
@@ -95,25 +134,9 @@ public class TLSConnection
     public void init(SSLContext ctx, String ciphers[],
                      X509TrustManager trustManager)
     {
+        this.context = ctx;
         this.trustManager = trustManager;
-
-        if (!isServer && (serverName != null)) {
-            engine = ctx.createSSLEngine(serverName, serverPort);
-        } else {
-            engine = ctx.createSSLEngine();
-        }
-
-        engine.setUseClientMode(!isServer);
-
-        if (log.isDebugEnabled()) {
-            log.debug("Created SSLEngine {}", engine);
-        }
-
-        if (log.isDebugEnabled()) {
-            log.debug("Allocating read and write buffers of size {}", engine.getSession().getPacketBufferSize());
-        }
-        readBuf = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-        writeBuf = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.engine = createEngine(serverName, serverPort);
 
         // Do this last because we still want the previous initialization to succeed
         // to simplify error handling
@@ -128,6 +151,126 @@ public class TLSConnection
         }
     }
 
+    private SSLEngine createEngine(String host, int port)
+    {
+        SSLEngine e;
+        // JSSE only caches and resumes client sessions when it knows who the peer is
+        if (!isServer && (host != null)) {
+            e = context.createSSLEngine(host, port);
+        } else {
+            e = context.createSSLEngine();
+        }
+
+        e.setUseClientMode(!isServer);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Created SSLEngine {} for {}:{}", e, host, port);
+        }
+        return e;
+    }
+
+    /**
+     * Set the host name and port of the server for a client connection, if they were not known
+     * when this object was constructed. JSSE uses them to look up a session to resume,
+     * so this only has an effect before the handshake starts.
+     */
+    public void setPeer(String host, int port)
+    {
+        this.serverName = host;
+        this.serverPort = port;
+    }
+
+    /**
+     * Ask a client connection to resume the session with the specified ID, which must have come from
+     * "getSessionId" on an earlier connection that used the same SSLContext. This only has an effect
+     * before the handshake starts, and if the session is no longer cached then a full handshake happens as usual.
+     */
+    public void setSession(byte[] sessionId)
+    {
+        this.requestedSession = sessionId;
+    }
+
+    /**
+     * Return the ID of the current session, or null if the handshake has not completed.
+     */
+    public byte[] getSessionId()
+    {
+        if (!initFinished || (engine.getSession() == null)) {
+            return null;
+        }
+        byte[] id = engine.getSession().getId();
+        return ((id == null) || (id.length == 0) ? null : id);
+    }
+
+    /**
+     * Return whether the last handshake resumed a previous session rather than creating a new one.
+     * JSSE does not say so directly, but a resumed session was created before the handshake started.
+     */
+    public boolean isSessionReused()
+    {
+        if (!initFinished || (engine.getSession() == null)) {
+            return false;
+        }
+        return (engine.getSession().getCreationTime() < handshakeStartTime);
+    }
+
+    /**
+     * Before a client handshake starts, swap in a new engine if we now know more about the peer than
+     * we did when the first one was created. The engine has not done anything yet, so nothing is lost.
+     * A requested session is only used if it is for the server that we are connecting to, or if we
+     * don't know which server that is, so that a script can't resume a session with the wrong server.
+     */
+    private void resetClientEngine()
+    {
+        String host = serverName;
+        int port = serverPort;
+
+        if (requestedSession != null) {
+            SSLSession session = context.getClientSessionContext().getSession(requestedSession);
+            if ((session == null) || !session.isValid() || (session.getPeerHost() == null)) {
+                log.debug("Requested TLS session is no longer cached");
+            } else if ((host == null) ||
+                       (host.equalsIgnoreCase(session.getPeerHost()) && (port == session.getPeerPort()))) {
+                host = session.getPeerHost();
+                port = session.getPeerPort();
+            } else if (log.isDebugEnabled()) {
+                log.debug("Not resuming TLS session for {}:{} on a connection to {}:{}",
+                          session.getPeerHost(), session.getPeerPort(), host, port);
+            }
+        }
+
+        if ((host == null) ||
+            (host.equals(engine.getPeerHost()) && (port == engine.getPeerPort()))) {
+            return;
+        }
+
+        // This includes the cipher suites and protocols, as well as things like endpoint
+        // identification and SNI that may have been set on the old engine
+        SSLEngine newEngine = createEngine(host, port);
+        SSLParameters params = engine.getSSLParameters();
+        if (engine.getPeerHost() == null) {
+            // The old engine's empty list of server names would replace the one that the new engine
+            // got from the host name
+            copyServerNames(newEngine.getSSLParameters(), params);
+        }
+        newEngine.setSSLParameters(params);
+        engine = newEngine;
+    }
+
+    private static void copyServerNames(SSLParameters from, SSLParameters to)
+    {
+        if (getServerNames == null) {
+            return;
+        }
+        try {
+            setServerNames.invoke(to, getServerNames.invoke(from));
+        } catch (IllegalAccessException e) {
+            log.debug("Cannot copy SNI server names: {}", e);
+        } catch (InvocationTargetException e) {
+            log.debug("Cannot copy SNI server names: {}", e.getCause());
+        }
+    }
+
     public void setVerificationMode(boolean requestCert, boolean rejectUnauthorized)
     {
         this.requestCert = requestCert;
@@ -208,7 +351,7 @@ public class TLSConnection
     public void shutdownInbound(Callback<Object> cb)
     {
         try {
-            engine.closeInbound();
+            closeInbound();
         } catch (SSLException ssle) {
             if (log.isDebugEnabled()) {
                 log.debug("Error closing inbound SSLEngine: {}", ssle);
@@ -224,6 +367,19 @@ public class TLSConnection
         encodeLoop();
     }
 
+    /**
+     * Closing the inbound side before the peer's close_notify arrives makes JSSE invalidate the session.
+     * Like OpenSSL, we don't count that as truncation if we already sent our own close_notify,
+     * because many peers close the socket as soon as they see it, and we want to resume the session later.
+     */
+    private void closeInbound()
+        throws SSLException
+    {
+        if (!sentShutdown) {
+            engine.closeInbound();
+        }
+    }
+
     public void unwrap(ByteBuffer buf, Callback<Object> cb)
     {
         incoming.add(new TLSChunk(buf, false, cb));
@@ -248,6 +404,13 @@ public class TLSConnection
 
     private void encodeLoop()
     {
+        if (!engineStarted) {
+            engineStarted = true;
+            if (!isServer) {
+                resetClientEngine();
+            }
+        }
+
         while (true) {
             if (log.isTraceEnabled()) {
                 log.trace("engine status: {} incoming: {} outgoing: {}", engine.getHandshakeStatus(),
@@ -293,32 +456,40 @@ public class TLSConnection
 
     /**
      * Wrap whatever is on the head of the outgoing queue, and return false if we should stop further processing.
+     * Once the handshake is done, we pass as many data chunks as we can to the engine at once, and keep
+     * wrapping in to the same output buffer while there is room, so that a series of small writes turns
+     * in to a single call to the write callback.
      */
     private boolean doWrap()
     {
         TLSChunk qc = outgoing.peek();
-        // If we get here we call "wrap," even if there is nothing to wrap
-        ByteBuffer bb = (qc == null ? EMPTY : qc.getBuf());
-        if (bb == null) {
-            bb = EMPTY;
-        }
+        int srcCount = gatherOutgoing(qc);
 
         boolean wasShutdown = false;
-        SSLEngineResult result;
-        do {
-            if ((qc != null) && qc.isShutdown()) {
-                log.trace("Sending closeOutbound");
-                engine.closeOutbound();
-                sentShutdown = true;
-                wasShutdown = true;
-            }
+        if ((qc != null) && qc.isShutdown()) {
+            log.trace("Sending closeOutbound");
+            engine.closeOutbound();
+            sentShutdown = true;
+            wasShutdown = true;
+        }
 
+        int packetSize = engine.getSession().getPacketBufferSize();
+        boolean pooled = (packetSize <= SlabAllocator.SHARED_SLAB_SIZE);
+        ByteBuffer out = (pooled ? getOutputBuffer() : ByteBuffer.allocate(packetSize));
+        int start = out.position();
+
+        boolean ok;
+        boolean more;
+        boolean finished = false;
+        do {
             if (log.isTraceEnabled()) {
-                log.trace("Wrapping {}", bb);
+                log.trace("Wrapping {} buffers starting with {}", srcCount, wrapSources[0]);
             }
+            SSLEngineResult result;
             try {
-                result = engine.wrap(bb, writeBuf);
+                result = engine.wrap(wrapSources, 0, srcCount, out);
             } catch (SSLException ssle) {
+                clearSources(srcCount);
                 handleEncodingError(qc, ssle);
                 if (qc != null) {
                     outgoing.remove();
@@ -329,32 +500,128 @@ public class TLSConnection
             if (log.isTraceEnabled()) {
                 log.trace("wrap result: {}", result);
             }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                // This only gets delivered once, and we can't check for it later
+                finished = true;
+            }
+
             if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
-                writeBuf = BufferUtils.doubleBuffer(writeBuf);
+                ok = true;
+                if (out.position() > start) {
+                    // Deliver what we have so far, and come back for the rest
+                    more = false;
+                } else {
+                    // Retry with more space in the output buffer
+                    out = ByteBuffer.allocate(Math.max(packetSize, out.remaining() * 2));
+                    pooled = false;
+                    start = 0;
+                    more = true;
+                }
+            } else {
+                ok = (result.getStatus() == SSLEngineResult.Status.OK);
+                more = (ok && initFinished && !finished &&
+                        (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) &&
+                        (result.bytesConsumed() > 0) && (out.remaining() >= packetSize) &&
+                        sourcesRemaining(srcCount));
             }
-        } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+        } while (more);
+
+        // Take ownership of the output before any callbacks can cause us to be re-entered
+        ByteBuffer wrapped = claimOutput(out, start, pooled);
 
         Callback<Object> cb = null;
-        if ((qc != null) && !bb.hasRemaining() && initFinished) {
-            // Finished processing the current chunk, but don't deliver the callback until
+        if ((qc != null) && initFinished) {
+            // Finished processing the current chunks, but don't deliver the callbacks until
             // handshake is done in case client ended before sending any data
-            outgoing.remove();
-            cb = qc.removeCallback();
+            cb = removeWrapped(srcCount);
         }
+        clearSources(srcCount);
 
-        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
-            // This only gets delivered once, and we can't check for it later
-            processNotHandshaking();
-        }
-
-        if (result.bytesProduced() > 0) {
+        // Deliver the output before anything else that might re-enter us and produce more, so that
+        // records always leave in the order that they were wrapped
+        if (wrapped != null) {
             // Deliver write callback in JavaScript after we are happy with reading
-            deliverWriteBuffer(wasShutdown, cb);
+            deliverWriteBuffer(wrapped, wasShutdown, cb);
         } else if (cb != null) {
             cb.call(null);
         }
 
-        return (result.getStatus() == SSLEngineResult.Status.OK);
+        if (finished) {
+            processNotHandshaking();
+        }
+
+        return ok;
+    }
+
+    /**
+     * Put the buffers that we are going to wrap in "wrapSources" and return how many there are. That's the
+     * chunk at the head of the queue, plus all the data chunks behind it once handshaking is done.
+     */
+    private int gatherOutgoing(TLSChunk qc)
+    {
+        if ((qc == null) || qc.isShutdown() || !initFinished) {
+            // If we get here we call "wrap," even if there is nothing to wrap
+            ByteBuffer bb = (qc == null ? null : qc.getBuf());
+            wrapSources[0] = (bb == null ? EMPTY : bb);
+            return 1;
+        }
+
+        int count = 0;
+        for (TLSChunk c : outgoing) {
+            if (c.isShutdown() || (count == MAX_WRAP_CHUNKS)) {
+                break;
+            }
+            wrapSources[count] = (c.getBuf() == null ? EMPTY : c.getBuf());
+            count++;
+        }
+        return count;
+    }
+
+    private boolean sourcesRemaining(int count)
+    {
+        for (int i = 0; i < count; i++) {
+            if (wrapSources[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearSources(int count)
+    {
+        for (int i = 0; i < count; i++) {
+            wrapSources[i] = null;
+        }
+    }
+
+    /**
+     * Remove the chunks that were completely wrapped from the head of the queue, and return their callbacks.
+     */
+    private Callback<Object> removeWrapped(int count)
+    {
+        Callback<Object> first = null;
+        CallbackList list = null;
+        for (int i = 0; i < count; i++) {
+            TLSChunk c = outgoing.peek();
+            if ((c == null) || ((c.getBuf() != null) && c.getBuf().hasRemaining())) {
+                break;
+            }
+            outgoing.remove();
+
+            Callback<Object> cb = c.removeCallback();
+            if (cb == null) {
+                continue;
+            }
+            if (first == null) {
+                first = cb;
+            } else {
+                if (list == null) {
+                    list = new CallbackList(first);
+                }
+                list.add(cb);
+            }
+        }
+        return (list == null ? first : list);
     }
 
     private boolean doUnwrap()
@@ -362,35 +629,65 @@ public class TLSConnection
         TLSChunk qc = incoming.peek();
         ByteBuffer bb = (qc == null ? EMPTY : qc.getBuf());
 
+        int appSize = engine.getSession().getApplicationBufferSize();
+        boolean pooled = (appSize <= SlabAllocator.SHARED_SLAB_SIZE);
+        ByteBuffer out = (pooled ? getOutputBuffer() : ByteBuffer.allocate(appSize));
+        int start = out.position();
+
         SSLEngineResult result = null;
-        while (bb != null) {
-            do {
-                if (log.isTraceEnabled()) {
-                    log.trace("Unwrapping {}", bb);
-                }
+        boolean more = true;
+        while ((bb != null) && more) {
+            if (log.isTraceEnabled()) {
+                log.trace("Unwrapping {}", bb);
+            }
+
+            SSLEngineResult r;
+            try {
+                r = engine.unwrap(bb, out);
+            } catch (SSLException ssle) {
+                handleEncodingError(qc, ssle);
+                return false;
+            }
 
-                try {
-                    result = engine.unwrap(bb, readBuf);
-                } catch (SSLException ssle) {
-                    handleEncodingError(qc, ssle);
-                    return false;
+            if (log.isTraceEnabled()) {
+                log.trace("unwrap result: {}", r);
+            }
+
+            switch (r.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if (out.position() > start) {
+                    // Deliver what we have so far, and come back for the rest
+                    more = false;
+                } else {
+                    // Retry with more space in the output buffer
+                    out = ByteBuffer.allocate(Math.max(appSize, out.remaining() * 2));
+                    pooled = false;
+                    start = 0;
                 }
+                break;
 
-                if (log.isTraceEnabled()) {
-                    log.trace("unwrap result: {}", result);
+            case BUFFER_UNDERFLOW:
+                if (out.position() > start) {
+                    // Deliver the complete records that we have, and come back for the partial one
+                    more = false;
+                    break;
                 }
-                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
-                    // Retry with more space in the output buffer
-                    readBuf = BufferUtils.doubleBuffer(readBuf);
+                result = r;
+                if (qc == null) {
+                    more = false;
+                    break;
                 }
-            } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
 
-            if ((result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) && (qc != null)) {
                 // Deliver the write callback so that we get some more data
                 // We might get called again ourselves when we do this
                 Callback<Object> cb = qc.removeCallback();
                 if (cb != null) {
                     cb.call(null);
+                    if (pooled) {
+                        // If we were re-entered then the pooled space that we were going to use may be gone
+                        out = getOutputBuffer();
+                        start = out.position();
+                    }
                 }
 
                 // Now combine the first two chunks on the queue if they exist
@@ -401,18 +698,28 @@ public class TLSConnection
                     bb = qc.getBuf();
                 } else {
                     qc = incoming.peek();
-                    break;
+                    more = false;
                 }
-            } else {
+                break;
+
+            default:
+                result = r;
+                // Keep going while there are more records to unwrap and room to put them
+                more = ((r.getStatus() == SSLEngineResult.Status.OK) && initFinished &&
+                        (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) &&
+                        (r.bytesProduced() > 0) && bb.hasRemaining() && (out.remaining() >= appSize));
                 break;
             }
         }
 
+        // Take ownership of the output before any callbacks can cause us to be re-entered
+        ByteBuffer unwrapped = claimOutput(out, start, pooled);
+
         int err = (qc == null ? 0 : qc.getInboundErr());
 
         if (err != 0) {
             try {
-                engine.closeInbound();
+                closeInbound();
             } catch (SSLException ignore) {
             }
         }
@@ -422,76 +729,101 @@ public class TLSConnection
             err = ErrorCodes.EOF;
         }
 
+        Callback<Object> cb = null;
         if ((qc != null) && ((qc.getBuf() == null) || !qc.getBuf().hasRemaining())) {
             incoming.poll();
-            // Deliver the callback right now, because we are ready to consume more data right now
-            Callback<Object> cb = qc.removeCallback();
-            if (cb != null) {
-                cb.call(null);
-            }
+            cb = qc.removeCallback();
         }
 
         if ((result != null) && (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)) {
-            // This only gets delivered once, and we can't check for it later
+            // This only gets delivered once, and we can't check for it later. We stop unwrapping when
+            // the handshake status changes, so there is no data in "unwrapped" yet.
             processNotHandshaking();
         }
 
-        if (((result != null) && (result.bytesProduced() > 0)) || (err != 0)) {
-            deliverReadBuffer(err);
+        // Deliver the data before any callback that might re-enter us and unwrap more of it
+        if ((unwrapped != null) && (err != 0)) {
+            // The last record that we unwrapped may have been a close_notify that followed some data.
+            // Deliver the data on its own, because readers ignore the buffer when there is an error.
+            deliverReadBuffer(unwrapped, 0);
+            deliverReadBuffer(null, err);
+        } else if ((unwrapped != null) || (err != 0)) {
+            deliverReadBuffer(unwrapped, err);
+        }
+
+        if (cb != null) {
+            // Deliver the callback right now, because we are ready to consume more data right now
+            cb.call(null);
         }
 
         return (result == null || result.getStatus() == SSLEngineResult.Status.OK);
     }
 
-    private void deliverWriteBuffer(boolean shutdown, Callback<Object> cb)
+    /**
+     * The engine writes its output directly in to slices of the slab that socket reads on this thread also
+     * use, and those slices are handed off to the callbacks without being copied. Everything here runs on
+     * the script thread, so the slab is shared with no locking. Each pass always gets a whole
+     * OUTPUT_BUFFER_SIZE window, which is also the size of the shared slabs, so that it may produce several
+     * records at once.
+     */
+    private static ByteBuffer getOutputBuffer()
+    {
+        return SlabAllocator.get().getReadBuffer(OUTPUT_BUFFER_SIZE, OUTPUT_BUFFER_SIZE);
+    }
+
+    /**
+     * Return a buffer containing whatever the engine wrote to "out" after "start," which now belongs to
+     * the caller, or null if nothing was written.
+     */
+    private static ByteBuffer claimOutput(ByteBuffer out, int start, boolean pooled)
+    {
+        if (out.position() == start) {
+            return null;
+        }
+        if (pooled) {
+            return SlabAllocator.get().claim();
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Internal: Indicate that a buffer that was passed to the write callback has been completely written and
+     * is no longer referenced anywhere, so that its space may be used for the next record.
+     */
+    public static void releaseOutputBuffer(ByteBuffer buf)
+    {
+        SlabAllocator.get().release(buf);
+    }
+
+    private void deliverWriteBuffer(ByteBuffer bb, boolean shutdown, Callback<Object> cb)
     {
         if (writeCallback != null) {
-            ByteBuffer bb;
-            if (writeBuf.position() > 0) {
-                writeBuf.flip();
-                bb = ByteBuffer.allocate(writeBuf.remaining());
-                bb.put(writeBuf);
-                writeBuf.clear();
-                bb.flip();
-                if (log.isTraceEnabled()) {
-                    log.trace("Delivering {} bytes to the onwrap callback. shutdown = {}",
-                              bb.remaining(), shutdown);
-                }
-            } else {
-                bb = null;
+            if (log.isTraceEnabled()) {
+                log.trace("Delivering {} bytes to the onwrap callback. shutdown = {}",
+                          bb.remaining(), shutdown);
             }
             writeCallback.call(bb, shutdown, cb);
 
         } else {
-            writeBuf.clear();
+            releaseOutputBuffer(bb);
             if (cb != null) {
                 cb.call(null);
             }
         }
     }
 
-    private void deliverReadBuffer(int err)
+    private void deliverReadBuffer(ByteBuffer bb, int err)
     {
         if (readCallback != null) {
-            ByteBuffer bb;
-            if (readBuf.position() > 0) {
-                readBuf.flip();
-                bb = ByteBuffer.allocate(readBuf.remaining());
-                bb.put(readBuf);
-                bb.flip();
-                readBuf.clear();
-                if (log.isTraceEnabled()) {
-                    log.trace("Delivering {} bytes to the onunwrap callback. err = {}",
-                              bb.remaining(), err);
-                }
-            } else {
-                bb = null;
+            if (log.isTraceEnabled()) {
+                log.trace("Delivering {} bytes to the onunwrap callback. err = {}",
+                          (bb == null ? 0 : bb.remaining()), err);
             }
-
             readCallback.call(bb, err);
 
-        } else {
-            readBuf.clear();
+        } else if (bb != null) {
+            releaseOutputBuffer(bb);
         }
     }
 
@@ -499,6 +831,7 @@ public class TLSConnection
     {
         if (!handshaking && !sentShutdown && !receivedShutdown) {
             handshaking = true;
+            handshakeStartTime = System.currentTimeMillis();
             if (onHandshakeStart != null) {
                 onHandshakeStart.call(null);
             }
@@ -726,4 +1059,31 @@ public class TLSConnection
         }
         return engine.getSession().getProtocol();
     }
+
+    /**
+     * The callbacks for all the chunks that were wrapped in to a single output buffer.
+     */
+    private static final class CallbackList
+        implements Callback<Object>
+    {
+        private final ArrayList<Callback<Object>> callbacks = new ArrayList<Callback<Object>>();
+
+        CallbackList(Callback<Object> first)
+        {
+            callbacks.add(first);
+        }
+
+        void add(Callback<Object> cb)
+        {
+            callbacks.add(cb);
+        }
+
+        @Override
+        public void call(Object val)
+        {
+            for (Callback<Object> cb : callbacks) {
+                cb.call(val);
+            }
+        }
+    }
 }
@@ -56,6 +56,24 @@ public class BufferUtils
         return r;
     }
 
+    /**
+     * Copy the remaining data in all the buffers into a single new buffer. Unlike "catBuffers," this does
+     * not change the position of any of them.
+     */
+    public static ByteBuffer gatherBuffers(ByteBuffer[] bufs)
+    {
+        int len = 0;
+        for (ByteBuffer b : bufs) {
+            len += b.remaining();
+        }
+        ByteBuffer r = ByteBuffer.allocate(len);
+        for (ByteBuffer b : bufs) {
+            r.put(b.duplicate());
+        }
+        r.flip();
+        return r;
+    }
+
     /**
      * Double the capacity of the specified buffer so that more data may be added.
      */
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a pool of direct (off-heap) memory for Buffers, so that data may be passed to sockets and files
+ * without the JDK copying it into a temporary direct buffer first. Like the pool in Node's "buffer.js," small
+ * allocations are carved out of a larger "slab," and large ones get a direct buffer of their own.
+ * <p>
+ * Slabs are never re-used. Instead, once every Buffer that was carved out of a slab has been collected,
+ * the slab is collected too, and its memory no longer counts against the pool. The total amount of direct
+ * memory that the pool holds is capped, and once the cap is reached, "allocate" returns null so that the
+ * caller can use a regular byte array instead.
+ * </p>
+ * <p>
+ * One pool may be shared by many scripts and is safe to use from any thread.
+ * </p>
+ */
+
+public class DirectBufferPool
+{
+    public static final int DEFAULT_SLAB_SIZE = 8 * 1024;
+    public static final long DEFAULT_MAX_MEMORY = 64L * 1024L * 1024L;
+
+    private static final int ALIGNMENT = 8;
+
+    private final int slabSize;
+    private final long maxMemory;
+
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    // The phantom references must stay reachable themselves until they are enqueued
+    private final HashMap<Reference<ByteBuffer>, Integer> live = new HashMap<Reference<ByteBuffer>, Integer>();
+
+    private ByteBuffer slab;
+    private long memory;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong slabs = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public DirectBufferPool(int slabSize, long maxMemory)
+    {
+        if (slabSize < ALIGNMENT) {
+            throw new IllegalArgumentException("slabSize");
+        }
+        if (maxMemory < 0L) {
+            throw new IllegalArgumentException("maxMemory");
+        }
+        this.slabSize = slabSize;
+        this.maxMemory = maxMemory;
+    }
+
+    public DirectBufferPool(long maxMemory)
+    {
+        this(DEFAULT_SLAB_SIZE, maxMemory);
+    }
+
+    public DirectBufferPool()
+    {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Return a direct buffer with position zero and a limit and capacity of exactly "len," filled with zeroes,
+     * or null if that would take the pool past its maximum memory.
+     */
+    public synchronized ByteBuffer allocate(int len)
+    {
+        if (len < 0) {
+            throw new IllegalArgumentException("len");
+        }
+        reclaim();
+
+        ByteBuffer ret;
+        if (len >= (slabSize >>> 1)) {
+            // Like Node, large buffers don't come from the slab
+            ret = allocateDirect(len);
+        } else {
+            if ((slab == null) || (slab.remaining() < len)) {
+                slab = allocateDirect(slabSize);
+                if (slab == null) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                slabs.incrementAndGet();
+            }
+            int start = slab.position();
+            slab.limit(start + len);
+            ret = slab.slice();
+            slab.limit(slab.capacity());
+            // Keep the next allocation aligned, again like Node
+            slab.position(Math.min(slab.capacity(), (start + len + ALIGNMENT - 1) & ~(ALIGNMENT - 1)));
+        }
+
+        if (ret == null) {
+            rejected.incrementAndGet();
+        } else {
+            allocations.incrementAndGet();
+        }
+        return ret;
+    }
+
+    private ByteBuffer allocateDirect(int len)
+    {
+        assert(Thread.holdsLock(this));
+        if ((memory + len) > maxMemory) {
+            return null;
+        }
+        ByteBuffer bb = ByteBuffer.allocateDirect(len);
+        // Slices of a direct buffer keep it reachable, so this is only enqueued once they are all gone
+        live.put(new PhantomReference<ByteBuffer>(bb, collected), len);
+        memory += len;
+        return bb;
+    }
+
+    private void reclaim()
+    {
+        assert(Thread.holdsLock(this));
+        Reference<? extends ByteBuffer> ref;
+        while ((ref = collected.poll()) != null) {
+            Integer len = live.remove(ref);
+            if (len != null) {
+                memory -= len;
+            }
+        }
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Return the amount of direct memory held by the pool, including the unused part of the current slab
+     * and any memory that is no longer in use but has not yet been collected.
+     */
+    public synchronized long getMemory()
+    {
+        reclaim();
+        return memory;
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public long getSlabs() {
+        return slabs.get();
+    }
+
+    /**
+     * Return the number of allocations that returned null because the pool was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DirectBufferPool [ memory = " + getMemory() + " max = " + maxMemory +
+               " allocations = " + allocations + " slabs = " + slabs + " rejected = " + rejected + " ]";
+    }
+}
@@ -22,12 +22,12 @@
 package io.apigee.trireme.kernel.util;
 
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.FastCodec;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.regex.Matcher;
@@ -42,9 +42,15 @@ public class StringUtils
 
     /**
      * Using a CharsetDecoder, translate the ByteBuffer into a stream, updating the buffer's position as we go.
+     * The common Node encodings are translated directly from the array using FastCodec.
      */
     public static String bufferToString(ByteBuffer buf, Charset cs)
     {
+        if (buf.hasArray() && FastCodec.isSupported(cs)) {
+            String s = FastCodec.decode(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), cs);
+            buf.position(buf.limit());
+            return s;
+        }
         if (buf.hasArray()) {
             // For common character sets like ASCII and UTF-8, this is actually much more efficient
             String s = new String(buf.array(),
@@ -114,39 +120,14 @@ public class StringUtils
     }
 
     /**
-     * Using a CharsetEncoder, translate a string to a ByteBuffer, allocating a new buffer
-     * as necessary.
+     * Translate a string to a ByteBuffer, allocating a new buffer as necessary. The common Node encodings
+     * are handled by FastCodec, which allocates the result at exactly the right size.
      */
     public static ByteBuffer stringToBuffer(String str, Charset cs)
     {
-        if (Charsets.BASE64.equals(cs)) {
-            // Special handling for Base64 -- ignore unmappable characters
-            CharsetEncoder enc = Charsets.get().getEncoder(cs);
-            enc.onMalformedInput(CodingErrorAction.REPORT);
-            enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
-
-            CharBuffer chars = CharBuffer.wrap(str);
-            int bufLen = (int)(chars.remaining() * enc.averageBytesPerChar());
-            ByteBuffer writeBuf =  ByteBuffer.allocate(bufLen);
-
-            CoderResult result;
-            do {
-                result = enc.encode(chars, writeBuf, true);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-            do {
-                result = enc.flush(writeBuf);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-
-            writeBuf.flip();
-            return writeBuf;
+        if (FastCodec.isSupported(cs)) {
+            return ByteBuffer.wrap(FastCodec.encode(str, cs));
         }
-
         // Use default decoding options, and this is optimized for common charsets as well
         byte[] enc = str.getBytes(cs);
         return ByteBuffer.wrap(enc);
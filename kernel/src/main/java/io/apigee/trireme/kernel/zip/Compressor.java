@@ -168,7 +168,12 @@ public class Compressor
         }
 
         in.position(in.position() + numRead);
-        out.position(out.position() + numWritten);
+        if (out.hasArray()) {
+            out.position(out.position() + numWritten);
+        } else {
+            // We deflated into a temporary array, so copy it to the real output
+            out.put(buf, off, numWritten);
+        }
 
         if ((mode == GZIP) && deflater.finished()) {
             trailer =
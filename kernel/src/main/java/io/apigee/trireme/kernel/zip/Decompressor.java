@@ -133,7 +133,12 @@ public class Decompressor
         if (in != null) {
             in.position(in.position() + (int)numRead);
         }
-        out.position(out.position() + numWritten);
+        if (out.hasArray()) {
+            out.position(out.position() + numWritten);
+        } else {
+            // We inflated into a temporary array, so copy it to the real output
+            out.put(buf, off, numWritten);
+        }
 
         if ((numWritten == 0) && inflater.needsDictionary()) {
             if (dictionary == null) {
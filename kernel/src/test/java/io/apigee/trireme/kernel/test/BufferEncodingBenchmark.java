@@ -0,0 +1,254 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.FastCodec;
+import io.apigee.trireme.kernel.util.BufferUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare FastCodec with the CharsetEncoder and CharsetDecoder code that Buffer used before, for the
+ * same operations as "Buffer.toString," "Buffer.write," "Buffer.byteLength," and "new Buffer(string)."
+ * "base64EncodeBuffer" is the same test as "benchmark/buffers/buffer-base64-encode.js," and "len"
+ * follows "buffer-creation.js." Like the other benchmarks, this only runs from JUnit when "runBenchmarks"
+ * is set to true.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferEncodingBenchmark
+{
+    private static final int BASE64_BUFFER_SIZE = 64 * 1024;
+
+    @Param({ "utf8", "ascii", "binary", "hex", "base64" })
+    public String encoding;
+
+    @Param({ "10", "1024" })
+    public int len;
+
+    private Charset cs;
+    private String str;
+    private byte[] bytes;
+    private byte[] target;
+
+    private String latin1;
+    private byte[] base64Buf;
+
+    @Setup
+    public void setUp()
+    {
+        cs = Charsets.get().getCharset(encoding);
+
+        // Something that looks like a JSON response, which is what we convert the most
+        StringBuilder sb = new StringBuilder();
+        Random rand = new Random(0L);
+        while (sb.length() < len) {
+            sb.append("{\"id\":").append(rand.nextInt(100000)).append(",\"name\":\"café\"},");
+        }
+        String json = sb.substring(0, len);
+        bytes = json.getBytes(Charsets.UTF8);
+        // Make sure that the string is valid for the encoding that we're testing
+        str = FastCodec.decode(bytes, 0, bytes.length, cs);
+        target = new byte[FastCodec.byteLength(str, cs)];
+
+        StringBuilder lb = new StringBuilder(256);
+        for (int i = 0; i < 256; i++) {
+            lb.append((char)i);
+        }
+        latin1 = lb.toString();
+        base64Buf = new byte[BASE64_BUFFER_SIZE];
+    }
+
+    @Benchmark
+    public String toStringFast()
+    {
+        return FastCodec.decode(bytes, 0, bytes.length, cs);
+    }
+
+    @Benchmark
+    public String toStringCharset()
+    {
+        return oldDecode(ByteBuffer.wrap(bytes), cs);
+    }
+
+    @Benchmark
+    public byte[] fromStringFast()
+    {
+        return FastCodec.encode(str, cs);
+    }
+
+    @Benchmark
+    public ByteBuffer fromStringCharset()
+    {
+        return oldEncode(str, cs);
+    }
+
+    @Benchmark
+    public int byteLengthFast()
+    {
+        return FastCodec.byteLength(str, cs);
+    }
+
+    @Benchmark
+    public int byteLengthCharset()
+    {
+        return oldByteLength(str, cs);
+    }
+
+    @Benchmark
+    public long writeFast()
+    {
+        return FastCodec.encode(str, cs, target, 0, target.length);
+    }
+
+    @Benchmark
+    public int writeCharset()
+    {
+        return oldWrite(str, cs, target, 0, target.length);
+    }
+
+    @Benchmark
+    public int base64EncodeBufferFast()
+    {
+        for (int i = 0; i < BASE64_BUFFER_SIZE; i += 256) {
+            FastCodec.encode(latin1, Charsets.ASCII, base64Buf, i, 256);
+        }
+        return FastCodec.decode(base64Buf, 0, base64Buf.length, Charsets.BASE64).length();
+    }
+
+    @Benchmark
+    public int base64EncodeBufferCharset()
+    {
+        for (int i = 0; i < BASE64_BUFFER_SIZE; i += 256) {
+            oldWrite(latin1, Charsets.ASCII, base64Buf, i, 256);
+        }
+        return oldDecode(ByteBuffer.wrap(base64Buf), Charsets.BASE64).length();
+    }
+
+    private static String oldDecode(ByteBuffer buf, Charset cs)
+    {
+        if (Charsets.UTF8.equals(cs) || Charsets.ASCII.equals(cs)) {
+            return new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), cs);
+        }
+        CharsetDecoder decoder = Charsets.get().getDecoder(cs);
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        CharBuffer cBuf = CharBuffer.allocate((int)(buf.limit() * decoder.averageCharsPerByte()));
+        CoderResult result;
+        do {
+            result = decoder.decode(buf, cBuf, true);
+            if (result.isOverflow()) {
+                cBuf = BufferUtils.doubleBuffer(cBuf);
+            }
+        } while (result.isOverflow());
+        do {
+            result = decoder.flush(cBuf);
+            if (result.isOverflow()) {
+                cBuf = BufferUtils.doubleBuffer(cBuf);
+            }
+        } while (result.isOverflow());
+        cBuf.flip();
+        return cBuf.toString();
+    }
+
+    private static ByteBuffer oldEncode(String str, Charset cs)
+    {
+        if (!Charsets.BASE64.equals(cs)) {
+            return ByteBuffer.wrap(str.getBytes(cs));
+        }
+        CharsetEncoder enc = Charsets.get().getEncoder(cs);
+        enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
+        CharBuffer chars = CharBuffer.wrap(str);
+        ByteBuffer writeBuf = ByteBuffer.allocate((int)(chars.remaining() * enc.averageBytesPerChar()));
+        CoderResult result;
+        do {
+            result = enc.encode(chars, writeBuf, true);
+            if (result.isOverflow()) {
+                writeBuf = BufferUtils.doubleBuffer(writeBuf);
+            }
+        } while (result.isOverflow());
+        do {
+            result = enc.flush(writeBuf);
+            if (result.isOverflow()) {
+                writeBuf = BufferUtils.doubleBuffer(writeBuf);
+            }
+        } while (result.isOverflow());
+        writeBuf.flip();
+        return writeBuf;
+    }
+
+    private static int oldByteLength(String str, Charset cs)
+    {
+        CharsetEncoder encoder = getEncoder(cs, true);
+        CharBuffer chars = CharBuffer.wrap(str);
+        ByteBuffer tmp = ByteBuffer.allocate(256);
+        int total = 0;
+        CoderResult result;
+        do {
+            tmp.clear();
+            result = encoder.encode(chars, tmp, true);
+            total += tmp.position();
+        } while (result.isOverflow());
+        do {
+            tmp.clear();
+            result = encoder.flush(tmp);
+            total += tmp.position();
+        } while (result.isOverflow());
+        return total;
+    }
+
+    private static int oldWrite(String str, Charset cs, byte[] buf, int off, int len)
+    {
+        ByteBuffer writeBuf = ByteBuffer.wrap(buf, off, len);
+        CharsetEncoder encoder = getEncoder(cs, false);
+        encoder.encode(CharBuffer.wrap(str), writeBuf, true);
+        encoder.flush(writeBuf);
+        return writeBuf.position() - off;
+    }
+
+    private static CharsetEncoder getEncoder(Charset cs, boolean replacePartial)
+    {
+        CharsetEncoder encoder = Charsets.get().getEncoder(cs);
+        encoder.onUnmappableCharacter(Charsets.BASE64.equals(cs) ? CodingErrorAction.IGNORE : CodingErrorAction.REPLACE);
+        encoder.onMalformedInput(replacePartial ? CodingErrorAction.REPLACE : CodingErrorAction.REPORT);
+        return encoder;
+    }
+
+    @Test
+    public void runBenchmark()
+        throws RunnerException
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        Options opts = new OptionsBuilder()
+            .include(BufferEncodingBenchmark.class.getName())
+            .build();
+        new Runner(opts).run();
+    }
+}
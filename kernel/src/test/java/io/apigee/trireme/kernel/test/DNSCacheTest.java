@@ -0,0 +1,281 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.dns.DNSCache;
+import io.apigee.trireme.kernel.dns.DNSResolver;
+import io.apigee.trireme.kernel.dns.Types;
+import io.apigee.trireme.kernel.dns.Wire;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DNSCacheTest
+{
+    private static StubNodeRuntime runtime;
+
+    @BeforeClass
+    public static void init()
+    {
+        runtime = new StubNodeRuntime();
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        runtime.close();
+    }
+
+    @Test
+    public void testCoalesceAndExpire()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache();
+        Handler h1 = new Handler(1);
+        Handler h2 = new Handler(1);
+
+        assertNull(cache.get("foo.com", Types.TYPE_A));
+        assertTrue(cache.join("foo.com", Types.TYPE_A, runtime, h1));
+        // The second caller waits for the first one's query
+        assertFalse(cache.join("FOO.com", Types.TYPE_A, runtime, h2));
+        assertEquals(1L, cache.getCoalesced());
+
+        Wire msg = makeAnswer("foo.com", 1L);
+        cache.complete("foo.com", Types.TYPE_A, 0, msg);
+        h1.await();
+        h2.await();
+        assertSame(msg, h1.result);
+        assertSame(msg, h2.result);
+
+        DNSCache.Entry e = cache.get("foo.com", Types.TYPE_A);
+        assertNotNull(e);
+        assertEquals(0, e.getErrCode());
+        assertSame(msg, e.getMessage());
+        assertNull(cache.get("foo.com", Types.TYPE_AAAA));
+
+        // The TTL was one second
+        Thread.sleep(1100L);
+        assertNull(cache.get("foo.com", Types.TYPE_A));
+        assertTrue(cache.join("foo.com", Types.TYPE_A, runtime, new Handler(1)));
+    }
+
+    @Test
+    public void testNegative()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache(10, 60L, 60L, TimeUnit.SECONDS);
+
+        Handler h = new Handler(1);
+        assertTrue(cache.join("nothere.com", Types.TYPE_A, runtime, h));
+        cache.complete("nothere.com", Types.TYPE_A, ErrorCodes.ENOTFOUND, null);
+        h.await();
+        assertEquals(ErrorCodes.ENOTFOUND, h.errCode);
+        DNSCache.Entry e = cache.get("nothere.com", Types.TYPE_A);
+        assertNotNull(e);
+        assertEquals(ErrorCodes.ENOTFOUND, e.getErrCode());
+
+        // An answer with no records is also negative
+        h = new Handler(1);
+        assertTrue(cache.join("nodata.com", Types.TYPE_AAAA, runtime, h));
+        Wire empty = new Wire();
+        cache.complete("nodata.com", Types.TYPE_AAAA, 0, empty);
+        h.await();
+        assertNotNull(cache.get("nodata.com", Types.TYPE_AAAA));
+    }
+
+    @Test
+    public void testErrorsNotCached()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache();
+        Handler h = new Handler(1);
+        assertTrue(cache.join("slow.com", Types.TYPE_A, runtime, h));
+        cache.complete("slow.com", Types.TYPE_A, ErrorCodes.ETIMEOUT, null);
+        h.await();
+        assertEquals(ErrorCodes.ETIMEOUT, h.errCode);
+        assertNull(cache.get("slow.com", Types.TYPE_A));
+        // And the next caller tries again
+        assertTrue(cache.join("slow.com", Types.TYPE_A, runtime, new Handler(1)));
+    }
+
+    @Test
+    public void testWaitersTimeOut()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache();
+        cache.setQueryTimeout(200L, TimeUnit.MILLISECONDS);
+        Handler h1 = new Handler(1);
+        Handler h2 = new Handler(1);
+
+        // Nobody ever calls "complete," as if the first script had exited
+        assertTrue(cache.join("lost.com", Types.TYPE_A, runtime, h1));
+        assertFalse(cache.join("lost.com", Types.TYPE_A, runtime, h2));
+        h1.await();
+        h2.await();
+        assertEquals(ErrorCodes.ETIMEOUT, h1.errCode);
+        assertEquals(ErrorCodes.ETIMEOUT, h2.errCode);
+
+        // A late answer goes nowhere, and the next caller sends the query again
+        cache.complete("lost.com", Types.TYPE_A, ErrorCodes.ETIMEOUT, null);
+        assertTrue(cache.join("lost.com", Types.TYPE_A, runtime, new Handler(1)));
+    }
+
+    @Test
+    public void testZeroTtl()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache();
+        Handler h = new Handler(1);
+        assertTrue(cache.join("zero.com", Types.TYPE_A, runtime, h));
+        cache.complete("zero.com", Types.TYPE_A, 0, makeAnswer("zero.com", 0L));
+        h.await();
+        assertNull(cache.get("zero.com", Types.TYPE_A));
+    }
+
+    @Test
+    public void testEviction()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache(2, 60L, 60L, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++) {
+            String name = "host" + i + ".com";
+            Handler h = new Handler(1);
+            assertTrue(cache.join(name, Types.TYPE_A, runtime, h));
+            cache.complete(name, Types.TYPE_A, 0, makeAnswer(name, 60L));
+            h.await();
+        }
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.get("host0.com", Types.TYPE_A));
+        assertNotNull(cache.get("host2.com", Types.TYPE_A));
+    }
+
+    @Test
+    public void testCachedResolve()
+        throws Exception
+    {
+        DNSCache cache = new DNSCache();
+        Handler seed = new Handler(1);
+        assertTrue(cache.join("cached.com", Types.TYPE_A, runtime, seed));
+        Wire msg = makeAnswer("cached.com", 60L);
+        cache.complete("cached.com", Types.TYPE_A, 0, msg);
+        seed.await();
+
+        // This must not go to the network
+        DNSResolver resolver = new DNSResolver(runtime, cache);
+        Handler h = new Handler(1);
+        resolver.resolve("cached.com", "A", h);
+        h.await();
+        assertEquals(0, h.errCode);
+        assertSame(msg, h.result);
+    }
+
+    @Test
+    public void testLookupLiteral()
+        throws Exception
+    {
+        DNSResolver resolver = new DNSResolver(runtime, new DNSCache());
+        AddrHandler h = new AddrHandler();
+        resolver.lookup("127.0.0.1", 0, h);
+        h.await();
+        assertEquals(0, h.errCode);
+        assertEquals("127.0.0.1", h.result.getHostAddress());
+
+        h = new AddrHandler();
+        resolver.lookup("::1", 0, h);
+        h.await();
+        assertEquals(0, h.errCode);
+        assertTrue(h.result instanceof Inet6Address);
+
+        // This goes on to the JVM's resolver, which also only has an IPv6 address for it
+        h = new AddrHandler();
+        resolver.lookup("::1", 4, h);
+        h.await();
+        assertEquals(ErrorCodes.EIO, h.errCode);
+    }
+
+    @Test
+    public void testLookupLocalhost()
+        throws Exception
+    {
+        DNSResolver resolver = new DNSResolver(runtime, new DNSCache());
+        AddrHandler h = new AddrHandler();
+        resolver.lookup("localhost", 4, h);
+        h.await();
+        assertEquals(0, h.errCode);
+        assertTrue(h.result.isLoopbackAddress());
+    }
+
+    private static Wire makeAnswer(String name, long ttl)
+        throws Exception
+    {
+        Wire msg = new Wire();
+        Wire.RR rr = new Wire.RR();
+        rr.setName(name);
+        rr.setType(Types.TYPE_A);
+        rr.setKlass(Types.CLASS_IN);
+        rr.setTtl(ttl);
+        rr.setResult(InetAddress.getByName("10.0.0.1"));
+        msg.addAnswer(rr);
+        return msg;
+    }
+
+    private static class Handler
+        implements IOCompletionHandler<Wire>
+    {
+        private final CountDownLatch latch;
+        private final AtomicInteger calls = new AtomicInteger();
+        volatile int errCode;
+        volatile Wire result;
+
+        Handler(int count)
+        {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void ioComplete(int errCode, Wire value)
+        {
+            calls.incrementAndGet();
+            this.errCode = errCode;
+            this.result = value;
+            latch.countDown();
+        }
+
+        void await()
+            throws InterruptedException
+        {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+        }
+    }
+
+    private static class AddrHandler
+        implements IOCompletionHandler<InetAddress>
+    {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        volatile int errCode;
+        volatile InetAddress result;
+
+        @Override
+        public void ioComplete(int errCode, InetAddress value)
+        {
+            this.errCode = errCode;
+            this.result = value;
+            latch.countDown();
+        }
+
+        void await()
+            throws InterruptedException
+        {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.util.DirectBufferPool;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest
+{
+    @Test
+    public void testSlab()
+    {
+        DirectBufferPool pool = new DirectBufferPool(1024, 1024 * 1024);
+        ByteBuffer b1 = pool.allocate(10);
+        ByteBuffer b2 = pool.allocate(100);
+        assertTrue(b1.isDirect());
+        assertEquals(0, b1.position());
+        assertEquals(10, b1.limit());
+        assertEquals(10, b1.capacity());
+        assertEquals(100, b2.remaining());
+        assertEquals(1L, pool.getSlabs());
+        assertEquals(1024L, pool.getMemory());
+
+        // Writing one must not touch the other
+        for (int i = 0; i < b1.capacity(); i++) {
+            b1.put(i, (byte)0xff);
+        }
+        for (int i = 0; i < b2.capacity(); i++) {
+            assertEquals(0, b2.get(i));
+        }
+
+        // This doesn't fit in what's left of the first slab
+        ByteBuffer b3 = pool.allocate(500);
+        assertEquals(500, b3.remaining());
+        ByteBuffer b4 = pool.allocate(500);
+        assertEquals(2L, pool.getSlabs());
+        assertEquals(2048L, pool.getMemory());
+        assertNotNull(b4);
+        assertEquals(4L, pool.getAllocations());
+    }
+
+    @Test
+    public void testLarge()
+    {
+        DirectBufferPool pool = new DirectBufferPool(1024, 1024 * 1024);
+        ByteBuffer b = pool.allocate(512);
+        assertEquals(512, b.capacity());
+        assertEquals(0L, pool.getSlabs());
+        assertEquals(512L, pool.getMemory());
+    }
+
+    @Test
+    public void testFull()
+    {
+        DirectBufferPool pool = new DirectBufferPool(1024, 4096);
+        assertNotNull(pool.allocate(4000));
+        assertNull(pool.allocate(100));
+        assertNull(pool.allocate(1000));
+        assertEquals(2L, pool.getRejected());
+        assertEquals(1L, pool.getAllocations());
+        assertEquals(4000L, pool.getMemory());
+    }
+
+    @Test
+    public void testReclaim()
+        throws InterruptedException
+    {
+        DirectBufferPool pool = new DirectBufferPool(1024, 4096);
+        ByteBuffer b = pool.allocate(4096);
+        assertNotNull(b);
+        assertNull(pool.allocate(4096));
+        b = null;
+
+        // Once the first buffer has been collected, its memory is available again
+        for (int i = 0; (i < 50) && (pool.getMemory() > 0L); i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        assertEquals(0L, pool.getMemory());
+        assertNotNull(pool.allocate(4096));
+    }
+}
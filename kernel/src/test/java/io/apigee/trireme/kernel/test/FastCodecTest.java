@@ -0,0 +1,203 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.FastCodec;
+import io.apigee.trireme.kernel.util.StringUtils;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Make sure that the fast encoders and decoders produce exactly the same results as the character sets.
+ */
+public class FastCodecTest
+{
+    private static final Charset[] CHARSETS = {
+        Charsets.UTF8, Charsets.ASCII, Charsets.NODE_BINARY, Charsets.BASE64
+    };
+
+    private static final String[] STRINGS = {
+        "",
+        "Hello, World!",
+        "café über €100",
+        "😀 smile",
+        "lone high \ud83d",
+        "lone low \ude00 in the middle",
+        "\ud83d",
+        "SGVsbG8sIFdvcmxkIQ==",
+        "SGVs bG8s\nIFdv\tcmxk IQ",
+        "a-b_c+d/e=f",
+        "!!not{base64}~~",
+        "QQ",
+        "QUI",
+        "QUJD",
+        "QR",
+        "QUJ"
+    };
+
+    @Test
+    public void testKnownStrings()
+    {
+        for (Charset cs : CHARSETS) {
+            for (String s : STRINGS) {
+                checkString(s, cs);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomStrings()
+    {
+        Random rand = new Random(12345L);
+        for (int i = 0; i < 2000; i++) {
+            String s = randomString(rand, rand.nextInt(64));
+            for (Charset cs : CHARSETS) {
+                checkString(s, cs);
+            }
+        }
+    }
+
+    @Test
+    public void testHex()
+    {
+        checkString("", Charsets.NODE_HEX);
+        checkString("00ff7f80deadBEEF", Charsets.NODE_HEX);
+        checkString("abc", Charsets.NODE_HEX);
+        try {
+            FastCodec.encode("zz", Charsets.NODE_HEX);
+            fail("Expected an exception on invalid hex");
+        } catch (NumberFormatException ok) {
+        }
+    }
+
+    @Test
+    public void testRandomBytes()
+    {
+        Random rand = new Random(54321L);
+        Charset[] decodable = { Charsets.UTF8, Charsets.ASCII, Charsets.NODE_BINARY,
+                                Charsets.NODE_HEX, Charsets.BASE64 };
+        for (int i = 0; i < 2000; i++) {
+            byte[] b = new byte[rand.nextInt(64)];
+            rand.nextBytes(b);
+            int off = (b.length == 0 ? 0 : rand.nextInt(b.length));
+            int len = b.length - off;
+            for (Charset cs : decodable) {
+                String expected = oldDecode(b, off, len, cs);
+                assertEquals(cs.name(), expected, FastCodec.decode(b, off, len, cs));
+                assertEquals(cs.name(), expected, StringUtils.bufferToString(ByteBuffer.wrap(b, off, len), cs));
+            }
+        }
+    }
+
+    @Test
+    public void testPartialWrite()
+    {
+        Random rand = new Random(999L);
+        for (int i = 0; i < 2000; i++) {
+            String s = randomString(rand, rand.nextInt(32));
+            for (Charset cs : CHARSETS) {
+                int len = rand.nextInt(40);
+                checkWrite(s, cs, len);
+            }
+        }
+        checkWrite("€€", Charsets.UTF8, 5);
+        checkWrite("ab😀", Charsets.UTF8, 5);
+        checkWrite("QUJDREVG", Charsets.BASE64, 5);
+        checkWrite("QUJDRA", Charsets.BASE64, 4);
+        checkWrite("deadbeef", Charsets.NODE_HEX, 3);
+        checkWrite("deadbee", Charsets.NODE_HEX, 10);
+    }
+
+    private static void checkString(String s, Charset cs)
+    {
+        byte[] expected = oldEncode(s, cs);
+        byte[] actual = FastCodec.encode(s, cs);
+        assertArrayEquals(cs.name() + " \"" + s + '\"', expected, actual);
+        assertEquals(cs.name() + " \"" + s + '\"', expected.length, FastCodec.byteLength(s, cs));
+    }
+
+    /**
+     * Buffer.write used to encode with a CharsetEncoder that reports malformed input and stops.
+     */
+    private static void checkWrite(String s, Charset cs, int len)
+    {
+        byte[] expected = new byte[len + 4];
+        byte[] actual = new byte[len + 4];
+        Arrays.fill(expected, (byte)0x55);
+        Arrays.fill(actual, (byte)0x55);
+
+        CharsetEncoder enc = Charsets.get().getEncoder(cs);
+        enc.onUnmappableCharacter(Charsets.BASE64.equals(cs) ? CodingErrorAction.IGNORE : CodingErrorAction.REPLACE);
+        enc.onMalformedInput(CodingErrorAction.REPORT);
+        ByteBuffer bb = ByteBuffer.wrap(expected, 2, len);
+        CharBuffer chars = CharBuffer.wrap(s);
+        enc.encode(chars, bb, true);
+        enc.flush(bb);
+
+        long result = FastCodec.encode(s, cs, actual, 2, len);
+        String msg = cs.name() + " \"" + s + "\" " + len;
+        assertArrayEquals(msg, expected, actual);
+        assertEquals(msg, bb.position() - 2, FastCodec.getBytesWritten(result));
+        assertEquals(msg, chars.position(), FastCodec.getCharsRead(result));
+    }
+
+    private static byte[] oldEncode(String s, Charset cs)
+    {
+        if (!Charsets.BASE64.equals(cs)) {
+            return s.getBytes(cs);
+        }
+        CharsetEncoder enc = Charsets.get().getEncoder(cs);
+        enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
+        ByteBuffer out = ByteBuffer.allocate((s.length() * 3) + 4);
+        enc.encode(CharBuffer.wrap(s), out, true);
+        enc.flush(out);
+        out.flip();
+        byte[] ret = new byte[out.remaining()];
+        out.get(ret);
+        return ret;
+    }
+
+    private static String oldDecode(byte[] b, int off, int len, Charset cs)
+    {
+        CharsetDecoder dec = Charsets.get().getDecoder(cs);
+        dec.onMalformedInput(CodingErrorAction.REPLACE);
+        CharBuffer out = CharBuffer.allocate((len * 2) + 4);
+        dec.decode(ByteBuffer.wrap(b, off, len), out, true);
+        dec.flush(out);
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * Make strings that are mostly base64 characters and whitespace, with some Unicode and surrogates mixed in.
+     */
+    private static String randomString(Random rand, int len)
+    {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/-_= \n\t!.{";
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            int kind = rand.nextInt(10);
+            if (kind < 6) {
+                sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+            } else if (kind == 6) {
+                sb.append((char)(0x80 + rand.nextInt(0x780)));
+            } else if (kind == 7) {
+                sb.append((char)(0x800 + rand.nextInt(0xd000)));
+            } else if (kind == 8) {
+                sb.append(Character.toChars(0x10000 + rand.nextInt(0x10000)));
+            } else {
+                sb.append((char)(0xd800 + rand.nextInt(0x800)));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,367 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.http.HTTPParsingMachine;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the byte-oriented parser against the original regular-expression-based one, splitting
+ * the input in every possible place. The two may return the headers of a message in different calls,
+ * so the headers are compared once the whole message has been parsed.
+ */
+public class HTTPParsingMachineTest
+{
+    private static final String[] REQUESTS = {
+        "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n",
+        "GET /foo/bar?baz=1 HTTP/1.0\r\nUser-Agent: test\r\nAccept: */*\r\nConnection: keep-alive\r\n\r\n",
+        "POST /post HTTP/1.1\r\nContent-Type: text/plain\r\nContent-Length: 11\r\n\r\nHello World",
+        "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+            "5\r\nHello\r\n6;ext=1\r\n World\r\n0\r\nX-Trailer: yes\r\nX-Other:  two  \r\n\r\n",
+        "GET /one HTTP/1.1\r\nHost: a\r\n\r\nGET /two HTTP/1.1\r\nHost: b\r\nConnection: close\r\n\r\n",
+        "GET /pipe HTTP/1.1\r\n\r\nDELETE /pipe HTTP/1.1\r\nContent-Length: 0\r\n\r\n",
+        "GET / HTTP/1.1\r\nX-Long: one\r\n  two\r\n\tthree\r\nX-Next: four \r\n\r\n",
+        "GET / HTTP/1.1\r\nX-Tab:\tvalue\t\r\nX-Empty:\r\nX-Space: \r\n\r\n",
+        "GET /spaces in uri HTTP/1.1  \r\nhost: lower\r\ncontent-length: 2\r\n\r\nab",
+        "GET /café HTTP/1.1\r\nX-ü: été\r\n\r\n",
+        "CONNECT example.com:443 HTTP/1.1\r\nHost: example.com\r\n\r\nsome tunnel data",
+        "GET /chat HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\nframes",
+        "PUT /x HTTP/1.1\r\nTransfer-Encoding: identity\r\nContent-Length: 3\r\n\r\nabc",
+        "GET /x HTTP/1.1\nHost: bare-lf\r\n\r\n",
+        "GET /x HTTP/1.1\r\nBad Header: no\r\n\r\n",
+        "GET /x HTTP/1.1\r\n : no name\r\n\r\n",
+        "GET /x HTTP/1.1\r\nNoColon\r\n\r\n",
+        "GET /x HTTP/1.1\r\nX-Ctl: a\u0001b\r\n\r\n",
+        "GET /x HTTP/1.1\r\nContent-Length: abc\r\n\r\n",
+        "GET HTTP/1.1\r\n\r\n",
+        "GET /x HTTP/1.1x\r\n\r\n",
+        "GET /x HTTP/a.1\r\n\r\n",
+        "/x HTTP/1.1\r\n\r\n",
+        "POST /bad HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+        "POST /bad HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nfffffffff\r\n",
+        "POST /bad HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n;x\r\n",
+    };
+
+    private static final String[] RESPONSES = {
+        "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nServer: test\r\n\r\nhello",
+        "HTTP/1.1 204 No Content\r\nDate: today\r\n\r\n",
+        "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nbody until the end",
+        "HTTP/1.1 200 Custom\tReason  \r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n",
+        "HTTP/1.1 404\r\nContent-Length: 0\r\n\r\n",
+        "HTTP/1.1 301 \r\nLocation: /\r\nContent-Length: 0\r\n\r\n",
+        "HTTP/1.1 500 Internal Server Error\r\nConnection: close\r\nContent-Length: 2\r\n\r\nnoHTTP/1.1 200 OK\r\n\r\n",
+        "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nx",
+        "HTTP/1.1 99999999999 Overflow\r\n\r\n",
+        "HTTP/1.1 200OK\r\n\r\n",
+        "HTTP/1.1 OK\r\n\r\n",
+        "HTTP/1.1 200 Bad\u0001Reason\r\n\r\n",
+        "XTTP/1.1 200 OK\r\n\r\n",
+    };
+
+    @Test
+    public void testRequests()
+    {
+        for (String r : REQUESTS) {
+            compareAllSplits(HTTPParsingMachine.ParsingMode.REQUEST, r);
+        }
+    }
+
+    @Test
+    public void testResponses()
+    {
+        for (String r : RESPONSES) {
+            compareAllSplits(HTTPParsingMachine.ParsingMode.RESPONSE, r);
+        }
+    }
+
+    @Test
+    public void testExtraBlankLines()
+    {
+        // The old parser only skipped one blank line at a time, so this failed when the lines were split
+        String msg = "GET /one HTTP/1.1\r\n\r\n\r\n\r\nGET /two HTTP/1.1\r\n\r\n";
+        for (int size = 1; size <= msg.length(); size++) {
+            HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+            List<String> uris = new ArrayList<String>();
+            for (int p = 0; p < msg.length(); p += size) {
+                ByteBuffer buf = toBuffer(msg.substring(p, Math.min(p + size, msg.length())), false);
+                do {
+                    HTTPParsingMachine.Result r = parser.parse(buf);
+                    assertFalse(r.isError());
+                    if (r.isComplete()) {
+                        uris.add(r.getUri());
+                        parser.reset();
+                    }
+                } while (buf.hasRemaining());
+            }
+            assertEquals(2, uris.size());
+            assertEquals("/two", uris.get(1));
+        }
+    }
+
+    @Test
+    public void testBadVersion()
+    {
+        // The old parser's regular expression accepted any character between the version numbers
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        assertTrue(parser.parse(toBuffer("GET /x HTTP/1x1\r\n\r\n", false)).isError());
+        parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.RESPONSE);
+        assertTrue(parser.parse(toBuffer("HTTP/1-1 200 OK\r\n\r\n", false)).isError());
+    }
+
+    @Test
+    public void testContinuationAcrossCalls()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(toBuffer("GET / HTTP/1.1\r\nHost: x\r\nX-Long: one\r\n", false));
+        assertFalse(r.isError());
+        assertFalse(r.isHeadersComplete());
+        // The last header might be continued, so it is not returned yet
+        assertEquals(1, r.getHeaders().size());
+        assertEquals("Host", r.getHeaders().get(0).getKey());
+
+        r = parser.parse(toBuffer(" two\r\n", false));
+        assertFalse(r.isError());
+        assertTrue(r.getHeaders().isEmpty());
+
+        r = parser.parse(toBuffer("\r\n", false));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+        assertEquals(1, r.getHeaders().size());
+        assertEquals("X-Long", r.getHeaders().get(0).getKey());
+        assertEquals("onetwo", r.getHeaders().get(0).getValue());
+
+        // Once the start of the next line is here, we know whether the last header is continued
+        parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        r = parser.parse(toBuffer("GET / HTTP/1.1\r\nHost: x\r\nX-Lo", false));
+        assertFalse(r.isError());
+        assertEquals(1, r.getHeaders().size());
+        assertEquals("Host", r.getHeaders().get(0).getKey());
+
+        r = parser.parse(toBuffer("ng: one\r\n tw", false));
+        assertFalse(r.isError());
+        assertTrue(r.getHeaders().isEmpty());
+
+        r = parser.parse(toBuffer("o\r\n\r\n", false));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+        assertEquals(1, r.getHeaders().size());
+        assertEquals("onetwo", r.getHeaders().get(0).getValue());
+    }
+
+    @Test
+    public void testInterning()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(toBuffer("GET / HTTP/1.1\r\nContent-Type: text/plain\r\nhost: x\r\n\r\n", false));
+        assertTrue(r.isComplete());
+        assertSame("GET", r.getMethod());
+        assertSame("Content-Type", r.getHeaders().get(0).getKey());
+        assertSame("text/plain", r.getHeaders().get(0).getValue());
+        assertSame("host", r.getHeaders().get(1).getKey());
+        assertEquals("x", r.getHeaders().get(1).getValue());
+    }
+
+    @Test
+    public void testLongLine()
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append((char)('a' + (i % 26)));
+        }
+        compareAllSplits(HTTPParsingMachine.ParsingMode.REQUEST,
+                         "GET /" + value + " HTTP/1.1\r\nX-Big: " + value + "\r\n\r\n");
+    }
+
+    private static void compareAllSplits(HTTPParsingMachine.ParsingMode mode, String msg)
+    {
+        for (boolean direct : new boolean[] { false, true }) {
+            compare(mode, msg, direct, msg.length());
+            compare(mode, msg, direct, 1);
+            for (int split = 1; split < msg.length(); split++) {
+                compare(mode, msg, direct, split, msg.length());
+            }
+        }
+    }
+
+    /**
+     * Feed the message in pieces of "size" bytes.
+     */
+    private static void compare(HTTPParsingMachine.ParsingMode mode, String msg, boolean direct, int size)
+    {
+        int[] splits = new int[(msg.length() + size - 1) / size];
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = Math.min((i + 1) * size, msg.length());
+        }
+        compare(mode, msg, direct, splits);
+    }
+
+    private static void compare(HTTPParsingMachine.ParsingMode mode, String msg, boolean direct, int... splits)
+    {
+        List<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+        // The old parser only works on heap buffers
+        List<ByteBuffer> copies = new ArrayList<ByteBuffer>();
+        int last = 0;
+        for (int s : splits) {
+            bufs.add(toBuffer(msg.substring(last, s), direct));
+            copies.add(toBuffer(msg.substring(last, s), false));
+            last = s;
+        }
+
+        List<String> expected = runRegex(mode, copies);
+        List<String> actual = runNew(mode, bufs);
+        assertEquals("Message " + msg + " split at " + java.util.Arrays.toString(splits),
+                     expected, actual);
+    }
+
+    private static List<String> runNew(HTTPParsingMachine.ParsingMode mode, List<ByteBuffer> bufs)
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(mode);
+        List<String> events = new ArrayList<String>();
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        List<Map.Entry<String, String>> trailers = new ArrayList<Map.Entry<String, String>>();
+        // This is what "finish" does
+        bufs.add(ByteBuffer.allocate(0));
+        for (ByteBuffer buf : bufs) {
+            HTTPParsingMachine.Result r;
+            do {
+                r = parser.parse(buf);
+                events.add(describe(r.isError(), r.isComplete(), r.isHeadersComplete(), r.shouldKeepAlive(),
+                                    r.isUpgradeRequested(), r.isConnectRequest(), r.getMethod(), r.getUri(),
+                                    r.getMajor(), r.getMinor(), r.getStatusCode(), r.getStatusMessage(),
+                                    r.getBody()) +
+                           " remaining " + (buf == null ? 0 : buf.remaining()));
+                if (r.isError()) {
+                    return events;
+                }
+                // The parser re-uses its header objects on the next call, so copy them
+                copyEntries(r.getHeaders(), headers);
+                copyEntries(r.getTrailers(), trailers);
+                if (r.isComplete()) {
+                    events.add(describeEntries(headers, trailers));
+                    parser.reset();
+                }
+            } while ((buf != null) && buf.hasRemaining() && !r.isConnectRequest() && !r.isUpgradeRequested());
+        }
+        events.add(describeEntries(headers, trailers));
+        return events;
+    }
+
+    private static List<String> runRegex(HTTPParsingMachine.ParsingMode mode, List<ByteBuffer> bufs)
+    {
+        RegexHTTPParsingMachine parser = new RegexHTTPParsingMachine(
+            RegexHTTPParsingMachine.ParsingMode.valueOf(mode.name()));
+        List<String> events = new ArrayList<String>();
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        List<Map.Entry<String, String>> trailers = new ArrayList<Map.Entry<String, String>>();
+        // This is what "finish" does
+        bufs.add(ByteBuffer.allocate(0));
+        for (ByteBuffer buf : bufs) {
+            RegexHTTPParsingMachine.Result r;
+            do {
+                r = parser.parse(buf);
+                events.add(describe(r.isError(), r.isComplete(), r.isHeadersComplete(), r.shouldKeepAlive(),
+                                    r.isUpgradeRequested(), r.isConnectRequest(), r.getMethod(), r.getUri(),
+                                    r.getMajor(), r.getMinor(), r.getStatusCode(), r.getStatusMessage(),
+                                    r.getBody()) +
+                           " remaining " + (buf == null ? 0 : buf.remaining()));
+                if (r.isError()) {
+                    return events;
+                }
+                // This parser appends continuation lines to header objects that it already returned,
+                // so keep the objects themselves and look at them once the message is done
+                if (r.getHeaders() != null) {
+                    headers.addAll(r.getHeaders());
+                }
+                if (r.getTrailers() != null) {
+                    trailers.addAll(r.getTrailers());
+                }
+                if (r.isComplete()) {
+                    events.add(describeEntries(headers, trailers));
+                    parser.reset();
+                }
+            } while ((buf != null) && buf.hasRemaining() && !r.isConnectRequest() && !r.isUpgradeRequested());
+        }
+        events.add(describeEntries(headers, trailers));
+        return events;
+    }
+
+    private static String describe(boolean error, boolean complete, boolean headersComplete, boolean keepAlive,
+                                   boolean upgrade, boolean connect, String method, String uri,
+                                   int major, int minor, int status, String reason, ByteBuffer body)
+    {
+        if (error) {
+            return "error";
+        }
+        StringBuilder s = new StringBuilder();
+        s.append(complete).append(' ').append(headersComplete).append(' ').append(keepAlive).append(' ')
+         .append(upgrade).append(' ').append(connect).append(' ').append(method).append(' ').append(uri)
+         .append(' ').append(major).append('.').append(minor).append(' ').append(status).append(" [")
+         .append(reason).append("] body ");
+        if (body == null) {
+            s.append("null");
+        } else {
+            s.append('[').append(Charsets.UTF8.decode(body.duplicate())).append(']');
+        }
+        return s.toString();
+    }
+
+    private static void copyEntries(List<Map.Entry<String, String>> from, List<Map.Entry<String, String>> to)
+    {
+        if (from != null) {
+            for (Map.Entry<String, String> e : from) {
+                to.add(new AbstractMap.SimpleEntry<String, String>(e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Describe, and then clear, all the headers and trailers of a message.
+     */
+    private static String describeEntries(List<Map.Entry<String, String>> headers,
+                                          List<Map.Entry<String, String>> trailers)
+    {
+        String ret = "headers " + entries(headers) + " trailers " + entries(trailers);
+        headers.clear();
+        trailers.clear();
+        return ret;
+    }
+
+    private static String entries(List<Map.Entry<String, String>> l)
+    {
+        if (l == null) {
+            return "null";
+        }
+        StringBuilder s = new StringBuilder("{");
+        for (Map.Entry<String, String> e : l) {
+            s.append('[').append(e.getKey()).append("]=[").append(e.getValue()).append("] ");
+        }
+        return s.append('}').toString();
+    }
+
+    private static ByteBuffer toBuffer(String s, boolean direct)
+    {
+        byte[] b = s.getBytes(Charsets.UTF8);
+        if (direct) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+            buf.put(b);
+            buf.flip();
+            return buf;
+        }
+        // Use an offset into a larger array to test the array arithmetic
+        ByteBuffer buf = ByteBuffer.allocate(b.length + 8);
+        buf.position(4);
+        buf.put(b);
+        buf.flip();
+        buf.position(4);
+        return buf.slice();
+    }
+}
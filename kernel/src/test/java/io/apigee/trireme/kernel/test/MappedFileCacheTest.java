@@ -0,0 +1,185 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.fs.MappedFileCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+public class MappedFileCacheTest
+{
+    @Test
+    public void testSmallFile()
+        throws IOException
+    {
+        MappedFileCache cache = new MappedFileCache(1024L * 1024L, 1024);
+        File f = makeFile(100, (byte)1);
+        try {
+            assertNull(map(cache, f));
+            assertEquals(0, cache.getEntryCount());
+            assertFalse(cache.isMappable(100L));
+            assertTrue(cache.isMappable(1024L));
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testHit()
+        throws IOException
+    {
+        MappedFileCache cache = new MappedFileCache(1024L * 1024L, 1024);
+        File f = makeFile(4096, (byte)2);
+        try {
+            ByteBuffer m1 = map(cache, f);
+            assertNotNull(m1);
+            assertTrue(m1.isReadOnly());
+            assertEquals(4096, m1.remaining());
+            assertEquals(2, m1.get(4095));
+            assertEquals(1L, cache.getMisses());
+
+            ByteBuffer m2 = map(cache, f);
+            assertNotNull(m2);
+            assertEquals(4096, m2.remaining());
+            assertEquals(1L, cache.getHits());
+            assertEquals(1, cache.getEntryCount());
+            assertEquals(4096L, cache.getSize());
+
+            // Each caller gets its own position and limit
+            m1.position(100);
+            assertEquals(0, m2.position());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testChanged()
+        throws IOException
+    {
+        MappedFileCache cache = new MappedFileCache(1024L * 1024L, 1024);
+        File f = makeFile(4096, (byte)3);
+        try {
+            assertNotNull(map(cache, f));
+
+            writeFile(f, 8192, (byte)4);
+            ByteBuffer m = map(cache, f);
+            assertEquals(8192, m.remaining());
+            assertEquals(4, m.get(0));
+            assertEquals(2L, cache.getMisses());
+            assertEquals(8192L, cache.getSize());
+
+            // Same length, but a different modification time
+            writeFile(f, 8192, (byte)5);
+            assertTrue(f.setLastModified(f.lastModified() - 10000L));
+            m = map(cache, f);
+            assertEquals(5, m.get(0));
+            assertEquals(3L, cache.getMisses());
+            assertEquals(0L, cache.getHits());
+            assertEquals(1, cache.getEntryCount());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testReplaced()
+        throws IOException
+    {
+        MappedFileCache cache = new MappedFileCache(1024L * 1024L, 1024);
+        File f = makeFile(4096, (byte)6);
+        File g = makeFile(4096, (byte)7);
+        try {
+            assertEquals(6, map(cache, f).get(0));
+
+            // Same length and modification time, but a different file was renamed over it
+            assertTrue(g.setLastModified(f.lastModified()));
+            Files.move(g.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            assertEquals(7, map(cache, f).get(0));
+            assertEquals(2L, cache.getMisses());
+            assertEquals(0L, cache.getHits());
+        } finally {
+            f.delete();
+            g.delete();
+        }
+    }
+
+    @Test
+    public void testEviction()
+        throws IOException
+    {
+        MappedFileCache cache = new MappedFileCache(10000L, 1024);
+        File f1 = makeFile(4096, (byte)1);
+        File f2 = makeFile(4096, (byte)2);
+        File f3 = makeFile(4096, (byte)3);
+        File big = makeFile(20000, (byte)4);
+        try {
+            assertNotNull(map(cache, f1));
+            assertNotNull(map(cache, f2));
+            assertNotNull(map(cache, f3));
+            assertEquals(2, cache.getEntryCount());
+            assertEquals(8192L, cache.getSize());
+
+            // The first file was dropped
+            map(cache, f1);
+            assertEquals(0L, cache.getHits());
+
+            // Too big to cache, but still mapped
+            ByteBuffer m = map(cache, big);
+            assertNotNull(m);
+            assertEquals(20000, m.remaining());
+            assertEquals(2, cache.getEntryCount());
+            assertTrue(cache.getSize() <= 10000L);
+
+            cache.clear();
+            assertEquals(0, cache.getEntryCount());
+            assertEquals(0L, cache.getSize());
+        } finally {
+            f1.delete();
+            f2.delete();
+            f3.delete();
+            big.delete();
+        }
+    }
+
+    private static ByteBuffer map(MappedFileCache cache, File f)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return cache.map(f, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File makeFile(int len, byte val)
+        throws IOException
+    {
+        File f = File.createTempFile("mappedfilecachetest", ".dat");
+        writeFile(f, len, val);
+        return f;
+    }
+
+    private static void writeFile(File f, int len, byte val)
+        throws IOException
+    {
+        byte[] buf = new byte[len];
+        for (int i = 0; i < len; i++) {
+            buf[i] = val;
+        }
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(buf);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.handles.SlabAllocator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SlabAllocatorTest
+{
+    @Test
+    public void testClaim()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, false);
+        ByteBuffer b1 = read(alloc, "Hello");
+        ByteBuffer b2 = read(alloc, "World!");
+        assertEquals("Hello", toString(b1));
+        assertEquals("World!", toString(b2));
+        assertSame(b1.array(), b2.array());
+        assertEquals(0, b1.position());
+        assertEquals(5, b1.capacity());
+        assertEquals(5, b2.arrayOffset());
+        assertEquals(6, b2.capacity());
+        assertEquals(1, alloc.getSlabCount());
+    }
+
+    @Test
+    public void testNewSlab()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, false);
+        ByteBuffer b1 = read(alloc, repeat('a', 40));
+        ByteBuffer b2 = read(alloc, repeat('b', 40));
+        assertEquals(1, alloc.getSlabCount());
+        // Only 20 bytes left, which isn't enough for a whole read
+        assertEquals(40, alloc.getReadBuffer().remaining());
+        assertEquals(2, alloc.getSlabCount());
+        ByteBuffer b3 = read(alloc, repeat('c', 10));
+        assertNotSame(b1.array(), b3.array());
+        assertEquals(repeat('a', 40), toString(b1));
+        assertEquals(repeat('b', 40), toString(b2));
+        assertEquals(repeat('c', 10), toString(b3));
+    }
+
+    @Test
+    public void testRelease()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, false);
+        ByteBuffer b1 = read(alloc, "Hello");
+        ByteBuffer b2 = read(alloc, "World");
+        // Only the last one may be released
+        assertFalse(alloc.release(b1));
+        b2.position(b2.limit());
+        assertTrue(alloc.release(b2));
+        assertFalse(alloc.release(b2));
+        ByteBuffer b3 = read(alloc, "There");
+        assertEquals(5, b3.arrayOffset());
+        assertEquals("Hello", toString(b1));
+        assertEquals("There", toString(b3));
+    }
+
+    @Test
+    public void testDirect()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, true);
+        ByteBuffer b1 = read(alloc, "Hello");
+        ByteBuffer b2 = read(alloc, "World");
+        assertTrue(b1.isDirect());
+        assertEquals("Hello", toString(b1));
+        assertEquals("World", toString(b2));
+    }
+
+    @Test
+    public void testCopySmall()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, 10, false);
+        ByteBuffer b1 = read(alloc, "Hello");
+        ByteBuffer b2 = read(alloc, "Hello, World!");
+        ByteBuffer b3 = read(alloc, "Hi");
+        // Small reads get their own arrays and don't use up the slab
+        assertEquals(5, b1.array().length);
+        assertEquals(0, b2.arrayOffset());
+        assertNotSame(b2.array(), b3.array());
+        assertFalse(alloc.release(b3));
+        ByteBuffer b4 = read(alloc, "Goodbye, World!");
+        assertSame(b2.array(), b4.array());
+        assertEquals(13, b4.arrayOffset());
+        assertEquals("Hello", toString(b1));
+        assertEquals("Hello, World!", toString(b2));
+        assertEquals("Hi", toString(b3));
+    }
+
+    @Test
+    public void testMinMax()
+    {
+        SlabAllocator alloc = new SlabAllocator(100, 40, false);
+        assertEquals(100, alloc.getReadBuffer(10, 200).remaining());
+        alloc.getReadBuffer(40, 70).put(new byte[70]);
+        alloc.claim();
+        assertEquals(30, alloc.getReadBuffer(20, 40).remaining());
+        assertEquals(1, alloc.getSlabCount());
+        assertEquals(40, alloc.getReadBuffer(40, 40).remaining());
+        assertEquals(2, alloc.getSlabCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize()
+    {
+        new SlabAllocator(10, 20, false);
+    }
+
+    private static ByteBuffer read(SlabAllocator alloc, String data)
+    {
+        ByteBuffer rb = alloc.getReadBuffer();
+        rb.put(data.getBytes());
+        return alloc.claim();
+    }
+
+    private static String toString(ByteBuffer buf)
+    {
+        byte[] b = new byte[buf.remaining()];
+        buf.duplicate().get(b);
+        return new String(b);
+    }
+
+    private static String repeat(char c, int count)
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+}
@@ -11,6 +11,11 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -73,6 +78,90 @@ public class SocketHandleClientTest
         assertEquals(TEST, result);
     }
 
+    @Test
+    public void testWritev()
+        throws InterruptedException
+    {
+        final OutputAccumulator output = new OutputAccumulator();
+        // Large enough that the socket won't take it all at once
+        final byte[] data = new byte[1024 * 1024];
+        new Random(1234).nextBytes(data);
+        ByteBuffer cmd = TestCommand.makeCommand("ECHO", data);
+
+        // Split up the command into lots of slices, and send them using two "writev" calls and a "write"
+        final ByteBuffer[] slices = new ByteBuffer[100];
+        int sliceLen = (cmd.remaining() / slices.length) + 1;
+        for (int i = 0; i < slices.length; i++) {
+            ByteBuffer s = cmd.duplicate();
+            s.position(Math.min(i * sliceLen, cmd.limit()));
+            s.limit(Math.min((i + 1) * sliceLen, cmd.limit()));
+            slices[i] = s.slice();
+        }
+
+        final List<String> completions = Collections.synchronizedList(new ArrayList<String>());
+        final NIOSocketHandle handle = new NIOSocketHandle(runtime);
+
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    handle.connect("localhost", server.getPort(),
+                      new IOCompletionHandler<Integer>()
+                      {
+                        @Override
+                        public void ioComplete(int errCode, Integer value)
+                        {
+                            handle.startReading(output);
+                            handle.writev(Arrays.copyOfRange(slices, 0, 50), new Completion("first", completions));
+                            handle.write(slices[50], new Completion("second", completions));
+                            handle.writev(Arrays.copyOfRange(slices, 51, 100), new Completion("third", completions));
+                        }
+                      });
+                } catch (OSException ose) {
+                    output.ioComplete(ose.getCode(), null);
+                }
+            }
+        }, null);
+
+        while ((output.getResultLength() < data.length) && (output.getErrorCode() == 0)) {
+            Thread.sleep(50L);
+        }
+
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handle.close();
+            }
+        }, null);
+
+        assertArrayEquals(data, output.getResults());
+        assertEquals(Arrays.asList("first 0 " + (sliceLen * 50), "second 0 " + sliceLen,
+                                   "third 0 " + (cmd.remaining() - (sliceLen * 51))),
+                     completions);
+    }
+
+    private static final class Completion
+        implements IOCompletionHandler<Integer>
+    {
+        private final String name;
+        private final List<String> completions;
+
+        Completion(String name, List<String> completions)
+        {
+            this.name = name;
+            this.completions = completions;
+        }
+
+        @Override
+        public void ioComplete(int errCode, Integer value)
+        {
+            completions.add(name + ' ' + errCode + ' ' + value);
+        }
+    }
+
     @BeforeClass
     public static void init()
         throws IOException
@@ -91,6 +91,8 @@ public class SocketServer
                         }
                     }
                 } while (valid);
+                // Keep a partial command until the next read, but not "buf," which will be overwritten
+                remaining = (bb.hasRemaining() ? BufferUtils.duplicateBuffer(bb) : null);
             }
         } while (len >= 0);
 
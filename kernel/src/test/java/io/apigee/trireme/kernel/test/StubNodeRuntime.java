@@ -6,16 +6,20 @@ import io.apigee.trireme.kernel.net.SelectorHandler;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -36,6 +40,7 @@ public class StubNodeRuntime
 
     private final ExecutorService asyncPool;
     private final ExecutorService unboundedPool;
+    private final ScheduledExecutorService timerPool;
     private final Selector selector;
 
     private Object domain;
@@ -44,6 +49,7 @@ public class StubNodeRuntime
     public StubNodeRuntime()
     {
         unboundedPool = Executors.newCachedThreadPool();
+        timerPool = Executors.newSingleThreadScheduledExecutor();
         asyncPool = new ThreadPoolExecutor(CORE_THREADS, MAX_THREADS,
                                            THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
                                            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
@@ -65,6 +71,7 @@ public class StubNodeRuntime
     public void close()
     {
         running = false;
+        timerPool.shutdownNow();
         selector.wakeup();
     }
 
@@ -126,6 +133,13 @@ public class StubNodeRuntime
         return selector;
     }
 
+    @Override
+    public SelectionKey registerChannel(SelectableChannel channel, int ops, SelectorHandler handler)
+        throws ClosedChannelException
+    {
+        return channel.register(selector, ops, handler);
+    }
+
     @Override
     public NetworkPolicy getNetworkPolicy()
     {
@@ -147,9 +161,21 @@ public class StubNodeRuntime
     }
 
     @Override
-    public Future<Boolean> createTimedTask(Runnable r, long delay, TimeUnit unit, boolean repeating, Object domain)
+    public Future<Boolean> createTimedTask(final Runnable r, long delay, TimeUnit unit, boolean repeating,
+                                           final Object domain)
     {
-        throw new AssertionError("Timed tasks not implemented");
+        if (repeating) {
+            throw new AssertionError("Repeating timed tasks not implemented");
+        }
+        return timerPool.schedule(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                executeScriptTask(r, domain);
+                return Boolean.TRUE;
+            }
+        }, delay, unit);
     }
 
     protected void mainLoop()
@@ -18,6 +18,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.*;
@@ -177,6 +179,199 @@ public class TLSHandleClientTest
         assertEquals(TEST, result);
     }
 
+    @Test
+    public void testEchoMany()
+        throws InterruptedException, IOException,
+               NoSuchAlgorithmException, KeyManagementException, ExecutionException
+    {
+        final OutputAccumulator output = new OutputAccumulator();
+        final int COUNT = 100;
+        final StringBuilder expected = new StringBuilder();
+        final ArrayList<ByteBuffer> cmds = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < COUNT; i++) {
+            String msg = "Message " + i + ';';
+            expected.append(msg);
+            cmds.add(TestCommand.makeCommand("ECHO", msg.getBytes(Charsets.ASCII)));
+        }
+        // Followed by one that is larger than a few TLS records
+        byte[] big = new byte[100000];
+        Arrays.fill(big, (byte)'x');
+        expected.append(new String(big, Charsets.ASCII));
+        cmds.add(TestCommand.makeCommand("ECHO", big));
+
+        NIOSocketHandle nioHandle = new NIOSocketHandle(runtime);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null,
+                     new TrustManager[] { AllTrustingManager.INSTANCE },
+                     null);
+
+        TLSConnection tls =
+            new TLSConnection(runtime, false, "localhost", server.getPort());
+        TrustManager[] tms = TLSUtils.getTrustManagers();
+        tls.init(context, null, (X509TrustManager)tms[0]);
+
+        final TLSHandle handle = new TLSHandle(nioHandle, tls);
+        final ArrayList<Integer> completed = new ArrayList<Integer>();
+
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    handle.connect("localhost", server.getPort(),
+                      new IOCompletionHandler<Integer>()
+                      {
+                        @Override
+                        public void ioComplete(int errCode, Integer value)
+                        {
+                            handle.startReading(output);
+
+                            // All of these are queued up during the handshake and wrapped together afterwards
+                            for (int i = 0; i < cmds.size(); i++) {
+                                final int n = i;
+                                handle.write(cmds.get(i), new IOCompletionHandler<Integer>()
+                                {
+                                    @Override
+                                    public void ioComplete(int errCode, Integer value)
+                                    {
+                                        synchronized (completed) {
+                                            completed.add(n);
+                                        }
+                                    }
+                                });
+                            }
+                        }
+                      });
+                } catch (OSException ose) {
+                    output.ioComplete(ose.getCode(), null);
+                }
+            }
+        }, null);
+
+        while (output.getResultLength() < expected.length()) {
+            Thread.sleep(50L);
+        }
+
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handle.shutdown(new IOCompletionHandler<Integer>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                        handle.close();
+                    }
+                });
+            }
+        }, null);
+
+        String result = new String(output.getResults(), Charsets.ASCII);
+        assertEquals(expected.toString(), result);
+        synchronized (completed) {
+            assertEquals(cmds.size(), completed.size());
+            for (int i = 0; i < completed.size(); i++) {
+                assertEquals(i, completed.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testResumeSession()
+        throws InterruptedException, IOException,
+               NoSuchAlgorithmException, KeyManagementException
+    {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null,
+                     new TrustManager[] { AllTrustingManager.INSTANCE },
+                     null);
+
+        TLSConnection first =
+            new TLSConnection(runtime, false, "localhost", server.getPort());
+        echoOnce(context, first);
+        assertFalse(first.isSessionReused());
+        byte[] sessionId = first.getSessionId();
+        assertNotNull(sessionId);
+
+        // Same host and port, so JSSE finds the session on its own
+        TLSConnection second =
+            new TLSConnection(runtime, false, "localhost", server.getPort());
+        echoOnce(context, second);
+        assertTrue(second.isSessionReused());
+        assertArrayEquals(sessionId, second.getSessionId());
+
+        // No peer information, so only an explicit session can be resumed
+        TLSConnection third =
+            new TLSConnection(runtime, false, null, 0);
+        third.setSession(sessionId);
+        echoOnce(context, third);
+        assertTrue(third.isSessionReused());
+
+        TLSConnection fourth =
+            new TLSConnection(runtime, false, null, 0);
+        echoOnce(context, fourth);
+        assertFalse(fourth.isSessionReused());
+    }
+
+    private void echoOnce(SSLContext context, TLSConnection tls)
+        throws InterruptedException, IOException
+    {
+        final OutputAccumulator output = new OutputAccumulator();
+        final String TEST = "Hello Again Server!";
+        final ByteBuffer cmd = TestCommand.makeCommand("ECHO", TEST.getBytes(Charsets.ASCII));
+        NIOSocketHandle nioHandle = new NIOSocketHandle(runtime);
+
+        TrustManager[] tms = TLSUtils.getTrustManagers();
+        tls.init(context, null, (X509TrustManager)tms[0]);
+
+        final TLSHandle handle = new TLSHandle(nioHandle, tls);
+
+        runtime.executeScriptTask(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    handle.connect("localhost", server.getPort(),
+                      new IOCompletionHandler<Integer>()
+                      {
+                        @Override
+                        public void ioComplete(int errCode, Integer value)
+                        {
+                            handle.startReading(output);
+                            handle.write(cmd, null);
+                        }
+                      });
+                } catch (OSException ose) {
+                    output.ioComplete(ose.getCode(), null);
+                }
+            }
+        }, null);
+
+        while (output.getResultLength() < TEST.length()) {
+            Thread.sleep(50L);
+        }
+
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handle.shutdown(new IOCompletionHandler<Integer>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                        handle.close();
+                    }
+                });
+            }
+        }, null);
+
+        assertEquals(TEST, new String(output.getResults(), Charsets.ASCII));
+    }
+
     @BeforeClass
     public static void init()
         throws IOException
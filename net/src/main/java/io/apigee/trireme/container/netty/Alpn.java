@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.container.netty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Application-Layer Protocol Negotiation using the API that the JDK added in Java 9 and in Java 8u252.
+ * We build for Java 7, and the version of Netty that we use only knows how to do this on Java 9, so
+ * the methods are looked up by reflection. Where they are missing, TLS connections simply speak HTTP/1.1.
+ */
+final class Alpn
+{
+    static final String HTTP_2 = "h2";
+    static final String HTTP_1_1 = "http/1.1";
+
+    private static final Logger log = LoggerFactory.getLogger(Alpn.class);
+
+    private static final Method setApplicationProtocols;
+    private static final Method getApplicationProtocol;
+
+    static {
+        Method setProtos = null;
+        Method getProto = null;
+        try {
+            setProtos = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            getProto = SSLEngine.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException nse) {
+            log.debug("ALPN is not supported by this JDK");
+        }
+        setApplicationProtocols = setProtos;
+        getApplicationProtocol = getProto;
+    }
+
+    private Alpn()
+    {
+    }
+
+    static boolean isAvailable() {
+        return (setApplicationProtocols != null);
+    }
+
+    /**
+     * Offer the specified protocols, in order of preference, on the engine. Return false if ALPN
+     * is not supported.
+     */
+    static boolean setProtocols(SSLEngine engine, String... protocols)
+    {
+        if (!isAvailable()) {
+            return false;
+        }
+        SSLParameters params = engine.getSSLParameters();
+        try {
+            setApplicationProtocols.invoke(params, new Object[] { protocols });
+        } catch (IllegalAccessException e) {
+            log.debug("Cannot set ALPN protocols: {}", e);
+            return false;
+        } catch (InvocationTargetException e) {
+            log.debug("Cannot set ALPN protocols: {}", e.getCause());
+            return false;
+        }
+        engine.setSSLParameters(params);
+        return true;
+    }
+
+    /**
+     * Return the protocol that was negotiated during the handshake, or null if there was none.
+     */
+    static String getProtocol(SSLEngine engine)
+    {
+        if (getApplicationProtocol == null) {
+            return null;
+        }
+        try {
+            String proto = (String)getApplicationProtocol.invoke(engine);
+            return ((proto == null) || proto.isEmpty() ? null : proto);
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.container.netty;
+
+import io.netty.channel.WriteBufferWaterMark;
+
+/**
+ * Settings for the threads and sockets used by the Netty HTTP container. Pass one of these to the
+ * constructor of NettyHttpContainer to override the defaults, which are the same as a container
+ * that was constructed with no configuration.
+ */
+public class NettyConfig
+{
+    public static final int DEFAULT_ACCEPTOR_THREADS = 1;
+
+    /**
+     * How requests are shared between scripts that listen on the same port.
+     */
+    public enum Balancing
+    {
+        /** Each port belongs to one script, and a second one may not listen on it. */
+        NONE,
+        /** Each new request goes to the next script in turn. */
+        ROUND_ROBIN,
+        /** Each new request goes to the script with the fewest requests that have not yet been answered. */
+        LEAST_OUTSTANDING
+    }
+
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int acceptorThreads = DEFAULT_ACCEPTOR_THREADS;
+    private int backlog;
+    private boolean reusePort;
+    private boolean tcpNoDelay = true;
+    private int writeBufferLowWaterMark = WriteBufferWaterMark.DEFAULT.low();
+    private int writeBufferHighWaterMark = WriteBufferWaterMark.DEFAULT.high();
+    private boolean nativeTransport = true;
+    private boolean http2;
+    private Balancing balancing = Balancing.NONE;
+    private int maxQueuedRequests;
+    private long maxQueuedBytes;
+
+    /**
+     * Set the number of threads that handle I/O for all the connections. The default is the number of CPUs.
+     */
+    public NettyConfig setIOThreads(int n)
+    {
+        if (n < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+        this.ioThreads = n;
+        return this;
+    }
+
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Set the number of threads that accept new connections. The default is one. More than one only
+     * helps when "reusePort" is set and the native transport is in use, because then each thread gets
+     * its own listening socket and the kernel spreads new connections across all of them.
+     */
+    public NettyConfig setAcceptorThreads(int n)
+    {
+        if (n < 1) {
+            throw new IllegalArgumentException("acceptorThreads must be at least 1");
+        }
+        this.acceptorThreads = n;
+        return this;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    /**
+     * Set the listen backlog for every server. If this is zero, which is the default, then the
+     * backlog that the script passed to "listen" is used.
+     */
+    public NettyConfig setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set SO_REUSEPORT on the listening sockets. This is only supported by the native epoll transport,
+     * and is ignored otherwise.
+     */
+    public NettyConfig setReusePort(boolean reusePort)
+    {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Set TCP_NODELAY on accepted connections. The default is true.
+     */
+    public NettyConfig setTcpNoDelay(boolean noDelay)
+    {
+        this.tcpNoDelay = noDelay;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Set the amount of data queued for writing on a connection above which it is no longer writable, and
+     * below which it becomes writable again. The defaults are Netty's.
+     */
+    public NettyConfig setWriteBufferWaterMarks(int low, int high)
+    {
+        if ((low < 0) || (high < low)) {
+            throw new IllegalArgumentException("Invalid write buffer water marks");
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+        return this;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * Use Netty's native epoll transport if it is on the classpath and works on this platform. The
+     * default is true. Otherwise, and on other platforms, the NIO transport is used.
+     */
+    public NettyConfig setNativeTransport(boolean nativeTransport)
+    {
+        this.nativeTransport = nativeTransport;
+        return this;
+    }
+
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Accept HTTP/2 as well as HTTP/1. With TLS, "h2" is offered using ALPN if the JDK supports it.
+     * Without TLS, clients may either upgrade to "h2c" or send the HTTP/2 preface right away.
+     * Each HTTP/2 stream is delivered to the script as a separate request. The default is false.
+     */
+    public NettyConfig setHttp2(boolean http2)
+    {
+        this.http2 = http2;
+        return this;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Allow more than one script to listen on the same port, and share requests between them.
+     * The first script to listen opens the port, later ones join it, and it stays open until the last
+     * one closes. Since a single script only runs on one thread, starting several copies of the same
+     * script this way lets one application use more than one CPU, much like the "cluster" module.
+     * Scripts that listen on port zero always get a port of their own. The default is NONE.
+     */
+    public NettyConfig setBalancing(Balancing balancing)
+    {
+        if (balancing == null) {
+            throw new IllegalArgumentException("balancing must not be null");
+        }
+        this.balancing = balancing;
+        return this;
+    }
+
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    /**
+     * Set the largest number of requests that may be waiting for a script to start processing them.
+     * Once a script falls this far behind, new requests are rejected right away with a 503 status
+     * rather than waiting in its queue. When several scripts share a port, requests go to the others first.
+     * The default is zero, which means no limit.
+     */
+    public NettyConfig setMaxQueuedRequests(int max)
+    {
+        if (max < 0) {
+            throw new IllegalArgumentException("maxQueuedRequests may not be negative");
+        }
+        this.maxQueuedRequests = max;
+        return this;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    /**
+     * Set the largest amount of request data that may be waiting for a script to read it. Past this point,
+     * reading stops on the connections that sent it until the script catches up, and new requests
+     * are rejected with a 503 status. The default is zero, which means no limit.
+     */
+    public NettyConfig setMaxQueuedBytes(long max)
+    {
+        if (max < 0L) {
+            throw new IllegalArgumentException("maxQueuedBytes may not be negative");
+        }
+        this.maxQueuedBytes = max;
+        return this;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+}
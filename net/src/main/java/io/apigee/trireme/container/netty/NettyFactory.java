@@ -26,26 +26,43 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ThreadFactory;
 
 /**
- * A singleton to manage process-wide Netty stuff.
+ * This class manages the Netty threads and transport that are shared by all the servers in a container.
+ * By default there is one process-wide instance, but a container that is constructed with a NettyConfig
+ * gets its own.
  */
 public class NettyFactory
     implements ThreadFactory
 {
-    public static final int BOSS_THREAD_COUNT = 1;
+    public static final int BOSS_THREAD_COUNT = NettyConfig.DEFAULT_ACCEPTOR_THREADS;
 
-    private static final NettyFactory factory = new NettyFactory();
+    private static final Logger log = LoggerFactory.getLogger(NettyFactory.class);
 
+    /*
+     * The native transport is an optional dependency, so we only refer to it by name.
+     */
+    private static final String EPOLL_PACKAGE = "io.netty.channel.epoll.";
+
+    private static final NettyFactory factory = new NettyFactory(new NettyConfig());
+
+    private final NettyConfig config;
     private final EventLoopGroup ioThreads;
     private final EventLoopGroup acceptorThreads;
+    private final Class<? extends ServerChannel> serverChannelClass;
+    private final Class<? extends SocketChannel> socketChannelClass;
+    private final ChannelOption<Boolean> reusePortOption;
     private final HashedWheelTimer timer = new HashedWheelTimer(this);
 
     public static NettyFactory get()
@@ -53,16 +70,93 @@ public class NettyFactory
         return factory;
     }
 
-    private NettyFactory()
+    @SuppressWarnings("unchecked")
+    NettyFactory(NettyConfig config)
     {
-        ioThreads = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors(), this);
-        acceptorThreads = new NioEventLoopGroup(BOSS_THREAD_COUNT, this);
+        this.config = config;
+
+        EventLoopGroup io = null;
+        EventLoopGroup acceptors = null;
+        Class<? extends ServerChannel> serverClass = null;
+        Class<? extends SocketChannel> socketClass = null;
+        ChannelOption<Boolean> reusePort = null;
+
+        if (config.isNativeTransport() && isEpollAvailable()) {
+            try {
+                io = newEpollGroup(config.getIOThreads());
+                acceptors = newEpollGroup(config.getAcceptorThreads());
+                serverClass = (Class<? extends ServerChannel>)
+                    Class.forName(EPOLL_PACKAGE + "EpollServerSocketChannel");
+                socketClass = (Class<? extends SocketChannel>)
+                    Class.forName(EPOLL_PACKAGE + "EpollSocketChannel");
+                reusePort = (ChannelOption<Boolean>)
+                    Class.forName(EPOLL_PACKAGE + "EpollChannelOption").getField("SO_REUSEPORT").get(null);
+            } catch (Exception e) {
+                log.debug("Cannot use the native epoll transport: {}", e.toString());
+                if (io != null) {
+                    io.shutdownGracefully();
+                }
+                if (acceptors != null) {
+                    acceptors.shutdownGracefully();
+                }
+                io = acceptors = null;
+                reusePort = null;
+            }
+        }
+
+        if (io == null) {
+            io = new NioEventLoopGroup(config.getIOThreads(), this);
+            acceptors = new NioEventLoopGroup(config.getAcceptorThreads(), this);
+            serverClass = NioServerSocketChannel.class;
+            socketClass = NioSocketChannel.class;
+        }
+
+        ioThreads = io;
+        acceptorThreads = acceptors;
+        serverChannelClass = serverClass;
+        socketChannelClass = socketClass;
+        reusePortOption = reusePort;
+
+        if (log.isDebugEnabled()) {
+            log.debug("Netty is using {} with {} I/O and {} acceptor threads",
+                      serverChannelClass.getSimpleName(), config.getIOThreads(), config.getAcceptorThreads());
+        }
+        if (config.isReusePort() && (reusePortOption == null)) {
+            log.debug("SO_REUSEPORT requires the native epoll transport and will not be used");
+        }
+    }
+
+    private static boolean isEpollAvailable()
+    {
+        try {
+            Class<?> epoll = Class.forName(EPOLL_PACKAGE + "Epoll");
+            return (Boolean)epoll.getMethod("isAvailable").invoke(null);
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        } catch (Exception e) {
+            log.debug("Error checking for the native epoll transport: {}", e.toString());
+            return false;
+        } catch (LinkageError le) {
+            log.debug("Error checking for the native epoll transport: {}", le.toString());
+            return false;
+        }
+    }
+
+    private EventLoopGroup newEpollGroup(int threads)
+        throws Exception
+    {
+        return (EventLoopGroup)Class.forName(EPOLL_PACKAGE + "EpollEventLoopGroup").
+            getConstructor(Integer.TYPE, ThreadFactory.class).newInstance(threads, this);
     }
 
     public NettyServer createServer(int port, String host, int backlog,
                                     ChannelInitializer<SocketChannel> pipeline)
     {
-        return new NettyServer(port, host, backlog, pipeline);
+        return new NettyServer(this, port, host, backlog, pipeline);
+    }
+
+    NettyConfig getConfig() {
+        return config;
     }
 
     EventLoopGroup getIOThreads() {
@@ -73,12 +167,27 @@ public class NettyFactory
         return acceptorThreads;
     }
 
+    Class<? extends ServerChannel> getServerChannelClass() {
+        return serverChannelClass;
+    }
+
+    /**
+     * Return the SO_REUSEPORT option if it was requested and the transport supports it, or null otherwise.
+     */
+    ChannelOption<Boolean> getReusePortOption() {
+        return (config.isReusePort() ? reusePortOption : null);
+    }
+
+    public boolean isNativeTransport() {
+        return (serverChannelClass != NioServerSocketChannel.class);
+    }
+
     public ChannelFuture connect(int port, String host, String localHost,
                                  ChannelInitializer<SocketChannel> pipeline)
     {
         Bootstrap boot = new Bootstrap();
         boot.group(ioThreads)
-            .channel(NioSocketChannel.class)
+            .channel(socketChannelClass)
             .option(ChannelOption.SO_REUSEADDR, true)
             .remoteAddress(host, port)
             .handler(pipeline);
@@ -92,6 +201,16 @@ public class NettyFactory
         return timer;
     }
 
+    /**
+     * Stop all the threads. This is only done for a factory that belongs to a single container.
+     */
+    void shutdown()
+    {
+        acceptorThreads.shutdownGracefully();
+        ioThreads.shutdownGracefully();
+        timer.stop();
+    }
+
     @Override
     public Thread newThread(Runnable runnable)
     {
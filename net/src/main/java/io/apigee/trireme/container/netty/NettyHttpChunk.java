@@ -59,7 +59,7 @@ public class NettyHttpChunk
     @Override
     public void setData(ByteBuffer buf)
     {
-        chunk = new DefaultHttpContent(NettyServer.copyBuffer(buf));
+        chunk = new DefaultHttpContent(NettyServer.wrapBuffer(buf));
     }
 
     @Override
@@ -25,13 +25,112 @@ import io.apigee.trireme.core.NodeScript;
 import io.apigee.trireme.net.spi.HttpServerAdapter;
 import io.apigee.trireme.net.spi.HttpServerStub;
 import io.apigee.trireme.net.spi.HttpServerContainer;
+import io.apigee.trireme.net.spi.TLSParams;
+import io.netty.channel.ChannelException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 public class NettyHttpContainer
     implements HttpServerContainer
 {
+    private final NettyFactory factory;
+    private final boolean ownFactory;
+    private final HashMap<Integer, NettyServerGroup> groups = new HashMap<Integer, NettyServerGroup>();
+
+    /**
+     * Create a container that shares a default set of Netty threads with every other container in the process.
+     */
+    public NettyHttpContainer()
+    {
+        this.factory = NettyFactory.get();
+        this.ownFactory = false;
+    }
+
+    /**
+     * Create a container with its own Netty threads and socket settings. Call "close" when it is no
+     * longer needed to stop the threads.
+     */
+    public NettyHttpContainer(NettyConfig config)
+    {
+        this.factory = new NettyFactory(config);
+        this.ownFactory = true;
+    }
+
     @Override
     public HttpServerAdapter newServer(NodeScript script, HttpServerStub adapter)
     {
-        return new NettyHttpServer(adapter);
+        return new NettyHttpServer(adapter, factory, this);
+    }
+
+    boolean isBalancing() {
+        return (factory.getConfig().getBalancing() != NettyConfig.Balancing.NONE);
+    }
+
+    /**
+     * Add the server to the group listening on the port, opening the port if there is no group yet.
+     * A server that asks for a different host, backlog, or TLS settings than the group was opened
+     * with cannot share its listener, so it fails as if the port were in use.
+     */
+    synchronized NettyServerGroup joinGroup(NettyHttpServer server, String host, int port, int backlog,
+                                            TLSParams tls)
+    {
+        NettyServerGroup group = groups.get(port);
+        if (group == null) {
+            group = new NettyServerGroup(port, factory.getConfig().getBalancing(),
+                                         server.startListener(host, port, backlog, tls),
+                                         host, backlog, tls);
+            groups.put(port, group);
+        } else if (!group.matches(host, backlog, tls)) {
+            throw new ChannelException("Port " + port +
+                                       " is already in use by a server with different listen or TLS settings");
+        }
+        group.add(server);
+        return group;
+    }
+
+    /**
+     * Remove the server from its group, and close the listener if it was the last one. That happens
+     * while holding the lock, and the listener is completely closed before this returns, so that
+     * a server that joins at the same time opens a new listener rather than joining a closed one.
+     */
+    synchronized void leaveGroup(NettyServerGroup group, NettyHttpServer server)
+    {
+        if (group.remove(server)) {
+            groups.remove(group.getPort());
+            group.getListener().closeAndWait();
+        }
+    }
+
+    /**
+     * When balancing is enabled, return the servers, one for each script, that are sharing the
+     * specified port. Each one reports how many requests it has handled and may be drained of
+     * new requests. Otherwise, or if nothing is listening on the port, the list is empty.
+     */
+    public synchronized List<NettyHttpServer> getInstances(int port)
+    {
+        NettyServerGroup group = groups.get(port);
+        if (group == null) {
+            return Collections.emptyList();
+        }
+        return group.getMembers();
+    }
+
+    /**
+     * Return whether the servers in this container use Netty's native epoll transport.
+     */
+    public boolean isNativeTransport() {
+        return factory.isNativeTransport();
+    }
+
+    /**
+     * Stop the threads that were created for this container, if it was constructed with its own configuration.
+     */
+    public void close()
+    {
+        if (ownFactory) {
+            factory.shutdown();
+        }
     }
 }
@@ -22,13 +22,14 @@
 package io.apigee.trireme.container.netty;
 
 import io.apigee.trireme.net.spi.HttpMessageAdapter;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpVersion;
 import org.mozilla.javascript.Scriptable;
 
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
@@ -38,14 +39,14 @@ public abstract class NettyHttpMessage
     implements HttpMessageAdapter
 {
     protected final HttpMessage msg;
-    protected final SocketChannel channel;
+    protected final Channel channel;
 
     protected ByteBuffer data;
     protected boolean selfContained;
     protected Scriptable scriptObject;
     protected Object clientAttachment;
 
-    protected NettyHttpMessage(HttpMessage msg, SocketChannel channel)
+    protected NettyHttpMessage(HttpMessage msg, Channel channel)
     {
         this.msg = msg;
         this.channel = channel;
@@ -167,7 +168,7 @@ public abstract class NettyHttpMessage
     }
 
     private InetSocketAddress localAddress() {
-        return (channel == null ? null : channel.localAddress());
+        return (channel == null ? null : toInetAddress(channel.localAddress()));
     }
 
     @Override
@@ -189,7 +190,15 @@ public abstract class NettyHttpMessage
     }
 
     private InetSocketAddress remoteAddress() {
-        return (channel == null ? null : channel.remoteAddress());
+        return (channel == null ? null : toInetAddress(channel.remoteAddress()));
+    }
+
+    /**
+     * An HTTP/2 stream reports the addresses of the connection that it is part of, but the type
+     * system does not know that.
+     */
+    private static InetSocketAddress toInetAddress(SocketAddress addr) {
+        return (addr instanceof InetSocketAddress ? (InetSocketAddress)addr : null);
     }
 
     @Override
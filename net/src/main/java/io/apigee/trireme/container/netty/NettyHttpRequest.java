@@ -21,9 +21,9 @@
  */
 package io.apigee.trireme.container.netty;
 
-import io.apigee.trireme.net.spi.HttpRequestAdapter;
 import io.apigee.trireme.net.spi.PauseHelper;
-import io.netty.channel.socket.SocketChannel;
+import io.apigee.trireme.net.spi.ThrottledRequestAdapter;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import org.slf4j.Logger;
@@ -31,7 +31,7 @@ import org.slf4j.LoggerFactory;
 
 public class NettyHttpRequest
     extends NettyHttpMessage
-    implements HttpRequestAdapter, PauseHelper.FlowControl
+    implements ThrottledRequestAdapter, PauseHelper.FlowControl
 {
     public static final int HIGH_WATER_MARK = 16 * 1024;
 
@@ -40,7 +40,7 @@ public class NettyHttpRequest
     private final HttpRequest req;
     private final PauseHelper pauser = new PauseHelper(this, HIGH_WATER_MARK);
 
-    public NettyHttpRequest(HttpRequest req, SocketChannel channel)
+    public NettyHttpRequest(HttpRequest req, Channel channel)
     {
         super(req, channel);
         this.req = req;
@@ -90,6 +90,13 @@ public class NettyHttpRequest
         pauser.incrementQueueLength(delta);
     }
 
+    @Override
+    public void setThrottled(boolean throttled)
+    {
+        log.debug("Received throttle {} from the script", throttled);
+        pauser.setThrottled(throttled);
+    }
+
     @Override
     public void doPause()
     {
@@ -27,6 +27,7 @@ import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.net.spi.HttpResponseAdapter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.DefaultHttpContent;
@@ -41,6 +42,7 @@ import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NettyHttpResponse
     extends NettyHttpMessage
@@ -54,8 +56,9 @@ public class NettyHttpResponse
     private boolean             keepAlive;
     private final boolean       isTls;
     private ArrayList<Map.Entry<String, String>> trailers;
+    private final AtomicBoolean complete = new AtomicBoolean();
 
-    public NettyHttpResponse(HttpResponse resp, SocketChannel channel,
+    public NettyHttpResponse(HttpResponse resp, Channel channel,
                              boolean keepAliveRequested, boolean isTls,
                              NettyHttpServer server)
     {
@@ -122,10 +125,11 @@ public class NettyHttpResponse
         if (log.isDebugEnabled()) {
             log.debug("Shutting down HTTP output. TLS = {}", isTls);
         }
-        if (isTls) {
+        if (isTls || !(channel instanceof SocketChannel)) {
+            // An HTTP/2 stream is finished by closing it, which leaves the connection open
             channel.close();
         } else {
-            channel.shutdownOutput();
+            ((SocketChannel)channel).shutdownOutput();
         }
     }
 
@@ -148,7 +152,7 @@ public class NettyHttpResponse
                 log.debug("send: Sending HTTP chunk with data {}", data);
             }
             DefaultHttpContent chunk =
-                new DefaultHttpContent(NettyServer.copyBuffer(data));
+                new DefaultHttpContent(NettyServer.wrapBuffer(data));
             future = channel.write(chunk);
         }
 
@@ -178,7 +182,7 @@ public class NettyHttpResponse
                 log.debug("sendChunk: Sending HTTP chunk {}", buf);
             }
             DefaultHttpContent chunk =
-                new DefaultHttpContent(NettyServer.copyBuffer(buf));
+                new DefaultHttpContent(NettyServer.wrapBuffer(buf));
             future = channel.write(chunk);
         }
 
@@ -248,8 +252,20 @@ public class NettyHttpResponse
         }
     }
 
+    /**
+     * Tell the server, once, that this response is finished, either because it was sent or because
+     * the connection went away first.
+     */
+    void complete()
+    {
+        if (complete.compareAndSet(false, true)) {
+            server.requestComplete();
+        }
+    }
+
     private ChannelFuture sendLastChunk()
     {
+        complete();
         if (log.isDebugEnabled()) {
             log.debug("send: Sending last HTTP chunk");
         }
@@ -274,6 +290,7 @@ public class NettyHttpResponse
     @Override
     public void destroy()
     {
+        complete();
         channel.close();
     }
 }
@@ -21,15 +21,19 @@
  */
 package io.apigee.trireme.container.netty;
 
+import io.apigee.trireme.net.spi.AdmissionControl;
+import io.apigee.trireme.net.spi.AdmissionControlStub;
 import io.apigee.trireme.net.spi.HttpServerAdapter;
 import io.apigee.trireme.net.spi.HttpServerStub;
 import io.apigee.trireme.net.spi.TLSParams;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -41,34 +45,59 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
 import java.net.InetSocketAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLEngine;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NettyHttpServer
     implements HttpServerAdapter
 {
     public static final int IDLE_CONNECTION_SECONDS = 60;
 
+    /** The largest request body that we will buffer while deciding whether to upgrade to HTTP/2. */
+    private static final int MAX_UPGRADE_CONTENT = 65536;
+    private static final String HTTP_HANDLER = "http";
+
     protected static final Logger log = LoggerFactory.getLogger(NettyHttpServer.class);
 
     private final HttpServerStub stub;
+    private final AdmissionControl admission;
+    private final NettyFactory   factory;
+    private final NettyHttpContainer container;
+    private final AtomicInteger  outstanding = new AtomicInteger();
+    private final AtomicLong     requestCount = new AtomicLong();
     private       NettyServer    server;
+    private       NettyServerGroup group;
     private       String         injectedAttachment;
     private       boolean        isTls;
     private volatile boolean     closing;
 
-    NettyHttpServer(HttpServerStub stub)
+    NettyHttpServer(HttpServerStub stub, NettyFactory factory, NettyHttpContainer container)
     {
         this.stub = stub;
+        this.factory = factory;
+        this.container = container;
 
         // This is for testing the "attachment" feature
         injectedAttachment = System.getProperty("TriremeInjectedAttachment");
@@ -78,6 +107,15 @@ public class NettyHttpServer
             stub.setDefaultTimeout(Integer.parseInt(timeoutOpt), TimeUnit.SECONDS,
                                    500, "text/plain", "Request timed out");
         }
+
+        // Older stubs do not support admission control, in which case every request is admitted
+        if (stub instanceof AdmissionControlStub) {
+            NettyConfig config = factory.getConfig();
+            admission = ((AdmissionControlStub)stub).getAdmissionControl();
+            admission.setLimits(config.getMaxQueuedRequests(), config.getMaxQueuedBytes());
+        } else {
+            admission = null;
+        }
     }
 
     @Override
@@ -88,7 +126,12 @@ public class NettyHttpServer
             log.debug("Using SSLContext " + tlsParams.getContext());
         }
         try {
-            server = NettyFactory.get().createServer(port, host, backlog, makePipeline(tlsParams));
+            if (container.isBalancing() && (port != 0)) {
+                group = container.joinGroup(this, host, port, backlog, tlsParams);
+                server = group.getListener();
+            } else {
+                server = startListener(host, port, backlog, tlsParams);
+            }
             log.debug("Listening on {}", server.getAddress());
         } catch (ChannelException ce) {
             stub.onError(ce.getMessage());
@@ -96,8 +139,14 @@ public class NettyHttpServer
         }
     }
 
+    NettyServer startListener(String host, int port, int backlog, TLSParams tls)
+    {
+        return factory.createServer(port, host, backlog, makePipeline(tls));
+    }
+
     private ChannelInitializer<SocketChannel> makePipeline(final TLSParams tls)
     {
+        final boolean http2 = factory.getConfig().isHttp2();
         return new ChannelInitializer<SocketChannel>()
         {
             @Override
@@ -107,17 +156,32 @@ public class NettyHttpServer
                 c.pipeline().addLast(new IdleStateHandler(
                                      IDLE_CONNECTION_SECONDS, IDLE_CONNECTION_SECONDS,
                                      IDLE_CONNECTION_SECONDS));
+                ChannelHandler protocolHandler = null;
                 if (tls != null) {
                     isTls = true;
                     SSLEngine engine = makeSSLEngine(tls);
                     c.pipeline().addLast(new SslHandler(engine));
+                    if (http2 && Alpn.setProtocols(engine, Alpn.HTTP_2, Alpn.HTTP_1_1)) {
+                        protocolHandler = new AlpnHandler(engine);
+                    }
+                } else if (http2) {
+                    HttpServerCodec codec = new HttpServerCodec();
+                    protocolHandler = new CleartextHttp2ServerUpgradeHandler(
+                        codec, new HttpServerUpgradeHandler(codec, new H2cUpgradeFactory(), MAX_UPGRADE_CONTENT),
+                        makeHttp2Codec());
                 }
                 if (log.isTraceEnabled()) {
                     c.pipeline().addLast("loggingReq", new LoggingHandler(LogLevel.DEBUG));
                 }
-                c.pipeline().addLast(new HttpRequestDecoder())
-                            .addLast(new HttpHandler())
-                            .addLast(new HttpResponseEncoder());
+                if (protocolHandler == null) {
+                    c.pipeline().addLast(new HttpRequestDecoder())
+                                .addLast(HTTP_HANDLER, new HttpHandler(false))
+                                .addLast(new HttpResponseEncoder());
+                } else {
+                    // The protocol handler adds the right codecs before the HTTP handler once it knows what they are
+                    c.pipeline().addLast(protocolHandler)
+                                .addLast(HTTP_HANDLER, new HttpHandler(false));
+                }
                 if (log.isTraceEnabled()) {
                     c.pipeline().addLast("loggingResp", new LoggingHandler(LogLevel.DEBUG));
                 }
@@ -125,13 +189,32 @@ public class NettyHttpServer
         };
     }
 
+    /**
+     * Each HTTP/2 stream gets its own child channel, with a codec that turns the stream into the same
+     * HTTP objects that the HTTP/1 decoder produces, so the rest of this class does not know the difference.
+     */
+    private Http2MultiplexCodec makeHttp2Codec()
+    {
+        ChannelInitializer<Channel> streamInit = new ChannelInitializer<Channel>()
+        {
+            @Override
+            public void initChannel(Channel c)
+            {
+                c.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true))
+                            .addLast(new HttpHandler(true));
+            }
+        };
+        return Http2MultiplexCodecBuilder.forServer(streamInit).build();
+    }
+
     private void makeUpgradePipeline(SocketChannel c, UpgradedHandler handler)
     {
         // Remove the last handlers until we have remove the requestDecoder
         ChannelHandler lastHandler = null;
         do {
             lastHandler = c.pipeline().removeLast();
-        } while (!(lastHandler instanceof HttpRequestDecoder));
+        } while (!(lastHandler instanceof HttpRequestDecoder) &&
+                 !(lastHandler instanceof HttpServerCodec));
 
         // Now tack the new handler on the end instead
         c.pipeline().addLast(handler);
@@ -140,10 +223,88 @@ public class NettyHttpServer
         }
     }
 
+    /**
+     * Return true if connections should be closed rather than kept alive after the current response.
+     */
     boolean isClosing() {
+        return (group == null ? closing : group.isClosing());
+    }
+
+    /**
+     * Return the number of requests that have been handed to the script but not yet completely answered.
+     */
+    public int getOutstandingRequests() {
+        return outstanding.get();
+    }
+
+    /**
+     * Return the number of requests that have been handed to the script since it started listening.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Return the number of requests that are waiting for the script to start processing them.
+     */
+    public int getQueuedRequests() {
+        return (admission == null ? 0 : admission.getQueuedRequests());
+    }
+
+    /**
+     * Return the number of bytes of request data that are waiting for the script to read them.
+     */
+    public long getQueuedBytes() {
+        return (admission == null ? 0L : admission.getQueuedBytes());
+    }
+
+    /**
+     * Return the number of requests that were rejected because too much was already queued.
+     */
+    public long getRejectedRequests() {
+        return (admission == null ? 0L : admission.getRejectedRequests());
+    }
+
+    /**
+     * Stop handing new requests to this server when it is sharing a port with others, so that they get
+     * them instead. Requests that it already has are still answered, and the script keeps running until
+     * it closes the server itself. Connections are no longer kept alive once every server on the port
+     * is draining, and after that new requests are rejected with a 503 status.
+     */
+    public void drain()
+    {
+        log.debug("Draining HTTP server");
+        closing = true;
+    }
+
+    public boolean isDraining() {
         return closing;
     }
 
+    boolean isAdmitting() {
+        return ((admission == null) || admission.isAdmitting());
+    }
+
+    /**
+     * Return true, and count the request as queued, if the script may be handed a new request.
+     */
+    boolean admit() {
+        return ((admission == null) || admission.admit());
+    }
+
+    void requestComplete()
+    {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Pick the server, and so the script, that will handle a new request.
+     */
+    private NettyHttpServer chooseServer()
+    {
+        return (group == null ? this : group.choose());
+    }
+
     @Override
     public InetSocketAddress localAddress() {
         return server.getAddress();
@@ -153,7 +314,9 @@ public class NettyHttpServer
     public void suspend()
     {
         log.debug("Suspending HTTP server for new connections");
-        server.suspend();
+        if (group == null) {
+            server.suspend();
+        }
         closing = true;
     }
 
@@ -161,7 +324,11 @@ public class NettyHttpServer
     public void close()
     {
         log.debug("Closing HTTP server");
-        server.close();
+        if (group == null) {
+            server.close();
+        } else {
+            container.leaveGroup(group, this);
+        }
         stub.onClose(null, null);
     }
 
@@ -183,8 +350,16 @@ public class NettyHttpServer
     private final class HttpHandler
         extends SimpleChannelInboundHandler<HttpObject>
     {
+        private final boolean isStream;
+        private NettyHttpServer target;
         private NettyHttpRequest curRequest;
         private NettyHttpResponse curResponse;
+        private boolean rejecting;
+
+        HttpHandler(boolean isStream)
+        {
+            this.isStream = isStream;
+        }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
@@ -201,7 +376,9 @@ public class NettyHttpServer
             if (log.isDebugEnabled()) {
                 log.debug("New server-side connection {}", ctx.channel());
             }
-            stub.onConnection();
+            if (!isStream) {
+                stub.onConnection();
+            }
             ctx.fireChannelActive();
         }
 
@@ -212,7 +389,14 @@ public class NettyHttpServer
             if (log.isDebugEnabled()) {
                 log.debug("Closed server-side connection {}", ctx.channel());
             }
-            stub.onClose(curRequest, curResponse);
+            if (curResponse != null) {
+                curResponse.complete();
+            }
+            // "onClose" means that the connection is gone. An HTTP/2 stream closes at the end of every
+            // request, so only pass it on when the whole connection has closed underneath the stream.
+            if (!isStream || !ctx.channel().parent().isActive()) {
+                (target == null ? stub : target.stub).onClose(curRequest, curResponse);
+            }
             ctx.fireChannelInactive();
         }
 
@@ -224,20 +408,29 @@ public class NettyHttpServer
             }
             if (httpObject instanceof HttpRequest) {
                 HttpRequest req = (HttpRequest)httpObject;
-                SocketChannel channel = (SocketChannel)ctx.channel();
+                target = chooseServer();
+                rejecting = ((target == null) || !target.admit());
+                if (rejecting) {
+                    curRequest = null;
+                    curResponse = null;
+                    returnError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                    return;
+                }
+                Channel channel = ctx.channel();
                 curRequest = new NettyHttpRequest(req, channel);
                 // Set the "attachment" field on the Java request object for testing
                 curRequest.setClientAttachment(injectedAttachment);
 
-                if (curRequest.isUpgrade()) {
+                if (curRequest.isUpgrade() && (channel instanceof SocketChannel)) {
                     // The Trireme handle that abstractly represents the "socket"
                     UpgradedSocketHandler handler =
-                        new UpgradedSocketHandler(channel);
+                        new UpgradedSocketHandler((SocketChannel)channel);
                     // The Netty handler that replaces this HTTP handler
                     UpgradedHandler nettyHandler = new UpgradedHandler(handler);
-                    makeUpgradePipeline(channel, nettyHandler);
+                    makeUpgradePipeline((SocketChannel)channel, nettyHandler);
                     // Now deliver it
-                    stub.onUpgrade(curRequest, handler);
+                    target.stub.onUpgrade(curRequest, handler);
+                    return;
 
                 } else {
                     curResponse = new NettyHttpResponse(
@@ -245,12 +438,19 @@ public class NettyHttpServer
                                                 HttpResponseStatus.OK),
                         channel,
                         curRequest.isKeepAlive(), isTls,
-                        NettyHttpServer.this);
+                        target);
                     curResponse.setClientAttachment(injectedAttachment);
-                    stub.onRequest(curRequest, curResponse);
+                    target.outstanding.incrementAndGet();
+                    target.requestCount.incrementAndGet();
+                    target.stub.onRequest(curRequest, curResponse);
                 }
+            }
 
-            } else if (httpObject instanceof HttpContent) {
+            // HTTP/2 requests without a body, and upgrade requests, arrive as a single "full" request
+            if (httpObject instanceof HttpContent) {
+                if (rejecting) {
+                    return;
+                }
                 if ((curRequest == null) || (curResponse == null)) {
                     log.error("Received an HTTP chunk without a request first");
                     return;
@@ -259,11 +459,8 @@ public class NettyHttpServer
                 if (chunk.hasData() && !curRequest.hasContentLength() && !curRequest.isChunked()) {
                     returnError(ctx, HttpResponseStatus.BAD_REQUEST);
                 } else {
-                    stub.onData(curRequest, curResponse, chunk);
+                    target.stub.onData(curRequest, curResponse, chunk);
                 }
-
-            } else {
-                throw new AssertionError();
             }
         }
 
@@ -273,10 +470,61 @@ public class NettyHttpServer
                 log.debug("Returning an error on incoming message: {}", status);
             }
             FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+            HttpUtil.setContentLength(response, 0);
             ctx.channel().writeAndFlush(response);
         }
     }
 
+    /**
+     * Wait for the TLS handshake and then set up the pipeline for whichever protocol the client chose.
+     */
+    private final class AlpnHandler
+        extends ChannelInboundHandlerAdapter
+    {
+        private final SSLEngine engine;
+
+        AlpnHandler(SSLEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+            throws Exception
+        {
+            if (evt instanceof SslHandshakeCompletionEvent) {
+                ChannelPipeline p = ctx.pipeline();
+                if (((SslHandshakeCompletionEvent)evt).isSuccess()) {
+                    String proto = Alpn.getProtocol(engine);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Negotiated application protocol {}", proto);
+                    }
+                    if (Alpn.HTTP_2.equals(proto)) {
+                        p.addBefore(HTTP_HANDLER, null, makeHttp2Codec());
+                    } else {
+                        p.addBefore(HTTP_HANDLER, null, new HttpRequestDecoder());
+                        p.addAfter(HTTP_HANDLER, null, new HttpResponseEncoder());
+                    }
+                }
+                p.remove(this);
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    private final class H2cUpgradeFactory
+        implements HttpServerUpgradeHandler.UpgradeCodecFactory
+    {
+        @Override
+        public HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol)
+        {
+            if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return new Http2ServerUpgradeCodec(makeHttp2Codec());
+            }
+            return null;
+        }
+    }
+
     private final class UpgradedHandler
         extends ChannelInboundHandlerAdapter
     {
@@ -23,73 +23,136 @@ package io.apigee.trireme.container.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NettyServer
 {
     private final ServerBootstrap   bootstrap;
     private final InetSocketAddress address;
-    private final Channel           serverChannel;
+    private final List<Channel>     serverChannels = new ArrayList<Channel>();
 
-    NettyServer(int port, String host, int backlog,
+    NettyServer(NettyFactory factory, int port, String host, int backlog,
                 ChannelInitializer<SocketChannel> pipelineFactory)
     {
+        NettyConfig config = factory.getConfig();
+
         if (host == null) {
             address = new InetSocketAddress(port);
         } else {
             address = new InetSocketAddress(host, port);
         }
         bootstrap = new ServerBootstrap();
-        bootstrap.group(NettyFactory.get().getAcceptorThreads(), NettyFactory.get().getIOThreads())
-                 .channel(NioServerSocketChannel.class)
+        bootstrap.group(factory.getAcceptorThreads(), factory.getIOThreads())
+                 .channel(factory.getServerChannelClass())
                  .option(ChannelOption.SO_REUSEADDR, true)
-                 .childHandler(pipelineFactory)
-                 .localAddress(address);
+                 .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                 .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                 .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                              new WriteBufferWaterMark(config.getWriteBufferLowWaterMark(),
+                                                       config.getWriteBufferHighWaterMark()))
+                 .childHandler(pipelineFactory);
+
+        int realBacklog = (config.getBacklog() > 0 ? config.getBacklog() : backlog);
+        if (realBacklog > 0) {
+            bootstrap.option(ChannelOption.SO_BACKLOG, realBacklog);
+        }
+
+        // With SO_REUSEPORT, each acceptor thread gets its own listening socket on the same port,
+        // and the kernel balances new connections between them. Otherwise there can only be one.
+        int listeners = 1;
+        ChannelOption<Boolean> reusePort = factory.getReusePortOption();
+        if (reusePort != null) {
+            bootstrap.option(reusePort, true);
+            listeners = config.getAcceptorThreads();
+        }
+
+        Channel first = bootstrap.bind(address).syncUninterruptibly().channel();
+        serverChannels.add(first);
 
-        serverChannel =
-            bootstrap.bind().syncUninterruptibly().channel();
+        // If we were asked for an ephemeral port, the rest must listen on the one that we got
+        InetSocketAddress bound = (InetSocketAddress)first.localAddress();
+        for (int i = 1; i < listeners; i++) {
+            try {
+                serverChannels.add(bootstrap.bind(bound).syncUninterruptibly().channel());
+            } catch (RuntimeException re) {
+                close();
+                throw re;
+            }
+        }
     }
 
     public void suspend()
     {
         // Current way we do this from the Netty blog --
         // we basically set the pipeline to not have any more space in the buffer
-        serverChannel.config().setAutoRead(false);
+        for (Channel c : serverChannels) {
+            c.config().setAutoRead(false);
+        }
     }
 
     public void close()
     {
-        serverChannel.close();
+        for (Channel c : serverChannels) {
+            c.close();
+        }
+    }
+
+    /**
+     * Close the listening sockets and wait until they are closed, so that the port is free when this returns.
+     * This must not be called from a Netty thread.
+     */
+    public void closeAndWait()
+    {
+        for (Channel c : serverChannels) {
+            c.close().syncUninterruptibly();
+        }
     }
 
     public InetSocketAddress getAddress() {
-        if (serverChannel != null) {
-            return (InetSocketAddress)(serverChannel.localAddress());
+        if (!serverChannels.isEmpty()) {
+            return (InetSocketAddress)(serverChannels.get(0).localAddress());
         }
         return address;
     }
 
     /**
-     * Copy the Netty byte buffer into a new buffer.
+     * Return the number of sockets that are listening for this server.
+     */
+    public int getListenerCount() {
+        return serverChannels.size();
+    }
+
+    /**
+     * Copy the Netty byte buffer into a new heap buffer that a script may keep for as long as it likes.
+     * Incoming data is read into pooled memory, which is re-used as soon as it is released, so this is
+     * the one copy that request data goes through on its way to a JavaScript Buffer. The caller still
+     * owns its reference to the Netty buffer, and must release it as usual once this returns.
      */
     public static ByteBuffer copyBuffer(ByteBuf buf)
     {
         ByteBuffer ret = ByteBuffer.allocate(buf.readableBytes());
-        buf.readBytes(ret);
+        buf.getBytes(buf.readerIndex(), ret);
         ret.flip();
         return ret;
     }
 
-    public static ByteBuf copyBuffer(ByteBuffer buf)
+    /**
+     * Wrap a buffer for writing without copying it. As with a socket write in Node, the caller must not
+     * modify the data until the write has completed.
+     */
+    public static ByteBuf wrapBuffer(ByteBuffer buf)
     {
-        return Unpooled.copiedBuffer(buf);
+        return Unpooled.wrappedBuffer(buf);
     }
 }
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.container.netty;
+
+import io.apigee.trireme.net.spi.TLSParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The scripts that are sharing a single listening port. The listener is opened by the first one, and
+ * each new request is handed to one of the members according to the balancing policy.
+ */
+final class NettyServerGroup
+{
+    private final int port;
+    private final NettyConfig.Balancing policy;
+    private final CopyOnWriteArrayList<NettyHttpServer> members = new CopyOnWriteArrayList<NettyHttpServer>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final NettyServer listener;
+    private final String host;
+    private final int backlog;
+    private final TLSParams tls;
+
+    NettyServerGroup(int port, NettyConfig.Balancing policy, NettyServer listener,
+                     String host, int backlog, TLSParams tls)
+    {
+        this.port = port;
+        this.policy = policy;
+        this.listener = listener;
+        this.host = host;
+        this.backlog = backlog;
+        this.tls = tls;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    NettyServer getListener() {
+        return listener;
+    }
+
+    /**
+     * Return true if a server that wants to listen with these settings may share the listener that
+     * was opened with the group's settings. The TLS settings must use the same SSLContext.
+     */
+    boolean matches(String host, int backlog, TLSParams tls)
+    {
+        if ((this.host == null ? host != null : !this.host.equals(host)) ||
+            (this.backlog != backlog)) {
+            return false;
+        }
+        if ((this.tls == null) || (tls == null)) {
+            return (this.tls == tls);
+        }
+        return ((this.tls.getContext() == tls.getContext()) &&
+                Arrays.equals(this.tls.getCiphers(), tls.getCiphers()) &&
+                (this.tls.isClientAuthRequired() == tls.isClientAuthRequired()) &&
+                (this.tls.isClientAuthRequested() == tls.isClientAuthRequested()));
+    }
+
+    void add(NettyHttpServer server)
+    {
+        members.add(server);
+    }
+
+    /**
+     * Remove the server from the group, and return true if it was the last one.
+     */
+    boolean remove(NettyHttpServer server)
+    {
+        members.remove(server);
+        return members.isEmpty();
+    }
+
+    List<NettyHttpServer> getMembers()
+    {
+        return new ArrayList<NettyHttpServer>(members);
+    }
+
+    /**
+     * Return true if every member is draining, so that connections should not be kept alive.
+     */
+    boolean isClosing()
+    {
+        for (NettyHttpServer s : members) {
+            if (!s.isDraining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pick the member that should handle a new request, or return null if every member is draining.
+     * Members are searched starting at a different place each time, so that ties are broken in turn.
+     * Members that have too many requests queued are only picked if all of them do.
+     */
+    NettyHttpServer choose()
+    {
+        Object[] snapshot = members.toArray();
+        if (snapshot.length == 0) {
+            return null;
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+        NettyHttpServer best = null;
+        NettyHttpServer busy = null;
+        int bestCount = Integer.MAX_VALUE;
+
+        for (int i = 0; i < snapshot.length; i++) {
+            NettyHttpServer s = (NettyHttpServer)snapshot[(start + i) % snapshot.length];
+            if (s.isDraining()) {
+                continue;
+            }
+            if (!s.isAdmitting()) {
+                if (busy == null) {
+                    busy = s;
+                }
+                continue;
+            }
+            if (policy == NettyConfig.Balancing.ROUND_ROBIN) {
+                return s;
+            }
+            int count = s.getOutstandingRequests();
+            if (count < bestCount) {
+                best = s;
+                bestCount = count;
+            }
+        }
+        // If every script is too far behind then return one anyway, so that it rejects the request
+        return (best == null ? busy : best);
+    }
+}
@@ -25,7 +25,6 @@ import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.net.spi.UpgradedSocket;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.util.concurrent.Future;
@@ -97,9 +96,13 @@ public class UpgradedSocketHandler
             log.debug("Not null read (EOF)");
             readHandler.ioComplete(ErrorCodes.EOF, null);
         } else {
-            ByteBuffer readBuf = ByteBuffer.allocate(bb.readableBytes());
-            bb.readBytes(readBuf);
-            readBuf.flip();
+            ByteBuffer readBuf;
+            try {
+                readBuf = NettyServer.copyBuffer(bb);
+            } finally {
+                // The handler in the pipeline passed its reference to us
+                bb.release();
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Got {} bytes on the upgraded socket", (readBuf.remaining()));
@@ -116,7 +119,7 @@ public class UpgradedSocketHandler
     public int write(ByteBuffer buf, final IOCompletionHandler<Integer> handler)
     {
         final int len = buf.remaining();
-        ByteBuf nettyBuf = Unpooled.wrappedBuffer(buf);
+        ByteBuf nettyBuf = NettyServer.wrapBuffer(buf);
         ChannelFuture future = channel.writeAndFlush(nettyBuf);
 
         if (log.isDebugEnabled()) {
@@ -0,0 +1,120 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyConfig;
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.container.netty.NettyHttpServer;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionHttpNettyTest
+{
+    private static final int MAX_QUEUED = 2;
+
+    private static NettyHttpContainer container;
+    private static NodeEnvironment env;
+
+    @BeforeClass
+    public static void init()
+    {
+        // Balancing lets the test find the server for the port, even though there is only one script
+        container = new NettyHttpContainer(
+            new NettyConfig().
+                setBalancing(NettyConfig.Balancing.ROUND_ROBIN).
+                setMaxQueuedRequests(MAX_QUEUED));
+        env = new NodeEnvironment();
+        env.setHttpContainer(container);
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        env.close();
+        container.close();
+    }
+
+    @Test
+    public void testRejectWhenBusy()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        NodeScript script = env.createScript("busyserver.js",
+                                             new File("./target/test-classes/tests/busyserver.js"),
+                                             new String[] { String.valueOf(port) });
+        ScriptFuture future = script.execute();
+        NettyHttpServer server = null;
+        for (int i = 0; (i < 100) && (server == null); i++) {
+            Thread.sleep(50L);
+            List<NettyHttpServer> instances = container.getInstances(port);
+            if (!instances.isEmpty()) {
+                server = instances.get(0);
+            }
+        }
+        assertNotNull(server);
+
+        ArrayList<Channel> conns = new ArrayList<Channel>();
+        try {
+            Channel busyConn = Http2TestClient.connectHttp1(port);
+            conns.add(busyConn);
+            Future<FullHttpResponse> busy = Http2TestClient.sendHttp1(busyConn, HttpMethod.GET, "/busy", null);
+            // Wait until the script is stuck in the handler
+            for (int i = 0; (i < 100) && ((server.getOutstandingRequests() == 0) || (server.getQueuedRequests() > 0)); i++) {
+                Thread.sleep(10L);
+            }
+            assertEquals(1, server.getOutstandingRequests());
+
+            // These wait in the queue
+            ArrayList<Future<FullHttpResponse>> queued = new ArrayList<Future<FullHttpResponse>>();
+            for (int i = 0; i < MAX_QUEUED; i++) {
+                Channel conn = Http2TestClient.connectHttp1(port);
+                conns.add(conn);
+                queued.add(Http2TestClient.sendHttp1(conn, HttpMethod.GET, "/", null));
+                for (int w = 0; (w < 100) && (server.getQueuedRequests() <= i); w++) {
+                    Thread.sleep(10L);
+                }
+            }
+            assertEquals(MAX_QUEUED, server.getQueuedRequests());
+
+            // These are turned away without waiting for the script
+            for (int i = 0; i < 3; i++) {
+                Channel conn = Http2TestClient.connectHttp1(port);
+                conns.add(conn);
+                FullHttpResponse resp =
+                    Http2TestClient.sendHttp1(conn, HttpMethod.GET, "/", null).get(1, TimeUnit.SECONDS);
+                assertEquals(503, resp.status().code());
+                resp.release();
+            }
+            assertEquals(3L, server.getRejectedRequests());
+
+            assertEquals("ok", Http2TestClient.getContent(busy.get(10, TimeUnit.SECONDS)));
+            for (Future<FullHttpResponse> f : queued) {
+                assertEquals("ok", Http2TestClient.getContent(f.get(10, TimeUnit.SECONDS)));
+            }
+            assertEquals(0, server.getQueuedRequests());
+
+            // Once the script catches up, new requests are accepted again
+            FullHttpResponse resp =
+                Http2TestClient.sendHttp1(conns.get(0), HttpMethod.GET, "/", null).get(10, TimeUnit.SECONDS);
+            assertEquals("ok", Http2TestClient.getContent(resp));
+        } finally {
+            for (Channel c : conns) {
+                c.close();
+            }
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyConfig;
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.container.netty.NettyHttpServer;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BalancedHttpNettyTest
+{
+    private static NettyHttpContainer roundRobin;
+    private static NettyHttpContainer leastOutstanding;
+    private static NodeEnvironment roundRobinEnv;
+    private static NodeEnvironment leastOutstandingEnv;
+
+    @BeforeClass
+    public static void init()
+    {
+        roundRobin = new NettyHttpContainer(
+            new NettyConfig().setBalancing(NettyConfig.Balancing.ROUND_ROBIN));
+        leastOutstanding = new NettyHttpContainer(
+            new NettyConfig().setBalancing(NettyConfig.Balancing.LEAST_OUTSTANDING));
+        roundRobinEnv = new NodeEnvironment();
+        roundRobinEnv.setHttpContainer(roundRobin);
+        leastOutstandingEnv = new NodeEnvironment();
+        leastOutstandingEnv.setHttpContainer(leastOutstanding);
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        roundRobinEnv.close();
+        leastOutstandingEnv.close();
+        roundRobin.close();
+        leastOutstanding.close();
+    }
+
+    @Test
+    public void testRoundRobin()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        List<ScriptFuture> scripts = startInstances(roundRobinEnv, roundRobin, port, 3);
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        Channel conn = Http2TestClient.connectHttp1(port);
+        try {
+            for (int i = 0; i < 30; i++) {
+                String name = get(conn, "/");
+                Integer count = counts.get(name);
+                counts.put(name, (count == null ? 1 : count + 1));
+            }
+        } finally {
+            conn.close();
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertEquals(10, count);
+        }
+        for (NettyHttpServer s : roundRobin.getInstances(port)) {
+            assertEquals(10L, s.getRequestCount());
+            assertEquals(0, s.getOutstandingRequests());
+        }
+
+        // The port stays open until the last script goes away
+        stop(roundRobin, port, scripts.get(0));
+        assertEquals(2, roundRobin.getInstances(port).size());
+        conn = Http2TestClient.connectHttp1(port);
+        try {
+            get(conn, "/");
+        } finally {
+            conn.close();
+        }
+        stop(roundRobin, port, scripts.get(1));
+        stop(roundRobin, port, scripts.get(2));
+        assertTrue(roundRobin.getInstances(port).isEmpty());
+        assertTrue(waitForClose(port));
+    }
+
+    @Test
+    public void testLeastOutstanding()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        List<ScriptFuture> scripts = startInstances(leastOutstandingEnv, leastOutstanding, port, 2);
+
+        Channel slowConn = Http2TestClient.connectHttp1(port);
+        Channel conn = Http2TestClient.connectHttp1(port);
+        try {
+            Future<FullHttpResponse> slow = Http2TestClient.sendHttp1(slowConn, HttpMethod.GET, "/slow", null);
+            // Wait until the slow request has been handed to a script
+            int outstanding = 0;
+            for (int i = 0; (i < 100) && (outstanding == 0); i++) {
+                Thread.sleep(10L);
+                for (NettyHttpServer s : leastOutstanding.getInstances(port)) {
+                    outstanding += s.getOutstandingRequests();
+                }
+            }
+            assertEquals(1, outstanding);
+
+            ArrayList<String> names = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                names.add(get(conn, "/"));
+            }
+            String slowName = Http2TestClient.getContent(slow.get(10, TimeUnit.SECONDS));
+            for (String name : names) {
+                assertNotEquals(slowName, name);
+            }
+        } finally {
+            slowConn.close();
+            conn.close();
+        }
+
+        for (ScriptFuture f : scripts) {
+            stop(leastOutstanding, port, f);
+        }
+        assertTrue(waitForClose(port));
+    }
+
+    @Test
+    public void testDrain()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        List<ScriptFuture> scripts = startInstances(roundRobinEnv, roundRobin, port, 2);
+        List<NettyHttpServer> instances = roundRobin.getInstances(port);
+
+        instances.get(0).drain();
+        Channel conn = Http2TestClient.connectHttp1(port);
+        try {
+            for (int i = 0; i < 6; i++) {
+                get(conn, "/");
+            }
+        } finally {
+            conn.close();
+        }
+        assertEquals(0L, instances.get(0).getRequestCount());
+        assertEquals(6L, instances.get(1).getRequestCount());
+
+        // With nothing left to take requests, they are turned away
+        instances.get(1).drain();
+        conn = Http2TestClient.connectHttp1(port);
+        try {
+            FullHttpResponse resp = Http2TestClient.sendHttp1(conn, HttpMethod.GET, "/", null).get(10, TimeUnit.SECONDS);
+            assertEquals(503, resp.status().code());
+            resp.release();
+        } finally {
+            conn.close();
+        }
+
+        for (ScriptFuture f : scripts) {
+            stop(roundRobin, port, f);
+        }
+        assertTrue(waitForClose(port));
+    }
+
+    @Test
+    public void testMismatch()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        List<ScriptFuture> scripts = startInstances(roundRobinEnv, roundRobin, port, 1);
+
+        // A script that listens on a different address can't share the listener
+        NodeScript script = roundRobinEnv.createScript("balanceserver.js",
+                                                       new File("./target/test-classes/tests/balanceserver.js"),
+                                                       new String[] { String.valueOf(port), "other", "127.0.0.1" });
+        try {
+            script.execute().get(10, TimeUnit.SECONDS);
+            fail("Expected the script to fail");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause().getMessage().contains("already in use"));
+        }
+        assertEquals(1, roundRobin.getInstances(port).size());
+
+        stop(roundRobin, port, scripts.get(0));
+        assertTrue(waitForClose(port));
+    }
+
+    private static List<ScriptFuture> startInstances(NodeEnvironment env, NettyHttpContainer container,
+                                                     int port, int count)
+        throws Exception
+    {
+        ArrayList<ScriptFuture> scripts = new ArrayList<ScriptFuture>();
+        for (int i = 0; i < count; i++) {
+            NodeScript script = env.createScript("balanceserver.js",
+                                                 new File("./target/test-classes/tests/balanceserver.js"),
+                                                 new String[] { String.valueOf(port), "instance" + i });
+            scripts.add(script.execute());
+            // Start them one at a time so that the list of instances is in order
+            for (int w = 0; (w < 100) && (container.getInstances(port).size() <= i); w++) {
+                Thread.sleep(50L);
+            }
+            assertEquals(i + 1, container.getInstances(port).size());
+        }
+        return scripts;
+    }
+
+    private static String get(Channel conn, String path)
+        throws Exception
+    {
+        FullHttpResponse resp = Http2TestClient.sendHttp1(conn, HttpMethod.GET, path, null).get(10, TimeUnit.SECONDS);
+        assertEquals(200, resp.status().code());
+        return Http2TestClient.getContent(resp);
+    }
+
+    /**
+     * Stop a script and wait for it to leave the port, which it does on the way out without
+     * having to close its server.
+     */
+    private static void stop(NettyHttpContainer container, int port, ScriptFuture f)
+        throws InterruptedException
+    {
+        int count = container.getInstances(port).size();
+        f.cancel(true);
+        for (int i = 0; (i < 100) && (container.getInstances(port).size() >= count); i++) {
+            Thread.sleep(50L);
+        }
+        assertEquals(count - 1, container.getInstances(port).size());
+    }
+
+    /**
+     * Closing the listener happens in the background, so wait a while for it.
+     */
+    private static boolean waitForClose(int port)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+            } catch (IOException ioe) {
+                return true;
+            }
+            Thread.sleep(50L);
+        }
+        return false;
+    }
+}
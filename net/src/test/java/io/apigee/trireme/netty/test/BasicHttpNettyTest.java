@@ -106,6 +106,13 @@ public class BasicHttpNettyTest
         runTest("postmanychunkshttps.js");
     }
 
+    @Test
+    public void testLargeBody()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("largebody.js");
+    }
+
     @Test
     public void testResponseCode()
         throws InterruptedException, ExecutionException, NodeException
@@ -0,0 +1,90 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyConfig;
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ConfiguredHttpNettyTest
+{
+    private static NodeEnvironment env;
+    private static NettyHttpContainer container;
+
+    @BeforeClass
+    public static void init()
+    {
+        // Multiple acceptors and SO_REUSEPORT only take effect with the native transport,
+        // but everything must still work without it.
+        NettyConfig config = new NettyConfig().
+            setIOThreads(2).
+            setAcceptorThreads(2).
+            setReusePort(true).
+            setBacklog(128).
+            setTcpNoDelay(true).
+            setWriteBufferWaterMarks(8192, 16384);
+        container = new NettyHttpContainer(config);
+
+        env = new NodeEnvironment();
+        env.setHttpContainer(container);
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        env.close();
+        container.close();
+    }
+
+    @Test
+    public void testNewHttp()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("newhttptest.js");
+    }
+
+    @Test
+    public void testPostManyChunks()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("postmanychunks.js");
+    }
+
+    @Test
+    public void testUpgrade()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("upgradetest.js");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads()
+    {
+        new NettyConfig().setIOThreads(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWaterMarks()
+    {
+        new NettyConfig().setWriteBufferWaterMarks(16384, 8192);
+    }
+
+    private void runTest(String name)
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeScript script = env.createScript(name,
+                                             new File("./target/test-classes/tests/" + name),
+                                             null);
+        ScriptStatus status = script.execute().get();
+        assertEquals(0, status.getExitCode());
+    }
+}
@@ -0,0 +1,148 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyConfig;
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compare the request rate of HTTP/1.1 with keep-alive, using one connection per concurrent request,
+ * with HTTP/2, using one stream per concurrent request on a single connection. Like the other
+ * benchmarks, this only runs when "runBenchmarks" is set to true.
+ */
+public class Http2LoadTest
+{
+    private static final int CONCURRENCY = Integer.getInteger("LoadTestConcurrency", 20);
+    private static final int ROUNDS = Integer.getInteger("LoadTestRounds", 500);
+    private static final int WARMUP_ROUNDS = 100;
+
+    private static NodeEnvironment env;
+    private static NettyHttpContainer container;
+    private static ScriptFuture server;
+    private static int port;
+
+    @BeforeClass
+    public static void init()
+        throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        container = new NettyHttpContainer(new NettyConfig().setHttp2(true));
+        env = new NodeEnvironment();
+        env.setHttpContainer(container);
+
+        port = Http2TestClient.findFreePort();
+        NodeScript script = env.createScript("http2server.js",
+                                             new File("./target/test-classes/tests/http2server.js"),
+                                             new String[] { String.valueOf(port) });
+        server = script.execute();
+        Http2TestClient.waitForListening(port);
+    }
+
+    @AfterClass
+    public static void terminate()
+        throws Exception
+    {
+        if (env == null) {
+            return;
+        }
+        Channel conn = Http2TestClient.connectHttp1(port);
+        Http2TestClient.getContent(
+            Http2TestClient.sendHttp1(conn, HttpMethod.GET, "/close", null).get(10, TimeUnit.SECONDS));
+        conn.close();
+        server.get(10, TimeUnit.SECONDS);
+        env.close();
+        container.close();
+    }
+
+    @Test
+    public void testHttp1KeepAlive()
+        throws Exception
+    {
+        ArrayList<Channel> conns = new ArrayList<Channel>();
+        for (int i = 0; i < CONCURRENCY; i++) {
+            conns.add(Http2TestClient.connectHttp1(port));
+        }
+        try {
+            runHttp1(conns, WARMUP_ROUNDS);
+            long start = System.nanoTime();
+            runHttp1(conns, ROUNDS);
+            report("HTTP/1.1 keep-alive", start);
+        } finally {
+            for (Channel c : conns) {
+                c.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHttp2()
+        throws Exception
+    {
+        Channel conn = Http2TestClient.connectHttp2(port, false);
+        try {
+            runHttp2(conn, WARMUP_ROUNDS);
+            long start = System.nanoTime();
+            runHttp2(conn, ROUNDS);
+            report("HTTP/2", start);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void runHttp1(ArrayList<Channel> conns, int rounds)
+        throws Exception
+    {
+        ArrayList<Future<FullHttpResponse>> responses = new ArrayList<Future<FullHttpResponse>>(CONCURRENCY);
+        for (int r = 0; r < rounds; r++) {
+            for (Channel c : conns) {
+                responses.add(Http2TestClient.sendHttp1(c, HttpMethod.GET, "/load", null));
+            }
+            checkResponses(responses);
+        }
+    }
+
+    private static void runHttp2(Channel conn, int rounds)
+        throws Exception
+    {
+        ArrayList<Future<FullHttpResponse>> responses = new ArrayList<Future<FullHttpResponse>>(CONCURRENCY);
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < CONCURRENCY; i++) {
+                responses.add(Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/load", null));
+            }
+            checkResponses(responses);
+        }
+    }
+
+    private static void checkResponses(ArrayList<Future<FullHttpResponse>> responses)
+        throws Exception
+    {
+        for (Future<FullHttpResponse> f : responses) {
+            assertEquals("GET /load ", Http2TestClient.getContent(f.get(10, TimeUnit.SECONDS)));
+        }
+        responses.clear();
+    }
+
+    private static void report(String name, long start)
+    {
+        long elapsed = System.nanoTime() - start;
+        int requests = CONCURRENCY * ROUNDS;
+        System.out.printf("%s: %d requests, %d concurrent, in %d ms: %.0f requests/second%n",
+                          name, requests, CONCURRENCY, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                          requests / (elapsed / 1000000000.0));
+    }
+}
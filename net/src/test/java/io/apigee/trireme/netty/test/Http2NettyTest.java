@@ -0,0 +1,265 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyConfig;
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptStatus;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.Future;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Http2NettyTest
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int NUM_STREAMS = 20;
+
+    private static NodeEnvironment env;
+    private static NettyHttpContainer container;
+
+    @BeforeClass
+    public static void init()
+    {
+        container = new NettyHttpContainer(new NettyConfig().setHttp2(true));
+        env = new NodeEnvironment();
+        env.setHttpContainer(container);
+    }
+
+    @AfterClass
+    public static void terminate()
+    {
+        env.close();
+        container.close();
+    }
+
+    @Test
+    public void testPriorKnowledge()
+        throws Exception
+    {
+        testManyStreams(false);
+    }
+
+    @Test
+    public void testAlpn()
+        throws Exception
+    {
+        Assume.assumeTrue(Http2TestClient.isAlpnAvailable());
+        testManyStreams(true);
+    }
+
+    @Test
+    public void testCleartextUpgrade()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        ScriptFuture server = startServer(port, false);
+
+        Socket s = new Socket("localhost", port);
+        try {
+            OutputStream out = s.getOutputStream();
+            out.write(("GET /upgrade HTTP/1.1\r\n" +
+                       "Host: localhost\r\n" +
+                       "Connection: Upgrade, HTTP2-Settings\r\n" +
+                       "Upgrade: h2c\r\n" +
+                       "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n" +
+                       "\r\n").getBytes(ASCII));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            String status = readLine(in);
+            assertEquals("HTTP/1.1 101 Switching Protocols", status);
+            while (!readLine(in).isEmpty()) {
+                // Skip the rest of the headers
+            }
+
+            // Send the client preface and an empty SETTINGS frame
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ASCII));
+            out.write(new byte[] { 0, 0, 0, 4, 0, 0, 0, 0, 0 });
+            out.flush();
+
+            // The response to the upgrade request comes back on stream 1. DATA frames are not
+            // compressed, so we can check the body without decoding the headers.
+            StringBuilder body = new StringBuilder();
+            boolean done = false;
+            while (!done) {
+                int len = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                if ((type == 0) && (streamId == 1)) {
+                    body.append(new String(payload, ASCII));
+                    done = ((flags & 1) != 0);
+                }
+            }
+            assertEquals("GET /upgrade ", body.toString());
+        } finally {
+            s.close();
+        }
+
+        closeServer(port, server);
+    }
+
+    @Test
+    public void testConnectionClose()
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        ScriptFuture server = startServer(port, false);
+
+        Channel conn = Http2TestClient.connectHttp2(port, false);
+        try {
+            // Requests that finish on a stream do not count as closed
+            for (int i = 0; i < 5; i++) {
+                Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/get/" + i, null).get(10, TimeUnit.SECONDS);
+            }
+            Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/hang", null);
+            assertEquals("0", Http2TestClient.getContent(
+                Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/closed", null).get(10, TimeUnit.SECONDS)));
+        } finally {
+            conn.close().sync();
+        }
+
+        // Closing the connection closes the request that was never answered
+        String closed = null;
+        for (int i = 0; (i < 50) && !"1".equals(closed); i++) {
+            Thread.sleep(100L);
+            Channel c = Http2TestClient.connectHttp1(port);
+            try {
+                closed = Http2TestClient.getContent(
+                    Http2TestClient.sendHttp1(c, HttpMethod.GET, "/closed", null).get(10, TimeUnit.SECONDS));
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals("1", closed);
+        closeServer(port, server);
+    }
+
+    @Test
+    public void testHttp1()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("newhttptest.js");
+    }
+
+    @Test
+    public void testHttp1Upgrade()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("upgradetest.js");
+    }
+
+    @Test
+    public void testHttp1ManyChunks()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("postmanychunks.js");
+    }
+
+    private void testManyStreams(boolean tls)
+        throws Exception
+    {
+        int port = Http2TestClient.findFreePort();
+        ScriptFuture server = startServer(port, tls);
+
+        Channel conn = Http2TestClient.connectHttp2(port, tls);
+        try {
+            ArrayList<Future<FullHttpResponse>> responses = new ArrayList<Future<FullHttpResponse>>();
+            for (int i = 0; i < NUM_STREAMS; i++) {
+                if ((i % 2) == 0) {
+                    responses.add(Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/get/" + i, null));
+                } else {
+                    responses.add(Http2TestClient.sendHttp2(conn, HttpMethod.POST, "/post/" + i, "Body " + i));
+                }
+            }
+            for (int i = 0; i < NUM_STREAMS; i++) {
+                FullHttpResponse resp = responses.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(200, resp.status().code());
+                if ((i % 2) == 0) {
+                    assertEquals("GET /get/" + i + ' ', Http2TestClient.getContent(resp));
+                } else {
+                    assertEquals("POST /post/" + i + " Body " + i, Http2TestClient.getContent(resp));
+                }
+            }
+            Http2TestClient.getContent(
+                Http2TestClient.sendHttp2(conn, HttpMethod.GET, "/close", null).get(10, TimeUnit.SECONDS));
+        } finally {
+            conn.close();
+        }
+
+        ScriptStatus status = server.get(10, TimeUnit.SECONDS);
+        assertEquals(0, status.getExitCode());
+    }
+
+    private static ScriptFuture startServer(int port, boolean tls)
+        throws NodeException, InterruptedException
+    {
+        NodeScript script = env.createScript("http2server.js",
+                                             new File("./target/test-classes/tests/http2server.js"),
+                                             new String[] { String.valueOf(port), (tls ? "tls" : "plain") });
+        ScriptFuture future = script.execute();
+        Http2TestClient.waitForListening(port);
+        return future;
+    }
+
+    private static void closeServer(int port, ScriptFuture server)
+        throws Exception
+    {
+        Channel conn = Http2TestClient.connectHttp1(port);
+        try {
+            Http2TestClient.getContent(
+                Http2TestClient.sendHttp1(conn, HttpMethod.GET, "/close", null).get(10, TimeUnit.SECONDS));
+        } finally {
+            conn.close();
+        }
+        ScriptStatus status = server.get(10, TimeUnit.SECONDS);
+        assertEquals(0, status.getExitCode());
+    }
+
+    private static String readLine(DataInputStream in)
+        throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (c != '\r') {
+                line.append((char)c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void runTest(String name)
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeScript script = env.createScript(name,
+                                             new File("./target/test-classes/tests/" + name),
+                                             null);
+        ScriptStatus status = script.execute().get();
+        assertEquals(0, status.getExitCode());
+    }
+}
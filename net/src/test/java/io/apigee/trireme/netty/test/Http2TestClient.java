@@ -0,0 +1,293 @@
+package io.apigee.trireme.netty.test;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A little HTTP client, built on Netty, that can speak HTTP/1.1 with keep-alive or HTTP/2 over
+ * a single connection, for testing the HTTP/2 support in the container.
+ */
+public class Http2TestClient
+{
+    private static final EventLoopGroup group = new NioEventLoopGroup(1);
+
+    /**
+     * Return whether this JDK can do ALPN, which we need for HTTP/2 over TLS.
+     */
+    public static boolean isAlpnAvailable()
+    {
+        try {
+            SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            return true;
+        } catch (NoSuchMethodException nse) {
+            return false;
+        }
+    }
+
+    public static int findFreePort()
+        throws IOException
+    {
+        ServerSocket ss = new ServerSocket(0);
+        try {
+            return ss.getLocalPort();
+        } finally {
+            ss.close();
+        }
+    }
+
+    public static void waitForListening(int port)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(100L);
+            }
+        }
+        throw new AssertionError("Server never started listening on " + port);
+    }
+
+    /**
+     * Open an HTTP/2 connection, using ALPN if "tls" is set and "prior knowledge" otherwise.
+     */
+    public static Channel connectHttp2(int port, final boolean tls)
+        throws Exception
+    {
+        Bootstrap b = new Bootstrap().
+            group(group).
+            channel(NioSocketChannel.class).
+            handler(new ChannelInitializer<SocketChannel>()
+            {
+                @Override
+                public void initChannel(SocketChannel c)
+                    throws Exception
+                {
+                    if (tls) {
+                        c.pipeline().addLast(new SslHandler(makeClientEngine("h2")));
+                    }
+                    // Close right away, even if some streams were never answered
+                    c.pipeline().addLast(Http2MultiplexCodecBuilder.forClient(new NoPushes()).
+                                         gracefulShutdownTimeoutMillis(0L).build());
+                }
+            });
+        return b.connect("localhost", port).sync().channel();
+    }
+
+    /**
+     * Open an HTTP/1.1 connection, on which requests may only be sent one at a time.
+     */
+    public static Channel connectHttp1(int port)
+        throws InterruptedException
+    {
+        Bootstrap b = new Bootstrap().
+            group(group).
+            channel(NioSocketChannel.class).
+            handler(new ChannelInitializer<SocketChannel>()
+            {
+                @Override
+                public void initChannel(SocketChannel c)
+                {
+                    c.pipeline().addLast(new HttpClientCodec()).
+                                 addLast(new HttpObjectAggregator(1024 * 1024)).
+                                 addLast(new ResponseQueue());
+                }
+            });
+        return b.connect("localhost", port).sync().channel();
+    }
+
+    /**
+     * Send a request on a new stream of an HTTP/2 connection.
+     */
+    public static Future<FullHttpResponse> sendHttp2(Channel conn, HttpMethod method, String path, String body)
+        throws InterruptedException
+    {
+        final Promise<FullHttpResponse> result = new DefaultPromise<FullHttpResponse>(GlobalEventExecutor.INSTANCE);
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(conn).
+            handler(new ChannelInitializer<Channel>()
+            {
+                @Override
+                public void initChannel(Channel c)
+                {
+                    c.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false)).
+                                 addLast(new HttpObjectAggregator(1024 * 1024)).
+                                 addLast(new ResponseHandler(result));
+                }
+            }).open().sync().getNow();
+        stream.writeAndFlush(makeRequest(method, path, body));
+        return result;
+    }
+
+    /**
+     * Send a request on an HTTP/1.1 connection, which must not have another request outstanding.
+     */
+    public static Future<FullHttpResponse> sendHttp1(Channel conn, HttpMethod method, String path, String body)
+    {
+        Promise<FullHttpResponse> result = new DefaultPromise<FullHttpResponse>(GlobalEventExecutor.INSTANCE);
+        conn.pipeline().get(ResponseQueue.class).add(result);
+        conn.writeAndFlush(makeRequest(method, path, body));
+        return result;
+    }
+
+    public static String getContent(FullHttpResponse resp)
+    {
+        try {
+            return resp.content().toString(CharsetUtil.UTF_8);
+        } finally {
+            resp.release();
+        }
+    }
+
+    private static FullHttpRequest makeRequest(HttpMethod method, String path, String body)
+    {
+        FullHttpRequest req;
+        if (body == null) {
+            req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path);
+        } else {
+            req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path,
+                                             Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+        }
+        req.headers().set("Host", "localhost");
+        HttpUtil.setContentLength(req, req.content().readableBytes());
+        return req;
+    }
+
+    private static SSLEngine makeClientEngine(String protocol)
+        throws Exception
+    {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { new TrustAll() }, null);
+        SSLEngine engine = ctx.createSSLEngine("localhost", 0);
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        Method setProtos = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+        setProtos.invoke(params, new Object[] { new String[] { protocol } });
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    private static final class ResponseHandler
+        extends SimpleChannelInboundHandler<FullHttpResponse>
+    {
+        private final Promise<FullHttpResponse> result;
+
+        ResponseHandler(Promise<FullHttpResponse> result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse resp)
+        {
+            result.trySuccess(resp.retain());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+        {
+            result.tryFailure(new IOException("Stream closed"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable t)
+        {
+            result.tryFailure(t);
+        }
+    }
+
+    private static final class ResponseQueue
+        extends SimpleChannelInboundHandler<FullHttpResponse>
+    {
+        private final Queue<Promise<FullHttpResponse>> waiting = new ArrayDeque<Promise<FullHttpResponse>>();
+
+        synchronized void add(Promise<FullHttpResponse> p)
+        {
+            waiting.add(p);
+        }
+
+        @Override
+        protected synchronized void channelRead0(ChannelHandlerContext ctx, FullHttpResponse resp)
+        {
+            waiting.remove().trySuccess(resp.retain());
+        }
+
+        @Override
+        public synchronized void channelInactive(ChannelHandlerContext ctx)
+        {
+            for (Promise<FullHttpResponse> p : waiting) {
+                p.tryFailure(new IOException("Connection closed"));
+            }
+        }
+    }
+
+    /**
+     * The server never pushes streams to us, so there is nothing for this to do.
+     */
+    @ChannelHandler.Sharable
+    private static final class NoPushes
+        extends ChannelInboundHandlerAdapter
+    {
+    }
+
+    private static final class TrustAll
+        implements X509TrustManager
+    {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
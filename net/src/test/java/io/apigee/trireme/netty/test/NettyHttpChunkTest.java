@@ -0,0 +1,50 @@
+package io.apigee.trireme.netty.test;
+
+import io.apigee.trireme.container.netty.NettyHttpChunk;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class NettyHttpChunkTest
+{
+    private static final int LEN = 16384;
+
+    @Test
+    public void testPooledSliceCopied()
+    {
+        // This is what the HTTP decoder passes along: a retained slice of a pooled buffer
+        ByteBuf pooled = PooledByteBufAllocator.DEFAULT.heapBuffer(LEN * 2);
+        for (int i = 0; i < LEN * 2; i++) {
+            pooled.writeByte(i % 127);
+        }
+        HttpContent content = new DefaultHttpContent(pooled.retainedSlice(100, LEN));
+        pooled.release();
+
+        NettyHttpChunk chunk = new NettyHttpChunk(content);
+        assertTrue(chunk.hasData());
+        ByteBuffer data = chunk.getData();
+        content.release();
+        assertEquals(0, pooled.refCnt());
+
+        // HTTPWrap hands the whole array to a JavaScript Buffer without copying it again
+        assertTrue(data.hasArray());
+        assertEquals(0, data.arrayOffset());
+        assertEquals(0, data.position());
+        assertEquals(LEN, data.remaining());
+        assertEquals(LEN, data.array().length);
+
+        // Once the pooled memory is re-used, the copy must not change
+        ByteBuf reused = PooledByteBufAllocator.DEFAULT.heapBuffer(LEN * 2);
+        reused.writeZero(LEN * 2);
+        for (int i = 0; i < LEN; i++) {
+            assertEquals((i + 100) % 127, data.get(i));
+        }
+        reused.release();
+    }
+}
@@ -0,0 +1,32 @@
+// Listen on the port in the first argument and answer every request with the name in the second,
+// so that a test can see which copy of this script got each request. A request for "/slow"
+// is answered after a delay. The optional third argument is the address to listen on.
+
+var http = require('http');
+
+var port = parseInt(process.argv[2]);
+var name = process.argv[3];
+var host = process.argv[4];
+
+var svr = http.createServer(function(req, resp) {
+  req.resume();
+  req.on('end', function() {
+    if (req.url === '/slow') {
+      setTimeout(function() {
+        resp.end(name);
+      }, 1000);
+    } else {
+      resp.end(name);
+    }
+  });
+});
+
+function listening() {
+  console.log('%s listening on %d', name, port);
+}
+
+if (host) {
+  svr.listen(port, host, listening);
+} else {
+  svr.listen(port, listening);
+}
@@ -0,0 +1,23 @@
+// Listen on the port in the first argument. A request for "/busy" keeps the script busy for a while
+// without returning to the event loop, so that requests behind it pile up in the queue.
+
+var http = require('http');
+
+var port = parseInt(process.argv[2]);
+
+var svr = http.createServer(function(req, resp) {
+  if (req.url === '/busy') {
+    var end = Date.now() + 2000;
+    while (Date.now() < end) {
+      // Spin
+    }
+  }
+  req.resume();
+  req.on('end', function() {
+    resp.end('ok');
+  });
+});
+
+svr.listen(port, function() {
+  console.log('listening on %d', port);
+});
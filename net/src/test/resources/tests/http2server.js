@@ -0,0 +1,50 @@
+// Start a server on the port in the first argument, using TLS if the second argument is "tls",
+// that echoes each request back. A request for "/close" shuts it down. A request for "/hang" is never
+// answered, and "/closed" returns how many requests were closed before they were answered.
+
+var http = require('http');
+var https = require('https');
+var path = require('path');
+
+var port = parseInt(process.argv[2]);
+var tls = (process.argv[3] === 'tls');
+
+var closed = 0;
+var svr;
+if (tls) {
+  svr = https.createServer({
+    keystore: path.normalize(path.join(__dirname, '../agent1.jks')),
+    passphrase: 'secure'
+  }, handleRequest);
+} else {
+  svr = http.createServer(handleRequest);
+}
+
+function handleRequest(req, resp) {
+  if (req.url === '/hang') {
+    req.on('close', function() {
+      closed++;
+    });
+    return;
+  }
+  var body = '';
+  req.setEncoding('utf8');
+  req.on('data', function(chunk) {
+    body += chunk;
+  });
+  req.on('end', function() {
+    resp.writeHead(200, { 'Content-Type': 'text/plain' });
+    if (req.url === '/closed') {
+      resp.end(String(closed));
+    } else {
+      resp.end(req.method + ' ' + req.url + ' ' + body);
+    }
+    if (req.url === '/close') {
+      svr.close();
+    }
+  });
+}
+
+svr.listen(port, function() {
+  console.log('Listening on %d', port);
+});
@@ -0,0 +1,54 @@
+var assert = require('assert');
+var crypto = require('crypto');
+var http = require('http');
+
+// Hold on to every chunk of a large request until the end, and then send them all back.
+// Chunks are copied out of pooled network buffers, so this makes sure that none of them are re-used
+// underneath the script.
+
+var TOTAL = 4 * 1024 * 1024;
+
+var svr = http.createServer(function(req, resp) {
+  var chunks = [];
+  req.on('data', function(chunk) {
+    chunks.push(chunk);
+  });
+  req.on('end', function() {
+    resp.writeHead(200, { 'Content-Type': 'application/octet-stream' });
+    chunks.forEach(function(chunk) {
+      resp.write(chunk);
+    });
+    resp.end();
+  });
+});
+
+svr.listen(0, function() {
+  var sentHash = crypto.createHash('sha1');
+  var receivedHash = crypto.createHash('sha1');
+  var received = 0;
+
+  var req = http.request({ host: 'localhost', port: svr.address().port,
+                           path: '/', method: 'POST' },
+    function(resp) {
+      assert.equal(200, resp.statusCode);
+      resp.on('data', function(chunk) {
+        received += chunk.length;
+        receivedHash.update(chunk);
+      });
+      resp.on('end', function() {
+        svr.close();
+        assert.equal(TOTAL, received);
+        assert.equal(sentHash.digest('hex'), receivedHash.digest('hex'));
+      });
+    });
+
+  var sent = 0;
+  while (sent < TOTAL) {
+    var len = Math.min(TOTAL - sent, 1 + Math.floor(Math.random() * 65536));
+    var chunk = crypto.randomBytes(len);
+    sentHash.update(chunk);
+    req.write(chunk);
+    sent += len;
+  }
+  req.end();
+});
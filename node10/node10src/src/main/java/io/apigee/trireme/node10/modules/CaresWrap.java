@@ -98,7 +98,7 @@ public class CaresWrap
         public void init(NodeRuntime runtime)
         {
             this.runtime = (ScriptRunner)runtime;
-            this.resolver = new DNSResolver(runtime);
+            this.resolver = new DNSResolver(runtime, runtime.getEnvironment().getDNSCache());
 
             put("AF_INET", this, AF_INET);
             put("AF_INET6", this, AF_INET6);
@@ -164,6 +164,19 @@ public class CaresWrap
             final Scriptable res = cx.newObject(self);
 
             self.runtime.pin();
+            if (self.runtime.getEnvironment().isNonBlockingLookup()) {
+                self.resolver.lookup(name, fam, new IOCompletionHandler<InetAddress>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, InetAddress addr)
+                    {
+                        self.runtime.unPin();
+                        self.lookupCallback(errCode, addr, res);
+                    }
+                });
+                return res;
+            }
+
             self.runtime.getAsyncPool().execute(new Runnable()
             {
                 @Override
@@ -32,6 +32,7 @@ import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.OSException;
 import io.apigee.trireme.kernel.fs.BasicFilesystem;
 import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.fs.MappedFileCache;
 import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
@@ -256,9 +257,7 @@ public class Filesystem
                 throw Utils.makeError(cx, thisObj, "Length extends beyond buffer", Constants.EINVAL);
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer readBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer readBuf = buf.getWritableBuffer(off, len);
 
             if (pos < 0L) {
                 // Case for a "positional read" that reads from the "current position"
@@ -308,9 +307,7 @@ public class Filesystem
                 throw Utils.makeError(cx, thisObj, "Length extends beyond buffer", "EINVAL");
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer writeBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer writeBuf = buf.getBuffer(off, len);
 
             // Increment the position before writing. This makes certain tests work which issue
             // lots of asynchronous writes in parallel.
@@ -609,6 +606,58 @@ public class Filesystem
             }
         }
 
+        /**
+         * Return a Buffer that is a read-only view of the whole file from the environment's mapped file cache,
+         * or null if the file should be read using "read" instead, for instance because there is no cache.
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static Object mapFile(Context cx, Scriptable thisObj, Object[] args, Function func)
+        {
+            final FSImpl fs = (FSImpl)thisObj;
+            final int fd = intArg(args, 0);
+            Function callback = functionArg(args, 1, false);
+            final MappedFileCache cache = fs.runner.getEnvironment().getMappedFileCache();
+
+            return fs.runAction(cx, callback, new AsyncAction()
+            {
+                @Override
+                public Object[] execute()
+                    throws OSException
+                {
+                    if (cache == null) {
+                        return null;
+                    }
+                    ByteBuffer map = fs.fs.map(fd, cache);
+                    if (map == null) {
+                        return null;
+                    }
+                    Context cx = Context.enter();
+                    try {
+                        return new Object[] { Context.getUndefinedValue(),
+                                              Buffer.BufferImpl.newBuffer(cx, fs, map, false) };
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Return true if there is a mapped file cache and a file of the given size is large enough to map,
+         * so that scripts only go to the thread pool to call "mapFile" when it is likely to work.
+         * A negative size means that the size is not known yet.
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static boolean canMapFile(Context cx, Scriptable thisObj, Object[] args, Function func)
+        {
+            FSImpl fs = (FSImpl)thisObj;
+            long size = longArgOnly(cx, fs, args, 0, -1L);
+            MappedFileCache cache = fs.runner.getEnvironment().getMappedFileCache();
+            return ((cache != null) && ((size < 0L) || cache.isMappable(size)));
+        }
+
         @JSFunction
         @SuppressWarnings("unused")
         public static void utimes(Context cx, Scriptable thisObj, Object[] args, Function func)
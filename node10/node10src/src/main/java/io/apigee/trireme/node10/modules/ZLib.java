@@ -404,9 +404,12 @@ public class ZLib
             // Deflater works by taking a chunk of input, then producing output over several steps
             // until it reaches the end. Here we give it all the input at once.
             if (chunk != null) {
-                deflater.setInput(chunk.getArray(), chunk.getArrayOffset(), chunk.getLength());
+                // A direct buffer has no array, so get the copy only once
+                byte[] input = chunk.getArray();
+                int inputOffset = chunk.getArrayOffset();
+                deflater.setInput(input, inputOffset, chunk.getLength());
                 if (mode == GZIP) {
-                    checksum.update(chunk.getArray(), chunk.getArrayOffset(), chunk.getLength());
+                    checksum.update(input, inputOffset, chunk.getLength());
                 }
             }
             if (flushFlag == Z_FINISH) {
@@ -466,7 +469,9 @@ public class ZLib
         {
             // Save the data that we have so far and the data that we are reading and concatenate
             // them, at least until we have read all the headers.
-            remaining = Utils.catBuffers(remaining, chunk.getBuffer());
+            // The inflater needs an array, which a direct buffer does not have
+            remaining = Utils.catBuffers(remaining,
+                                         ByteBuffer.wrap(chunk.getArray(), chunk.getArrayOffset(), chunk.getLength()));
             doInflate(cx, flushFlag, cb);
         }
 
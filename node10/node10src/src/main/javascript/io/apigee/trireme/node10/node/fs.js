@@ -222,11 +222,29 @@ fs.readFile = function(path, options, callback_) {
         return read();
       }
 
+      if (options.mapped && flag === 'r' && binding.canMapFile(size)) {
+        return map();
+      }
       buffer = new Buffer(size);
       read();
     });
   });
 
+  function map() {
+    // Trireme extension: with the "mapped" option, a large file may be a
+    // read-only view of a mapping from the mapped file cache, and if not
+    // then read it as usual.
+    binding.mapFile(fd, function(er, mapped) {
+      if (!er && mapped) {
+        buffer = mapped;
+        pos = size = mapped.length;
+        return close();
+      }
+      buffer = new Buffer(size);
+      read();
+    });
+  }
+
   function read() {
     if (size === 0) {
       buffer = new Buffer(8192);
@@ -1472,6 +1490,7 @@ function ReadStream(path, options) {
   this.end = options.hasOwnProperty('end') ? options.end : undefined;
   this.autoClose = options.hasOwnProperty('autoClose') ?
       options.autoClose : true;
+  this.mapped = !!options.mapped;
   this.pos = undefined;
 
   if (this.start !== undefined) {
@@ -1514,10 +1533,25 @@ ReadStream.prototype.open = function() {
       return;
     }
 
-    self.fd = fd;
-    self.emit('open', fd);
-    // start the flow of data.
-    self.read();
+    if (!self.mapped || self.flags !== 'r' || !binding.canMapFile(-1)) {
+      return opened();
+    }
+    // Trireme extension: with the "mapped" option, large files may be read
+    // from a mapping in the mapped file cache, and the chunks are read-only.
+    binding.mapFile(fd, function(er, mapped) {
+      if (!er && mapped) {
+        self._mapped = mapped;
+        self._mappedPos = 0;
+      }
+      opened();
+    });
+
+    function opened() {
+      self.fd = fd;
+      self.emit('open', fd);
+      // start the flow of data.
+      self.read();
+    }
   });
 };
 
@@ -1530,6 +1564,9 @@ ReadStream.prototype._read = function(n) {
   if (this.destroyed)
     return;
 
+  if (this._mapped)
+    return this._readMapped(n);
+
   if (!pool || pool.length - pool.used < kMinPoolSpace) {
     // discard the old pool.
     pool = null;
@@ -1577,10 +1614,30 @@ ReadStream.prototype._read = function(n) {
 };
 
 
+ReadStream.prototype._readMapped = function(n) {
+  var pos = this.pos === undefined ? this._mappedPos : this.pos;
+  var toRead = Math.min(this._mapped.length - pos, n);
+
+  if (this.pos !== undefined)
+    toRead = Math.min(this.end - this.pos + 1, toRead);
+
+  if (toRead <= 0)
+    return this.push(null);
+
+  if (this.pos !== undefined)
+    this.pos += toRead;
+  else
+    this._mappedPos += toRead;
+
+  this.push(this._mapped.slice(pos, pos + toRead));
+};
+
+
 ReadStream.prototype.destroy = function() {
   if (this.destroyed)
     return;
   this.destroyed = true;
+  this._mapped = null;
 
   if ('number' === typeof this.fd)
     this.close();
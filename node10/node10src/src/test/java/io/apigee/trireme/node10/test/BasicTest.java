@@ -661,6 +661,29 @@ public class BasicTest
         script.execute().get();
     }
 
+    @Test
+    public void testDiskClassCache()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        File cacheDir = new File("target/classcache");
+        for (int i = 0; i < 2; i++) {
+            // The second environment loads everything from the cache created by the first one
+            NodeEnvironment localEnv = new NodeEnvironment();
+            localEnv.setDiskClassCache(cacheDir, 10 * 1024 * 1024);
+
+            NodeScript script = localEnv.createScript("moduletest.js",
+                                                      new File("target/test-classes/tests/moduletest.js"),
+                                                      null);
+            assertEquals(0, script.execute().get().getExitCode());
+            script.close();
+            localEnv.close();
+        }
+
+        File[] versions = cacheDir.listFiles();
+        assertEquals(1, versions.length);
+        assertTrue(versions[0].list().length > 0);
+    }
+
     private void runTest(String name)
         throws InterruptedException, ExecutionException, NodeException
     {
@@ -128,7 +128,7 @@ public class CaresWrap
         public void init(NodeRuntime runtime)
         {
             this.runtime = (ScriptRunner)runtime;
-            this.resolver = new DNSResolver(runtime);
+            this.resolver = new DNSResolver(runtime, runtime.getEnvironment().getDNSCache());
 
             // dns.java expects to look up un-bound (no this) functions as members and call them for each type of
             // lookup. We handle this here using a customized Function class in Rhino.
@@ -184,6 +184,19 @@ public class CaresWrap
             }
 
             runtime.pin();
+            if (runtime.getEnvironment().isNonBlockingLookup()) {
+                resolver.lookup(name, fam, new IOCompletionHandler<InetAddress>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, InetAddress addr)
+                    {
+                        runtime.unPin();
+                        lookupCallback(errCode, addr, req);
+                    }
+                });
+                return;
+            }
+
             runtime.getAsyncPool().execute(new Runnable()
             {
                 @Override
@@ -171,7 +171,7 @@ public class Contextify
         }
 
         private final ScriptRunner runtime;
-        private final Script compiledScript;
+        private Script compiledScript;
         private String sourceCode;
 
         public ContextifyScript()
@@ -206,7 +206,7 @@ public class Contextify
 
             Script compiled;
             try {
-                compiled = ScriptUtils.tryCompile(cx, code, options.fileName);
+                compiled = runtime.getEnvironment().getScriptCompiler().compile(cx, code, options.fileName);
             } catch (Throwable t) {
                 if (options.displayErrors) {
                     String msg = t.toString() + '\n';
@@ -268,6 +268,10 @@ public class Contextify
             // or, set a new observer for a new context?
             // TODO do we try catch here if displayErrors is set?
 
+            if (compiledScript == null) {
+                // Switch to the compiled version if it was compiled in the background since last time
+                compiledScript = runtime.getEnvironment().getScriptCompiler().getCompiledScript(sourceCode);
+            }
             if (compiledScript == null) {
                 // Compilation failed because the script was too large
                 return ScriptUtils.interpretScript(cx, scope, sourceCode, options.fileName);
@@ -36,6 +36,7 @@ import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.OSException;
 import io.apigee.trireme.kernel.fs.BasicFilesystem;
 import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.fs.MappedFileCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -121,6 +122,8 @@ public class Filesystem
             Id_writeBuffer = 25,
             Id_writeString = 26,
             Id_fsInitialize = 27,
+            Id_mapFile = 28,
+            Id_canMapFile = 29,
             Id_fsReqWrap = 1;
 
         static {
@@ -151,6 +154,8 @@ public class Filesystem
             props.addMethod("rmdir", Id_rmdir, 2);
             props.addMethod("ftruncate", Id_ftruncate, 3);
             props.addMethod("FSInitialize", Id_fsInitialize, 1);
+            props.addMethod("mapFile", Id_mapFile, 2);
+            props.addMethod("canMapFile", Id_canMapFile, 1);
         }
 
         public FSImpl()
@@ -309,6 +314,10 @@ public class Filesystem
                 return readlink(cx, args);
             case Id_fsInitialize:
                 return fsInitialize(args);
+            case Id_mapFile:
+                return mapFile(cx, args);
+            case Id_canMapFile:
+                return canMapFile(cx, args);
             default:
                 return super.prototypeCall(id, cx, scope, args);
             }
@@ -374,9 +383,7 @@ public class Filesystem
                 throw Utils.makeError(cx, this, "Length extends beyond buffer", Constants.EINVAL);
             }
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            final ByteBuffer readBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            final ByteBuffer readBuf = buf.getWritableBuffer(off, len);
 
             if (pos < 0L) {
                 // Case for a "positional read" that reads from the "current position"
@@ -401,6 +408,51 @@ public class Filesystem
             });
         }
 
+        /**
+         * Return a Buffer that is a read-only view of the whole file from the environment's mapped file cache,
+         * or null if the file should be read using "read" instead, for instance because there is no cache.
+         */
+        private Object mapFile(Context cx, Object[] args)
+        {
+            final int fd = intArg(args, 0);
+            FSReqWrap req = objArg(args, 1, FSReqWrap.class, false);
+            final MappedFileCache cache = runner.getEnvironment().getMappedFileCache();
+
+            return runAction(cx, req, new AsyncAction()
+            {
+                @Override
+                public Object execute()
+                    throws OSException
+                {
+                    if (cache == null) {
+                        return null;
+                    }
+                    ByteBuffer map = fs.map(fd, cache);
+                    if (map == null) {
+                        return null;
+                    }
+                    Context cx = Context.enter();
+                    try {
+                        return Buffer.BufferImpl.newBuffer(cx, FSImpl.this, map, false);
+                    } finally {
+                        Context.exit();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Return true if there is a mapped file cache and a file of the given size is large enough to map,
+         * so that scripts only go to the thread pool to call "mapFile" when it is likely to work.
+         * A negative size means that the size is not known yet.
+         */
+        private Object canMapFile(Context cx, Object[] args)
+        {
+            long size = longArgOnly(cx, this, args, 0, -1L);
+            MappedFileCache cache = runner.getEnvironment().getMappedFileCache();
+            return ((cache != null) && ((size < 0L) || cache.isMappable(size)));
+        }
+
         private void checkWritePos(Context cx, int bufLen, int off, int len)
         {
             if (off >= bufLen) {
@@ -447,9 +499,7 @@ public class Filesystem
 
             checkWritePos(cx, buf.getLength(), off, len);
 
-            byte[] bytes = buf.getArray();
-            int bytesOffset = buf.getArrayOffset() + off;
-            ByteBuffer writeBuf = ByteBuffer.wrap(bytes, bytesOffset, len);
+            ByteBuffer writeBuf = buf.getBuffer(off, len);
 
             return doWrite(cx, fd, writeBuf, req, len, pos);
         }
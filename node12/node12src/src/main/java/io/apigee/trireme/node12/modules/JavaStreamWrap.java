@@ -23,6 +23,7 @@ package io.apigee.trireme.node12.modules;
 
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
 import io.apigee.trireme.kernel.Charsets;
@@ -31,6 +32,7 @@ import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.kernel.handles.Handle;
 import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.kernel.util.PinState;
+import io.apigee.trireme.kernel.util.StringUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -94,13 +96,14 @@ public class JavaStreamWrap
             Id_unref = 10,
             Id_writeBinaryString = 11,
             Id_setBlocking = 12,
+            Id_writev = 13,
 
             Id_bytes = 1,
             Id_writeQueueSize = 2,
             Id_onRead = 3;
 
         protected static final int
-            MAX_METHOD = Id_setBlocking,
+            MAX_METHOD = Id_writev,
             MAX_PROPERTY = Id_onRead;
 
         static {
@@ -124,6 +127,7 @@ public class JavaStreamWrap
             p.addMethod("writeUtf8String", Id_writeUtf8String, 2);
             p.addMethod("writeBinaryString", Id_writeBinaryString, 2);
             p.addMethod("writeBuffer", Id_writeBuffer, 2);
+            p.addMethod("writev", Id_writev, 2);
             p.addMethod("close", Id_close, 1);
             p.addMethod("ref", Id_ref, 0);
             p.addMethod("unref", Id_unref, 0);
@@ -223,6 +227,9 @@ public class JavaStreamWrap
             case Id_writeBuffer:
                 writeBuffer(args);
                 break;
+            case Id_writev:
+                writev(cx, args);
+                break;
             case Id_writeUcs2String:
                 writeString(args, Charsets.UCS2);
                 break;
@@ -305,6 +312,42 @@ public class JavaStreamWrap
             updateByteCount(req, len);
         }
 
+        /**
+         * "chunks" is an array of alternating Buffers or strings and encodings, like node's own "writev."
+         * Write all of them at once and call "oncomplete" once when they are all written.
+         */
+        private void writev(Context cx, Object[] args)
+        {
+            final StreamWrap.WriteWrap req = objArg(args, 0, StreamWrap.WriteWrap.class, true);
+            Scriptable chunks = objArg(args, 1, Scriptable.class, true);
+
+            int count = (int)(Context.toNumber(chunks.get("length", chunks)) / 2);
+            ByteBuffer[] bufs = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                Object chunk = chunks.get(i * 2, chunks);
+                if (chunk instanceof Buffer.BufferImpl) {
+                    bufs[i] = ((Buffer.BufferImpl)chunk).getBuffer();
+                } else {
+                    String enc = Context.toString(chunks.get((i * 2) + 1, chunks));
+                    Charset cs = Charsets.get().resolveCharset(enc);
+                    if (cs == null) {
+                        throw Utils.makeTypeError(cx, this, "Unknown encoding " + enc);
+                    }
+                    bufs[i] = StringUtils.stringToBuffer(Context.toString(chunk), cs);
+                }
+            }
+
+            int len = handle.writev(bufs, new IOCompletionHandler<Integer>()
+            {
+                @Override
+                public void ioComplete(int errCode, Integer value)
+                {
+                    req.callOnComplete(Context.getCurrentContext(), StreamWrapImpl.this, StreamWrapImpl.this, errCode);
+                }
+            });
+            updateByteCount(req, len);
+        }
+
         private void writeString(Object[] args, Charset cs)
         {
             final StreamWrap.WriteWrap req = objArg(args, 0, StreamWrap.WriteWrap.class, true);
@@ -334,6 +377,7 @@ public class JavaStreamWrap
         private void updateByteCount(StreamWrap.WriteWrap req, int len)
         {
             req.setBytes(len);
+            req.updateAsync();
             byteCount += len;
         }
 
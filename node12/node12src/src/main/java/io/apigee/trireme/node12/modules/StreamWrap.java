@@ -43,16 +43,20 @@ public class StreamWrap
 
         private static final int
             Id_oncomplete = 1,
-            Id_bytes = 2;
+            Id_bytes = 2,
+            Id_async = 3;
 
         static {
             propMap = new IdPropertyMap(CLASS_NAME);
             propMap.addProperty("oncomplete", Id_oncomplete, 0);
             propMap.addProperty("bytes", Id_bytes, 0);
+            propMap.addProperty("async", Id_async, 0);
         }
 
         private Function onComplete;
         private int bytes;
+        private boolean async;
+        private boolean completed;
 
         public WriteWrap()
         {
@@ -66,6 +70,7 @@ public class StreamWrap
 
         public void callOnComplete(Context cx, Scriptable thisObj, Scriptable handle, int err)
         {
+            completed = true;
             if ((onComplete == null) || Undefined.instance.equals(onComplete)) {
                 return;
             }
@@ -73,8 +78,9 @@ public class StreamWrap
             ScriptRunner runner =
                 (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
             int status = (err == 0 ? 0 : -1);
+            // Like node, pass this request as the third argument so that "afterWrite" can find its callback
             runner.executeCallback(cx, new Object[] {
-                status, handle, thisObj, err
+                status, handle, this, err
             }, onComplete, this);
         }
 
@@ -86,6 +92,17 @@ public class StreamWrap
             this.bytes = b;
         }
 
+        /**
+         * Call this once the write has been handed to the handle. Like in node, "async" is set if the write
+         * did not complete right away, so that the stream waits for it before it lets the caller write more.
+         */
+        public void updateAsync()
+        {
+            if (!completed) {
+                async = true;
+            }
+        }
+
         @Override
         protected Object getInstanceIdValue(int id)
         {
@@ -94,6 +111,8 @@ public class StreamWrap
                 return onComplete;
             case Id_bytes:
                 return bytes;
+            case Id_async:
+                return async;
             default:
                 return super.getInstanceIdValue(id);
             }
@@ -109,6 +128,9 @@ public class StreamWrap
             case Id_bytes:
                 this.bytes = (int)Context.toNumber(value);
                 break;
+            case Id_async:
+                this.async = Context.toBoolean(value);
+                break;
             default:
                 super.setInstanceIdValue(id, value);
                 break;
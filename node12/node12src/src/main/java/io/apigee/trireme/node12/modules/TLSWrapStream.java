@@ -43,6 +43,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 
+import java.net.InetSocketAddress;
 import java.security.cert.X509Certificate;
 
 import static io.apigee.trireme.core.ArgUtils.*;
@@ -153,11 +154,8 @@ public class TLSWrapStream
      */
     void init(Context cx, NodeRuntime runtime)
     {
-        tls = new TLSConnection(runtime, isServer,
-                                // TODO serverName
-                                null,
-                                // TODO port
-                                0);
+        // The server name and the session aren't set until later, so they are passed along in "start"
+        tls = new TLSConnection(runtime, isServer, null, 0);
 
         SSLContext tlsCtx = ctx.makeContext(cx, this);
         tls.init(tlsCtx, ctx.getCiphers(), ctx.getTrustManager());
@@ -296,6 +294,13 @@ public class TLSWrapStream
             break;
         case Id_getServerName:
             return serverName;
+        case Id_getSession:
+            return getSession(cx);
+        case Id_setSession:
+            setSession(cx, args);
+            break;
+        case Id_isSessionReused:
+            return tls.isSessionReused();
 
         case Id_endParser:
         case Id_renegotiate:
@@ -303,12 +308,8 @@ public class TLSWrapStream
             break;
 
         // Not implemented or won't be implemented:
-        case Id_isSessionReused:
-            return false;
         case Id_enableSessionCallbacks:
         case Id_enableHelloParser:
-        case Id_getSession:
-        case Id_setSession:
         case Id_loadSession:
         case Id_setOCSPResponse:
         case Id_requestOCSP:
@@ -327,9 +328,40 @@ public class TLSWrapStream
      */
     private void start(Context cx)
     {
+        if (!isServer) {
+            // JSSE caches client sessions by host and port. Use the server name if we have one,
+            // and otherwise the address that we actually connected to.
+            InetSocketAddress peer = ((SocketHandle)stream.getHandle()).getPeerName();
+            if (peer != null) {
+                String host = serverName;
+                if ((host == null) && (peer.getAddress() != null)) {
+                    host = peer.getAddress().getHostAddress();
+                }
+                tls.setPeer(host, peer.getPort());
+            }
+        }
         tls.start();
     }
 
+    /**
+     * The session is an opaque buffer that may be passed to "setSession" on a later connection
+     * that uses the same context. It holds the session ID, and the session itself stays in the JSSE cache.
+     */
+    private Object getSession(Context cx)
+    {
+        byte[] id = tls.getSessionId();
+        if (id == null) {
+            return Undefined.instance;
+        }
+        return Buffer.BufferImpl.newBuffer(cx, this, id);
+    }
+
+    private void setSession(Context cx, Object[] args)
+    {
+        Buffer.BufferImpl buf = objArg(cx, this, args, 0, Buffer.BufferImpl.class, true);
+        tls.setSession(buf.toArray());
+    }
+
     /**
      * Called by tls_wrap when there appears to be extra data on the socket to process.
      */
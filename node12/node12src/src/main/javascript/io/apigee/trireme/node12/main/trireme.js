@@ -76,6 +76,16 @@
     // Don't do this -- we rely on "node" being the process name in some cases.
     //startup.resolveArgv0();
 
+    // Trireme: A runtime that was started ahead of time by a script pool stops here, and runs the
+    // rest once it has been given a script.
+    if (process._deferMain) {
+      process._runMain = startup.runMain;
+      return;
+    }
+    startup.runMain();
+  }
+
+  startup.runMain = function() {
     // There are various modes that Node can run in. The most common two
     // are running from a script and running the REPL - but there are a few
     // others like the debugger or running --eval arguments. Here we decide
@@ -167,7 +177,7 @@
         });
       }
     }
-  }
+  };
 
   startup.globalVariables = function() {
     global.process = process;
@@ -734,13 +744,18 @@
       };
     }
 
-    Number.isFinite = Number.isFinite || function(value) {
-      return typeof value === "number" && isFinite(value);
-    };
+    // Only assign these if they are missing, because the built-in objects may be sealed
+    if (!Number.isFinite) {
+      Number.isFinite = function(value) {
+        return typeof value === "number" && isFinite(value);
+      };
+    }
 
-    Number.isNaN = Number.isNaN || function(value) {
-      return typeof value === "number" && isNaN(value);
-    };
+    if (!Number.isNaN) {
+      Number.isNaN = function(value) {
+        return typeof value === "number" && isNaN(value);
+      };
+    }
   };
 
   // "Minimal module system" from node.js replaced here with the "NativeModule" Java module.
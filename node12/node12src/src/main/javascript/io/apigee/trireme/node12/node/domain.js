@@ -45,8 +45,9 @@ Object.defineProperty(process, 'domain', {
 // between js and c++ w/o much overhead
 var _domain_flag = {};
 
-// let the process know we're using domains
-process._setupDomainUse(_domain, _domain_flag);
+// let the process know we're using domains. Trireme returns an object that works like "_domain"
+// but is visible from Java, so that callbacks queued from Java code run in the right domain.
+_domain = process._setupDomainUse(_domain, _domain_flag);
 
 exports.Domain = Domain;
 
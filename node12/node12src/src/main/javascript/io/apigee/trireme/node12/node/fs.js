@@ -285,11 +285,29 @@ fs.readFile = function(path, options, callback_) {
           callback(err);
         });
       }
+      if (options.mapped && flag === 'r' && binding.canMapFile(size)) {
+        return map();
+      }
       buffer = new Buffer(size);
       read();
     });
   });
 
+  function map() {
+    // Trireme extension: with the "mapped" option, a large file may be a
+    // read-only view of a mapping from the mapped file cache, and if not
+    // then read it as usual.
+    mapFile(fd, function(er, mapped) {
+      if (!er && mapped) {
+        buffer = mapped;
+        pos = size = mapped.length;
+        return close();
+      }
+      buffer = new Buffer(size);
+      read();
+    });
+  }
+
   function read() {
     if (size === 0) {
       buffer = new Buffer(8192);
@@ -336,6 +354,12 @@ fs.readFile = function(path, options, callback_) {
   }
 };
 
+function mapFile(fd, callback) {
+  var req = new FSReqWrap();
+  req.oncomplete = callback;
+  binding.mapFile(fd, req);
+}
+
 fs.readFileSync = function(path, options) {
   if (!options) {
     options = { encoding: null, flag: 'r' };
@@ -1577,6 +1601,7 @@ function ReadStream(path, options) {
   this.end = options.hasOwnProperty('end') ? options.end : undefined;
   this.autoClose = options.hasOwnProperty('autoClose') ?
       options.autoClose : true;
+  this.mapped = !!options.mapped;
   this.pos = undefined;
 
   if (!util.isUndefined(this.start)) {
@@ -1619,10 +1644,25 @@ ReadStream.prototype.open = function() {
       return;
     }
 
-    self.fd = fd;
-    self.emit('open', fd);
-    // start the flow of data.
-    self.read();
+    if (!self.mapped || self.flags !== 'r' || !binding.canMapFile(-1)) {
+      return opened();
+    }
+    // Trireme extension: with the "mapped" option, large files may be read
+    // from a mapping in the mapped file cache, and the chunks are read-only.
+    mapFile(fd, function(er, mapped) {
+      if (!er && mapped) {
+        self._mapped = mapped;
+        self._mappedPos = 0;
+      }
+      opened();
+    });
+
+    function opened() {
+      self.fd = fd;
+      self.emit('open', fd);
+      // start the flow of data.
+      self.read();
+    }
   });
 };
 
@@ -1635,6 +1675,9 @@ ReadStream.prototype._read = function(n) {
   if (this.destroyed)
     return;
 
+  if (this._mapped)
+    return this._readMapped(n);
+
   if (!pool || pool.length - pool.used < kMinPoolSpace) {
     // discard the old pool.
     pool = null;
@@ -1682,10 +1725,30 @@ ReadStream.prototype._read = function(n) {
 };
 
 
+ReadStream.prototype._readMapped = function(n) {
+  var pos = util.isUndefined(this.pos) ? this._mappedPos : this.pos;
+  var toRead = Math.min(this._mapped.length - pos, n);
+
+  if (!util.isUndefined(this.pos))
+    toRead = Math.min(this.end - this.pos + 1, toRead);
+
+  if (toRead <= 0)
+    return this.push(null);
+
+  if (!util.isUndefined(this.pos))
+    this.pos += toRead;
+  else
+    this._mappedPos += toRead;
+
+  this.push(this._mapped.slice(pos, pos + toRead));
+};
+
+
 ReadStream.prototype.destroy = function() {
   if (this.destroyed)
     return;
   this.destroyed = true;
+  this._mapped = null;
 
   if (util.isNumber(this.fd))
     this.close();
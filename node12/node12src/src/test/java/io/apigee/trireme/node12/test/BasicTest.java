@@ -6,11 +6,15 @@ import io.apigee.trireme.core.NodeException;
 import io.apigee.trireme.core.NodeScript;
 import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptPool;
 import io.apigee.trireme.core.ScriptStatus;
 import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.core.SubprocessPolicy;
 import io.apigee.trireme.core.Utils;
+import io.apigee.trireme.core.internal.LruClassCache;
 import io.apigee.trireme.kernel.Platform;
+import io.apigee.trireme.kernel.fs.MappedFileCache;
+import io.apigee.trireme.kernel.util.DirectBufferPool;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -651,6 +655,279 @@ public class BasicTest
         script.execute().get();
     }
 
+    @Test
+    public void testSharedEventLoop()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeEnvironment localEnv = new NodeEnvironment();
+        localEnv.setDefaultNodeVersion(NODE_VERSION);
+        localEnv.setSharedEventLoop(true);
+        localEnv.setEventLoopThreads(2);
+
+        String[] names = { "moduletest.js", "buffertest.js", "eventstest.js", "basichttptest.js" };
+        ScriptFuture[] futures = new ScriptFuture[names.length];
+        for (int i = 0; i < names.length; i++) {
+            NodeScript script = localEnv.createScript(names[i],
+                                                      new File("target/test-classes/tests/" + names[i]),
+                                                      null);
+            futures[i] = script.execute();
+        }
+        for (ScriptFuture f : futures) {
+            assertEquals(0, f.get().getExitCode());
+        }
+        localEnv.close();
+    }
+
+    @Test
+    public void testSharedEventLoopCancellation()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeEnvironment localEnv = new NodeEnvironment();
+        localEnv.setDefaultNodeVersion(NODE_VERSION);
+        localEnv.setSharedEventLoop(true);
+        localEnv.setEventLoopThreads(1);
+
+        NodeScript endless = localEnv.createScript("endless.js",
+                                                   new File("./target/test-classes/tests/endless.js"),
+                                                   null);
+        ScriptFuture endlessStatus = endless.execute();
+
+        // A busy script must not starve another one on the same loop
+        NodeScript hello = localEnv.createScript("test.js",
+                                                 "setTimeout(function() { process.exit(0); }, 10);",
+                                                 null);
+        assertEquals(0, hello.execute().get().getExitCode());
+
+        endlessStatus.cancel(false);
+        try {
+            endlessStatus.get();
+            assertFalse("Script should return an cancellation exception", true);
+        } catch (CancellationException ce) {
+            // Expected result
+        }
+        localEnv.close();
+    }
+
+    @Test
+    public void testClassCacheSharing()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setDefaultClassCache();
+        runTest("moduletest.js");
+        long compilations = env.getScriptCompiler().getCompilations();
+        assertTrue(compilations > 0);
+        assertEquals(0L, env.getScriptCompiler().getCacheHits());
+
+        // Every module that the second script loads through "vm" should come from the cache
+        runTest("moduletest.js");
+        assertEquals(compilations, env.getScriptCompiler().getCompilations());
+        assertEquals(compilations, env.getScriptCompiler().getCacheHits());
+    }
+
+    @Test
+    public void testConcurrentClassCacheMisses()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setDefaultClassCache();
+        runTest("moduletest.js");
+        long compilations = env.getScriptCompiler().getCompilations();
+
+        // Scripts that load the same modules at the same time should still compile each one once
+        NodeEnvironment localEnv = new NodeEnvironment();
+        localEnv.setDefaultNodeVersion(NODE_VERSION);
+        localEnv.setDefaultClassCache();
+        File file = new File("target/test-classes/tests/moduletest.js");
+        NodeScript[] scripts = new NodeScript[4];
+        ScriptFuture[] futures = new ScriptFuture[scripts.length];
+        for (int i = 0; i < scripts.length; i++) {
+            scripts[i] = localEnv.createScript("moduletest.js", file, null);
+            futures[i] = scripts[i].execute();
+        }
+        for (int i = 0; i < scripts.length; i++) {
+            assertEquals(0, futures[i].get().getExitCode());
+            scripts[i].close();
+        }
+
+        assertEquals(compilations, localEnv.getScriptCompiler().getCompilations());
+        assertEquals(compilations, localEnv.getScriptCompiler().getCacheMisses());
+        assertEquals(compilations * (scripts.length - 1), localEnv.getScriptCompiler().getCacheHits());
+        localEnv.close();
+    }
+
+    @Test
+    public void testBoundedClassCache()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setBoundedClassCache(1000, 16 * 1024 * 1024);
+        runTest("moduletest.js");
+        runTest("moduletest.js");
+
+        LruClassCache cache = (LruClassCache)env.getClassCache();
+        assertTrue(cache.getEntryCount() > 0);
+        assertTrue(cache.getSize() > 0);
+        assertEquals(cache.getCompilations(), cache.getHits());
+        assertEquals(cache.getCompilations(), cache.getMisses());
+    }
+
+    @Test
+    public void testBackgroundCompilation()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        // Too much top-level code to compile in one piece
+        String code =
+            "var vm = require('vm');\n" +
+            "var code = 'var total = 0;\\n';\n" +
+            "for (var i = 0; i < 20000; i++) { code += 'total += ' + i + ';\\n'; }\n" +
+            "code += 'total;';\n" +
+            "if (vm.runInThisContext(code, 'big.js') !== 199990000) { process.exit(2); }\n";
+
+        env.setBackgroundCompilation(true);
+        NodeScript script = env.createScript("background.js", code, null);
+        assertEquals(0, script.execute().get().getExitCode());
+
+        long timeout = System.currentTimeMillis() + 60000L;
+        while ((env.getScriptCompiler().getBackgroundCompilations() == 0) &&
+               (System.currentTimeMillis() < timeout)) {
+            Thread.sleep(50L);
+        }
+        assertTrue(env.getScriptCompiler().getSplitScripts() > 0);
+
+        // The second time, the compiled version is used
+        long hits = env.getScriptCompiler().getCacheHits();
+        script = env.createScript("background.js", code, null);
+        assertEquals(0, script.execute().get().getExitCode());
+        assertTrue(env.getScriptCompiler().getCacheHits() > hits);
+    }
+
+    @Test
+    public void testGlobalScopeTemplate()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setGlobalScopeTemplate(true);
+        runTest("moduletest.js");
+        runTest("compatibilitytest.js");
+
+        // Globals are still private to each script, but the built-in objects may not be changed
+        String code =
+            "if (typeof leaked !== 'undefined') { process.exit(2); }\n" +
+            "leaked = true;\n" +
+            "Object = function() {};\n" +
+            "try {\n" +
+            "  String.prototype.leaked = true;\n" +
+            "  process.exit(3);\n" +
+            "} catch (e) {\n" +
+            "}\n";
+        NodeScript script = env.createScript("template.js", code, null);
+        assertEquals(0, script.execute().get().getExitCode());
+        script = env.createScript("template2.js", code, null);
+        assertEquals(0, script.execute().get().getExitCode());
+        assertNotNull(env.getGlobalScopeTemplate());
+    }
+
+    @Test
+    public void testScriptPool()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        ScriptPool pool = env.createScriptPool(2);
+        pool.setNodeVersion(NODE_VERSION);
+        pool.start();
+        waitForIdle(pool, 2);
+
+        NodeScript script = pool.createScript("moduletest.js",
+                                              new File("target/test-classes/tests/moduletest.js"), null);
+        assertEquals(0, script.execute().get().getExitCode());
+        script.close();
+
+        // Each script gets a runtime of its own
+        String code =
+            "if (typeof leaked !== 'undefined') { process.exit(2); }\n" +
+            "leaked = true;\n" +
+            "if (process.argv[2] !== 'foo') { process.exit(3); }\n" +
+            "setTimeout(function() { process.exit(require('path').basename(process.argv[1]) === 'pooled.js' ? 0 : 4); }, 1);";
+        for (int i = 0; i < 3; i++) {
+            waitForIdle(pool, 1);
+            script = pool.createScript("pooled.js", code, new String[] { "foo" });
+            assertEquals(0, script.execute().get().getExitCode());
+            script.close();
+        }
+
+        assertEquals(4, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        assertTrue(pool.getRefills() >= 4);
+        assertTrue(pool.getRefillTime() > 0L);
+        assertEquals(0, pool.getRefillFailures());
+
+        pool.close();
+        assertEquals(0, pool.getIdleCount());
+        script = pool.createScript("pooled.js", code, new String[] { "foo" });
+        assertEquals(0, script.execute().get().getExitCode());
+        assertEquals(1, pool.getMisses());
+    }
+
+    private static void waitForIdle(ScriptPool pool, int count)
+        throws InterruptedException
+    {
+        long timeout = System.currentTimeMillis() + 60000L;
+        while ((pool.getIdleCount() < count) && (System.currentTimeMillis() < timeout)) {
+            Thread.sleep(10L);
+        }
+        assertTrue(pool.getIdleCount() >= count);
+    }
+
+    @Test
+    public void testNonBlockingLookup()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        env.setNonBlockingLookup(true);
+        runTest("nonblockinglookuptest.js");
+    }
+
+    @Test
+    public void testCryptoPool()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        long completed = env.getCryptoCompletedCount();
+        runTest("cryptopooltest.js");
+        assertTrue(env.getCryptoCompletedCount() > completed);
+        assertEquals(0, env.getCryptoQueueDepth());
+    }
+
+    @Test
+    public void testDirectBuffers()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        DirectBufferPool pool = new DirectBufferPool();
+        env.setDirectBufferPool(pool);
+        runTest("buffertest.js");
+        runTest("directbuffertest.js");
+        assertTrue(pool.getAllocations() > 0L);
+        assertTrue(pool.getSlabs() > 0L);
+        assertEquals(0L, pool.getRejected());
+    }
+
+    @Test
+    public void testDirectBuffersFull()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        // Everything goes back to the heap once the pool is full
+        DirectBufferPool pool = new DirectBufferPool(0L);
+        env.setDirectBufferPool(pool);
+        runTest("directbuffertest.js");
+        assertEquals(0L, pool.getAllocations());
+        assertTrue(pool.getRejected() > 0L);
+    }
+
+    @Test
+    public void testMappedFiles()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        MappedFileCache cache = new MappedFileCache();
+        env.setMappedFileCache(cache);
+        runTest("mappedfiletest.js");
+        assertTrue(cache.getHits() > 0L);
+        assertEquals(1, cache.getEntryCount());
+    }
+
     private void runTest(String name)
         throws InterruptedException, ExecutionException, NodeException
     {
@@ -0,0 +1,34 @@
+// Run "randomBytes" with callbacks, which uses the crypto thread pool, and make sure that every
+// callback is called later, on the script thread, with the right result.
+
+var assert = require('assert');
+var crypto = require('crypto');
+
+var COUNT = 10;
+var done = 0;
+var sync = true;
+
+for (var i = 0; i < COUNT; i++) {
+  (function(len) {
+    crypto.randomBytes(len, function(err, buf) {
+      assert(!sync);
+      assert(!err);
+      assert(Buffer.isBuffer(buf));
+      assert.equal(buf.length, len);
+      done++;
+    });
+  })(i * 16);
+
+  crypto.pseudoRandomBytes(8, function(err, buf) {
+    assert(!sync);
+    assert(!err);
+    assert.equal(buf.length, 8);
+    done++;
+  });
+}
+
+sync = false;
+
+process.on('exit', function() {
+  assert.equal(done, COUNT * 2);
+});
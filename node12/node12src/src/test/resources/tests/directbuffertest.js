@@ -0,0 +1,106 @@
+// Exercise Buffers that are allocated from the direct buffer pool, including copies to and from
+// Buffers on the heap, and passing them to file and zlib I/O.
+
+var assert = require('assert');
+var crypto = require('crypto');
+var fs = require('fs');
+var path = require('path');
+var zlib = require('zlib');
+
+var small = new Buffer(16);
+assert.equal(small.length, 16);
+for (var i = 0; i < small.length; i++) {
+  assert.equal(small[i], 0);
+}
+small[0] = 255;
+small[1] = -1;
+assert.equal(small[0], 255);
+assert.equal(small[1], 255);
+
+small.fill(7);
+assert.equal(small[15], 7);
+small.fill('ab');
+assert.equal(small.toString('ascii'), 'abababababababab');
+
+var big = new Buffer(100000);
+assert.equal(big.length, 100000);
+big.fill(0);
+big.fill(9, 10, 99990);
+assert.equal(big[9], 0);
+assert.equal(big[10], 9);
+assert.equal(big[50000], 9);
+assert.equal(big[99989], 9);
+assert.equal(big[99990], 0);
+
+// Hashes and ciphers read direct buffers in place, and must get the same answer as for a string
+var bigString = big.toString('binary');
+assert.equal(crypto.createHash('sha256').update(big.slice(5)).digest('hex'),
+             crypto.createHash('sha256').update(bigString.substring(5), 'binary').digest('hex'));
+assert.equal(crypto.createHmac('sha1', 'secret').update(big).digest('hex'),
+             crypto.createHmac('sha1', 'secret').update(bigString, 'binary').digest('hex'));
+var cipher = crypto.createCipher('aes-128-cbc', 'password');
+var encrypted = Buffer.concat([cipher.update(big), cipher.final()]);
+var decipher = crypto.createDecipher('aes-128-cbc', 'password');
+assert.deepEqual(Buffer.concat([decipher.update(encrypted), decipher.final()]), big);
+
+['utf8', 'ascii', 'binary', 'hex', 'base64', 'ucs2'].forEach(function(enc) {
+  var src = (enc === 'ascii' ? 'Hello, World!' : new Buffer('Hello, World! café', 'utf8').toString(enc));
+  var b = new Buffer(256);
+  var len = b.write(src, 0, enc);
+  assert.equal(b.toString(enc, 0, len), src);
+});
+
+var ints = new Buffer(32);
+ints.writeUInt32BE(0xdeadbeef, 0);
+ints.writeUInt32LE(0xdeadbeef, 4);
+ints.writeInt32BE(-2, 8);
+ints.writeDoubleBE(Math.PI, 12);
+ints.writeDoubleLE(Math.E, 20);
+assert.equal(ints.readUInt32BE(0), 0xdeadbeef);
+assert.equal(ints.readUInt32LE(4), 0xdeadbeef);
+assert.equal(ints[4], 0xef);
+assert.equal(ints.readInt32BE(8), -2);
+assert.equal(ints.readDoubleBE(12), Math.PI);
+assert.equal(ints.readDoubleLE(20), Math.E);
+
+var slice = ints.slice(4, 8);
+assert.equal(slice.readUInt32LE(0), 0xdeadbeef);
+slice.writeUInt32BE(1, 0);
+assert.equal(ints.readUInt32BE(4), 1);
+
+var heap = new Buffer('0123456789');
+var direct = new Buffer(10);
+heap.copy(direct);
+assert.equal(direct.toString(), '0123456789');
+assert.equal(heap.compare(direct), 0);
+direct[0] = 0x39;
+direct.copy(heap, 5, 0, 2);
+assert.equal(heap.toString(), '0123491789');
+direct.copy(direct, 2, 0, 4);
+assert.equal(direct.toString(), '91912367' + '89');
+assert.deepEqual(Buffer.concat([direct.slice(0, 2), heap.slice(0, 2)]), new Buffer('9101'));
+
+var fileName = path.join(__dirname, 'directbuffertest.tmp');
+var out = new Buffer(8192);
+for (var i = 0; i < out.length; i++) {
+  out[i] = i % 256;
+}
+var fd = fs.openSync(fileName, 'w');
+assert.equal(fs.writeSync(fd, out, 0, out.length, 0), out.length);
+fs.closeSync(fd);
+
+var inBuf = new Buffer(out.length);
+fd = fs.openSync(fileName, 'r');
+assert.equal(fs.readSync(fd, inBuf, 0, inBuf.length, 0), inBuf.length);
+fs.closeSync(fd);
+fs.unlinkSync(fileName);
+assert.deepEqual(inBuf, out);
+
+zlib.deflate(out, function(err, deflated) {
+  assert(!err);
+  zlib.inflate(deflated, function(err, inflated) {
+    assert(!err);
+    assert.deepEqual(inflated, out);
+    console.log('Direct buffer test passed');
+  });
+});
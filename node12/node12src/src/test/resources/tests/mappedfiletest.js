@@ -0,0 +1,100 @@
+// Read a large file several times through the mapped file cache, using readFile and read streams
+// with the "mapped" option. Make sure that the Buffers that come back are read-only, and that
+// without the option the Buffers are regular ones, which share memory with their slices.
+
+var assert = require('assert');
+var fs = require('fs');
+var path = require('path');
+
+var fileName = path.join(__dirname, 'mappedfiletest.tmp');
+var LEN = 200000;
+
+var data = new Buffer(LEN);
+for (var i = 0; i < LEN; i++) {
+  data[i] = i % 251;
+}
+fs.writeFileSync(fileName, data);
+
+function checkSame(buf, start) {
+  for (var i = 0; i < buf.length; i++) {
+    if (buf[i] !== ((start + i) % 251)) {
+      assert.fail(buf[i], (start + i) % 251, 'Mismatch at ' + (start + i));
+    }
+  }
+}
+
+function readWhole(opts, cb) {
+  fs.readFile(fileName, opts, function(err, buf) {
+    assert(!err);
+    assert.equal(buf.length, LEN);
+    checkSame(buf, 0);
+    cb(buf);
+  });
+}
+
+function readStream(opts, cb) {
+  var bufs = [];
+  var s = fs.createReadStream(fileName, opts);
+  s.on('data', function(chunk) {
+    bufs.push(chunk);
+  });
+  s.on('end', function() {
+    cb(bufs);
+  });
+}
+
+function assertReadOnly(buf) {
+  assert.throws(function() {
+    buf[0] = 99;
+  });
+  assert.throws(function() {
+    buf.write('Hello', 10);
+  });
+  assert.throws(function() {
+    buf.fill(7, 100, 200);
+  });
+  assert.throws(function() {
+    new Buffer(100).fill(1).copy(buf);
+  });
+  assert.equal(buf[0], 0);
+  assert.equal(buf[150], 150 % 251);
+}
+
+readWhole({}, function(plain) {
+  // Without the option, readFile works as usual
+  plain.slice(1000, 2000).fill(1, 0, 10);
+  assert.equal(plain[1000], 1);
+  plain.fill(7, 0, 100);
+  assert.equal(plain[50], 7);
+
+  readWhole({ mapped: true }, function(buf1) {
+    assertReadOnly(buf1);
+    assertReadOnly(buf1.slice(0, 1000));
+
+    readWhole({ mapped: true }, function(buf2) {
+      checkSame(buf2.slice(1000, 2000), 1000);
+
+      readStream({ mapped: true }, function(chunks) {
+        assertReadOnly(chunks[0]);
+        var all = Buffer.concat(chunks);
+        assert.equal(all.length, LEN);
+        checkSame(all, 0);
+
+        readStream({ mapped: true, start: 5000, end: 150000 }, function(chunks) {
+          var part = Buffer.concat(chunks);
+          assert.equal(part.length, 145001);
+          checkSame(part, 5000);
+
+          readStream({}, function(chunks) {
+            chunks[0][0] = 99;
+            assert.equal(chunks[0][0], 99);
+
+            assert.deepEqual(fs.readFileSync(fileName), data);
+            fs.unlinkSync(fileName);
+            console.log('Mapped file test done');
+          });
+        });
+      });
+    });
+  });
+});
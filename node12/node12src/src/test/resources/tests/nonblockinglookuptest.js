@@ -0,0 +1,33 @@
+// Look up names with the non-blocking "getaddrinfo" and use them to make a connection.
+
+var assert = require('assert');
+var dns = require('dns');
+var net = require('net');
+
+dns.lookup('127.0.0.1', function(err, addr, family) {
+  assert(!err);
+  assert.equal(addr, '127.0.0.1');
+  assert.equal(family, 4);
+
+  dns.lookup('localhost', 4, function(err, addr, family) {
+    assert(!err);
+    assert.equal(family, 4);
+    assert(/^127\./.test(addr));
+
+    var svr = net.createServer(function(s) {
+      s.end('ok');
+    });
+    svr.listen(0, '127.0.0.1', function() {
+      var c = net.connect({ host: 'localhost', port: svr.address().port });
+      var received = '';
+      c.setEncoding('utf8');
+      c.on('data', function(d) {
+        received += d;
+      });
+      c.on('end', function() {
+        assert.equal(received, 'ok');
+        svr.close();
+      });
+    });
+  });
+});
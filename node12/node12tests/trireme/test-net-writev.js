@@ -0,0 +1,59 @@
+var common = require('../common');
+var assert = require('assert');
+var net = require('net');
+
+// Make sure that corked writes go to the socket in one "writev" call, that every write gets its
+// own callback in order, and that strings in different encodings are handled.
+
+var chunks = [
+  [ new Buffer('Hello, '), 'buffer' ],
+  [ 'World', 'utf8' ],
+  [ '2c20', 'hex' ],
+  [ 'QmFzZTY0', 'base64' ],
+  [ new Buffer(100000), 'buffer' ]
+];
+chunks[4][0].fill('x');
+
+var expected = 'Hello, World, Base64' + chunks[4][0].toString();
+var received = '';
+var callbacks = [];
+var writevCalls = 0;
+
+var server = net.createServer(function(s) {
+  s.setEncoding('utf8');
+  s.on('data', function(d) {
+    received += d;
+  });
+  s.on('end', function() {
+    server.close();
+  });
+});
+
+server.listen(common.PORT, function() {
+  var client = net.connect(common.PORT, function() {
+    assert.equal(typeof client._handle.writev, 'function');
+    var origWritev = client._handle.writev;
+    client._handle.writev = function(req, data) {
+      writevCalls++;
+      return origWritev.call(this, req, data);
+    };
+
+    client.cork();
+    chunks.forEach(function(c, i) {
+      client.write(c[0], c[1], function(err) {
+        assert(!err);
+        callbacks.push(i);
+      });
+    });
+    client.uncork();
+    client.end();
+  });
+});
+
+process.on('exit', function() {
+  assert.equal(writevCalls, 1);
+  assert.deepEqual(callbacks, [0, 1, 2, 3, 4]);
+  assert.equal(received.length, expected.length);
+  assert.equal(received, expected);
+  console.log('ok');
+});
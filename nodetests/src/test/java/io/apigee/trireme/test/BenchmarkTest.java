@@ -59,8 +59,7 @@ public class BenchmarkTest
         "net/tcp-raw-c2s.js",
         "net/tcp-raw-pipe.js",
         "net/tcp-raw-s2c.js",
-        // Uses recursive nextTick()
-        //"tls/throughput.js",
+        "tls/throughput.js",
         "tls/tls-connect.js"
     };
 
@@ -0,0 +1,136 @@
+package io.apigee.trireme.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.core.ScriptStatusListener;
+import io.apigee.trireme.core.internal.JavaVersion;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Start a few thousand small scripts at once, each of which does a little bit of file I/O and waits on
+ * a timer, and report how many threads it took and how long the scripts took to complete. Like the other
+ * benchmarks, this only runs when "runBenchmarks" is set to true, and the number of scripts may be changed
+ * using "benchmarkScripts."
+ */
+@RunWith(Parameterized.class)
+public class DensityBenchmarkTest
+{
+    public static final int DEFAULT_SCRIPTS = 2000;
+    public static final long TIMEOUT_SECS = 300L;
+
+    private static final String SCRIPT =
+        "var fs = require('fs');\n" +
+        "var count = 0;\n" +
+        "function step() {\n" +
+        "  fs.stat('.', function(err) {\n" +
+        "    if (err) { process.exit(2); }\n" +
+        "    if (++count < 5) { setTimeout(step, 20); }\n" +
+        "  });\n" +
+        "}\n" +
+        "setTimeout(step, 100);\n";
+
+    private final String mode;
+
+    @Parameterized.Parameters(name="{index}: {0}")
+    public static Collection<Object[]> enumerateModes()
+    {
+        return Arrays.asList(new Object[][] {
+            { "threads" }, { "shared" }, { "virtual" }
+        });
+    }
+
+    public DensityBenchmarkTest(String mode)
+    {
+        this.mode = mode;
+    }
+
+    @Test
+    public void benchmarkDensity()
+        throws NodeException, InterruptedException, ExecutionException
+    {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        if ("virtual".equals(mode)) {
+            Assume.assumeTrue(JavaVersion.get().hasVirtualThreads());
+        }
+
+        int numScripts = Integer.getInteger("benchmarkScripts", DEFAULT_SCRIPTS);
+        NodeEnvironment env = new NodeEnvironment();
+        if ("shared".equals(mode)) {
+            env.setSharedEventLoop(true);
+        } else if ("virtual".equals(mode)) {
+            env.setVirtualThreads(true);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long memBefore = rt.totalMemory() - rt.freeMemory();
+
+        final long[] latencies = new long[numScripts];
+        final CountDownLatch done = new CountDownLatch(numScripts);
+        ArrayList<ScriptFuture> futures = new ArrayList<ScriptFuture>(numScripts);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numScripts; i++) {
+            final int ix = i;
+            final long scriptStart = System.nanoTime();
+            NodeScript script = env.createScript("density" + i + ".js", SCRIPT, null);
+            ScriptFuture f = script.execute();
+            f.setListener(new ScriptStatusListener()
+            {
+                @Override
+                public void onComplete(NodeScript script, ScriptStatus status)
+                {
+                    latencies[ix] = System.nanoTime() - scriptStart;
+                    done.countDown();
+                }
+            });
+            futures.add(f);
+        }
+
+        long memPeak = rt.totalMemory() - rt.freeMemory();
+        assertTrue("Scripts did not finish in time", done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        for (ScriptFuture f : futures) {
+            assertEquals(0, f.get().getExitCode());
+        }
+
+        Arrays.sort(latencies);
+        System.out.println("Density benchmark: " + numScripts + " scripts, mode = " + mode);
+        System.out.println("  Total time:     " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        System.out.println("  Peak threads:   " + threads.getPeakThreadCount() + " (" + threadsBefore + " before)");
+        System.out.println("  Heap growth:    " + ((memPeak - memBefore) / 1048576) + " MB");
+        System.out.println("  Latency p50:    " + percentile(latencies, 50) + " ms");
+        System.out.println("  Latency p99:    " + percentile(latencies, 99) + " ms");
+        System.out.println("  Latency p99.9:  " + percentile(latencies, 99.9) + " ms");
+        System.out.println("  Latency max:    " + TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1]) + " ms");
+
+        env.close();
+    }
+
+    private static long percentile(long[] sorted, double p)
+    {
+        int ix = (int)Math.ceil((p / 100.0) * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, Math.min(ix, sorted.length - 1))]);
+    }
+}
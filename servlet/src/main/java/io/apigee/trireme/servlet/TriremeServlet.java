@@ -30,7 +30,10 @@ import io.apigee.trireme.core.ScriptStatus;
 import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
+import io.apigee.trireme.net.spi.AdmissionControlStub;
 import io.apigee.trireme.net.spi.HttpServerStub;
+import io.apigee.trireme.servlet.internal.AsyncRequestReader;
+import io.apigee.trireme.servlet.internal.AsyncResponseWriter;
 import io.apigee.trireme.servlet.internal.EnvironmentManager;
 import io.apigee.trireme.servlet.internal.FlowController;
 import io.apigee.trireme.servlet.internal.ResponseChunk;
@@ -40,6 +43,7 @@ import io.apigee.trireme.servlet.internal.ServletChunk;
 import io.apigee.trireme.servlet.internal.ServletRequest;
 import io.apigee.trireme.servlet.internal.ServletResponse;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -63,8 +67,33 @@ public class TriremeServlet
     public static final String SCRIPT_SANDBOX = "TriremeSandbox";
     public static final String SCRIPT_STARTUP_TIMEOUT = "TriremeStartupTimeout";
     public static final String SCRIPT_RESPONSE_TIMEOUT = "TriremeResponseTimeout";
+    /**
+     * If set to "true," and the servlet is marked "async-supported," then use the non-blocking I/O
+     * from Servlet 3.1 so that no container thread waits while the script runs. Otherwise, each request
+     * holds a container thread until the response is complete, which works with every servlet engine.
+     */
+    public static final String ASYNC_MODE = "TriremeAsync";
+    /**
+     * The largest number of requests that may wait for the script to start processing them before new ones
+     * are rejected with a 503 status. The default is no limit.
+     */
+    public static final String MAX_QUEUED_REQUESTS = "TriremeMaxQueuedRequests";
+    /**
+     * The largest number of bytes of request data that may wait for the script to read them. Past this point
+     * reading pauses, and new requests are rejected with a 503 status. The default is no limit.
+     */
+    public static final String MAX_QUEUED_BYTES = "TriremeMaxQueuedBytes";
+    /**
+     * In async mode, the number of seconds after which the container gives up on a request that the script
+     * has not finished. Zero means no limit. The default is a little longer than the response timeout, so
+     * that the script's own timeout response goes out first, or DEFAULT_ASYNC_TIMEOUT if there is none.
+     */
+    public static final String ASYNC_TIMEOUT = "TriremeAsyncTimeout";
 
     public static final long DEFAULT_STARTUP_TIMEOUT = 10L;
+    public static final long DEFAULT_ASYNC_TIMEOUT = 300L;
+
+    private static final long ASYNC_TIMEOUT_GRACE = 10L;
 
     private static final int BUFFER_SIZE = 8192;
 
@@ -73,6 +102,8 @@ public class TriremeServlet
     private volatile ScriptStatus scriptStatus;
 
     private long startupTimeout = DEFAULT_STARTUP_TIMEOUT;
+    private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+    private boolean asyncMode;
 
     @Override
     public void init(ServletConfig config)
@@ -96,7 +127,31 @@ public class TriremeServlet
 
         propVal = config.getInitParameter(SCRIPT_RESPONSE_TIMEOUT);
         if (propVal != null) {
-            state.setResponseTimeout(Long.valueOf(propVal));
+            long responseTimeout = Long.valueOf(propVal);
+            state.setResponseTimeout(responseTimeout);
+            if (responseTimeout > 0L) {
+                asyncTimeout = responseTimeout + ASYNC_TIMEOUT_GRACE;
+            }
+        }
+
+        propVal = config.getInitParameter(ASYNC_TIMEOUT);
+        if (propVal != null) {
+            asyncTimeout = Long.valueOf(propVal);
+        }
+
+        propVal = config.getInitParameter(ASYNC_MODE);
+        if (propVal != null) {
+            asyncMode = Boolean.valueOf(propVal);
+        }
+
+        propVal = config.getInitParameter(MAX_QUEUED_REQUESTS);
+        if (propVal != null) {
+            state.setMaxQueuedRequests(Integer.valueOf(propVal));
+        }
+
+        propVal = config.getInitParameter(MAX_QUEUED_BYTES);
+        if (propVal != null) {
+            state.setMaxQueuedBytes(Long.valueOf(propVal));
         }
 
         String basePath = config.getServletContext().getRealPath("/");
@@ -191,10 +246,21 @@ public class TriremeServlet
             return;
         }
 
+        HttpServerStub stub = state.getStub();
+        if ((stub instanceof AdmissionControlStub) &&
+            !((AdmissionControlStub)stub).getAdmissionControl().admit()) {
+            returnError(servletResp, 503, "Script is too busy to accept more requests");
+            return;
+        }
+
+        if (asyncMode && servletReq.isAsyncSupported()) {
+            serviceAsync(servletReq, servletResp, stub);
+            return;
+        }
+
         FlowController control = new FlowController();
         ServletRequest req = new ServletRequest(servletReq, control);
         ServletResponse resp = new ServletResponse(servletResp);
-        HttpServerStub stub = state.getStub();
 
         // Asynchronously ask Node.js to start processing the request
         stub.onRequest(req, resp);
@@ -269,6 +335,30 @@ public class TriremeServlet
         } while (chunk.getBuffer() != ServletResponse.LAST_CHUNK);
     }
 
+    /**
+     * Hand the request to Node and return right away. Request data is read by a ReadListener as it arrives,
+     * and the response is written by a WriteListener as the script produces it, so neither one
+     * ties up a container thread.
+     */
+    private void serviceAsync(HttpServletRequest servletReq,
+                              HttpServletResponse servletResp,
+                              HttpServerStub stub)
+        throws IOException
+    {
+        AsyncContext ctx = servletReq.startAsync();
+        // Don't depend on the container's default, which may be shorter than the script's response timeout
+        ctx.setTimeout(TimeUnit.SECONDS.toMillis(asyncTimeout));
+
+        AsyncResponseWriter writer = new AsyncResponseWriter(ctx, servletResp);
+        AsyncRequestReader reader = new AsyncRequestReader(ctx, stub, writer, BUFFER_SIZE);
+        ctx.addListener(reader);
+        ServletRequest req = new ServletRequest(servletReq, reader);
+        ServletResponse resp = new ServletResponse(servletResp, writer);
+
+        stub.onRequest(req, resp);
+        reader.start(req, resp);
+    }
+
     private void returnError(HttpServletResponse resp, int code, String msg)
         throws IOException
     {
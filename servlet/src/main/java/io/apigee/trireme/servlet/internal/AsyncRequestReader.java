@@ -0,0 +1,213 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.servlet.internal;
+
+import io.apigee.trireme.net.spi.HttpServerStub;
+import io.apigee.trireme.net.spi.PauseHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads the request body in an asynchronous servlet. The container tells us when
+ * data may be read without blocking, and we hand it to the script until the script asks us to pause.
+ * When it resumes, we pick up where we left off, because the container will not tell us again
+ * about data that we chose not to read. It also listens for the container to time out or fail the whole
+ * request, in which case the script is told that the request was closed.
+ */
+
+public class AsyncRequestReader
+    implements ReadListener, AsyncListener, PauseHelper.FlowControl
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncRequestReader.class);
+
+    private final AsyncContext context;
+    private final HttpServerStub stub;
+    private final AsyncResponseWriter writer;
+    private final int bufferSize;
+
+    private ServletInputStream in;
+    private ServletRequest request;
+    private ServletResponse response;
+    private volatile boolean paused;
+    private volatile boolean finished;
+    private boolean aborted;
+
+    public AsyncRequestReader(AsyncContext context, HttpServerStub stub, AsyncResponseWriter writer,
+                              int bufferSize)
+    {
+        this.context = context;
+        this.stub = stub;
+        this.writer = writer;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Start reading. The request and response are set here rather than in the constructor, because
+     * the request needs this object to tell it when to pause.
+     */
+    public void start(ServletRequest request, ServletResponse response)
+        throws IOException
+    {
+        this.request = request;
+        this.response = response;
+        in = context.getRequest().getInputStream();
+        in.setReadListener(this);
+    }
+
+    @Override
+    public void onDataAvailable()
+        throws IOException
+    {
+        readAvailable();
+    }
+
+    @Override
+    public synchronized void onAllDataRead()
+    {
+        if (!finished) {
+            finished = true;
+            stub.onData(request, response, new ServletChunk(null, true));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Error reading request: {}", t);
+        }
+        abort();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+        log.debug("Asynchronous request timed out");
+        writer.timeOut();
+        abort();
+    }
+
+    @Override
+    public void onError(AsyncEvent event)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Asynchronous request failed: {}", event.getThrowable());
+        }
+        abort();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event)
+    {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event)
+    {
+    }
+
+    /**
+     * Stop reading, tell the script that the request is closed, and fail anything else it tries to write,
+     * since the writer completes the context here and the response can no longer be used.
+     */
+    private void abort()
+    {
+        synchronized (this) {
+            if (aborted) {
+                return;
+            }
+            aborted = true;
+            finished = true;
+        }
+        stub.onClose(request, response);
+        writer.close();
+    }
+
+    /**
+     * This is called by the script thread, and must not wait for a read loop that is in progress,
+     * or the loop would never see the flag.
+     */
+    @Override
+    public void doPause()
+    {
+        paused = true;
+    }
+
+    /**
+     * The container will not call "onDataAvailable" again until a read would block, so read
+     * whatever is there now -- but on a container thread, since this may be called with
+     * locks held by the script or by AdmissionControl.
+     */
+    @Override
+    public void doResume()
+    {
+        paused = false;
+        if (finished) {
+            return;
+        }
+        try {
+            context.start(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        readAvailable();
+                    } catch (IOException ioe) {
+                        onError(ioe);
+                    }
+                }
+            });
+        } catch (IllegalStateException ise) {
+            // The response completed in the meantime, so there is nothing more to read
+            log.debug("Request completed before it could be resumed");
+        }
+    }
+
+    private synchronized void readAvailable()
+        throws IOException
+    {
+        while (!paused && !finished && in.isReady()) {
+            // Can't share this -- remember that "onData" happens asynchronously.
+            byte[] buf = new byte[bufferSize];
+            int rc = in.read(buf);
+            if (rc < 0) {
+                break;
+            }
+            if (rc > 0) {
+                stub.onData(request, response, new ServletChunk(ByteBuffer.wrap(buf, 0, rc), false));
+            }
+        }
+        if (!paused && !finished && in.isFinished()) {
+            // Some containers only report the end of the stream by "isFinished" after a resume
+            onAllDataRead();
+        }
+    }
+}
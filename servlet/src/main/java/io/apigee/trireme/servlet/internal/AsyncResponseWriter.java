@@ -0,0 +1,195 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.servlet.internal;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.ErrorCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This class writes the response in an asynchronous servlet. Chunks from the script are queued,
+ * and written whenever the container says that the output stream will accept them. Since a
+ * non-blocking write always takes the whole chunk, the script's callback is invoked as soon as the
+ * chunk is written, just as it is when the servlet blocks.
+ */
+
+public class AsyncResponseWriter
+    implements WriteListener
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncResponseWriter.class);
+
+    private final AsyncContext context;
+    private final HttpServletResponse response;
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+
+    private ServletOutputStream out;
+    private boolean done;
+
+    public AsyncResponseWriter(AsyncContext context, HttpServletResponse response)
+    {
+        this.context = context;
+        this.response = response;
+    }
+
+    /**
+     * Queue a ResponseChunk or ResponseError from the script and write whatever we can.
+     */
+    public void enqueue(Object chunk)
+    {
+        synchronized (this) {
+            if (done) {
+                if (chunk instanceof ResponseChunk) {
+                    ((ResponseChunk)chunk).invokeCallback(ErrorCodes.EIO);
+                }
+                return;
+            }
+            queue.add(chunk);
+            if (out == null) {
+                // Delay output stream creation so we can set headers and such, as the blocking servlet does.
+                // The container will call "onWritePossible" once the listener is set.
+                try {
+                    out = response.getOutputStream();
+                } catch (IOException ioe) {
+                    onError(ioe);
+                    return;
+                }
+                out.setWriteListener(this);
+                return;
+            }
+        }
+        try {
+            onWritePossible();
+        } catch (IOException ioe) {
+            onError(ioe);
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible()
+        throws IOException
+    {
+        while (!done && out.isReady()) {
+            Object next = queue.poll();
+            if (next == null) {
+                return;
+            }
+
+            if (next instanceof ResponseError) {
+                writeError((ResponseError)next);
+                finish();
+                return;
+            }
+
+            ResponseChunk chunk = (ResponseChunk)next;
+            if (chunk.getBuffer() == ServletResponse.LAST_CHUNK) {
+                finish();
+                chunk.invokeCallback(0);
+                return;
+            }
+            if (chunk.getBuffer() != null) {
+                ByteBuffer bb = chunk.getBuffer();
+                if (bb.hasArray()) {
+                    out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+                } else {
+                    byte[] tmp = new byte[bb.remaining()];
+                    bb.get(tmp);
+                    out.write(tmp);
+                }
+            }
+            chunk.invokeCallback(0);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Error writing response: {}", t);
+        }
+        close();
+    }
+
+    /**
+     * Complete the response now, and fail anything that the script has written or writes from now on.
+     */
+    public synchronized void close()
+    {
+        Object next;
+        while ((next = queue.poll()) != null) {
+            if (next instanceof ResponseChunk) {
+                ((ResponseChunk)next).invokeCallback(ErrorCodes.EIO);
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Called when the container times out the request. If nothing was sent yet, the client gets an error
+     * status rather than an empty response once the context is completed.
+     */
+    public synchronized void timeOut()
+    {
+        if (!done && !response.isCommitted()) {
+            response.reset();
+            response.setStatus(500);
+            response.setHeader("Content-Type", "text/plain");
+            if (out == null) {
+                // The stream is not in non-blocking mode yet, so this is an ordinary write
+                try {
+                    response.getOutputStream().write("Request timed out\n".getBytes(Charsets.UTF8));
+                } catch (IOException ioe) {
+                    log.debug("Error writing timeout response: {}", ioe.toString());
+                }
+            }
+        }
+    }
+
+    private void writeError(ResponseError err)
+        throws IOException
+    {
+        if (response.isCommitted()) {
+            // Too late to tell the client, so just end the response
+            return;
+        }
+        response.reset();
+        response.setStatus(500);
+        response.setHeader("Content-Type", "text/plain");
+        out.write((err.getMsg() + '\n' + err.getStack()).getBytes(Charsets.UTF8));
+    }
+
+    private void finish()
+    {
+        if (!done) {
+            done = true;
+            context.complete();
+        }
+    }
+}
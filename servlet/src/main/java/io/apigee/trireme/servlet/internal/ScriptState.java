@@ -21,6 +21,7 @@
  */
 package io.apigee.trireme.servlet.internal;
 
+import io.apigee.trireme.net.spi.AdmissionControlStub;
 import io.apigee.trireme.net.spi.HttpServerStub;
 
 import java.util.concurrent.Callable;
@@ -35,6 +36,8 @@ public class ScriptState
     extends FutureTask<Boolean>
 {
     private long responseTimeout;
+    private int maxQueuedRequests;
+    private long maxQueuedBytes;
     private HttpServerStub stub;
 
     public ScriptState()
@@ -60,6 +63,9 @@ public class ScriptState
             stub.setDefaultTimeout(responseTimeout, TimeUnit.SECONDS, 500,
                                    "text/plain", "Script response timed out");
         }
+        if (stub instanceof AdmissionControlStub) {
+            ((AdmissionControlStub)stub).getAdmissionControl().setLimits(maxQueuedRequests, maxQueuedBytes);
+        }
 
         run();
     }
@@ -67,4 +73,12 @@ public class ScriptState
     public void setResponseTimeout(long timeout) {
         this.responseTimeout = timeout;
     }
+
+    public void setMaxQueuedRequests(int max) {
+        this.maxQueuedRequests = max;
+    }
+
+    public void setMaxQueuedBytes(long max) {
+        this.maxQueuedBytes = max;
+    }
 }
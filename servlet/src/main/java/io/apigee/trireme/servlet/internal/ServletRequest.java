@@ -21,8 +21,8 @@
  */
 package io.apigee.trireme.servlet.internal;
 
-import io.apigee.trireme.net.spi.HttpRequestAdapter;
 import io.apigee.trireme.net.spi.PauseHelper;
+import io.apigee.trireme.net.spi.ThrottledRequestAdapter;
 import org.mozilla.javascript.Scriptable;
 
 import javax.servlet.http.HttpServletRequest;
@@ -38,14 +38,14 @@ import java.util.Map;
 
 public class ServletRequest
     extends AbstractRequest
-    implements HttpRequestAdapter
+    implements ThrottledRequestAdapter
 {
     public static final int HIGH_WATER = 16 * 1024;
 
     private final HttpServletRequest request;
     private final PauseHelper pauser;
 
-    public ServletRequest(HttpServletRequest req, FlowController control)
+    public ServletRequest(HttpServletRequest req, PauseHelper.FlowControl control)
     {
         this.request = req;
         this.pauser = new PauseHelper(control, HIGH_WATER);
@@ -97,6 +97,12 @@ public class ServletRequest
         pauser.incrementQueueLength(delta);
     }
 
+    @Override
+    public void setThrottled(boolean throttled)
+    {
+        pauser.setThrottled(throttled);
+    }
+
     @Override
     public Collection<Map.Entry<String, String>> getHeaders()
     {
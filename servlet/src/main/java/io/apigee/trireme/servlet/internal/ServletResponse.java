@@ -38,11 +38,25 @@ public class ServletResponse
     public static final ByteBuffer LAST_CHUNK = ByteBuffer.allocate(0);
 
     private final HttpServletResponse response;
-    private final LinkedBlockingQueue<Object> responseQueue = new LinkedBlockingQueue<Object>();
+    private final AsyncResponseWriter writer;
+    private final LinkedBlockingQueue<Object> responseQueue;
 
     public ServletResponse(HttpServletResponse resp)
     {
         this.response = resp;
+        this.writer = null;
+        this.responseQueue = new LinkedBlockingQueue<Object>();
+    }
+
+    /**
+     * Create a response for an asynchronous servlet, which hands each chunk to the writer rather
+     * than queueing it for the servlet thread.
+     */
+    public ServletResponse(HttpServletResponse resp, AsyncResponseWriter writer)
+    {
+        this.response = resp;
+        this.writer = writer;
+        this.responseQueue = null;
     }
 
     public Object getNextChunk()
@@ -68,7 +82,7 @@ public class ServletResponse
     {
         if (lastChunk) {
             ResponseChunk chunk = new ResponseChunk(LAST_CHUNK, cb);
-            responseQueue.offer(chunk);
+            enqueue(chunk);
         }
     }
 
@@ -77,13 +91,13 @@ public class ServletResponse
     {
         if (lastChunk) {
             ResponseChunk chunk = new ResponseChunk(data, null);
-            responseQueue.offer(chunk);
+            enqueue(chunk);
             chunk = new ResponseChunk(LAST_CHUNK, cb);
-            responseQueue.offer(chunk);
+            enqueue(chunk);
 
         } else {
             ResponseChunk chunk = new ResponseChunk(data, cb);
-            responseQueue.offer(chunk);
+            enqueue(chunk);
         }
     }
 
@@ -91,7 +105,16 @@ public class ServletResponse
     public void fatalError(String message, String stack)
     {
         ResponseError err = new ResponseError(message, stack);
-        responseQueue.offer(err);
+        enqueue(err);
+    }
+
+    private void enqueue(Object o)
+    {
+        if (writer == null) {
+            responseQueue.offer(o);
+        } else {
+            writer.enqueue(o);
+        }
     }
 
     @Override
@@ -139,6 +139,93 @@ public class ServletIT
         assertEquals("Hello, World!", hello);
     }
 
+    @Test
+    public void testAsyncHello()
+        throws IOException
+    {
+        String hello = httpRetrieve("GET", BASE + "/async", 200);
+        assertEquals("Hello, World!", hello);
+    }
+
+    @Test
+    public void testAsyncPostEcho()
+        throws IOException
+    {
+        String msg = "Hello to the server!";
+        String hello = httpExchange("POST", BASE + "/async", msg, 200);
+        assertEquals(msg, hello);
+    }
+
+    @Test
+    public void testAsyncPostHugeEcho()
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("0123456789");
+        }
+        String msg = sb.toString();
+        String hello = httpExchange("POST", BASE + "/async", msg, 200);
+        assertEquals(msg, hello);
+    }
+
+    @Test
+    public void testAsyncLargePostCount()
+        throws IOException
+    {
+        int chunkSize = 1;
+        int numChunks = 1000;
+        String len = httpLargeExchange("POST", BASE + "/async/count", chunkSize, numChunks, 200);
+        int length = Integer.parseInt(len);
+        assertEquals(chunkSize * numChunks, length);
+    }
+
+    @Test
+    public void testAsyncHumongousPostCount()
+        throws IOException
+    {
+        int chunkSize = 10000;
+        int numChunks = 25000;
+        String len = httpLargeExchange("POST", BASE + "/async/count", chunkSize, numChunks, 200);
+        int length = Integer.parseInt(len);
+        assertEquals(chunkSize * numChunks, length);
+    }
+
+    @Test
+    public void testAsyncHelloDelay()
+        throws IOException
+    {
+        String hello = httpRetrieve("GET", BASE + "/async/delay", 200);
+        assertEquals("Hello, World!", hello);
+    }
+
+    @Test
+    public void testAsyncThrow()
+        throws IOException
+    {
+        String err = httpRetrieve("GET", BASE + "/async/throw", 500);
+        assertTrue(err.contains("Oops!"));
+    }
+
+    @Test
+    public void testAsyncSwallow()
+        throws IOException
+    {
+        String err = httpRetrieve("GET", BASE + "/async/swallow", 500);
+        assertTrue(err.contains("response timed out"));
+    }
+
+    @Test
+    public void testAsyncContainerTimeout()
+        throws IOException
+    {
+        // This servlet has no response timeout of its own, so the container's async timeout ends the request
+        String err = httpRetrieve("GET", BASE + "/asynctimeout/swallow", 500);
+        assertTrue(err.contains("Request timed out"));
+        String hello = httpRetrieve("GET", BASE + "/asynctimeout", 200);
+        assertEquals("Hello, World!", hello);
+    }
+
     private String httpRetrieve(String method, String urlStr, int expectedStatus)
         throws IOException
     {
@@ -5,25 +5,27 @@ var PORT = process.env.PORT || 8080;
 
 function handleRequest(req, resp) {
   console.log('%s %s', req.method, req.url);
+  // The same tests run against the blocking servlet at "/test" and the async ones at "/async" and "/asynctimeout"
+  var url = req.url.replace(/^\/async(timeout)?/, '/test');
 
   if (req.method === 'POST') {
-    if (req.url == '/test') {
+    if (url == '/test') {
       writeEchoResponse(req, resp);
-    } else if (req.url == '/test/count') {
+    } else if (url == '/test/count') {
       countData(req, resp);
     } else {
       writeError(resp, 404);
     }
   } else if (req.method == 'GET') {
-    if (req.url === '/test/delay') {
+    if (url === '/test/delay') {
       setTimeout(function() {
         writeResponse(resp);
       }, 1000);
-    } else if (req.url === '/test/throw') {
+    } else if (url === '/test/throw') {
       throw new Error('Oops!');
-    } else if (req.url === '/test/exit') {
+    } else if (url === '/test/exit') {
       process.exit(22);
-    } else if (req.url === '/test/swallow') {
+    } else if (url === '/test/swallow') {
       // Do nothing!
     } else {
       writeResponse(resp);
@@ -3,6 +3,7 @@ package io.apigee.trireme.util;
 import io.apigee.trireme.core.NativeNodeModule;
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.core.internal.ScriptUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Script;
@@ -104,6 +105,8 @@ public class Contextify
         public static final String CLASS_NAME = "ContextifyScript";
 
         private Script script;
+        private String source;
+        private String fileName;
 
         @Override
         public String getClassName() {
@@ -121,8 +124,14 @@ public class Contextify
             String code = stringArg(args, 0);
             String fileName = stringArg(args, 1, "anonymous");
 
+            ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
             ScriptImpl self = new ScriptImpl();
-            self.script = cx.compileString(code, fileName, 1, null);
+            self.script = runner.getEnvironment().getScriptCompiler().compile(cx, code, fileName);
+            if (self.script == null) {
+                // Too large to compile -- interpret it when it is run
+                self.source = code;
+                self.fileName = fileName;
+            }
             return self;
         }
 
@@ -133,6 +142,13 @@ public class Contextify
             ContextImpl ctx = objArg(args, 0, ContextImpl.class, true);
             ScriptImpl self = (ScriptImpl)thisObj;
 
+            if (self.script == null) {
+                ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+                self.script = runner.getEnvironment().getScriptCompiler().getCompiledScript(self.source);
+            }
+            if (self.script == null) {
+                return ScriptUtils.interpretScript(cx, ctx.globalProxy, self.source, self.fileName);
+            }
             return self.script.exec(cx, ctx.globalProxy);
         }
     }